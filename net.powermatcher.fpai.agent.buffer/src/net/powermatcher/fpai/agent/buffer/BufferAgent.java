@@ -24,8 +24,11 @@ import net.powermatcher.core.configurable.service.ConfigurationService;
 import net.powermatcher.core.object.config.IdentifiableObjectConfiguration;
 import net.powermatcher.core.scheduler.service.SchedulerConnectorService;
 import net.powermatcher.core.scheduler.service.TimeConnectorService;
+import net.powermatcher.fpai.agent.BidPipeline;
 import net.powermatcher.fpai.agent.BidUtil;
+import net.powermatcher.fpai.agent.CompiledConstraintList;
 import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
 import net.powermatcher.fpai.agent.buffer.BufferAgent.Config;
 
 import org.flexiblepower.rai.Allocation;
@@ -59,17 +62,34 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
     /** The last allocation given */
     private Allocation lastAllocation;
 
+    /** Transformations which are applied to the basic bid, e.g. rounding to the charge speed */
+    private final BidPipeline bidPipeline = new BidPipeline();
+
+    /** The compiled charge speed of the last control space, which is reused as long as the charge speed is the same */
+    private CompiledConstraintList chargeSpeedIndex;
+
     /** The time until the device must run (or null if not applicable) */
     private Date mustRunUntil = null;
 
     /** The time until the device must not run (or null if not applicable) */
     private Date mustNotRunUntil = null;
 
+    @Override
+    public void recycle() {
+        super.recycle();
+        lastAllocation = null;
+        chargeSpeedIndex = null;
+        mustRunUntil = null;
+        mustNotRunUntil = null;
+    }
+
     /**
      * Main function that creates the bid based on the ControlSpace.
      */
     @Override
     protected BidInfo createBid(BufferControlSpace controlSpace, MarketBasis marketBasis) {
+        bidPipeline.reset();
+
         // if the buffer can't turn on, return a flat bid with power value 0
         if (isInMustNotRunState() || (isOffByAllocation() && !canTurnOn(controlSpace))) {
             return BidUtil.zeroBid(marketBasis);
@@ -86,14 +106,26 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
         // check if there is a minimum charge speed and apply it
         Measurable<Power> minimumChargeSpeed = calculateMinimumChargeSpeed(controlSpace);
         if (isConsumingBuffer(controlSpace) && minimumChargeSpeed.doubleValue(WATT) > 0) {
-            bid = BidUtil.setMinimumDemand(bid, minimumChargeSpeed);
+            bidPipeline.clampMinimum(minimumChargeSpeed.doubleValue(WATT));
         }
         if (isProducingBuffer(controlSpace) && minimumChargeSpeed.doubleValue(WATT) < 0) {
-            bid = BidUtil.setMaximumDemand(bid, minimumChargeSpeed);
+            bidPipeline.clampMaximum(minimumChargeSpeed.doubleValue(WATT));
         }
 
-        // return the bid;
-        return bid;
+        // apply the rounding and the minimum charge speed in a single pass and return the bid
+        return bidPipeline.apply(bid);
+    }
+
+    /**
+     * The bid only depends on time through the must-run and must-not-run periods, the allocation (which invalidates the
+     * bid anyway) and the target, which is approached by a demand which changes over time.
+     */
+    @Override
+    protected long getBidTimeBucket(BufferControlSpace controlSpace, MarketBasis marketBasis) {
+        if (hasTarget(controlSpace)) {
+            return NOT_CACHEABLE;
+        }
+        return (isInMustNotRunState() ? 1 : 0) | (isInMustRunState() ? 2 : 0) | (isOnByAllocation() ? 4 : 0);
     }
 
     /**
@@ -250,10 +282,10 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
                                             new PricePoint(rangeUpperIdx, minDemand) };
         }
 
-        BidInfo bid = new BidInfo(marketBasis, pricePoints);
-
-        // constrain the bid to the possibilities of the buffer to be charged with
-        return BidUtil.roundBidToPowerConstraintList(bid, chargeSpeed, false);
+        // constrain the bid to the possibilities of the buffer to be charged with (applied in createBid)
+        chargeSpeedIndex = CompiledConstraintList.compile(chargeSpeed, chargeSpeedIndex);
+        bidPipeline.roundToConstraints(chargeSpeedIndex, false);
+        return new BidInfo(marketBasis, pricePoints);
     }
 
     /**
@@ -349,10 +381,10 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
 
         // if we're turning on or off, calculate the time at which we can switch again
         if (currentTargetPower < 0.01 && currentTargetPower > -0.01 && targetPower != 0) {
-            logDebug("Turning device ON for at least " + controlSpace.getMinOnPeriod());
+            logEvent("Turning device ON for at least ", controlSpace.getMinOnPeriod());
             mustRunUntil = TimeUtil.add(now, controlSpace.getMinOnPeriod());
         } else if (currentTargetPower != 0 && targetPower == 0) {
-            logDebug("Turning device OFF for at least " + controlSpace.getMinOffPeriod());
+            logEvent("Turning device OFF for at least ", controlSpace.getMinOffPeriod());
             mustNotRunUntil = TimeUtil.add(now, controlSpace.getMinOffPeriod());
         }
 
@@ -371,7 +403,7 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
             return 0;
         }
 
-        double[] demand = bid.getDemand();
+        PiecewiseLinearBid demand = PiecewiseLinearBid.of(bid);
 
         MarketBasis market = price.getMarketBasis();
         double index = ((price.getCurrentPrice() - market.getMinimumPrice()) / (market.getMaximumPrice() - market.getMinimumPrice())) * (market.getPriceSteps() - 1);
@@ -379,8 +411,8 @@ public class BufferAgent extends FPAIAgent<BufferControlSpace> implements
         int highDemandIndex = (int) Math.floor(index);
         int lowDemandIndex = (int) Math.ceil(index);
 
-        double highDemand = demand[highDemandIndex];
-        double lowDemand = demand[lowDemandIndex];
+        double highDemand = demand.getDemandAt(highDemandIndex);
+        double lowDemand = demand.getDemandAt(lowDemandIndex);
 
         double weight = index - highDemandIndex;
 
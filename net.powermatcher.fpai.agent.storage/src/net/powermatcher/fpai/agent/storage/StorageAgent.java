@@ -23,7 +23,8 @@ import net.powermatcher.core.configurable.service.ConfigurationService;
 import net.powermatcher.core.object.config.IdentifiableObjectConfiguration;
 import net.powermatcher.core.scheduler.service.SchedulerConnectorService;
 import net.powermatcher.core.scheduler.service.TimeConnectorService;
-import net.powermatcher.fpai.agent.BidUtil;
+import net.powermatcher.fpai.agent.BidPipeline;
+import net.powermatcher.fpai.agent.CompiledConstraintList;
 import net.powermatcher.fpai.agent.ConstraintListUtil;
 import net.powermatcher.fpai.agent.FPAIAgent;
 import net.powermatcher.fpai.agent.storage.StorageAgent.Config;
@@ -61,6 +62,15 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
     /** If the device in the minTurnOff period the end time, otherwise null */
     private Date underMinTurnOffUntil = null;
 
+    /** Transformations which are applied to the basic bid, e.g. the must-run constraints */
+    private final BidPipeline bidPipeline = new BidPipeline();
+
+    /** The compiled charge, discharge and combined power constraint lists of the current control space */
+    private CompiledConstraintList chargeSpeedIndex;
+    private CompiledConstraintList dischargeSpeedIndex;
+    private CompiledConstraintList combinedSpeedIndex;
+    private StorageControlSpace combinedSpeedControlSpace;
+
     public StorageAgent() {
         super();
     }
@@ -70,12 +80,25 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
     }
 
     @Override
-    public synchronized Allocation createAllocation(BidInfo bid, PriceInfo price, StorageControlSpace controlSpace) {
+    public void recycle() {
+        super.recycle();
+        currentControlSpace = null;
+        currentChargeSpeedWatt = 0;
+        underMinTurnOnUntil = null;
+        underMinTurnOffUntil = null;
+        chargeSpeedIndex = null;
+        dischargeSpeedIndex = null;
+        combinedSpeedIndex = null;
+        combinedSpeedControlSpace = null;
+    }
+
+    @Override
+    public Allocation createAllocation(BidInfo bid, PriceInfo price, StorageControlSpace controlSpace) {
         double targetChargeSpeedWatt = bid.getDemand(price.getCurrentPrice());
 
         if (currentChargeSpeedWatt == 0 && targetChargeSpeedWatt != 0) {
             // Turn ON
-            logDebug("Turning device ON");
+            logEvent("Turning device ON", null);
             if (controlSpace.getMinOnPeriod().doubleValue(SECOND) > 1) {
                 //
                 underMinTurnOnUntil = new Date(getTimeSource().currentTimeMillis() + controlSpace.getMinOnPeriod()
@@ -83,7 +106,7 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
             }
         } else if (currentChargeSpeedWatt != 0 && targetChargeSpeedWatt == 0) {
             // Turn OFF
-            logDebug("Turning device OFF");
+            logEvent("Turning device OFF", null);
             if (controlSpace.getMinOffPeriod().doubleValue(SECOND) > 1) {
                 underMinTurnOffUntil = new Date(getTimeSource().currentTimeMillis() + controlSpace.getMinOffPeriod()
                                                                                                   .longValue(MILLI(SECOND)));
@@ -103,7 +126,7 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
     }
 
     @Override
-    public synchronized BidInfo createBid(StorageControlSpace controlSpace, MarketBasis marketBasis) {
+    public BidInfo createBid(StorageControlSpace controlSpace, MarketBasis marketBasis) {
         assert controlSpace != null;
         assert marketBasis != null;
 
@@ -116,8 +139,13 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
             return new BidInfo(marketBasis, new PricePoint(0, currentChargeSpeedWatt));
         }
 
-        Measurable<Power> maxChargePower = currentControlSpace.getChargeSpeed().getMaximum();
-        Measurable<Power> maxDischargePower = currentControlSpace.getDischargeSpeed().getMaximum();
+        // the constraint lists are only compiled again when the control space has changed them
+        chargeSpeedIndex = CompiledConstraintList.compile(currentControlSpace.getChargeSpeed(), chargeSpeedIndex);
+        dischargeSpeedIndex = CompiledConstraintList.compile(currentControlSpace.getDischargeSpeed(),
+                                                             dischargeSpeedIndex);
+
+        double maxChargePowerWatt = chargeSpeedIndex.getMaximum();
+        double maxDischargePowerWatt = dischargeSpeedIndex.getMaximum();
 
         double efficiency = currentControlSpace.getChargeEfficiency() * currentControlSpace.getDischargeEfficiency();
         efficiency = Math.min(1.0, efficiency);
@@ -130,66 +158,90 @@ public class StorageAgent extends FPAIAgent<StorageControlSpace> implements
                                            marketBasis.getPriceSteps() - 1),
                                   0);
 
-        double[] demand = new double[marketBasis.getPriceSteps()];
+        // write the basic bid directly into the buffer of the bid pipeline
+        bidPipeline.reset();
+        double[] demand = bidPipeline.getBuffer(marketBasis);
+        int priceSteps = marketBasis.getPriceSteps();
         int i = 0;
         for (; i < lowerLimit; i++) {
-            demand[i] = ConstraintListUtil.getClosestPower(currentControlSpace.getChargeSpeed(),
-                                                           Measure.valueOf((maxChargePower.doubleValue(WATT) * (1.0 - (i / (double) lowerLimit))),
-                                                                           WATT))
-                                          .doubleValue(WATT);
+            demand[i] = chargeSpeedIndex.closest(maxChargePowerWatt * (1.0 - (i / (double) lowerLimit)));
         }
 
         for (; i <= upperLimit; i++) {
             demand[i] = 0;
         }
 
-        for (; i < demand.length; i++) {
+        for (; i < priceSteps; i++) {
             // TODO should it be lowerLimit in this formula?
-            demand[i] = -ConstraintListUtil.getClosestPower(currentControlSpace.getDischargeSpeed(),
-                                                            Measure.valueOf((maxDischargePower.doubleValue(WATT) * ((i - demand.length - 1) / (double) lowerLimit)),
-                                                                            WATT))
-                                           .doubleValue(WATT);
+            demand[i] = -dischargeSpeedIndex.closest(maxDischargePowerWatt
+                                                     * ((i - priceSteps - 1) / (double) lowerLimit));
         }
 
-        BidInfo bid = new BidInfo(marketBasis, demand);
-
-        ConstraintList<Power> combinedPCL = ConstraintListUtil.combinePowerConstraintLists(currentControlSpace.getChargeSpeed(),
-                                                                                           currentControlSpace.getDischargeSpeed());
         if (currentChargeSpeedWatt != 0 && !canTurnOffNow(currentControlSpace)) {
             // We can't turn off now, so must run situation
             if (currentChargeSpeedWatt > 0) { // We're charging
-                bid = BidUtil.setMinimumDemand(bid, Measure.valueOf(currentChargeSpeedWatt, WATT));
+                bidPipeline.clampMinimum(currentChargeSpeedWatt);
             } else if (currentChargeSpeedWatt < 0) { // We're discharging
-                bid = BidUtil.setMaximumDemand(bid, Measure.valueOf(currentChargeSpeedWatt, WATT));
+                bidPipeline.clampMaximum(currentChargeSpeedWatt);
             }
         } else if (currentChargeSpeedWatt <= 0 && !canStartCharging(currentControlSpace)) {
             // Can't start charging now
-            bid = BidUtil.setMaximumDemand(bid, Measure.valueOf(0, WATT));
+            bidPipeline.clampMaximum(0);
         } else if (currentChargeSpeedWatt >= 0 && !canStartDischarging(currentControlSpace)) {
             // Can't start discharging now
-            bid = BidUtil.setMinimumDemand(bid, Measure.valueOf(0, WATT));
+            bidPipeline.clampMinimum(0);
         } else if (hasTarget(currentControlSpace)) {
-            logDebug("Agent is working towards a target");
-            Measurable<Power> requiredPower = requiredDemandForTarget(currentControlSpace);
-            if (requiredPower.doubleValue(WATT) > 0) {
-                requiredPower = ConstraintListUtil.ceilToPowerConstraintList(combinedPCL, requiredPower);
-                if (requiredPower == null) {
-                    requiredPower = combinedPCL.getMaximum(); // best we can do
+            logEvent("Agent is working towards a target", null);
+            CompiledConstraintList combinedSpeed = getCombinedSpeedIndex(currentControlSpace);
+            double requiredPowerWatt = requiredDemandForTarget(currentControlSpace).doubleValue(WATT);
+            if (requiredPowerWatt > 0) {
+                requiredPowerWatt = combinedSpeed.ceil(requiredPowerWatt);
+                if (Double.isNaN(requiredPowerWatt)) {
+                    requiredPowerWatt = combinedSpeed.getMaximum(); // best we can do
                 }
-                bid = BidUtil.setMinimumDemand(bid, requiredPower);
-            } else if (requiredPower.doubleValue(WATT) < 0) {
-                requiredPower = ConstraintListUtil.floorToPowerConstraintList(combinedPCL, requiredPower);
-                if (requiredPower == null) {
-                    requiredPower = combinedPCL.getMinimum(); // best we can do
+                bidPipeline.clampMinimum(requiredPowerWatt);
+            } else if (requiredPowerWatt < 0) {
+                requiredPowerWatt = combinedSpeed.floor(requiredPowerWatt);
+                if (Double.isNaN(requiredPowerWatt)) {
+                    requiredPowerWatt = combinedSpeed.getMinimum(); // best we can do
                 }
-                bid = BidUtil.setMaximumDemand(bid, requiredPower);
+                bidPipeline.clampMaximum(requiredPowerWatt);
             }
         }
 
+        // apply the constraints to the basic bid in a single pass
+        BidInfo bid = bidPipeline.applyToBuffer(marketBasis);
+
         logger.debug("Constructed bid curve: {}", bid);
         return bid;
     }
 
+    /**
+     * The bid only depends on time through the minimum on and off periods and through the target, which is approached
+     * by a demand which changes over time.
+     */
+    @Override
+    protected long getBidTimeBucket(StorageControlSpace controlSpace, MarketBasis marketBasis) {
+        if (hasTarget(controlSpace)) {
+            return NOT_CACHEABLE;
+        }
+        return isUnderMinTurnOff() || isUnderMinTurnOn() ? 1 : 0;
+    }
+
+    /**
+     * @return the compiled combination of the charge and discharge speed of the control space, which is only combined
+     *         and compiled again when the control space has changed
+     */
+    private CompiledConstraintList getCombinedSpeedIndex(StorageControlSpace controlSpace) {
+        if (combinedSpeedControlSpace != controlSpace) {
+            ConstraintList<Power> combinedPCL = ConstraintListUtil.combinePowerConstraintLists(controlSpace.getChargeSpeed(),
+                                                                                               controlSpace.getDischargeSpeed());
+            combinedSpeedIndex = CompiledConstraintList.compile(combinedPCL);
+            combinedSpeedControlSpace = controlSpace;
+        }
+        return combinedSpeedIndex;
+    }
+
     private static boolean hasTarget(StorageControlSpace storageControlSpace) {
         return !(storageControlSpace.getTargetStateOfCharge() == null || storageControlSpace.getTargetTime() == null);
     }
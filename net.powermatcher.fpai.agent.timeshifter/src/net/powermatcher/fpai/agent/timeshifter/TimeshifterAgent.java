@@ -61,6 +61,13 @@ public class TimeshifterAgent extends FPAIAgent<TimeShifterControlSpace> impleme
         eagerness = config.eagerness();
     }
 
+    @Override
+    public void recycle() {
+        super.recycle();
+        lastControlSpace = null;
+        lastAllocation = null;
+    }
+
     @Override
     public Allocation createAllocation(BidInfo lastBid, PriceInfo price, TimeShifterControlSpace controlSpace) {
         Date now = new Date(getTimeSource().currentTimeMillis());
@@ -122,10 +129,50 @@ public class TimeshifterAgent extends FPAIAgent<TimeShifterControlSpace> impleme
         }
     }
 
+    /**
+     * Before the device has started, the bid is a must-off bid, a must-run bid or a step bid of which the step price
+     * moves with time, so the step price is used as time bucket. A started device follows its energy profile, so its
+     * bid is not cached.
+     */
+    @Override
+    protected long getBidTimeBucket(TimeShifterControlSpace controlSpace, MarketBasis marketBasis) {
+        if (lastAllocation != null) {
+            return NOT_CACHEABLE;
+        }
+
+        Date now = new Date(getTimeSource().currentTimeMillis());
+        if (controlSpace.getStartAfter().after(now) || now.equals(controlSpace.getStartAfter())) {
+            return -1;
+        } else if (now.after(controlSpace.getStartBefore()) || now.equals(controlSpace.getStartBefore())) {
+            return -2;
+        } else {
+            return calculateStepPrice(controlSpace, marketBasis);
+        }
+    }
+
     private BidInfo calculateFlexibleBid(TimeShifterControlSpace controlSpace, MarketBasis marketBasis) {
         assert controlSpace != null;
         assert marketBasis != null;
 
+        double initialDemandWatt = getInitialDemand(controlSpace).doubleValue(WATT);
+        int normalizedStepPrice = calculateStepPrice(controlSpace, marketBasis);
+
+        // the bid depends on whether the initial demand is actually demand or is supply
+        if (initialDemandWatt > 0) {
+            return new BidInfo(marketBasis,
+                               new PricePoint(normalizedStepPrice, initialDemandWatt),
+                               new PricePoint(normalizedStepPrice, 0));
+        } else {
+            return new BidInfo(marketBasis, new PricePoint(normalizedStepPrice, 0), new PricePoint(normalizedStepPrice,
+                                                                                                   initialDemandWatt));
+        }
+    }
+
+    /**
+     * @return The normalized price at which the device is started, given how far time has progressed in the start
+     *         window
+     */
+    private int calculateStepPrice(TimeShifterControlSpace controlSpace, MarketBasis marketBasis) {
         // determine how far time has progressed in comparison to the start window (start after until start before)
         long startAfter = controlSpace.getStartAfter().getTime();
         long startBefore = controlSpace.getStartBefore().getTime();
@@ -145,17 +192,7 @@ public class TimeshifterAgent extends FPAIAgent<TimeShifterControlSpace> impleme
         double priceRange = marketBasis.getMaximumPrice() - marketBasis.getMinimumPrice()
                             - (marketBasis.getPriceIncrement() * 2);
         double stepPrice = priceRange * ratio + marketBasis.getMinimumPrice() + marketBasis.getPriceIncrement();
-        int normalizedStepPrice = marketBasis.toNormalizedPrice(stepPrice);
-
-        // the bid depends on whether the initial demand is actually demand or is supply
-        if (initialDemandWatt > 0) {
-            return new BidInfo(marketBasis,
-                               new PricePoint(normalizedStepPrice, initialDemandWatt),
-                               new PricePoint(normalizedStepPrice, 0));
-        } else {
-            return new BidInfo(marketBasis, new PricePoint(normalizedStepPrice, 0), new PricePoint(normalizedStepPrice,
-                                                                                                   initialDemandWatt));
-        }
+        return marketBasis.toNormalizedPrice(stepPrice);
     }
 
     private Measurable<Power> getInitialDemand(TimeShifterControlSpace controlSpace) {
@@ -23,6 +23,7 @@ import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent.Config;
 
 import org.flexiblepower.rai.Allocation;
 import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
 import org.flexiblepower.rai.values.EnergyProfile.Element;
 import org.flexiblepower.time.TimeUtil;
 import org.slf4j.Logger;
@@ -117,6 +118,32 @@ public class UncontrolledAgent extends FPAIAgent<UncontrolledControlSpace> imple
         return new BidInfo(marketBasis, new PricePoint(0, currentDemand.doubleValue(SI.WATT)));
     }
 
+    /**
+     * The bid only changes when another element of the energy profile becomes current, so the index of the current
+     * element is used as time bucket.
+     */
+    @Override
+    protected long getBidTimeBucket(UncontrolledControlSpace controlSpace, MarketBasis marketBasis) {
+        long now = getTimeSource().currentTimeMillis();
+        if (controlSpace.getValidThru() != null && !controlSpace.getValidThru().after(new Date(now))) {
+            return NOT_CACHEABLE;
+        }
+
+        long offset = now - controlSpace.getStartTime().getTime();
+        if (offset < 0) {
+            return -1;
+        }
+
+        EnergyProfile energyProfile = controlSpace.getEnergyProfile();
+        for (int i = 0; i < energyProfile.size(); i++) {
+            offset -= energyProfile.get(i).getDuration().longValue(SI.MILLI(SI.SECOND));
+            if (offset < 0) {
+                return i;
+            }
+        }
+        return energyProfile.size();
+    }
+
     /**
      * @return Returns whether the current demand changed significantly given the significanceLevel. Any change from or
      *         to 0 is considered significant.
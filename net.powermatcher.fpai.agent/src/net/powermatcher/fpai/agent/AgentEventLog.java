@@ -0,0 +1,201 @@
+package net.powermatcher.fpai.agent;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded log of the events of an agent, such as a bid being reused or a price being ignored. Recording an event
+ * only stores references to its values in a slot of a ring buffer; the message is formatted when the event is read.
+ * Only one in every sample rate events is recorded, so the log costs next to nothing for the many agents nobody looks
+ * at, while the recent history of an agent is still available when needed. The newest events overwrite the oldest when
+ * the buffer is full.
+ * <p>
+ * The events of an agent are recorded by the thread which performs its work and by the thread which dispatches its
+ * allocations, see {@link FPAIAgent}. Sampling and recording are thread-safe, and the log may be read from any thread.
+ *
+ * @author TNO
+ */
+public final class AgentEventLog {
+    /** The kinds of events, with the template of their message */
+    public enum Kind {
+        BID_UNCHANGED("Bid unchanged, not publishing it"),
+        NO_CONTROL_SPACE("No active ControlSpace found, triggering must-off bid"),
+        BID_REUSED("Control space and time bucket (%4$d) unchanged, reusing the bid"),
+        BID_CALCULATED("Control space was updated (%1$s), triggering updating the bid: %2$s"),
+        PRICE_WITHOUT_CONTROL_SPACE("Ignoring price update, no control space information available"),
+        PRICE_WITHOUT_RESOURCE("Ignoring price update, not bound to a resource"),
+        PRICE_WITHOUT_BID("Ignoring price update, no bid published yet"),
+        ALLOCATION("Price update (%3$s) triggered calculation of new allocation: %2$s"),
+        NO_ALLOCATION("Price update (%3$s) received, but no allocation was calculated"),
+        /** an event of a specific agent, of which the message is the subject followed by the detail */
+        MESSAGE("%1$s%2$s");
+
+        private final String template;
+
+        private Kind(String template) {
+            this.template = template;
+        }
+
+        String format(Object subject, Object detail, double value, long number) {
+            return String.format(template, subject, detail, value, number);
+        }
+    }
+
+    /** A recorded event, of which the message is formatted when it is asked for */
+    public static final class Event {
+        private long time;
+        private Kind kind;
+        private Object subject;
+        private Object detail;
+        private double value;
+        private long number;
+
+        private Event() {
+        }
+
+        private Event(Event event) {
+            time = event.time;
+            kind = event.kind;
+            subject = event.subject;
+            detail = event.detail;
+            value = event.value;
+            number = event.number;
+        }
+
+        /**
+         * @return The time of the event in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getMessage() {
+            return kind.format(subject, detail, value, number);
+        }
+
+        @Override
+        public String toString() {
+            return new Date(time) + " " + getMessage();
+        }
+    }
+
+    private final Event[] events;
+
+    /** the number of events which were recorded, the next event is stored at this index modulo the capacity */
+    private long recorded;
+
+    /** the number of events which were offered, of which every sample rate'th is recorded */
+    private final AtomicInteger offered = new AtomicInteger();
+
+    private volatile int sampleRate;
+
+    /**
+     * @param capacity
+     *            The maximum number of events which are kept
+     * @param sampleRate
+     *            The initial sample rate, see {@link #setSampleRate(int)}
+     */
+    public AgentEventLog(int capacity, int sampleRate) {
+        events = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            events[i] = new Event();
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the fraction of the events which are recorded.
+     *
+     * @param sampleRate
+     *            1 to record every event, n to record one in every n events, or 0 to record no events
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Decides whether the next event is recorded. The caller only gathers the values of the event when it is.
+     *
+     * @return Whether the event must be recorded with {@link #record}
+     */
+    public boolean sample() {
+        int rate = sampleRate;
+        if (rate <= 0) {
+            return false;
+        }
+        int count;
+        do {
+            count = offered.get();
+        } while (!offered.compareAndSet(count, count + 1 >= rate ? 0 : count + 1));
+        return count == 0;
+    }
+
+    /**
+     * Records an event, overwriting the oldest event if the log is full.
+     *
+     * @param time
+     *            The time of the event in milliseconds
+     * @param kind
+     *            The kind of event
+     * @param subject
+     *            The first value of the message, or null
+     * @param detail
+     *            The second value of the message, or null
+     * @param value
+     *            The numeric value of the message, or 0
+     * @param number
+     *            The integral value of the message, or 0
+     * @return The recorded event, which may only be read until the next event is recorded
+     */
+    public synchronized Event record(long time, Kind kind, Object subject, Object detail, double value, long number) {
+        Event event = events[(int) (recorded++ % events.length)];
+        event.time = time;
+        event.kind = kind;
+        event.subject = subject;
+        event.detail = detail;
+        event.value = value;
+        event.number = number;
+        return event;
+    }
+
+    /**
+     * @return A copy of the events which are kept, from the oldest to the newest
+     */
+    public synchronized List<Event> getEvents() {
+        int size = (int) Math.min(recorded, events.length);
+        List<Event> copy = new ArrayList<Event>(size);
+        for (long i = recorded - size; i < recorded; i++) {
+            copy.add(new Event(events[(int) (i % events.length)]));
+        }
+        return copy;
+    }
+
+    /**
+     * @return The number of events which were recorded, including the events which were overwritten since
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Removes all events, e.g. when the agent is recycled.
+     */
+    public synchronized void clear() {
+        for (Event event : events) {
+            event.subject = null;
+            event.detail = null;
+        }
+        recorded = 0;
+        offered.set(0);
+    }
+}
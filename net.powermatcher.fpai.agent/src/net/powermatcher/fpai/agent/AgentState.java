@@ -0,0 +1,282 @@
+package net.powermatcher.fpai.agent;
+
+import java.util.Date;
+
+import org.flexiblepower.rai.ControlSpace;
+import org.flexiblepower.rai.ControllableResource;
+
+/**
+ * Immutable snapshot of the state of an {@link FPAIAgent} which is shared between threads: the resource it is bound
+ * to, the last processed control space, the state of the coalescing of bid updates and the work which was requested
+ * but not yet performed. Every change creates a new snapshot, which the agent publishes with a compare-and-set, so a
+ * thread always sees a consistent combination of these values without taking a lock.
+ *
+ * @author TNO
+ *
+ * @param <CS>
+ *            The type of ControlSpace of the agent
+ */
+final class AgentState<CS extends ControlSpace> {
+    /** The last bid update time of an agent which hasn't published a coalesced bid yet */
+    static final long NEVER = Long.MIN_VALUE;
+
+    @SuppressWarnings("rawtypes")
+    private static final AgentState INITIAL = new AgentState(null, null, null, 0, 0, 0, 0, false, 0, null, NEVER);
+
+    @SuppressWarnings("unchecked")
+    static <CS extends ControlSpace> AgentState<CS> initial() {
+        return INITIAL;
+    }
+
+    private final ControllableResource<? extends CS> resource;
+    private final CS controlSpace;
+    private final Date priceDate;
+    private final int requestedBidUpdates;
+    private final long controlSpaceNanos;
+    private final int requestedAllocations;
+    private final long allocationRequestNanos;
+    private final boolean byeByeRequested;
+    private final int pendingBidUpdates;
+    private final Object flushToken;
+    private final long lastBidUpdateTime;
+
+    private AgentState(ControllableResource<? extends CS> resource,
+                       CS controlSpace,
+                       Date priceDate,
+                       int requestedBidUpdates,
+                       long controlSpaceNanos,
+                       int requestedAllocations,
+                       long allocationRequestNanos,
+                       boolean byeByeRequested,
+                       int pendingBidUpdates,
+                       Object flushToken,
+                       long lastBidUpdateTime) {
+        this.resource = resource;
+        this.controlSpace = controlSpace;
+        this.priceDate = priceDate;
+        this.requestedBidUpdates = requestedBidUpdates;
+        this.controlSpaceNanos = controlSpaceNanos;
+        this.requestedAllocations = requestedAllocations;
+        this.allocationRequestNanos = allocationRequestNanos;
+        this.byeByeRequested = byeByeRequested;
+        this.pendingBidUpdates = pendingBidUpdates;
+        this.flushToken = flushToken;
+        this.lastBidUpdateTime = lastBidUpdateTime;
+    }
+
+    /**
+     * @return The resource the agent is bound to, or null if it isn't bound
+     */
+    ControllableResource<? extends CS> getResource() {
+        return resource;
+    }
+
+    /**
+     * @return The last control space for which a bid was calculated
+     */
+    CS getControlSpace() {
+        return controlSpace;
+    }
+
+    /**
+     * @return The time at which the last price update was received
+     */
+    Date getPriceDate() {
+        return priceDate;
+    }
+
+    /**
+     * @return The number of bid updates which must be published by the next bid calculation
+     */
+    int getRequestedBidUpdates() {
+        return requestedBidUpdates;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the oldest control space for which no bid was calculated yet was
+     *         received, or 0 if there is no such control space
+     */
+    long getControlSpaceNanos() {
+        return controlSpaceNanos;
+    }
+
+    /**
+     * @return The number of price updates received for which no allocation was calculated yet
+     */
+    int getRequestedAllocations() {
+        return requestedAllocations;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the oldest of the requested allocations was requested
+     */
+    long getAllocationRequestNanos() {
+        return allocationRequestNanos;
+    }
+
+    /**
+     * @return Whether the agent was unbound from its resource and the zero bid still has to be published
+     */
+    boolean isByeByeRequested() {
+        return byeByeRequested;
+    }
+
+    /**
+     * @return Whether any work was requested
+     */
+    boolean hasWork() {
+        return requestedBidUpdates > 0 || requestedAllocations > 0 || byeByeRequested;
+    }
+
+    /**
+     * @return The number of bid updates which are waiting for the end of the coalescing window
+     */
+    int getPendingBidUpdates() {
+        return pendingBidUpdates;
+    }
+
+    /**
+     * @return The token of the scheduled publication of the pending bid updates, or null if none is scheduled
+     */
+    Object getFlushToken() {
+        return flushToken;
+    }
+
+    /**
+     * @return The time of the last publication of coalesced bid updates, or {@link #NEVER}
+     */
+    long getLastBidUpdateTime() {
+        return lastBidUpdateTime;
+    }
+
+    AgentState<CS> bind(ControllableResource<? extends CS> resource) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates,
+                                  controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  byeByeRequested,
+                                  pendingBidUpdates,
+                                  flushToken,
+                                  lastBidUpdateTime);
+    }
+
+    /**
+     * @return The state after unbinding the resource: the control space and pending bid updates are dropped and the
+     *         zero bid is requested
+     */
+    AgentState<CS> unbind() {
+        return new AgentState<CS>(null,
+                                  null,
+                                  priceDate,
+                                  requestedBidUpdates,
+                                  controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  true,
+                                  0,
+                                  null,
+                                  lastBidUpdateTime);
+    }
+
+    AgentState<CS> withControlSpace(CS controlSpace) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates,
+                                  controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  byeByeRequested,
+                                  pendingBidUpdates,
+                                  flushToken,
+                                  lastBidUpdateTime);
+    }
+
+    /**
+     * @param nanos
+     *            The time at which the control space which caused the bid update was received, or 0 for a periodic
+     *            bid update
+     */
+    AgentState<CS> withBidUpdateRequested(long nanos) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates + 1,
+                                  controlSpaceNanos == 0 ? nanos : controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  byeByeRequested,
+                                  pendingBidUpdates,
+                                  flushToken,
+                                  lastBidUpdateTime);
+    }
+
+    AgentState<CS> withAllocationRequested(Date priceDate, long nanos) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates,
+                                  controlSpaceNanos,
+                                  requestedAllocations + 1,
+                                  requestedAllocations == 0 ? nanos : allocationRequestNanos,
+                                  byeByeRequested,
+                                  pendingBidUpdates,
+                                  flushToken,
+                                  lastBidUpdateTime);
+    }
+
+    /**
+     * @return The state with one more pending bid update, with the given flush token if no publication was scheduled
+     *         yet
+     */
+    AgentState<CS> withPendingBidUpdate(Object token, long nanos) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates,
+                                  controlSpaceNanos == 0 ? nanos : controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  byeByeRequested,
+                                  pendingBidUpdates + 1,
+                                  flushToken == null ? token : flushToken,
+                                  lastBidUpdateTime);
+    }
+
+    /**
+     * @return The state in which the pending bid updates are requested to be published at the given time
+     */
+    AgentState<CS> flush(long now) {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  requestedBidUpdates + pendingBidUpdates,
+                                  controlSpaceNanos,
+                                  requestedAllocations,
+                                  allocationRequestNanos,
+                                  byeByeRequested,
+                                  0,
+                                  null,
+                                  pendingBidUpdates > 0 ? now : lastBidUpdateTime);
+    }
+
+    /**
+     * @return The state without the requested work, which is taken by the thread that performs it
+     */
+    AgentState<CS> withoutWork() {
+        return new AgentState<CS>(resource,
+                                  controlSpace,
+                                  priceDate,
+                                  0,
+                                  requestedBidUpdates > 0 ? 0 : controlSpaceNanos,
+                                  0,
+                                  0,
+                                  false,
+                                  pendingBidUpdates,
+                                  flushToken,
+                                  lastBidUpdateTime);
+    }
+}
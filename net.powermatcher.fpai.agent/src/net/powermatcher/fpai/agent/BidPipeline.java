@@ -0,0 +1,246 @@
+package net.powermatcher.fpai.agent;
+
+import java.util.Arrays;
+
+import javax.measure.quantity.Power;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+
+import org.flexiblepower.rai.values.ConstraintList;
+
+/**
+ * A composable sequence of bid transformations (clamping to a minimum or maximum demand and rounding to a power
+ * constraint list). The stages are executed in the order in which they were added, in a single pass over a reusable
+ * demand buffer and without boxing demand values into {@link javax.measure.Measurable}s. Only the result of
+ * {@link #apply(BidInfo)} is materialized as a new {@link BidInfo}, which is described by the breakpoints of the
+ * resulting demand (see {@link PiecewiseLinearBid}) instead of a dense demand array.
+ * <p>
+ * A pipeline keeps its buffers between invocations and is therefore not thread-safe; every agent should use its own
+ * instance.
+ *
+ * @author TNO
+ */
+public class BidPipeline {
+    private static final int CLAMP_MINIMUM = 0;
+    private static final int CLAMP_MAXIMUM = 1;
+    private static final int ROUND = 2;
+    private static final int ROUND_INCLUDE_ZERO = 3;
+
+    /** The type of each stage */
+    private int[] stageTypes = new int[4];
+
+    /** The demand (in Watt) used by the clamp stages */
+    private double[] stageValues = new double[4];
+
+    /** The constraint lists used by the round stages */
+    private CompiledConstraintList[] stageConstraints = new CompiledConstraintList[4];
+
+    /** The number of stages currently in the pipeline */
+    private int stageCount = 0;
+
+    /** The scratch buffer on which the stages operate */
+    private double[] demand = new double[0];
+
+    /**
+     * Removes all stages from this pipeline, so that it can be reused for the next bid.
+     *
+     * @return this pipeline
+     */
+    public BidPipeline reset() {
+        for (int i = 0; i < stageCount; i++) {
+            stageConstraints[i] = null;
+        }
+        stageCount = 0;
+        return this;
+    }
+
+    /**
+     * @return true if no stages have been added since the last {@link #reset()}
+     */
+    public boolean isEmpty() {
+        return stageCount == 0;
+    }
+
+    /**
+     * Adds a stage which makes sure the bid has at least a demand of minDemandWatt for every price.
+     *
+     * @param minDemandWatt
+     *            The minimum demand in Watt
+     * @return this pipeline
+     */
+    public BidPipeline clampMinimum(double minDemandWatt) {
+        addStage(CLAMP_MINIMUM, minDemandWatt, null);
+        return this;
+    }
+
+    /**
+     * Adds a stage which makes sure the bid has at most a demand of maxDemandWatt for every price.
+     *
+     * @param maxDemandWatt
+     *            The maximum demand in Watt
+     * @return this pipeline
+     */
+    public BidPipeline clampMaximum(double maxDemandWatt) {
+        addStage(CLAMP_MAXIMUM, maxDemandWatt, null);
+        return this;
+    }
+
+    /**
+     * Adds a stage which rounds every demand value in the bid to the closest value allowed by the given power
+     * constraint list. The constraint list is compiled for every invocation, agents which round many bids to the same
+     * constraint list should use {@link #roundToConstraints(CompiledConstraintList, boolean)}.
+     *
+     * @param pcl
+     *            The power constraint list to round to
+     * @param includeZero
+     *            Whether a demand of 0 Watt is allowed as well, regardless of the constraint list
+     * @return this pipeline
+     */
+    public BidPipeline roundToConstraints(ConstraintList<Power> pcl, boolean includeZero) {
+        return roundToConstraints(CompiledConstraintList.compile(pcl), includeZero);
+    }
+
+    /**
+     * Adds a stage which rounds every demand value in the bid to the closest value allowed by the given compiled power
+     * constraint list.
+     *
+     * @param constraints
+     *            The compiled power constraint list to round to
+     * @param includeZero
+     *            Whether a demand of 0 Watt is allowed as well, regardless of the constraint list
+     * @return this pipeline
+     */
+    public BidPipeline roundToConstraints(CompiledConstraintList constraints, boolean includeZero) {
+        addStage(includeZero ? ROUND_INCLUDE_ZERO : ROUND, 0, constraints);
+        return this;
+    }
+
+    /**
+     * Executes all stages on the given bid.
+     *
+     * @param bid
+     *            The bid to transform, which is not modified itself
+     * @return A new bid with all stages applied, or the given bid if the pipeline is empty
+     */
+    public BidInfo apply(BidInfo bid) {
+        if (stageCount == 0) {
+            return bid;
+        }
+
+        return materialize(bid.getMarketBasis(), load(bid));
+    }
+
+    /**
+     * Returns the scratch buffer, sized for the given market basis, so that an agent can write the demand of its basic
+     * bid into it directly instead of creating an intermediate {@link BidInfo}. The contents are only valid until the
+     * next invocation of this pipeline.
+     *
+     * @param marketBasis
+     *            The market basis of the bid which will be written into the buffer
+     * @return The scratch buffer, with a length of at least the number of price steps in the market basis
+     */
+    public double[] getBuffer(MarketBasis marketBasis) {
+        ensureDemandCapacity(marketBasis.getPriceSteps());
+        return demand;
+    }
+
+    /**
+     * Executes all stages on the demand which was written into the buffer returned by {@link #getBuffer(MarketBasis)}.
+     *
+     * @param marketBasis
+     *            The market basis of the bid in the buffer
+     * @return A new bid with all stages applied
+     */
+    public BidInfo applyToBuffer(MarketBasis marketBasis) {
+        return materialize(marketBasis, marketBasis.getPriceSteps());
+    }
+
+    private BidInfo materialize(MarketBasis marketBasis, int length) {
+        for (int i = 0; i < length; i++) {
+            double value = demand[i];
+            for (int s = 0; s < stageCount; s++) {
+                switch (stageTypes[s]) {
+                case CLAMP_MINIMUM:
+                    value = Math.max(value, stageValues[s]);
+                    break;
+                case CLAMP_MAXIMUM:
+                    value = Math.min(value, stageValues[s]);
+                    break;
+                default:
+                    double rounded = stageConstraints[s].closest(value, stageTypes[s] == ROUND_INCLUDE_ZERO);
+                    if (!Double.isNaN(rounded)) {
+                        value = rounded;
+                    }
+                }
+            }
+            demand[i] = value;
+        }
+
+        // publish only the breakpoints, the dense demand is created by the core when it is needed
+        return PiecewiseLinearBid.fromDemand(marketBasis, demand, length).toBidInfo();
+    }
+
+    /**
+     * Loads the demand of the bid into the scratch buffer. Bids which are described by price points are expanded
+     * directly into the buffer (with linear interpolation between the points and a constant demand before the first
+     * and after the last point), other bids are copied.
+     *
+     * @return the number of price steps loaded
+     */
+    private int load(BidInfo bid) {
+        PricePoint[] pricePoints = bid.getPricePoints();
+        if (pricePoints == null || pricePoints.length == 0) {
+            double[] source = bid.getDemand();
+            ensureDemandCapacity(source.length);
+            System.arraycopy(source, 0, demand, 0, source.length);
+            return source.length;
+        }
+
+        int priceSteps = bid.getMarketBasis().getPriceSteps();
+        ensureDemandCapacity(priceSteps);
+
+        int index = 0;
+        PricePoint previous = null;
+        for (PricePoint pricePoint : pricePoints) {
+            int price = Math.min(pricePoint.getNormalizedPrice(), priceSteps - 1);
+            for (; index < price; index++) {
+                if (previous == null) {
+                    demand[index] = pricePoint.getDemand();
+                } else {
+                    double ratio = (index - previous.getNormalizedPrice())
+                                   / (double) (price - previous.getNormalizedPrice());
+                    demand[index] = previous.getDemand() + (pricePoint.getDemand() - previous.getDemand()) * ratio;
+                }
+            }
+            if (index == price) {
+                demand[index] = pricePoint.getDemand();
+            }
+            previous = pricePoint;
+        }
+        for (index++; index < priceSteps; index++) {
+            demand[index] = previous.getDemand();
+        }
+
+        return priceSteps;
+    }
+
+    private void addStage(int type, double value, CompiledConstraintList constraints) {
+        if (stageCount == stageTypes.length) {
+            stageTypes = Arrays.copyOf(stageTypes, stageCount * 2);
+            stageValues = Arrays.copyOf(stageValues, stageCount * 2);
+            stageConstraints = Arrays.copyOf(stageConstraints, stageCount * 2);
+        }
+        stageTypes[stageCount] = type;
+        stageValues[stageCount] = value;
+        stageConstraints[stageCount] = constraints;
+        stageCount++;
+    }
+
+    private void ensureDemandCapacity(int capacity) {
+        if (demand.length < capacity) {
+            demand = new double[capacity];
+        }
+    }
+}
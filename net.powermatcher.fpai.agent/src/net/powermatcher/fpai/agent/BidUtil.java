@@ -13,7 +13,6 @@ import net.powermatcher.core.agent.framework.data.PricePoint;
 
 import org.flexiblepower.rai.values.Constraint;
 import org.flexiblepower.rai.values.ConstraintList;
-import org.flexiblepower.rai.values.ConstraintList.Builder;
 
 public class BidUtil {
 
@@ -34,21 +33,39 @@ public class BidUtil {
         return new BidInfo(marketBasis, new PricePoint(0, demand.doubleValue(WATT)));
     }
 
+    /**
+     * Round every demand value in the bid to the closest value allowed by the power constraint list.
+     * 
+     * @param bid
+     *            The bid to transform
+     * @param pcl
+     *            The power constraint list to round to
+     * @param includeZero
+     *            Whether a demand of 0 Watt is allowed as well
+     * @return The transformed bid
+     * @see BidPipeline#roundToConstraints(ConstraintList, boolean)
+     */
     public static BidInfo roundBidToPowerConstraintList(BidInfo bid, ConstraintList<Power> pcl, boolean includeZero) {
-        if (includeZero) {
-            // Make a clone of the PowerConstraintList that includes a demand of 0 Watt
-            Builder<Power> builder = ConstraintList.create(WATT);
-            for (Constraint<Power> c : pcl) {
-                builder.addRange(c.getLowerBound(), c.getUpperBound());
-            }
-            builder.addSingle(Measure.valueOf(0, WATT));
-            pcl = builder.build();
-        }
-        double[] demand = bid.getDemand();
-        for (int i = 0; i < demand.length; i++) {
-            demand[i] = roundToPowerConstraintList(pcl, Measure.valueOf(demand[i], WATT)).doubleValue(WATT);
+        return new BidPipeline().roundToConstraints(pcl, includeZero).apply(bid);
+    }
+
+    /**
+     * Compares two bids on their demand.
+     * 
+     * @param bid
+     *            The first bid (may be null)
+     * @param other
+     *            The second bid (may be null)
+     * @param toleranceWatt
+     *            The maximum difference in Watt between the demand of both bids for any price
+     * @return true if both bids have the same market basis and their demand differs by at most toleranceWatt for every
+     *         price
+     */
+    public static boolean isEqual(BidInfo bid, BidInfo other, double toleranceWatt) {
+        if (bid == null || other == null) {
+            return bid == other;
         }
-        return new BidInfo(bid.getMarketBasis(), demand);
+        return PiecewiseLinearBid.of(bid).isEqual(PiecewiseLinearBid.of(other), toleranceWatt);
     }
 
     public static Measurable<Power>
@@ -81,13 +98,7 @@ public class BidUtil {
      *         minimum demand
      */
     public static BidInfo setMinimumDemand(BidInfo bid, Measurable<Power> minDemand) {
-        double[] demand = bid.getDemand();
-        double minDemandWatt = minDemand.doubleValue(WATT);
-        for (int i = 0; i < demand.length; i++) {
-            demand[i] = Math.max(demand[i], minDemandWatt);
-        }
-
-        return new BidInfo(bid.getMarketBasis(), demand);
+        return new BidPipeline().clampMinimum(minDemand.doubleValue(WATT)).apply(bid);
     }
 
     /**
@@ -101,13 +112,7 @@ public class BidUtil {
      *         maximum demand (as rounded to the nearest allowed power value in the given constraint list).
      */
     public static BidInfo setMaximumDemand(BidInfo bid, Measurable<Power> maxDemand) {
-        double[] demand = bid.getDemand();
-        double maxDemandWatt = maxDemand.doubleValue(WATT);
-        for (int i = 0; i < demand.length; i++) {
-            demand[i] = Math.min(demand[i], maxDemandWatt);
-        }
-
-        return new BidInfo(bid.getMarketBasis(), demand);
+        return new BidPipeline().clampMaximum(maxDemand.doubleValue(WATT)).apply(bid);
     }
 
 }
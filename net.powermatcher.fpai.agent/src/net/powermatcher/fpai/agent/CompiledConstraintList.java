@@ -0,0 +1,281 @@
+package net.powermatcher.fpai.agent;
+
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Arrays;
+
+import javax.measure.quantity.Power;
+
+import org.flexiblepower.rai.values.Constraint;
+import org.flexiblepower.rai.values.ConstraintList;
+
+/**
+ * An immutable, compiled view of a {@link ConstraintList} of {@link Power}. The constraints are stored as sorted,
+ * non-overlapping lower and upper bounds in Watt, so that the closest, floor and ceiling lookups are binary searches
+ * which don't allocate any objects.
+ * <p>
+ * Compiling a list costs O(n log n) for n constraints, so agents should keep the compiled list as long as the control
+ * space (and thus the constraint list) doesn't change, see {@link #compile(ConstraintList, CompiledConstraintList)}.
+ *
+ * @author TNO
+ */
+public final class CompiledConstraintList {
+    /**
+     * Compiles the given power constraint list.
+     *
+     * @param pcl
+     *            The power constraint list to compile
+     * @return The compiled view of the constraint list
+     */
+    public static CompiledConstraintList compile(ConstraintList<Power> pcl) {
+        return new CompiledConstraintList(pcl);
+    }
+
+    /**
+     * Compiles the given power constraint list, unless the previously compiled list was compiled from the very same
+     * constraint list.
+     *
+     * @param pcl
+     *            The power constraint list to compile
+     * @param previous
+     *            The previously compiled list (may be null)
+     * @return previous if it was compiled from pcl, otherwise a newly compiled list
+     */
+    public static CompiledConstraintList compile(ConstraintList<Power> pcl, CompiledConstraintList previous) {
+        if (previous != null && previous.isCompiledFrom(pcl)) {
+            return previous;
+        }
+        return new CompiledConstraintList(pcl);
+    }
+
+    private final ConstraintList<Power> source;
+
+    /** Sorted, non-overlapping lower bounds in Watt */
+    private final double[] lowerBounds;
+
+    /** The upper bounds in Watt, upperBounds[i] belongs to lowerBounds[i] */
+    private final double[] upperBounds;
+
+    /**
+     * The position in the source list of the first constraint which has lowerBounds[i] as lower bound, which breaks
+     * the ties of {@link #closest(double)} like the linear scan of {@link ConstraintListUtil#getClosestPower}
+     */
+    private final int[] lowerOrder;
+
+    /** The position in the source list of the first constraint which has upperBounds[i] as upper bound */
+    private final int[] upperOrder;
+
+    private CompiledConstraintList(ConstraintList<Power> pcl) {
+        source = pcl;
+
+        double[] lower = new double[4];
+        double[] upper = new double[4];
+        int[] order = new int[4];
+        int size = 0;
+        for (Constraint<Power> c : pcl) {
+            if (size == lower.length) {
+                lower = Arrays.copyOf(lower, size * 2);
+                upper = Arrays.copyOf(upper, size * 2);
+                order = Arrays.copyOf(order, size * 2);
+            }
+
+            double l = c.getLowerBound().doubleValue(WATT);
+            double u = c.getUpperBound().doubleValue(WATT);
+            if (l > u) {
+                double t = l;
+                l = u;
+                u = t;
+            }
+
+            // insertion sort on the lower bound, constraint lists are usually small and often already sorted
+            int i = size;
+            while (i > 0 && lower[i - 1] > l) {
+                lower[i] = lower[i - 1];
+                upper[i] = upper[i - 1];
+                order[i] = order[i - 1];
+                i--;
+            }
+            lower[i] = l;
+            upper[i] = u;
+            order[i] = size++;
+        }
+
+        // merge overlapping constraints, keeping the first source position of each bound
+        int[] mergedLowerOrder = new int[size];
+        int[] mergedUpperOrder = new int[size];
+        int merged = 0;
+        for (int i = 0; i < size; i++) {
+            if (merged > 0 && lower[i] <= upper[merged - 1]) {
+                int m = merged - 1;
+                if (lower[i] == lower[m]) {
+                    mergedLowerOrder[m] = Math.min(mergedLowerOrder[m], order[i]);
+                }
+                if (upper[i] > upper[m]) {
+                    upper[m] = upper[i];
+                    mergedUpperOrder[m] = order[i];
+                } else if (upper[i] == upper[m]) {
+                    mergedUpperOrder[m] = Math.min(mergedUpperOrder[m], order[i]);
+                }
+            } else {
+                lower[merged] = lower[i];
+                upper[merged] = upper[i];
+                mergedLowerOrder[merged] = order[i];
+                mergedUpperOrder[merged] = order[i];
+                merged++;
+            }
+        }
+
+        lowerBounds = Arrays.copyOf(lower, merged);
+        upperBounds = Arrays.copyOf(upper, merged);
+        lowerOrder = Arrays.copyOf(mergedLowerOrder, merged);
+        upperOrder = Arrays.copyOf(mergedUpperOrder, merged);
+    }
+
+    /**
+     * @return true if this list was compiled from the given (identical) constraint list
+     */
+    public boolean isCompiledFrom(ConstraintList<Power> pcl) {
+        return source == pcl;
+    }
+
+    /**
+     * @return true if the constraint list doesn't allow any value
+     */
+    public boolean isEmpty() {
+        return lowerBounds.length == 0;
+    }
+
+    /**
+     * @return The lowest allowed value in Watt, or NaN if the list is empty
+     */
+    public double getMinimum() {
+        return isEmpty() ? Double.NaN : lowerBounds[0];
+    }
+
+    /**
+     * @return The highest allowed value in Watt, or NaN if the list is empty
+     */
+    public double getMaximum() {
+        return isEmpty() ? Double.NaN : upperBounds[upperBounds.length - 1];
+    }
+
+    /**
+     * @return true if the given value (in Watt) is allowed by the constraint list
+     */
+    public boolean contains(double watt) {
+        int i = indexOfFloorConstraint(watt);
+        return i >= 0 && watt <= upperBounds[i];
+    }
+
+    /**
+     * Finds the allowed value which is closest to the given value. When two allowed values are equally close, the value
+     * of the constraint which comes first in the source list is returned, like
+     * {@link ConstraintListUtil#getClosestPower(ConstraintList, javax.measure.Measurable)} does.
+     *
+     * @param watt
+     *            The wanted value in Watt
+     * @return The closest allowed value in Watt, or NaN if the list is empty
+     */
+    public double closest(double watt) {
+        int i = indexOfFloorConstraint(watt);
+        if (i >= 0 && watt <= upperBounds[i]) {
+            return watt;
+        }
+
+        if (i < 0) {
+            return lowerBounds.length == 0 ? Double.NaN : lowerBounds[0];
+        } else if (i + 1 == lowerBounds.length) {
+            return upperBounds[i];
+        }
+
+        double below = upperBounds[i];
+        double above = lowerBounds[i + 1];
+        double belowDistance = watt - below;
+        double aboveDistance = above - watt;
+        if (belowDistance < aboveDistance || (belowDistance == aboveDistance && upperOrder[i] < lowerOrder[i + 1])) {
+            return below;
+        } else {
+            return above;
+        }
+    }
+
+    /**
+     * Finds the allowed value which is closest to the given value, optionally also considering 0 Watt as an allowed
+     * value.
+     *
+     * @param watt
+     *            The wanted value in Watt
+     * @param includeZero
+     *            Whether 0 Watt is allowed as well
+     * @return The closest allowed value in Watt, or NaN if there is no allowed value
+     */
+    public double closest(double watt, boolean includeZero) {
+        double result = closest(watt);
+        if (includeZero && (Double.isNaN(result) || Math.abs(watt) < Math.abs(result - watt))) {
+            return 0;
+        }
+        return result;
+    }
+
+    /**
+     * Finds the highest allowed value which is at most the given value.
+     *
+     * @param watt
+     *            The wanted value in Watt
+     * @return The highest allowed value which is at most watt, or NaN if there is no such value
+     */
+    public double floor(double watt) {
+        int i = indexOfFloorConstraint(watt);
+        if (i < 0) {
+            return Double.NaN;
+        }
+        return Math.min(watt, upperBounds[i]);
+    }
+
+    /**
+     * Finds the lowest allowed value which is at least the given value.
+     *
+     * @param watt
+     *            The wanted value in Watt
+     * @return The lowest allowed value which is at least watt, or NaN if there is no such value
+     */
+    public double ceil(double watt) {
+        int i = indexOfFloorConstraint(watt);
+        if (i >= 0 && watt <= upperBounds[i]) {
+            return watt;
+        } else if (i + 1 < lowerBounds.length) {
+            return lowerBounds[i + 1];
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return The index of the last constraint with a lower bound of at most watt, or -1 if there is no such constraint
+     */
+    private int indexOfFloorConstraint(double watt) {
+        int low = 0;
+        int high = lowerBounds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lowerBounds[mid] <= watt) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CompiledConstraintList[");
+        for (int i = 0; i < lowerBounds.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(lowerBounds[i]).append(" - ").append(upperBounds[i]).append(" W");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -39,6 +39,10 @@ public class ConstraintListUtil {
         return builder.build();
     }
 
+    /**
+     * Find the value in the ConstraintList<Power> which is closest to the wantedPower. This iterates over all
+     * constraints, use {@link CompiledConstraintList#closest(double)} when looking up many values in the same list.
+     */
     public static Measurable<Power> getClosestPower(ConstraintList<Power> pcl, final Measurable<Power> wantedPower) {
         Measurable<Power> resultValue = null;
         double result = Double.NaN;
@@ -58,7 +62,8 @@ public class ConstraintListUtil {
     }
 
     /**
-     * Find a value in the ConstraintList<Power> which is at most the wantedPower
+     * Find a value in the ConstraintList<Power> which is at most the wantedPower. See also
+     * {@link CompiledConstraintList#floor(double)}.
      * 
      * @param pcl
      * @param wantedPower
@@ -89,7 +94,8 @@ public class ConstraintListUtil {
     }
 
     /**
-     * Find a value in the ConstraintList<Power> which is at least the wantedPower
+     * Find a value in the ConstraintList<Power> which is at least the wantedPower. See also
+     * {@link CompiledConstraintList#ceil(double)}.
      * 
      * @param pcl
      * @param wantedPower
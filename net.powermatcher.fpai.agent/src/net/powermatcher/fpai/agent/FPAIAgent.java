@@ -1,13 +1,26 @@
 package net.powermatcher.fpai.agent;
 
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.powermatcher.core.agent.framework.Agent;
 import net.powermatcher.core.agent.framework.data.BidInfo;
 import net.powermatcher.core.agent.framework.data.MarketBasis;
 import net.powermatcher.core.agent.framework.data.PriceInfo;
 import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
 import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.AgentEventLog.Kind;
 
 import org.flexiblepower.rai.Allocation;
 import org.flexiblepower.rai.ControlSpace;
@@ -18,6 +31,36 @@ import org.flexiblepower.time.TimeService;
 
 /**
  * Abstract class for PowerMatcher agents on the FPAI framework. FPAIAgents are created by the PMController
+ * <p>
+ * By default every control space update and every periodic update results in a new bid being published. When the
+ * {@link #BID_COALESCE_WINDOW_PROPERTY} is configured, bid updates are coalesced instead: a bid is published at most
+ * once per window (updates received within the window are combined into a single bid which is published at the end of
+ * the window) and a bid is not published at all if it equals the last published bid within the
+ * {@link #BID_COALESCE_TOLERANCE_PROPERTY}.
+ * <p>
+ * Agents can declare how their bid depends on time through {@link #getBidTimeBucket(ControlSpace, MarketBasis)}. As
+ * long as the active control space, the market basis and the time bucket are the same, the last calculated bid is
+ * reused instead of calculating it again.
+ * <p>
+ * The agent doesn't hold a lock while calculating bids and allocations. The state which is shared between the threads
+ * invoking the agent is kept in an immutable {@link AgentState} which is replaced atomically, and the calculations
+ * themselves are performed by one thread at a time: a thread which requests a calculation while another thread is
+ * calculating leaves its request to that thread instead of waiting for it. Implementations of
+ * {@link #createBid(ControlSpace, MarketBasis)} and {@link #createAllocation(BidInfo, PriceInfo, ControlSpace)} are
+ * therefore never invoked concurrently and don't need to synchronize access to their own state.
+ * <p>
+ * By default bids and allocations are calculated on the thread which requested them, e.g. an allocation is handed to
+ * the resource on the thread which delivered the price. When an executor is set with
+ * {@link #setAllocationExecutor(Executor)}, the threads which deliver prices, control spaces and scheduled updates only
+ * record the request and all calculations are performed on the executor, so a slow resource doesn't delay the
+ * delivery of the price to other agents. Allocations are still delivered in order, and price updates which arrive
+ * while an allocation is being delivered are combined into a single allocation for the latest price.
+ * <p>
+ * The agent hands every published bid and every received price to its log listener as a log info which refers to the
+ * bid or price itself, so the log levels of the core can stay at NO_LOGGING. What the agent does is recorded in its
+ * {@link AgentEventLog}, of which only one in every {@link #EVENT_SAMPLE_RATE_PROPERTY} events is kept and the
+ * messages are formatted when they are read. Full logging, which records every event and also writes it to the debug
+ * log, is switched on per agent at runtime with {@link #setFullLogging(boolean)}.
  *
  * @author TNO
  *
@@ -25,17 +68,104 @@ import org.flexiblepower.time.TimeService;
  *            The type of ControlSpace this agent represents
  */
 public abstract class FPAIAgent<CS extends ControlSpace> extends Agent implements Controller<CS> {
-    /** Last processed ControlSpace */
-    private CS lastControlSpace = null;
+    /** The minimum time in milliseconds between two bid publications, 0 disables the coalescing of bid updates */
+    public static final String BID_COALESCE_WINDOW_PROPERTY = "bid.coalesce.window";
+    public static final int BID_COALESCE_WINDOW_DEFAULT = 0;
 
-    /** The last time a price update was received */
-    private Date lastPriceDate = null;
+    /** The maximum difference in Watt for which a new bid is considered equal to the last published bid */
+    public static final String BID_COALESCE_TOLERANCE_PROPERTY = "bid.coalesce.tolerance";
+    public static final double BID_COALESCE_TOLERANCE_DEFAULT = 0;
 
-    /** The resource this agent is controlling */
-    private ControllableResource<? extends CS> controllableResource = null;
+    /** One in every this many events of the agent is recorded in its event log, 0 disables the event log */
+    public static final String EVENT_SAMPLE_RATE_PROPERTY = "event.sample.rate";
+    public static final int EVENT_SAMPLE_RATE_DEFAULT = 16;
+
+    /** The number of events which are kept in the event log of an agent */
+    public static final int EVENT_LOG_CAPACITY = 64;
+
+    /** The maximum time in milliseconds to wait for the allocation executor to publish the zero bid on unbind */
+    public static final long UNBIND_TIMEOUT = 1000;
+
+    /** The qualifier of the log infos of the bids and prices of the agent */
+    public static final String LOG_QUALIFIER = "agent";
+
+    /** Time bucket which indicates that a bid may not be reused, see {@link #getBidTimeBucket} */
+    protected static final long NOT_CACHEABLE = Long.MIN_VALUE;
+
+    /** The state shared between the threads invoking this agent, see {@link AgentState} */
+    private final AtomicReference<AgentState<CS>> state = new AtomicReference<AgentState<CS>>(AgentState.<CS> initial());
+
+    /** The number of times work was requested since the thread performing the work last checked for new work */
+    private final AtomicInteger workRequests = new AtomicInteger();
+
+    /** The control spaces received, which are added to the control space cache by the thread performing the work */
+    private final Queue<CS> receivedControlSpaces = new ConcurrentLinkedQueue<CS>();
+
+    /** Performs the requested work, used to hand the work to the allocation executor */
+    private final Runnable performWorkTask = new Runnable() {
+        @Override
+        public void run() {
+            performRequestedWork();
+        }
+    };
+
+    /** The executor on which bids and allocations are calculated, or null to do so on the requesting thread */
+    private volatile Executor allocationExecutor;
+
+    /** The thread which is performing the work, or null */
+    private volatile Thread workThread;
+
+    /** Notified when the thread performing the work has performed all requested work */
+    private final Object workDone = new Object();
+
+    /** The number of price updates for which the allocation wasn't delivered yet */
+    private final AtomicInteger allocationQueueDepth = new AtomicInteger();
+
+    /** The number of allocations delivered and the number of price updates superseded by a later price update */
+    private final AtomicLong allocationsDispatched = new AtomicLong();
+    private final AtomicLong allocationsSuperseded = new AtomicLong();
+
+    /** The time in nanoseconds between receiving a price update and delivering its allocation */
+    private final AtomicLong lastAllocationLatency = new AtomicLong();
+    private final AtomicLong maxAllocationLatency = new AtomicLong();
+
+    /** Tells when the price being distributed arrived at the concentrator, or null to use the time it arrives here */
+    private volatile PriceArrivalClock priceArrivalClock;
+
+    /** The distributions of the latency from price to allocation and from control space to bid */
+    private final LatencyHistogram priceToAllocationLatency = new LatencyHistogram();
+    private final LatencyHistogram controlSpaceToBidLatency = new LatencyHistogram();
 
     /** The {@link ControlSpaceCache} keeps track of received {@link ControlSpace}s */
-    private ControlSpaceCache<CS> controlSpaceCache;
+    private volatile ControlSpaceCache<CS> controlSpaceCache;
+
+    /** The number of bid updates which were requested, coalesced into another update and actually published */
+    private final AtomicLong bidUpdatesReceived = new AtomicLong();
+    private final AtomicLong bidUpdatesCoalesced = new AtomicLong();
+    private final AtomicLong bidUpdatesPublished = new AtomicLong();
+
+    /**
+     * The last calculated bid and the control space, market basis and time bucket it was calculated for. Only accessed
+     * by the thread performing the work.
+     */
+    private CS bidCacheControlSpace = null;
+    private MarketBasis bidCacheMarketBasis = null;
+    private long bidCacheTimeBucket = NOT_CACHEABLE;
+    private BidInfo bidCacheBid = null;
+
+    /** The number of bids which were reused from and calculated because of a miss in the bid cache */
+    private final AtomicLong bidCacheHits = new AtomicLong();
+    private final AtomicLong bidCacheMisses = new AtomicLong();
+
+    /** The recent events of the agent, with the sample rate of the configuration unless it was set at runtime */
+    private final AgentEventLog eventLog = new AgentEventLog(EVENT_LOG_CAPACITY, EVENT_SAMPLE_RATE_DEFAULT);
+    private volatile boolean eventSampleRateSet;
+
+    /** Whether every event is recorded and written to the debug log */
+    private volatile boolean fullLogging;
+
+    /** The listener which receives the published bids and the received prices, or null */
+    private volatile LogListenerService logListener;
 
     protected FPAIAgent() {
         super();
@@ -49,6 +179,266 @@ public abstract class FPAIAgent<CS extends ControlSpace> extends Agent implement
 
     protected abstract Allocation createAllocation(BidInfo lastBid, PriceInfo newPriceInfo, CS controlSpace);
 
+    /**
+     * Determines the time bucket of the bid for the given control space at the current time. The bid which was
+     * calculated for the same control space (instance), market basis and time bucket is reused, so an agent must return
+     * a different bucket whenever the passing of time changes its bid. The bid cache is invalidated after every
+     * {@link #createAllocation(BidInfo, PriceInfo, ControlSpace)}, so state changed by an allocation doesn't have to be
+     * reflected in the bucket.
+     * <p>
+     * The default implementation returns {@link #NOT_CACHEABLE}, so that the bid is always calculated.
+     *
+     * @param controlSpace
+     *            The active control space
+     * @param marketBasis
+     *            The current market basis
+     * @return The time bucket of the bid, or {@link #NOT_CACHEABLE} if the bid must be calculated
+     */
+    protected long getBidTimeBucket(CS controlSpace, MarketBasis marketBasis) {
+        return NOT_CACHEABLE;
+    }
+
+    /**
+     * Makes sure the next bid is calculated instead of reused, e.g. when the state of the agent changed. May only be
+     * invoked from {@link #createBid(ControlSpace, MarketBasis)},
+     * {@link #createAllocation(BidInfo, PriceInfo, ControlSpace)} or {@link #getBidTimeBucket(ControlSpace, MarketBasis)}.
+     */
+    protected void invalidateBidCache() {
+        bidCacheControlSpace = null;
+        bidCacheMarketBasis = null;
+        bidCacheTimeBucket = NOT_CACHEABLE;
+        bidCacheBid = null;
+    }
+
+    /**
+     * @return The number of bids which were reused instead of calculated
+     */
+    public long getBidCacheHits() {
+        return bidCacheHits.get();
+    }
+
+    /**
+     * @return The number of bids which were calculated, because they were not cacheable or not in the cache
+     */
+    public long getBidCacheMisses() {
+        return bidCacheMisses.get();
+    }
+
+    /**
+     * @return The recent events of the agent
+     */
+    public AgentEventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Overrides the {@link #EVENT_SAMPLE_RATE_PROPERTY} of the agent at runtime.
+     *
+     * @param sampleRate
+     *            1 to record every event, n to record one in every n events, or 0 to record no events
+     */
+    public void setEventSampleRate(int sampleRate) {
+        eventSampleRateSet = true;
+        eventLog.setSampleRate(sampleRate);
+    }
+
+    /**
+     * Switches full logging of the agent on or off at runtime. With full logging every event is recorded in the event
+     * log, and its message is written to the debug log as well.
+     */
+    public void setFullLogging(boolean fullLogging) {
+        this.fullLogging = fullLogging;
+    }
+
+    public boolean isFullLogging() {
+        return fullLogging;
+    }
+
+    /**
+     * Records an event of the agent in its event log if it is sampled. The message is only formatted when full logging
+     * is switched on, or when the event log is read.
+     */
+    private void logEvent(Kind kind, Object subject, Object detail, double value, long number) {
+        if (!eventSampleRateSet) {
+            eventLog.setSampleRate(getProperty(EVENT_SAMPLE_RATE_PROPERTY, EVENT_SAMPLE_RATE_DEFAULT));
+            eventSampleRateSet = true;
+        }
+
+        boolean full = fullLogging;
+        if (eventLog.sample() || full) {
+            AgentEventLog.Event event = eventLog.record(System.currentTimeMillis(),
+                                                        kind,
+                                                        subject,
+                                                        detail,
+                                                        value,
+                                                        number);
+            if (full) {
+                this.logDebug(event.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records an event which is specific to the agent in its event log, see {@link #logEvent(Kind, Object, Object,
+     * double, long)}. The message of the event is the message followed by the detail, which is only converted to a
+     * string when the message is formatted.
+     *
+     * @param message
+     *            The constant part of the message
+     * @param detail
+     *            The variable part of the message, or null
+     */
+    protected void logEvent(String message, Object detail) {
+        logEvent(Kind.MESSAGE, message, detail == null ? "" : detail, 0, 0);
+    }
+
+    @Override
+    public void bind(LogListenerService logListener) {
+        super.bind(logListener);
+        this.logListener = logListener;
+    }
+
+    @Override
+    public void unbind(LogListenerService logListener) {
+        super.unbind(logListener);
+        if (this.logListener == logListener) {
+            this.logListener = null;
+        }
+    }
+
+    private void logBid(BidInfo bid) {
+        LogListenerService listener = logListener;
+        if (listener != null && bid != null) {
+            listener.handleBidLogInfo(new BidLogInfo(getId(),
+                                                     getClusterId(),
+                                                     LOG_QUALIFIER,
+                                                     bid,
+                                                     new Date(getTimeSource().currentTimeMillis())));
+        }
+    }
+
+    private void logPrice(PriceInfo price, Date date) {
+        LogListenerService listener = logListener;
+        if (listener != null && price != null) {
+            listener.handlePriceLogInfo(new PriceLogInfo(getId(), getClusterId(), LOG_QUALIFIER, price, date));
+        }
+    }
+
+    /**
+     * Sets the executor on which bids and allocations are calculated and allocations are delivered to the resource.
+     * The executor may be shared between agents, the agent makes sure its own work is handled one at a time and in
+     * order.
+     *
+     * @param allocationExecutor
+     *            The executor, or null to calculate bids and allocations on the thread which requests them
+     */
+    public void setAllocationExecutor(Executor allocationExecutor) {
+        this.allocationExecutor = allocationExecutor;
+    }
+
+    /**
+     * @return The number of price updates for which the allocation wasn't delivered yet
+     */
+    public int getAllocationQueueDepth() {
+        return allocationQueueDepth.get();
+    }
+
+    /**
+     * @return The number of allocations calculated and delivered to the resource
+     */
+    public long getAllocationsDispatched() {
+        return allocationsDispatched.get();
+    }
+
+    /**
+     * @return The number of price updates for which no allocation was calculated, because a later price update was
+     *         received before the allocation could be calculated
+     */
+    public long getAllocationsSuperseded() {
+        return allocationsSuperseded.get();
+    }
+
+    /**
+     * @return The time in nanoseconds between receiving the price and delivering the last allocation
+     */
+    public long getLastAllocationLatencyNanos() {
+        return lastAllocationLatency.get();
+    }
+
+    /**
+     * @return The maximum time in nanoseconds between receiving a price and delivering its allocation
+     */
+    public long getMaxAllocationLatencyNanos() {
+        return maxAllocationLatency.get();
+    }
+
+    /**
+     * Sets the clock which tells when the price which is being distributed to this agent arrived at its concentrator.
+     *
+     * @param priceArrivalClock
+     *            The clock, or null to measure the latency from the moment the price arrives at this agent
+     */
+    public void setPriceArrivalClock(PriceArrivalClock priceArrivalClock) {
+        this.priceArrivalClock = priceArrivalClock;
+    }
+
+    /**
+     * @return The distribution of the time between the arrival of a price and the delivery of its allocation
+     */
+    public LatencyHistogram getPriceToAllocationLatency() {
+        return priceToAllocationLatency;
+    }
+
+    /**
+     * @return The distribution of the time between the arrival of a control space and the calculation of its bid
+     */
+    public LatencyHistogram getControlSpaceToBidLatency() {
+        return controlSpaceToBidLatency;
+    }
+
+    /**
+     * @return Whether no work is requested or being performed and no publication of coalesced bid updates is
+     *         scheduled, so the agent can be recycled
+     */
+    public boolean isIdle() {
+        AgentState<CS> current = state.get();
+        return workRequests.get() == 0 && !current.hasWork() && current.getFlushToken() == null;
+    }
+
+    /**
+     * Resets the agent to the state of a newly created agent, so that it can be configured and bound to another resource
+     * instead of creating a new agent. May only be invoked while the agent is unbound from its resource, its parent and
+     * its scheduler and is {@link #isIdle() idle}, so no queued work of the previous resource is performed for the next
+     * one. Agents which keep state of their own must override this method to reset that state as well.
+     */
+    public void recycle() {
+        state.set(AgentState.<CS> initial());
+        workRequests.set(0);
+        receivedControlSpaces.clear();
+        controlSpaceCache = null;
+        allocationExecutor = null;
+        priceArrivalClock = null;
+
+        allocationQueueDepth.set(0);
+        allocationsDispatched.set(0);
+        allocationsSuperseded.set(0);
+        lastAllocationLatency.set(0);
+        maxAllocationLatency.set(0);
+        priceToAllocationLatency.reset();
+        controlSpaceToBidLatency.reset();
+
+        bidUpdatesReceived.set(0);
+        bidUpdatesCoalesced.set(0);
+        bidUpdatesPublished.set(0);
+        invalidateBidCache();
+        bidCacheHits.set(0);
+        bidCacheMisses.set(0);
+
+        eventLog.clear();
+        eventSampleRateSet = false;
+        fullLogging = false;
+    }
+
     public void setFpaiTimeService(TimeService timeService) {
         this.controlSpaceCache = new ControlSpaceCache<CS>(timeService);
     }
@@ -60,28 +450,244 @@ public abstract class FPAIAgent<CS extends ControlSpace> extends Agent implement
      * @see net.powermatcher.core.agent.framework.Agent#doBidUpdate()
      */
     @Override
-    protected synchronized void doBidUpdate() {
+    protected void doBidUpdate() {
         /*
          * Force a bid update based on the current control space
          */
         if (controlSpaceCache != null) {
-            publishBidUpdate();
+            requestBidUpdate(0);
         }
     }
 
     @Override
-    public synchronized void controlSpaceUpdated(ControllableResource<? extends CS> resource, CS controlSpace) {
-        assert controllableResource == resource;
+    public void controlSpaceUpdated(ControllableResource<? extends CS> resource, CS controlSpace) {
+        assert state.get().getResource() == resource;
 
-        // Add the controlSpace to the cache
+        // Add the controlSpace to the cache, which is done by the thread performing the work
         if (controlSpace != null) {
+            receivedControlSpaces.add(controlSpace);
+        }
+
+        requestBidUpdate(System.nanoTime());
+    }
+
+    /**
+     * @return The number of bid updates requested by control space updates and periodic updates
+     */
+    public long getBidUpdatesReceived() {
+        return bidUpdatesReceived.get();
+    }
+
+    /**
+     * @return The number of requested bid updates which didn't result in a publication of their own, because they were
+     *         coalesced with other updates or the bid didn't change
+     */
+    public long getBidUpdatesCoalesced() {
+        return bidUpdatesCoalesced.get();
+    }
+
+    /**
+     * @return The number of bids published
+     */
+    public long getBidUpdatesPublished() {
+        return bidUpdatesPublished.get();
+    }
+
+    /**
+     * @param controlSpaceNanos
+     *            The time at which the control space which caused the update was received, or 0 for a periodic update
+     */
+    private void requestBidUpdate(long controlSpaceNanos) {
+        bidUpdatesReceived.incrementAndGet();
+
+        AgentState<CS> current;
+        int window = getProperty(BID_COALESCE_WINDOW_PROPERTY, BID_COALESCE_WINDOW_DEFAULT);
+        if (window <= 0) {
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current.withBidUpdateRequested(controlSpaceNanos)));
+            requestWork();
+            return;
+        }
+
+        final Object token = new Object();
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withPendingBidUpdate(token, controlSpaceNanos)));
+        if (current.getFlushToken() != null) {
+            // the update will be published at the end of the current window
+            return;
+        }
+
+        long delay = 0;
+        if (current.getLastBidUpdateTime() != AgentState.NEVER) {
+            delay = current.getLastBidUpdateTime() + window - getTimeSource().currentTimeMillis();
+        }
+        ScheduledExecutorService scheduler = getScheduler();
+        if (delay <= 0 || scheduler == null) {
+            flushBidUpdates(token);
+        } else {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushBidUpdates(token);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Requests the publication of the pending bid updates, unless the publication with the given token was superseded
+     * (e.g. because the agent was unbound in the meantime)
+     */
+    private void flushBidUpdates(Object token) {
+        AgentState<CS> current;
+        do {
+            current = state.get();
+            if (current.getFlushToken() != token) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current.flush(getTimeSource().currentTimeMillis())));
+        requestWork();
+    }
+
+    /**
+     * Performs the requested work (bid and allocation calculations), unless another thread is already doing so. In that
+     * case that thread performs the work when it has finished its current work. The work is thus never performed
+     * concurrently and without blocking any thread, so the bid and allocation calculations of an agent don't need to
+     * be synchronized.
+     * <p>
+     * When an allocation executor is set, the work is always handed to the executor. Otherwise it is performed on the
+     * calling thread.
+     */
+    private void requestWork() {
+        if (workRequests.getAndIncrement() != 0) {
+            return;
+        }
+
+        Executor executor = allocationExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(performWorkTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                // e.g. the executor is being shut down, don't lose the work
+            }
+        }
+        performRequestedWork();
+    }
+
+    /**
+     * Performs the work until no more work is requested, by the thread which made the first request.
+     */
+    private void performRequestedWork() {
+        boolean completed = false;
+        try {
+            int requests = 1;
+            do {
+                workThread = Thread.currentThread();
+                AgentState<CS> work;
+                do {
+                    work = state.get();
+                } while (work.hasWork() && !state.compareAndSet(work, work.withoutWork()));
+
+                try {
+                    performWork(work);
+                } catch (RuntimeException e) {
+                    this.logError("Failed to update the bid or allocation", e);
+                }
+
+                workThread = null;
+                requests = workRequests.addAndGet(-requests);
+            } while (requests != 0);
+            completed = true;
+        } finally {
+            if (!completed) {
+                // don't block the work of other threads
+                workThread = null;
+                workRequests.set(0);
+            }
+            synchronized (workDone) {
+                workDone.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the requested work is performed by the allocation executor. Returns immediately when the work is
+     * performed on the requesting threads, or when invoked by the work itself.
+     *
+     * @param timeout
+     *            The maximum time in milliseconds to wait
+     */
+    private void awaitWork(long timeout) {
+        if (allocationExecutor == null || workThread == Thread.currentThread()) {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (workDone) {
+            long remaining = timeout;
+            while (workRequests.get() != 0 && remaining > 0) {
+                try {
+                    workDone.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void performWork(AgentState<CS> work) {
+        ControlSpaceCache<CS> controlSpaceCache = this.controlSpaceCache;
+        CS controlSpace = receivedControlSpaces.poll();
+        while (controlSpace != null) {
             controlSpaceCache.addNewControlSpace(controlSpace);
+            controlSpace = receivedControlSpaces.poll();
+        }
+
+        if (work.getRequestedAllocations() > 0) {
+            boolean dispatched = updateAllocation();
+            recordAllocationDispatch(work, dispatched);
         }
 
-        publishBidUpdate();
+        if (work.isByeByeRequested()) {
+            // the requested bid updates are superseded by the bye-bye bid
+            bidUpdatesCoalesced.addAndGet(work.getRequestedBidUpdates());
+            BidInfo byeBye = new BidInfo(getCurrentMarketBasis(), new PricePoint(0, 0));
+            publishBidUpdate(byeBye);
+            logBid(byeBye);
+        } else if (work.getRequestedBidUpdates() > 0) {
+            publishBid(work.getRequestedBidUpdates());
+            if (work.getControlSpaceNanos() != 0) {
+                controlSpaceToBidLatency.record(System.nanoTime() - work.getControlSpaceNanos());
+            }
+        }
     }
 
-    private void publishBidUpdate() {
+    /**
+     * Publishes a bid for the given number of requested bid updates. When bid updates are coalesced, the bid is not
+     * published if it equals the last published bid.
+     */
+    private void publishBid(int requests) {
+        BidInfo bidInfo = calculateBid();
+        if (getProperty(BID_COALESCE_WINDOW_PROPERTY, BID_COALESCE_WINDOW_DEFAULT) > 0
+            && BidUtil.isEqual(getLastBid(),
+                               bidInfo,
+                               getProperty(BID_COALESCE_TOLERANCE_PROPERTY, BID_COALESCE_TOLERANCE_DEFAULT))) {
+            bidUpdatesCoalesced.addAndGet(requests);
+            logEvent(Kind.BID_UNCHANGED, null, null, 0, 0);
+        } else {
+            bidUpdatesCoalesced.addAndGet(requests - 1);
+            bidUpdatesPublished.incrementAndGet();
+            publishBidUpdate(bidInfo);
+            logBid(bidInfo);
+        }
+    }
+
+    private BidInfo calculateBid() {
         // Retrieve the controlSpace
         CS activeControlSpace = controlSpaceCache.getActiveControlSpace();
 
@@ -89,56 +695,119 @@ public abstract class FPAIAgent<CS extends ControlSpace> extends Agent implement
         if (activeControlSpace == null) {
             // No flexibility available
             bidInfo = BidUtil.zeroBid(getCurrentMarketBasis());
-            this.logDebug("No active ControlSpace found, triggering must-off bid");
+            logEvent(Kind.NO_CONTROL_SPACE, null, null, 0, 0);
         } else {
             // remember the updated control space
-            lastControlSpace = activeControlSpace;
+            AgentState<CS> current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current.withControlSpace(activeControlSpace)));
+
+            // reuse the last bid if the agent declares it is still valid, otherwise calculate a new bid
+            MarketBasis marketBasis = getCurrentMarketBasis();
+            long timeBucket = getBidTimeBucket(activeControlSpace, marketBasis);
+            if (timeBucket != NOT_CACHEABLE && timeBucket == bidCacheTimeBucket
+                && activeControlSpace == bidCacheControlSpace
+                && marketBasis != null
+                && marketBasis.equals(bidCacheMarketBasis)) {
+                bidCacheHits.incrementAndGet();
+                bidInfo = bidCacheBid;
+                logEvent(Kind.BID_REUSED, null, null, 0, timeBucket);
+            } else {
+                bidCacheMisses.incrementAndGet();
+                bidInfo = createBid(activeControlSpace, marketBasis);
+                logEvent(Kind.BID_CALCULATED, activeControlSpace, bidInfo, 0, 0);
 
-            // calculate a new bid
-            bidInfo = createBid(activeControlSpace, getCurrentMarketBasis());
-            this.logDebug("Control space was updated (" + activeControlSpace
-                          + "), triggering updating the bid: "
-                          + bidInfo);
+                if (timeBucket != NOT_CACHEABLE && bidInfo != null) {
+                    bidCacheControlSpace = activeControlSpace;
+                    bidCacheMarketBasis = marketBasis;
+                    bidCacheTimeBucket = timeBucket;
+                    bidCacheBid = bidInfo;
+                } else {
+                    invalidateBidCache();
+                }
+            }
         }
-        // and publish it
-        publishBidUpdate(bidInfo);
+        return bidInfo;
     }
 
     @Override
     public void updatePriceInfo(PriceInfo newPriceInfo) {
         super.updatePriceInfo(newPriceInfo);
-        this.lastPriceDate = new Date(getTimeSource().currentTimeMillis());
 
-        updateAllocation();
+        Date priceDate = new Date(getTimeSource().currentTimeMillis());
+        logPrice(newPriceInfo, priceDate);
+        PriceArrivalClock clock = priceArrivalClock;
+        long nanos = clock == null ? 0 : clock.getPriceArrivalNanos(newPriceInfo);
+        if (nanos == 0) {
+            nanos = System.nanoTime();
+        }
+        allocationQueueDepth.incrementAndGet();
+        AgentState<CS> current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withAllocationRequested(priceDate, nanos)));
+        requestWork();
+    }
+
+    /**
+     * Accounts for the requested allocations which were handled. The latency is only recorded when an allocation was
+     * actually delivered to the resource.
+     */
+    private void recordAllocationDispatch(AgentState<CS> work, boolean dispatched) {
+        if (dispatched) {
+            long latency = System.nanoTime() - work.getAllocationRequestNanos();
+            lastAllocationLatency.set(latency);
+            priceToAllocationLatency.record(latency);
+            long max = maxAllocationLatency.get();
+            while (latency > max && !maxAllocationLatency.compareAndSet(max, latency)) {
+                max = maxAllocationLatency.get();
+            }
+            allocationsDispatched.incrementAndGet();
+        }
+
+        allocationsSuperseded.addAndGet(work.getRequestedAllocations() - 1);
+        allocationQueueDepth.addAndGet(-work.getRequestedAllocations());
     }
 
-    private void updateAllocation() {
+    /**
+     * @return Whether an allocation was delivered to the resource
+     */
+    private boolean updateAllocation() {
         // check if there is control space information available
-        CS lastControlSpace = this.lastControlSpace;
+        AgentState<CS> current = state.get();
+        CS lastControlSpace = current.getControlSpace();
         if (lastControlSpace == null) {
-            this.logDebug("Ignoring price update, no control space information available");
-            return;
+            logEvent(Kind.PRICE_WITHOUT_CONTROL_SPACE, null, null, 0, 0);
+            return false;
+        }
+
+        ControllableResource<? extends CS> controllableResource = current.getResource();
+        if (controllableResource == null) {
+            logEvent(Kind.PRICE_WITHOUT_RESOURCE, null, null, 0, 0);
+            return false;
         }
 
         BidInfo lastBid = getLastBid();
         if (lastBid == null) {
-            this.logDebug("Ignoring price update, no bid published yet");
-            return;
+            logEvent(Kind.PRICE_WITHOUT_BID, null, null, 0, 0);
+            return false;
         }
 
         PriceInfo lastPrice = getLastPriceInfo();
 
         // if so, construct a new allocation and send it the ControllableResource
         Allocation allocation = createAllocation(lastBid, lastPrice, lastControlSpace);
+        // the allocation may have changed the state on which the bid is based
+        invalidateBidCache();
         if (allocation != null) {
             controllableResource.handleAllocation(allocation);
 
-            this.logDebug("Price update (" + lastPrice.getCurrentPrice()
-                          + ") triggered calculation of new allocation: "
-                          + allocation);
+            logEvent(Kind.ALLOCATION, null, allocation, lastPrice.getCurrentPrice(), 0);
+            return true;
         } else {
-            this.logDebug("Price update (" + lastPrice.getCurrentPrice()
-                          + ") received, but no allocation was calculated");
+            logEvent(Kind.NO_ALLOCATION, null, null, lastPrice.getCurrentPrice(), 0);
+            return false;
         }
     }
 
@@ -147,24 +816,34 @@ public abstract class FPAIAgent<CS extends ControlSpace> extends Agent implement
      *
      * @param controllableResource
      */
-    public synchronized void bind(ControllableResource<CS> controllableResource) {
-        assert this.controllableResource == null;
-        this.controllableResource = controllableResource;
+    public void bind(ControllableResource<CS> controllableResource) {
+        AgentState<CS> current;
+        do {
+            current = state.get();
+            assert current.getResource() == null;
+        } while (!state.compareAndSet(current, current.bind(controllableResource)));
         controllableResource.setController(this);
     }
 
     /**
-     * Unbind this controller from a controllableResource
+     * Unbind this controller from a controllableResource. Pending bid updates are dropped, a scheduled publication of
+     * coalesced bid updates is ignored when it runs. When an allocation executor is set, this waits up to
+     * {@link #UNBIND_TIMEOUT} milliseconds for the executor to publish the zero bid, so the agent can be unbound from
+     * its parent afterwards.
      *
      * @param controllableResource
      */
-    public synchronized void unbind(ControllableResource<CS> controllableResource) {
+    public void unbind(ControllableResource<CS> controllableResource) {
+        AgentState<CS> current;
+        do {
+            current = state.get();
+            assert current.getResource() == controllableResource;
+        } while (!state.compareAndSet(current, current.unbind()));
+
         // send out 0 bid to say bye-bye
-        publishBidUpdate(new BidInfo(getCurrentMarketBasis(), new PricePoint(0, 0)));
+        requestWork();
+        awaitWork(UNBIND_TIMEOUT);
 
-        assert this.controllableResource == controllableResource;
         controllableResource.unsetController(this);
-        lastControlSpace = null;
-        controllableResource = null;
     }
 }
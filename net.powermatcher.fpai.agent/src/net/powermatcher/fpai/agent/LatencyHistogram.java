@@ -0,0 +1,158 @@
+package net.powermatcher.fpai.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed relative precision, in the style of HdrHistogram. Values are
+ * counted in buckets which are linear within each power of two, so that every value is reported with an error of less
+ * than 1/32 (about 3%), while the histogram has a fixed size regardless of the number of recorded values.
+ * <p>
+ * Values can be recorded concurrently without locking. Reading the histogram while values are being recorded gives an
+ * approximation which may miss the most recent values; use {@link #copy()} to get a stable snapshot.
+ *
+ * @author TNO
+ */
+public final class LatencyHistogram {
+    /** The number of bits of a value which are counted exactly, the remaining bits determine the bucket */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+
+    /** The highest value which is counted with the relative precision, higher values are counted as this value */
+    public static final long HIGHEST_TRACKABLE_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(HIGHEST_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     *
+     * @param nanos
+     *            The latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+        totalCount.incrementAndGet();
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Adds all values recorded in the other histogram to this histogram.
+     *
+     * @param other
+     *            The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        long addedCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+                addedCount += count;
+            }
+        }
+        totalCount.addAndGet(addedCount);
+
+        long otherMax = other.getMax();
+        long currentMax = max.get();
+        while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Removes all recorded values. Values which are recorded concurrently may or may not be removed.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return A new histogram with the values recorded in this histogram
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return The highest recorded value, or 0 if no values were recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Determines the value at the given percentile, e.g. 50 for the median.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The (highest equivalent) value below which the given percentage of the recorded values lies, or 0 if no
+     *         values were recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        double fraction = Math.min(Math.max(percentile, 0), 100) / 100;
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= target) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50=%.3f ms, p99=%.3f ms, max=%.3f ms (%d values)",
+                             getValueAtPercentile(50) / 1e6,
+                             getValueAtPercentile(99) / 1e6,
+                             getMax() / 1e6,
+                             getCount());
+    }
+
+    /** the index of the bucket of the value, values below 2^SUB_BUCKET_BITS have a bucket of their own */
+    private static int indexOf(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = Math.max(0, highestBit - (SUB_BUCKET_BITS - 1));
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /** the highest value which is counted in the bucket with the given index */
+    private static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, index / SUB_BUCKET_HALF_COUNT - 1);
+        long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,308 @@
+package net.powermatcher.fpai.agent;
+
+import java.util.Arrays;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+
+/**
+ * Compact representation of a bid as a piecewise-linear function of the normalized price. The bid is described by its
+ * breakpoints: the demand is constant before the first and after the last breakpoint and linear in between. Two
+ * breakpoints with the same price describe a step, in which case the demand at that price is the demand of the last of
+ * the two (which is how {@link BidInfo} expands its price points).
+ * <p>
+ * Bids of the agents typically have one to a few breakpoints, so working with this representation costs memory and
+ * time in the order of the number of breakpoints instead of the number of price steps. A dense demand array is only
+ * created by {@link #toDemandArray()}.
+ *
+ * @author TNO
+ */
+public final class PiecewiseLinearBid {
+    /** The relative difference below which three demand values are considered to lie on a line */
+    private static final double COLLINEARITY_TOLERANCE = 1e-9;
+
+    private final MarketBasis marketBasis;
+    private final int[] prices;
+    private final double[] demands;
+
+    private PiecewiseLinearBid(MarketBasis marketBasis, int[] prices, double[] demands) {
+        this.marketBasis = marketBasis;
+        this.prices = prices;
+        this.demands = demands;
+    }
+
+    /**
+     * Creates the compact representation of the bid. Bids which are described by price points are used as is, the
+     * demand of other bids is compressed to its breakpoints.
+     *
+     * @param bid
+     *            The bid
+     * @return The compact representation of the bid
+     */
+    public static PiecewiseLinearBid of(BidInfo bid) {
+        PricePoint[] pricePoints = bid.getPricePoints();
+        if (pricePoints == null || pricePoints.length == 0) {
+            double[] demand = bid.getDemand();
+            return fromDemand(bid.getMarketBasis(), demand, demand.length);
+        }
+
+        int lastPrice = bid.getMarketBasis().getPriceSteps() - 1;
+        int[] prices = new int[pricePoints.length];
+        double[] demands = new double[pricePoints.length];
+        for (int i = 0; i < pricePoints.length; i++) {
+            prices[i] = Math.min(pricePoints[i].getNormalizedPrice(), lastPrice);
+            demands[i] = pricePoints[i].getDemand();
+        }
+        return new PiecewiseLinearBid(bid.getMarketBasis(), prices, demands);
+    }
+
+    /**
+     * Compresses a dense demand array to its breakpoints: every demand value which lies on the line through its
+     * neighbours is dropped.
+     *
+     * @param marketBasis
+     *            The market basis of the demand
+     * @param demand
+     *            The demand per price step
+     * @param length
+     *            The number of price steps in the demand array which are used
+     * @return The compact representation of the demand
+     */
+    public static PiecewiseLinearBid fromDemand(MarketBasis marketBasis, double[] demand, int length) {
+        int[] prices = new int[Math.min(length, 4)];
+        double[] demands = new double[prices.length];
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || i == length - 1 || !isCollinear(demand[i - 1], demand[i], demand[i + 1])) {
+                if (size == prices.length) {
+                    prices = Arrays.copyOf(prices, size * 2);
+                    demands = Arrays.copyOf(demands, size * 2);
+                }
+                prices[size] = i;
+                demands[size] = demand[i];
+                size++;
+            }
+        }
+
+        // a flat bid needs a single breakpoint
+        if (size == 2 && demands[0] == demands[1]) {
+            size = 1;
+        }
+        return new PiecewiseLinearBid(marketBasis, Arrays.copyOf(prices, size), Arrays.copyOf(demands, size));
+    }
+
+    private static boolean isCollinear(double previous, double current, double next) {
+        double scale = Math.max(Math.abs(previous), Math.max(Math.abs(current), Math.abs(next)));
+        return Math.abs((current - previous) - (next - current)) <= scale * COLLINEARITY_TOLERANCE;
+    }
+
+    /**
+     * @return The market basis of the bid
+     */
+    public MarketBasis getMarketBasis() {
+        return marketBasis;
+    }
+
+    /**
+     * @return The number of breakpoints
+     */
+    public int size() {
+        return prices.length;
+    }
+
+    /**
+     * @return The normalized price of the breakpoint with the given index
+     */
+    public int getPrice(int index) {
+        return prices[index];
+    }
+
+    /**
+     * @return The demand in Watt of the breakpoint with the given index
+     */
+    public double getDemand(int index) {
+        return demands[index];
+    }
+
+    /**
+     * @return The demand in Watt at the lowest price
+     */
+    public double getFirstDemand() {
+        return prices.length == 0 ? 0 : demands[0];
+    }
+
+    /**
+     * @return The demand in Watt at the highest price
+     */
+    public double getLastDemand() {
+        return prices.length == 0 ? 0 : demands[demands.length - 1];
+    }
+
+    /**
+     * Determines the demand at a normalized price, in O(log n) for n breakpoints.
+     *
+     * @param normalizedPrice
+     *            The normalized price (price step)
+     * @return The demand in Watt at the given price
+     */
+    public double getDemandAt(int normalizedPrice) {
+        if (prices.length == 0) {
+            return 0;
+        }
+
+        // find the last breakpoint with a price at most the given price
+        int low = 0;
+        int high = prices.length - 1;
+        int last = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (prices[mid] <= normalizedPrice) {
+                last = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (last == -1) {
+            return demands[0];
+        } else if (last == prices.length - 1 || prices[last] == normalizedPrice) {
+            return demands[last];
+        } else {
+            double ratio = (normalizedPrice - prices[last]) / (double) (prices[last + 1] - prices[last]);
+            return demands[last] + (demands[last + 1] - demands[last]) * ratio;
+        }
+    }
+
+    /**
+     * @return The lowest demand in Watt for any price
+     */
+    public double getMinimumDemand() {
+        double minimum = prices.length == 0 ? 0 : Double.MAX_VALUE;
+        for (double demand : demands) {
+            minimum = Math.min(minimum, demand);
+        }
+        return minimum;
+    }
+
+    /**
+     * @return The highest demand in Watt for any price
+     */
+    public double getMaximumDemand() {
+        double maximum = prices.length == 0 ? 0 : -Double.MAX_VALUE;
+        for (double demand : demands) {
+            maximum = Math.max(maximum, demand);
+        }
+        return maximum;
+    }
+
+    /**
+     * Adds the demand of this bid to the given array, without creating the dense demand array of this bid.
+     *
+     * @param sum
+     *            The array to add the demand to, with one element per price step of the market basis
+     */
+    public void addTo(double[] sum) {
+        add(sum, 1);
+    }
+
+    /**
+     * Subtracts the demand of this bid from the given array, which undoes {@link #addTo(double[])}.
+     *
+     * @param sum
+     *            The array to subtract the demand from, with one element per price step of the market basis
+     */
+    public void subtractFrom(double[] sum) {
+        add(sum, -1);
+    }
+
+    private void add(double[] sum, double factor) {
+        int priceSteps = marketBasis.getPriceSteps();
+        if (prices.length == 0) {
+            return;
+        }
+
+        int index = 0;
+        for (; index < Math.min(prices[0], priceSteps); index++) {
+            sum[index] += factor * demands[0];
+        }
+        for (int b = 0; b < prices.length - 1; b++) {
+            int from = prices[b];
+            int to = prices[b + 1];
+            double slope = to == from ? 0 : (demands[b + 1] - demands[b]) / (to - from);
+            for (; index < to; index++) {
+                sum[index] += factor * (demands[b] + slope * (index - from));
+            }
+        }
+        for (; index < priceSteps; index++) {
+            sum[index] += factor * demands[demands.length - 1];
+        }
+    }
+
+    /**
+     * @return The dense demand array of this bid, with one element per price step
+     */
+    public double[] toDemandArray() {
+        double[] demand = new double[marketBasis.getPriceSteps()];
+        addTo(demand);
+        return demand;
+    }
+
+    /**
+     * @return The bid as {@link BidInfo} described by price points
+     */
+    public BidInfo toBidInfo() {
+        PricePoint[] pricePoints = new PricePoint[prices.length];
+        for (int i = 0; i < prices.length; i++) {
+            pricePoints[i] = new PricePoint(prices[i], demands[i]);
+        }
+        return new BidInfo(marketBasis, pricePoints);
+    }
+
+    /**
+     * Compares the demand of two bids. Because both bids are linear between their breakpoints, the demand only has to
+     * be compared at (and next to) the breakpoints of both bids.
+     *
+     * @param other
+     *            The bid to compare with
+     * @param toleranceWatt
+     *            The maximum difference in Watt between the demand of both bids for any price
+     * @return true if both bids have the same market basis and their demand differs by at most toleranceWatt for every
+     *         price
+     */
+    public boolean isEqual(PiecewiseLinearBid other, double toleranceWatt) {
+        if (!marketBasis.equals(other.marketBasis)) {
+            return false;
+        }
+        return isEqualAtBreakpoints(this, other, toleranceWatt) && isEqualAtBreakpoints(other, this, toleranceWatt);
+    }
+
+    private static boolean isEqualAtBreakpoints(PiecewiseLinearBid bid, PiecewiseLinearBid other, double toleranceWatt) {
+        int lastPrice = bid.marketBasis.getPriceSteps() - 1;
+        if (Math.abs(bid.getDemandAt(0) - other.getDemandAt(0)) > toleranceWatt
+            || Math.abs(bid.getDemandAt(lastPrice) - other.getDemandAt(lastPrice)) > toleranceWatt) {
+            return false;
+        }
+        for (int price : bid.prices) {
+            for (int p = Math.max(0, price - 1); p <= Math.min(lastPrice, price + 1); p++) {
+                if (Math.abs(bid.getDemandAt(p) - other.getDemandAt(p)) > toleranceWatt) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PiecewiseLinearBid[");
+        for (int i = 0; i < prices.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(prices[i]).append(':').append(demands[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,18 @@
+package net.powermatcher.fpai.agent;
+
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+
+/**
+ * Tells an {@link FPAIAgent} when the price it receives arrived at its concentrator, so that the latency from the
+ * arrival of a price until the allocation is delivered includes the distribution of the price to the agents.
+ *
+ * @author TNO
+ */
+public interface PriceArrivalClock {
+    /**
+     * @param price
+     *            The price which the agent received from its concentrator
+     * @return The {@link System#nanoTime()} at which the given price arrived at the concentrator, or 0 if it is unknown
+     */
+    long getPriceArrivalNanos(PriceInfo price);
+}
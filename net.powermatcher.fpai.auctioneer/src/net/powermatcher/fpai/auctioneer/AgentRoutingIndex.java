@@ -0,0 +1,172 @@
+package net.powermatcher.fpai.auctioneer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Routes agents to the auctioneers by their <code>auctioneer.id</code>. The index keeps the active auctioneers by
+ * their id and the id of every agent, so an agent is routed when it is added or removed without considering any other
+ * agent. Agents which arrive before their auctioneer is active are buffered per auctioneer id, and handed out as a
+ * batch when the auctioneer is activated.
+ * <p>
+ * The index only does the bookkeeping; binding the agents is left to the caller. The index is thread-safe, its
+ * operations are short and never call out while holding its lock.
+ *
+ * @param <A>
+ *            The type of the agents
+ * @param <L>
+ *            The type of the auctioneers
+ * @author TNO
+ */
+public final class AgentRoutingIndex<A, L> {
+    /** the active auctioneers by their id */
+    private final Map<String, L> auctioneers = new HashMap<String, L>();
+
+    /** the id of the auctioneer of every agent */
+    private final Map<A, String> routes = new HashMap<A, String>();
+
+    /** the agents per auctioneer id which wait for their auctioneer to become active */
+    private final Map<String, Set<A>> pendingAgents = new HashMap<String, Set<A>>();
+
+    private int pendingCount;
+
+    /**
+     * Adds an agent to the index.
+     *
+     * @param agent
+     *            The agent
+     * @param auctioneerId
+     *            The id of the auctioneer of the agent
+     * @return The auctioneer to which the agent must be bound, or null if the auctioneer is not active and the agent
+     *         was buffered
+     */
+    public synchronized L add(A agent, String auctioneerId) {
+        String previousId = routes.put(agent, auctioneerId);
+        if (previousId != null) {
+            removePending(agent, previousId);
+        }
+
+        L auctioneer = auctioneers.get(auctioneerId);
+        if (auctioneer == null) {
+            Set<A> pending = pendingAgents.get(auctioneerId);
+            if (pending == null) {
+                pending = new LinkedHashSet<A>();
+                pendingAgents.put(auctioneerId, pending);
+            }
+            if (pending.add(agent)) {
+                pendingCount++;
+            }
+        }
+        return auctioneer;
+    }
+
+    /**
+     * Removes an agent from the index.
+     *
+     * @param agent
+     *            The agent
+     * @return The auctioneer from which the agent must be unbound, or null if the agent was not bound
+     */
+    public synchronized L remove(A agent) {
+        String auctioneerId = routes.remove(agent);
+        if (auctioneerId == null) {
+            return null;
+        }
+        if (removePending(agent, auctioneerId)) {
+            return null;
+        }
+        return auctioneers.get(auctioneerId);
+    }
+
+    private boolean removePending(A agent, String auctioneerId) {
+        Set<A> pending = pendingAgents.get(auctioneerId);
+        if (pending == null || !pending.remove(agent)) {
+            return false;
+        }
+        pendingCount--;
+        if (pending.isEmpty()) {
+            pendingAgents.remove(auctioneerId);
+        }
+        return true;
+    }
+
+    /**
+     * Makes an auctioneer active, so agents with its id are routed to it.
+     *
+     * @param auctioneerId
+     *            The id of the auctioneer
+     * @param auctioneer
+     *            The auctioneer
+     * @return The agents which were buffered for the auctioneer, and must be bound to it
+     */
+    public synchronized List<A> activate(String auctioneerId, L auctioneer) {
+        auctioneers.put(auctioneerId, auctioneer);
+
+        Set<A> pending = pendingAgents.remove(auctioneerId);
+        if (pending == null) {
+            return Collections.emptyList();
+        }
+        pendingCount -= pending.size();
+        return new ArrayList<A>(pending);
+    }
+
+    /**
+     * Deactivates all auctioneers. Their agents are buffered again, until an auctioneer with their id is activated;
+     * the caller must unbind them from the auctioneers which were active.
+     *
+     * @return The auctioneers which were active
+     */
+    public synchronized Collection<L> deactivateAll() {
+        List<L> deactivated = new ArrayList<L>(auctioneers.values());
+        for (Entry<A, String> route : routes.entrySet()) {
+            if (auctioneers.containsKey(route.getValue())) {
+                Set<A> pending = pendingAgents.get(route.getValue());
+                if (pending == null) {
+                    pending = new LinkedHashSet<A>();
+                    pendingAgents.put(route.getValue(), pending);
+                }
+                pending.add(route.getKey());
+                pendingCount++;
+            }
+        }
+        auctioneers.clear();
+        return deactivated;
+    }
+
+    /**
+     * @return The active auctioneer to which the agent is routed, or null if the agent was removed or its auctioneer
+     *         is not active
+     */
+    public synchronized L getRoute(A agent) {
+        String auctioneerId = routes.get(agent);
+        return auctioneerId == null ? null : auctioneers.get(auctioneerId);
+    }
+
+    /**
+     * @return The active auctioneer with the given id, or null
+     */
+    public synchronized L getAuctioneer(String auctioneerId) {
+        return auctioneers.get(auctioneerId);
+    }
+
+    /**
+     * @return The number of agents which wait for their auctioneer to become active
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return The number of agents in the index, bound or waiting
+     */
+    public synchronized int size() {
+        return routes.size();
+    }
+}
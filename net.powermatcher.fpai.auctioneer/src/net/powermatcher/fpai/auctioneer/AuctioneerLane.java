@@ -0,0 +1,193 @@
+package net.powermatcher.fpai.auctioneer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.powermatcher.core.agent.auctioneer.Auctioneer;
+import net.powermatcher.core.agent.framework.service.AgentConnectorService;
+import net.powermatcher.core.agent.framework.service.AgentService;
+import net.powermatcher.core.agent.marketbasis.adapter.MarketBasisAdapter;
+import net.powermatcher.core.configurable.BaseConfiguration;
+import net.powermatcher.core.scheduler.service.TimeService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single auctioneer of the {@link AuctioneerManager}, with its market basis, its price publisher and the agents
+ * which are bound to it. Every lane runs on its own executor, and agents are bound and unbound under the lock of the
+ * lane only, so the lanes of independent clusters clear their markets in parallel without contending with each other.
+ *
+ * @author TNO
+ */
+class AuctioneerLane {
+    private static final Logger logger = LoggerFactory.getLogger(AuctioneerLane.class);
+
+    private final String id;
+    private final Auctioneer auctioneer;
+    private final MarketBasisAdapter marketBasisAdapter;
+    private final AuctioneerPricePublisher publisher;
+    private final ScheduledExecutorService executorService;
+    private final TimeService timeService;
+
+    /** the agents which are bound to the auctioneer, guarded by the lock of the lane */
+    private final Set<AgentService> agents = new HashSet<AgentService>();
+
+    /**
+     * @param id
+     *            The id of the auctioneer
+     * @param properties
+     *            The configuration of the auctioneer and its market basis
+     * @param publisher
+     *            The publisher of the prices of the auctioneer
+     * @param executorService
+     *            The executor on which the auctioneer runs
+     * @param timeService
+     *            The time service of the auctioneer
+     */
+    AuctioneerLane(String id,
+                   Map<String, Object> properties,
+                   AuctioneerPricePublisher publisher,
+                   ScheduledExecutorService executorService,
+                   TimeService timeService) {
+        this.id = id;
+        this.publisher = publisher;
+        this.executorService = executorService;
+        this.timeService = timeService;
+
+        BaseConfiguration matcherConfiguration = new BaseConfiguration(properties);
+        auctioneer = new Auctioneer(matcherConfiguration);
+        marketBasisAdapter = new MarketBasisAdapter(matcherConfiguration);
+        marketBasisAdapter.setAgentConnector(auctioneer);
+    }
+
+    /**
+     * @return The id of the auctioneer
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return The executor on which the auctioneer runs
+     */
+    ScheduledExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Binds the market basis, the executor, the time service and the price publisher to the auctioneer.
+     */
+    synchronized void start() {
+        marketBasisAdapter.bind(executorService);
+        marketBasisAdapter.bind(timeService);
+        try {
+            marketBasisAdapter.bind();
+        } catch (Exception e) {
+            logger.error("Could not bind the market basis of auctioneer " + id, e);
+        }
+
+        auctioneer.bind(executorService);
+        auctioneer.bind(timeService);
+        auctioneer.bind(publisher);
+    }
+
+    /**
+     * Unbinds the auctioneer, and closes its price publisher.
+     */
+    synchronized void stop() {
+        auctioneer.unbind(publisher);
+        auctioneer.unbind(timeService);
+        auctioneer.unbind(executorService);
+        marketBasisAdapter.unbind(executorService);
+        marketBasisAdapter.unbind(timeService);
+        marketBasisAdapter.unbind();
+
+        publisher.close();
+    }
+
+    /**
+     * Binds the agent to the auctioneer and vice versa. If the agent can't be bound, the binding is undone.
+     *
+     * @param agent
+     *            The agent, which must also be an {@link AgentConnectorService}
+     * @return Whether the agent is bound to the auctioneer
+     */
+    synchronized boolean bind(AgentService agent) {
+        if (agents.contains(agent)) {
+            return true;
+        }
+        if (!(agent instanceof AgentConnectorService)) {
+            logger.warn("Agent [" + agent + "] can't be bound to auctioneer [" + id
+                        + "], it is not an AgentConnectorService");
+            return false;
+        }
+
+        logger.debug("Binding agent [" + agent + "] to auctioneer [" + id + "]");
+        auctioneer.bind(agent);
+        try {
+            ((AgentConnectorService) agent).bind(auctioneer);
+        } catch (Exception e) {
+            logger.warn("Could not bind agent [" + agent + "] to auctioneer [" + id + "]", e);
+            auctioneer.unbind(agent);
+            return false;
+        }
+        agents.add(agent);
+        return true;
+    }
+
+    /**
+     * Binds a batch of agents under a single acquisition of the lock of the lane. An agent which was removed from the
+     * index, or routed elsewhere, since the batch was taken from the index is skipped, since its removal could not
+     * unbind it before it was bound.
+     *
+     * @param batch
+     *            The agents
+     * @param routingIndex
+     *            The index which routes the agents
+     * @return The number of agents which could not be bound
+     */
+    synchronized int bindAll(Collection<? extends AgentService> batch,
+                             AgentRoutingIndex<AgentService, AuctioneerLane> routingIndex) {
+        int failures = 0;
+        for (AgentService agent : batch) {
+            if (routingIndex.getRoute(agent) != this) {
+                continue;
+            }
+            if (!bind(agent)) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Unbinds the agent from the auctioneer and vice versa.
+     *
+     * @param agent
+     *            The agent
+     * @return Whether the agent was bound to this auctioneer
+     */
+    synchronized boolean unbind(AgentService agent) {
+        if (!agents.remove(agent)) {
+            return false;
+        }
+        logger.debug("Unbinding agent [" + agent + "] from auctioneer [" + id + "]");
+        auctioneer.unbind(agent);
+        ((AgentConnectorService) agent).unbind(auctioneer);
+        return true;
+    }
+
+    /**
+     * Unbinds all agents from the auctioneer and vice versa.
+     */
+    synchronized void unbindAll() {
+        for (AgentService agent : new ArrayList<AgentService>(agents)) {
+            unbind(agent);
+        }
+    }
+}
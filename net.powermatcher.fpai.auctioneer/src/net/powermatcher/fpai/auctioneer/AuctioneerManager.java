@@ -1,17 +1,24 @@
 package net.powermatcher.fpai.auctioneer;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
-import net.powermatcher.core.agent.auctioneer.Auctioneer;
-import net.powermatcher.core.agent.framework.service.AgentConnectorService;
 import net.powermatcher.core.agent.framework.service.AgentService;
-import net.powermatcher.core.agent.marketbasis.adapter.MarketBasisAdapter;
-import net.powermatcher.core.configurable.BaseConfiguration;
+import net.powermatcher.fpai.uplink.BinaryMatcherUplink;
+import net.powermatcher.fpai.uplink.BinaryProtocol;
+import net.powermatcher.fpai.uplink.ByteBufferPool;
+import net.powermatcher.fpai.uplink.MessagingProtocol;
+import net.powermatcher.fpai.uplink.PahoUplinkConnection;
+import net.powermatcher.fpai.uplink.UplinkConnection;
 
 import org.flexiblepower.time.TimeService;
 import org.osgi.framework.BundleContext;
@@ -26,6 +33,29 @@ import aQute.bnd.annotation.metatype.Configurable;
 import aQute.bnd.annotation.metatype.Meta.AD;
 import aQute.bnd.annotation.metatype.Meta.OCD;
 
+/**
+ * Hosts the auctioneers of one or more clusters, and binds the agents to the auctioneer which matches their
+ * <code>auctioneer.id</code> property.
+ * <p>
+ * By default a single auctioneer with id auctioneer_id is hosted, which runs on the executor of the framework. In the
+ * multi-auctioneer mode (auctioneer_ids is configured) every id gets its own auctioneer, price publisher and
+ * single-threaded executor lane, so the markets of independent clusters are cleared in parallel. The properties of the
+ * manager are the configuration of every auctioneer; a property prefixed with the id of an auctioneer and a dot (e.g.
+ * <code>cluster2.price.steps</code>) overrides the property for that auctioneer only.
+ * <p>
+ * The agents are routed with an {@link AgentRoutingIndex}. Agents which arrive before their auctioneer is active are
+ * buffered, and bound as a batch when it is activated. Agents which can't be bound, or have no auctioneer.id, are
+ * counted instead of being dropped silently.
+ * <p>
+ * With the messaging_protocol {@link MessagingProtocol#BINARY_v1} or {@link MessagingProtocol#BINARY_DELTA_v1} every
+ * auctioneer also receives the bids of the remote concentrators which use that protocol: a {@link BinaryMatcherUplink}
+ * on the broker_uri is bound to the auctioneer like a local agent, and publishes the prices of the auctioneer to the
+ * concentrators. The uplink accepts complete bids as well as keyframes and deltas, so the uplink_keyframe_interval of
+ * the concentrators needs no counterpart here; when a delta was lost the uplink asks the concentrator for a keyframe on
+ * the price topic of the auctioneer.
+ *
+ * @author TNO
+ */
 @Component(immediate = true, designate = AuctioneerManager.Config.class)
 public class AuctioneerManager {
     private static final Logger logger = LoggerFactory.getLogger(AuctioneerManager.class);
@@ -46,6 +76,10 @@ public class AuctioneerManager {
         @AD(deflt = "auctioneer1")
         String auctioneer_id();
 
+        /** the ids of the auctioneers in the multi-auctioneer mode, one per cluster; empty for only auctioneer_id */
+        @AD(required = false, cardinality = Integer.MAX_VALUE)
+        String[] auctioneer_ids();
+
         @AD(deflt = "0")
         double minimum_price();
 
@@ -60,73 +94,230 @@ public class AuctioneerManager {
 
         @AD(deflt = "3")
         int significance();
+
+        /** the minimum time in milliseconds between two price observations delivered to the same consumer */
+        @AD(deflt = "0")
+        int price_observation_interval();
+
+        /** INTERNAL_v1 for the local agents only, or BINARY_v1 or BINARY_DELTA_v1 to receive remote bids as well */
+        @AD(deflt = "INTERNAL_v1")
+        MessagingProtocol messaging_protocol();
+
+        @AD(deflt = "tcp://localhost:1883")
+        String broker_uri();
+
+        @AD(deflt = "UpdateBid")
+        String bid_topic_suffix();
+
+        @AD(deflt = "UpdatePriceInfo")
+        String price_info_topic_suffix();
     }
 
-    private Auctioneer auctioneer;
+    private static final int UPLINK_BUFFER_SIZE = 4096;
+    private static final int UPLINK_BUFFERS = 8;
 
-    private final Set<AgentService> agents = new HashSet<AgentService>();
+    /** the active auctioneers and the agents, bound or waiting for their auctioneer */
+    private final AgentRoutingIndex<AgentService, AuctioneerLane> routingIndex =
+            new AgentRoutingIndex<AgentService, AuctioneerLane>();
 
-    private Config config;
+    /** the binary uplinks of the auctioneers to their remote concentrators */
+    private final List<MatcherUplink> uplinks = new ArrayList<MatcherUplink>();
 
-    private AuctioneerPricePublisher publisher;
+    private final AtomicLong bindFailures = new AtomicLong();
+    private final AtomicLong unroutableAgents = new AtomicLong();
 
     @Activate
-    public synchronized void activate(BundleContext context, Map<String, Object> properties) {
-        publisher = new AuctioneerPricePublisher(context, timeService);
-
-        config = Configurable.createConfigurable(Config.class, properties);
-        HashMap<String, Object> newProperties = new HashMap<String, Object>(properties);
-        newProperties.put("id", config.auctioneer_id());
-        BaseConfiguration matcherConfiguration = new BaseConfiguration(newProperties);
-
-        auctioneer = new Auctioneer(matcherConfiguration);
-        marketBasisAdapter = new MarketBasisAdapter(matcherConfiguration);
-        marketBasisAdapter.setAgentConnector(auctioneer);
-        marketBasisAdapter.bind(executorService);
-        marketBasisAdapter.bind(pmTimeService);
-        try {
-            marketBasisAdapter.bind();
-        } catch (Exception e1) {
+    public void activate(BundleContext context, Map<String, Object> properties) {
+        Config config = Configurable.createConfigurable(Config.class, properties);
+
+        String[] auctioneerIds = config.auctioneer_ids();
+        boolean multiple = auctioneerIds != null && auctioneerIds.length > 0;
+        if (!multiple) {
+            auctioneerIds = new String[] { config.auctioneer_id() };
         }
 
-        auctioneer.bind(executorService);
-        auctioneer.bind(pmTimeService);
-        auctioneer.bind(publisher);
-
-        logger.debug("Initialized auctioneer with " + newProperties);
-
-        // Bind initial agents
-        logger.debug("Adding agents: " + agents);
-        Iterator<AgentService> it = agents.iterator();
-        while (it.hasNext()) {
-            AgentService agent = it.next();
-            if (match(properties)) {
-                auctioneer.bind(agent);
-                try {
-                    ((AgentConnectorService) agent).bind(auctioneer);
-                } catch (Exception e) {
-                }
+        for (String auctioneerId : auctioneerIds) {
+            Map<String, Object> laneProperties = createLaneProperties(auctioneerId, properties);
+            AuctioneerLane lane;
+            if (multiple) {
+                lane = new AuctioneerLane(auctioneerId,
+                                          laneProperties,
+                                          new AuctioneerPricePublisher(context,
+                                                                       timeService,
+                                                                       auctioneerId,
+                                                                       config.price_observation_interval()),
+                                          createExecutorLane(auctioneerId),
+                                          pmTimeService);
             } else {
-                it.remove();
+                lane = new AuctioneerLane(auctioneerId,
+                                          laneProperties,
+                                          new AuctioneerPricePublisher(context,
+                                                                       timeService,
+                                                                       "auctioneer",
+                                                                       config.price_observation_interval()),
+                                          executorService,
+                                          pmTimeService);
+            }
+            lane.start();
+            logger.debug("Initialized auctioneer with " + laneProperties);
+
+            // Bind the agents which were added before the auctioneer was active
+            List<AgentService> pendingAgents = routingIndex.activate(auctioneerId, lane);
+            if (!pendingAgents.isEmpty()) {
+                logger.debug("Adding agents: " + pendingAgents);
+                bindFailures.addAndGet(lane.bindAll(pendingAgents, routingIndex));
+            }
+
+            Config laneConfig = Configurable.createConfigurable(Config.class, laneProperties);
+            if (laneConfig.messaging_protocol().isBinary()) {
+                createMatcherUplink(lane, laneConfig);
             }
         }
     }
 
+    /**
+     * Connects the auctioneer to the remote concentrators of its cluster with the {@link BinaryProtocol}.
+     */
+    private void createMatcherUplink(AuctioneerLane lane, Config config) {
+        UplinkConnection connection;
+        try {
+            connection = createUplinkConnection(config.broker_uri(), lane.getId());
+        } catch (Exception e) {
+            logger.error("Could not connect auctioneer " + lane.getId() + " to " + config.broker_uri(), e);
+            return;
+        }
+
+        BinaryMatcherUplink uplink = new BinaryMatcherUplink(connection,
+                                                             new ByteBufferPool(UPLINK_BUFFER_SIZE, UPLINK_BUFFERS),
+                                                             config.cluster_id(),
+                                                             lane.getId(),
+                                                             config.bid_topic_suffix(),
+                                                             config.price_info_topic_suffix());
+        if (!lane.bind(uplink)) {
+            bindFailures.incrementAndGet();
+            closeUplinkConnection(lane, connection);
+            return;
+        }
+        synchronized (uplinks) {
+            uplinks.add(new MatcherUplink(lane, uplink, connection));
+        }
+    }
+
+    /**
+     * Creates the connection of the binary uplink of an auctioneer to the broker.
+     *
+     * @param brokerUri
+     *            The URI of the broker
+     * @param clientId
+     *            The id of the connection
+     * @return The connection
+     */
+    protected UplinkConnection createUplinkConnection(String brokerUri, String clientId) throws Exception {
+        return new PahoUplinkConnection(brokerUri, clientId);
+    }
+
+    private static void closeUplinkConnection(AuctioneerLane lane, UplinkConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the uplink connection of auctioneer " + lane.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The binary uplinks of the auctioneers, which are empty unless the messaging_protocol is
+     *         {@link MessagingProtocol#BINARY_v1} or {@link MessagingProtocol#BINARY_DELTA_v1}
+     */
+    public List<BinaryMatcherUplink> getMatcherUplinks() {
+        synchronized (uplinks) {
+            List<BinaryMatcherUplink> result = new ArrayList<BinaryMatcherUplink>(uplinks.size());
+            for (MatcherUplink matcherUplink : uplinks) {
+                result.add(matcherUplink.uplink);
+            }
+            return result;
+        }
+    }
+
     @Deactivate
-    public synchronized void deactivate() {
-        auctioneer.unbind(publisher);
-        auctioneer.unbind(pmTimeService);
-        auctioneer.unbind(executorService);
-        marketBasisAdapter.unbind(executorService);
-        marketBasisAdapter.unbind(pmTimeService);
-        marketBasisAdapter.unbind();
+    public void deactivate() {
+        synchronized (uplinks) {
+            for (MatcherUplink matcherUplink : uplinks) {
+                matcherUplink.lane.unbind(matcherUplink.uplink);
+                closeUplinkConnection(matcherUplink.lane, matcherUplink.connection);
+            }
+            uplinks.clear();
+        }
+
+        for (AuctioneerLane lane : routingIndex.deactivateAll()) {
+            // the agents wait in the index for the next activation, unbound
+            lane.unbindAll();
+            lane.stop();
+            if (lane.getExecutorService() != executorService) {
+                lane.getExecutorService().shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return The properties of the manager with the id of the auctioneer, and the properties prefixed with that id
+     *         instead of their unprefixed counterparts
+     */
+    private static Map<String, Object> createLaneProperties(String auctioneerId, Map<String, Object> properties) {
+        String prefix = auctioneerId + ".";
+        Map<String, Object> laneProperties = new HashMap<String, Object>(properties);
+        for (Entry<String, Object> property : properties.entrySet()) {
+            if (property.getKey().startsWith(prefix)) {
+                laneProperties.put(property.getKey().substring(prefix.length()), property.getValue());
+            }
+        }
+        laneProperties.put("id", auctioneerId);
+        return laneProperties;
+    }
+
+    /** The binary uplink of an auctioneer and its connection */
+    private static final class MatcherUplink {
+        final AuctioneerLane lane;
+        final BinaryMatcherUplink uplink;
+        final UplinkConnection connection;
 
-        publisher.close();
+        MatcherUplink(AuctioneerLane lane, BinaryMatcherUplink uplink, UplinkConnection connection) {
+            this.lane = lane;
+            this.uplink = uplink;
+            this.connection = connection;
+        }
+    }
+
+    /** @return a single-threaded executor for the auctioneer with the given id */
+    private static ScheduledExecutorService createExecutorLane(final String auctioneerId) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Auctioneer " + auctioneerId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return The number of agents which could not be bound to their auctioneer
+     */
+    public long getBindFailures() {
+        return bindFailures.get();
     }
 
-    private boolean match(Map<String, Object> properties) {
-        return properties.containsKey(AGENT_FILTER_KEY) && properties.get(AGENT_FILTER_KEY)
-                .equals(config.auctioneer_id());
+    /**
+     * @return The number of agents which were ignored because they have no auctioneer.id
+     */
+    public long getUnroutableAgents() {
+        return unroutableAgents.get();
+    }
+
+    /**
+     * @return The number of agents which wait for their auctioneer to become active
+     */
+    public int getPendingAgents() {
+        return routingIndex.getPendingCount();
     }
 
     private ScheduledExecutorService executorService;
@@ -139,8 +330,6 @@ public class AuctioneerManager {
     private TimeService timeService;
     private net.powermatcher.core.scheduler.service.TimeService pmTimeService;
 
-    private MarketBasisAdapter marketBasisAdapter;
-
     @Reference
     public void setTimeService(final TimeService timeService) {
         this.timeService = timeService;
@@ -158,28 +347,26 @@ public class AuctioneerManager {
     }
 
     @Reference(dynamic = true, multiple = true, optional = true)
-    public synchronized void addAgent(AgentService agent, Map<String, Object> properties) {
-        if (config == null) {
-            // Not configured yet, so just store for now
-            agents.add(agent);
-        } else if (match(properties)) {
-            agents.add(agent);
-            if (auctioneer != null) {
-                logger.debug("Binding agent [" + agent + "] to auctioneer [" + config.auctioneer_id() + "]");
-                auctioneer.bind(agent);
-                try {
-                    ((AgentConnectorService) agent).bind(auctioneer);
-                } catch (Exception e) {
-                }
-            }
+    public void addAgent(AgentService agent, Map<String, Object> properties) {
+        Object auctioneerId = properties.get(AGENT_FILTER_KEY);
+        if (auctioneerId == null) {
+            unroutableAgents.incrementAndGet();
+            logger.warn("Ignoring agent [" + agent + "] without " + AGENT_FILTER_KEY);
+            return;
+        }
+
+        // if the auctioneer is not active yet, the agent is bound when it is activated. The lane checks the route again
+        // under its lock, so an agent which is removed before it is bound stays unbound
+        AuctioneerLane lane = routingIndex.add(agent, auctioneerId.toString());
+        if (lane != null) {
+            bindFailures.addAndGet(lane.bindAll(Collections.singletonList(agent), routingIndex));
         }
     }
 
-    public synchronized void removeAgent(AgentService agent) {
-        if (agents.remove(agent)) {
-            logger.debug("Unbinding agent [" + agent + "] from auctioneer [" + config.auctioneer_id() + "]");
-            auctioneer.unbind(agent);
-            ((AgentConnectorService) agent).unbind(auctioneer);
+    public void removeAgent(AgentService agent) {
+        AuctioneerLane lane = routingIndex.remove(agent);
+        if (lane != null) {
+            lane.unbind(agent);
         }
     }
 }
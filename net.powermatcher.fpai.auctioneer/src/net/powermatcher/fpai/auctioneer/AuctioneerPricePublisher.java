@@ -1,6 +1,16 @@
 package net.powermatcher.fpai.auctioneer;
 
 import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.powermatcher.core.agent.framework.log.BidLogInfo;
 import net.powermatcher.core.agent.framework.log.LogListenerService;
@@ -8,15 +18,34 @@ import net.powermatcher.core.agent.framework.log.PriceLogInfo;
 import net.powermatcher.fpai.auctioneer.AuctioneerPricePublisher.Price;
 
 import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ObservationConsumer;
 import org.flexiblepower.observation.ext.AbstractObservationProvider;
 import org.flexiblepower.observation.ext.ObservationProviderRegistrationHelper;
 import org.flexiblepower.time.TimeService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Publishes the prices of an auctioneer as observations. The prices are delivered to the consumers asynchronously, on
+ * the thread of the publisher, so the auctioneer never waits for a consumer: handling a price only replaces the latest
+ * observation and schedules its delivery.
+ * <p>
+ * A price which equals the previous price is not published again, and the instances of the prices are immutable and
+ * reused. Every consumer receives at most one observation per minimum interval; the prices which change within the
+ * interval are coalesced, and the latest one is delivered when the interval has passed.
+ *
+ * @author TNO
+ */
 public class AuctioneerPricePublisher extends AbstractObservationProvider<Price> implements
                                                                                 LogListenerService,
                                                                                 Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AuctioneerPricePublisher.class);
+
+    /** the number of price instances which are kept for reuse */
+    private static final int PRICE_CACHE_SIZE = 1024;
+
     private final TimeService timeService;
     private final ServiceRegistration<?> serviceRegistration;
 
@@ -24,12 +53,164 @@ public class AuctioneerPricePublisher extends AbstractObservationProvider<Price>
         double getPrice();
     }
 
+    private static final class ImmutablePrice implements Price {
+        private final double price;
+
+        ImmutablePrice(double price) {
+            this.price = price;
+        }
+
+        @Override
+        public double getPrice() {
+            return price;
+        }
+
+        @Override
+        public String toString() {
+            return "Price[" + price + "]";
+        }
+    }
+
+    /** The delivery state of a single consumer */
+    private final class Subscriber implements Runnable {
+        private final ObservationConsumer<? super Price> consumer;
+
+        /** the last observation which was delivered, only used on the thread of the publisher */
+        private Observation<Price> delivered;
+        private long deliveredNanos;
+
+        /** whether a delayed delivery is scheduled, only used on the thread of the publisher */
+        private boolean deliveryScheduled;
+
+        Subscriber(ObservationConsumer<? super Price> consumer) {
+            this.consumer = consumer;
+        }
+
+        /** delivers the latest observation, or schedules it if the minimum interval has not passed */
+        void deliver(Observation<Price> observation) {
+            if (observation == delivered || deliveryScheduled) {
+                return;
+            }
+
+            long waitNanos = deliveredNanos + minimumIntervalNanos - System.nanoTime();
+            if (delivered != null && waitNanos > 0) {
+                deliveryScheduled = true;
+                executor.schedule(this, waitNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            delivered = observation;
+            deliveredNanos = System.nanoTime();
+            try {
+                consumer.consume(AuctioneerPricePublisher.this, observation);
+                observationsDelivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                logger.warn("Observation consumer " + consumer + " failed to consume a price", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            deliveryScheduled = false;
+            Observation<Price> observation = latest.get();
+            if (observation != null && subscribers.containsKey(consumer)) {
+                deliver(observation);
+            }
+        }
+    }
+
+    private final ConcurrentMap<ObservationConsumer<? super Price>, Subscriber> subscribers =
+            new ConcurrentHashMap<ObservationConsumer<? super Price>, Subscriber>();
+
+    /** the thread on which the observations are delivered */
+    private final ScheduledExecutorService executor;
+
+    /** the minimum time between two observations of a consumer */
+    private final long minimumIntervalNanos;
+
+    /** the latest observation, which is delivered to every consumer */
+    private final AtomicReference<Observation<Price>> latest = new AtomicReference<Observation<Price>>();
+
+    /** whether the delivery of the latest observation is scheduled */
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+    private final Runnable deliveryTask = new Runnable() {
+        @Override
+        public void run() {
+            deliveryScheduled.set(false);
+            Observation<Price> observation = latest.get();
+            for (Subscriber subscriber : subscribers.values()) {
+                subscriber.deliver(observation);
+            }
+        }
+    };
+
+    /** the immutable price instances by their value */
+    private final ConcurrentMap<Double, Price> prices = new ConcurrentHashMap<Double, Price>();
+
+    private final AtomicLong pricesReceived = new AtomicLong();
+    private final AtomicLong observationsDelivered = new AtomicLong();
+
     public AuctioneerPricePublisher(BundleContext context, TimeService timeService) {
+        this(context, timeService, "auctioneer");
+    }
+
+    /**
+     * @param observationOf
+     *            The name of the observed auctioneer, which distinguishes the prices of multiple auctioneers
+     */
+    public AuctioneerPricePublisher(BundleContext context, TimeService timeService, String observationOf) {
+        this(context, timeService, observationOf, 0);
+    }
+
+    /**
+     * @param context
+     *            The context of the bundle, or null if the publisher is not registered as an observation provider
+     * @param observationOf
+     *            The name of the observed auctioneer, which distinguishes the prices of multiple auctioneers
+     * @param minimumInterval
+     *            The minimum time in milliseconds between two observations delivered to the same consumer
+     */
+    public AuctioneerPricePublisher(BundleContext context,
+                                    TimeService timeService,
+                                    final String observationOf,
+                                    long minimumInterval) {
         this.timeService = timeService;
-        serviceRegistration = new ObservationProviderRegistrationHelper(this).observationOf("auctioneer")
-                                                                             .observationType(Price.class)
-                                                                             .observedBy(getClass().getName())
-                                                                             .register();
+        minimumIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minimumInterval));
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AuctioneerPricePublisher " + observationOf);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (context == null) {
+            serviceRegistration = null;
+        } else {
+            serviceRegistration = new ObservationProviderRegistrationHelper(this).observationOf(observationOf)
+                                                                                 .observationType(Price.class)
+                                                                                 .observedBy(getClass().getName())
+                                                                                 .register();
+        }
+    }
+
+    @Override
+    public void subscribe(ObservationConsumer<? super Price> consumer) {
+        Subscriber subscriber = new Subscriber(consumer);
+        if (subscribers.putIfAbsent(consumer, subscriber) == null && latest.get() != null) {
+            // a new consumer receives the current price right away
+            try {
+                executor.execute(subscriber);
+            } catch (RejectedExecutionException e) {
+                // the publisher is closed
+            }
+        }
+    }
+
+    @Override
+    public void unsubscribe(ObservationConsumer<? super Price> consumer) {
+        subscribers.remove(consumer);
     }
 
     @Override
@@ -38,17 +219,56 @@ public class AuctioneerPricePublisher extends AbstractObservationProvider<Price>
 
     @Override
     public void handlePriceLogInfo(final PriceLogInfo paramPriceLogInfo) {
-        final double price = paramPriceLogInfo.getCurrentPrice();
-        publish(new Observation<AuctioneerPricePublisher.Price>(timeService.getTime(), new Price() {
-            @Override
-            public double getPrice() {
-                return price;
+        pricesReceived.incrementAndGet();
+        double price = paramPriceLogInfo.getCurrentPrice();
+        Observation<Price> previous = latest.get();
+        if (previous != null && previous.getValue().getPrice() == price) {
+            return;
+        }
+
+        latest.set(new Observation<Price>(timeService.getTime(), getPrice(price)));
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(deliveryTask);
+            } catch (RejectedExecutionException e) {
+                // the publisher is closed
+            }
+        }
+    }
+
+    private Price getPrice(double value) {
+        Double key = value;
+        Price price = prices.get(key);
+        if (price == null) {
+            if (prices.size() >= PRICE_CACHE_SIZE) {
+                prices.clear();
             }
-        }));
+            price = new ImmutablePrice(value);
+            prices.put(key, price);
+        }
+        return price;
+    }
+
+    /**
+     * @return The number of prices which the auctioneer logged
+     */
+    public long getPricesReceived() {
+        return pricesReceived.get();
+    }
+
+    /**
+     * @return The number of observations which were delivered, counted once per consumer
+     */
+    public long getObservationsDelivered() {
+        return observationsDelivered.get();
     }
 
     @Override
     public void close() {
-        serviceRegistration.unregister();
+        if (serviceRegistration != null) {
+            serviceRegistration.unregister();
+        }
+        executor.shutdownNow();
+        subscribers.clear();
     }
 }
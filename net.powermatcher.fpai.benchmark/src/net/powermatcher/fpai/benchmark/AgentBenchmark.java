@@ -0,0 +1,96 @@
+package net.powermatcher.fpai.benchmark;
+
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.quantity.Power;
+
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.values.ConstraintList;
+import org.flexiblepower.rai.values.ConstraintList.Builder;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base class of the benchmarks of the bid construction of the agents. Every benchmark is run for market bases with
+ * 100, 1000 and 10000 price steps.
+ *
+ * @author TNO
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AgentBenchmark {
+    protected static final String RESOURCE_ID = "benchmark-resource";
+
+    private static final String CFG_PREFIX = "agent.benchmark";
+
+    @Param({ "100", "1000", "10000" })
+    public int priceSteps;
+
+    protected MarketBasis marketBasis;
+
+    protected MockTimeService timeService;
+
+    /**
+     * Creates the market basis and time service for the current parameters, must be invoked by the setup of the
+     * benchmark before the agent is created.
+     */
+    protected void initialize() {
+        marketBasis = new MarketBasis("Electricity", "EUR", priceSteps, 0, 100, 1, 0);
+        timeService = new MockTimeService();
+    }
+
+    /**
+     * @return The configuration of an agent with the given id, which doesn't log its bids and prices
+     */
+    protected static ConfigurationService createConfiguration(String agentId) {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", agentId);
+        cfg.put(CFG_PREFIX + ".matcher.id", "concentrator");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+        return new PrefixedConfiguration(cfg, CFG_PREFIX);
+    }
+
+    /**
+     * Creates a power constraint list with the given number of constraints, evenly spread between 0 and maximumWatt.
+     * Every even constraint is a range, every odd constraint is a single value.
+     *
+     * @param size
+     *            The number of constraints
+     * @param maximumWatt
+     *            The upper bound of the last constraint
+     * @return The power constraint list
+     */
+    protected static ConstraintList<Power> createConstraintList(int size, double maximumWatt) {
+        Builder<Power> builder = ConstraintList.create(WATT);
+        double step = maximumWatt / size;
+        for (int i = 0; i < size; i++) {
+            double upper = step * (i + 1);
+            if (i % 2 == 0) {
+                builder.addRange(upper - step / 2, upper);
+            } else {
+                builder.addSingle(upper);
+            }
+        }
+        return builder.build();
+    }
+}
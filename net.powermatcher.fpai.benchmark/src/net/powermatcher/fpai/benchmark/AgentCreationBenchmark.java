@@ -0,0 +1,108 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.controller.AgentFactory;
+import net.powermatcher.fpai.controller.AgentPool;
+
+import org.flexiblepower.rai.ControlSpace;
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the creation of an agent for a resource by the {@link AgentPool}, compared with the creation through
+ * reflection and a copy of the properties per agent, which the controller did before. The recycled benchmark releases
+ * the agent of the previous resource before creating the agent of the next one, so it includes the cost of
+ * {@link FPAIAgent#recycle()}.
+ *
+ * @author TNO
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentCreationBenchmark {
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+
+    private Map<Class<? extends ControlSpace>, AgentFactory> factories;
+
+    private AgentPool factoryPool;
+    private AgentPool recyclingPool;
+
+    private FPAIAgent<?> recycledAgent;
+
+    private int agentCount;
+
+    @Setup
+    public void setUp() {
+        factories = new HashMap<Class<? extends ControlSpace>, AgentFactory>();
+        factories.put(UncontrolledControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new UncontrolledAgent();
+            }
+        });
+
+        // a controller configuration of a realistic size
+        properties.put("id", "concentrator1");
+        properties.put("cluster.id", "ExampleCluster");
+        properties.put("broker.uri", "tcp://localhost:1883");
+        for (int i = 0; i < 200; i++) {
+            properties.put("setting" + i, "value" + i);
+        }
+
+        factoryPool = new AgentPool(factories, properties, 0);
+        recyclingPool = new AgentPool(factories, properties, 1);
+        recycledAgent = recyclingPool.createAgent(UncontrolledControlSpace.class, nextAgentId(), "concentrator1");
+    }
+
+    @Benchmark
+    public FPAIAgent<?> reflection() throws Exception {
+        String agentId = nextAgentId();
+        Map<String, Object> agentProperties = new HashMap<String, Object>(properties);
+        String prefix = "agent" + ConfigurationService.SEPARATOR + agentId;
+        agentProperties.put(prefix + ".class", UncontrolledAgent.class.getName());
+        agentProperties.put(prefix + ".id", agentId);
+        agentProperties.put(prefix + ".matcher.id", "concentrator1");
+        agentProperties.put(prefix + ".agent.bid.log.level", "FULL_LOGGING");
+        agentProperties.put(prefix + ".agent.price.log.level", "FULL_LOGGING");
+
+        FPAIAgent<?> agent = UncontrolledAgent.class.newInstance();
+        agent.setConfiguration(new PrefixedConfiguration(agentProperties, prefix));
+        return agent;
+    }
+
+    @Benchmark
+    public FPAIAgent<?> factory() {
+        return factoryPool.createAgent(UncontrolledControlSpace.class, nextAgentId(), "concentrator1");
+    }
+
+    @Benchmark
+    public FPAIAgent<?> recycled() {
+        // churn: the resource of the previous agent is unregistered and a new resource is registered
+        recyclingPool.release(UncontrolledControlSpace.class, recycledAgent);
+        recycledAgent = recyclingPool.createAgent(UncontrolledControlSpace.class, nextAgentId(), "concentrator1");
+        return recycledAgent;
+    }
+
+    private String nextAgentId() {
+        return "agent" + agentCount++;
+    }
+}
@@ -0,0 +1,26 @@
+package net.powermatcher.fpai.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the agent benchmarks with the GC profiler, so that the allocation rate per operation is reported alongside the
+ * throughput. A regular expression given as the first argument restricts the benchmarks that are run, e.g.
+ * <code>StorageAgentBenchmark</code>.
+ *
+ * @author TNO
+ */
+public class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : AgentBenchmark.class.getPackage().getName() + ".*";
+
+        Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,60 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Date;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.buffer.BufferAgent;
+import net.powermatcher.fpai.agent.buffer.test.BufferControlSpaceBuilder;
+
+import org.flexiblepower.rai.BufferControlSpace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Benchmark of {@link BufferAgent#createBid(BufferControlSpace, MarketBasis)} for a buffer which is half full, so that
+ * a sloped bid is rounded to the charge speed.
+ *
+ * @author TNO
+ */
+public class BufferAgentBenchmark extends AgentBenchmark {
+    @Param({ "1", "10", "100" })
+    public int constraints;
+
+    private BenchmarkBufferAgent agent;
+
+    private BufferControlSpace controlSpace;
+
+    @Setup
+    public void setUp() {
+        initialize();
+
+        agent = new BenchmarkBufferAgent(createConfiguration("buffer"));
+        agent.bind(timeService);
+
+        controlSpace = new BufferControlSpaceBuilder().validFrom(timeService.getDate())
+                                                      .validThru(new Date(timeService.currentTimeMillis() + 60000))
+                                                      .stateOfCharge(0.5f)
+                                                      .chargeSpeed(createConstraintList(constraints, 2000))
+                                                      .build(RESOURCE_ID);
+    }
+
+    @Benchmark
+    public BidInfo createBid() {
+        return agent.createBid(controlSpace, marketBasis);
+    }
+
+    /** Exposes the bid construction of the agent to the benchmark */
+    static class BenchmarkBufferAgent extends BufferAgent {
+        BenchmarkBufferAgent(ConfigurationService configuration) {
+            super(configuration);
+        }
+
+        @Override
+        protected BidInfo createBid(BufferControlSpace controlSpace, MarketBasis marketBasis) {
+            return super.createBid(controlSpace, marketBasis);
+        }
+    }
+}
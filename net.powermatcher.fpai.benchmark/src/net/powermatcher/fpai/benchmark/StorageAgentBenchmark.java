@@ -0,0 +1,48 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Date;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.fpai.agent.storage.StorageAgent;
+import net.powermatcher.fpai.agent.storage.test.StorageControlSpaceBuilder;
+
+import org.flexiblepower.rai.StorageControlSpace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Benchmark of {@link StorageAgent#createBid(StorageControlSpace, MarketBasis)} for a storage which is half full, so
+ * that the bid is built from both the charge and the discharge speed.
+ *
+ * @author TNO
+ */
+public class StorageAgentBenchmark extends AgentBenchmark {
+    @Param({ "1", "10", "100" })
+    public int constraints;
+
+    private StorageAgent agent;
+
+    private StorageControlSpace controlSpace;
+
+    @Setup
+    public void setUp() {
+        initialize();
+
+        agent = new StorageAgent(createConfiguration("storage"));
+        agent.bind(timeService);
+
+        StorageControlSpaceBuilder builder = new StorageControlSpaceBuilder();
+        builder.validFrom(timeService.getDate()).validThru(new Date(timeService.currentTimeMillis() + 60000));
+        builder.stateOfCharge(0.5f);
+        builder.chargeSpeed(createConstraintList(constraints, 2000));
+        builder.dischargeSpeed(createConstraintList(constraints, 2000));
+        controlSpace = builder.build(RESOURCE_ID);
+    }
+
+    @Benchmark
+    public BidInfo createBid() {
+        return agent.createBid(controlSpace, marketBasis);
+    }
+}
@@ -0,0 +1,62 @@
+package net.powermatcher.fpai.benchmark;
+
+import static javax.measure.unit.NonSI.KWH;
+import static javax.measure.unit.NonSI.MINUTE;
+
+import java.util.Date;
+
+import javax.measure.Measure;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.fpai.agent.timeshifter.TimeshifterAgent;
+import net.powermatcher.fpai.agent.timeshifter.test.TimeShifterControlSpaceBuilder;
+
+import org.flexiblepower.rai.TimeShifterControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Benchmark of {@link TimeshifterAgent#createBid(TimeShifterControlSpace, MarketBasis)} halfway its start window, so
+ * that a step bid is created. The time shifter has no constraint list, the size of its energy profile is varied
+ * instead.
+ *
+ * @author TNO
+ */
+public class TimeshifterAgentBenchmark extends AgentBenchmark {
+    @Param({ "1", "10", "100" })
+    public int profileElements;
+
+    private TimeshifterAgent agent;
+
+    private TimeShifterControlSpace controlSpace;
+
+    @Setup
+    public void setUp() {
+        initialize();
+
+        agent = new TimeshifterAgent(createConfiguration("timeshifter"));
+        agent.bind(timeService);
+
+        EnergyProfile.Builder profile = EnergyProfile.create();
+        for (int i = 0; i < profileElements; i++) {
+            profile.add(Measure.valueOf(1, MINUTE), Measure.valueOf(0.1 * (i % 10 + 1), KWH));
+        }
+
+        long now = timeService.currentTimeMillis();
+        controlSpace = new TimeShifterControlSpaceBuilder().setApplianceId(RESOURCE_ID)
+                                                           .setValidFrom(new Date(now))
+                                                           .setValidThru(new Date(now + 3600000))
+                                                           .setStartAfter(new Date(now - 1800000))
+                                                           .setStartBefore(new Date(now + 1800000))
+                                                           .setEnergyProfile(profile.build())
+                                                           .build();
+    }
+
+    @Benchmark
+    public BidInfo createBid() {
+        return agent.createBid(controlSpace, marketBasis);
+    }
+}
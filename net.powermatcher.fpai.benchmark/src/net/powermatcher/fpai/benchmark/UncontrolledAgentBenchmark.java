@@ -0,0 +1,68 @@
+package net.powermatcher.fpai.benchmark;
+
+import static javax.measure.unit.NonSI.KWH;
+import static javax.measure.unit.NonSI.MINUTE;
+
+import java.util.Date;
+
+import javax.measure.Measure;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Benchmark of {@link UncontrolledAgent#createBid(UncontrolledControlSpace, MarketBasis)} halfway its energy profile.
+ * The uncontrolled agent has no constraint list, the size of its energy profile is varied instead.
+ *
+ * @author TNO
+ */
+public class UncontrolledAgentBenchmark extends AgentBenchmark {
+    @Param({ "1", "10", "100" })
+    public int profileElements;
+
+    private BenchmarkUncontrolledAgent agent;
+
+    private UncontrolledControlSpace controlSpace;
+
+    @Setup
+    public void setUp() {
+        initialize();
+
+        agent = new BenchmarkUncontrolledAgent(createConfiguration("uncontrolled"));
+        agent.bind(timeService);
+
+        EnergyProfile.Builder profile = EnergyProfile.create();
+        for (int i = 0; i < profileElements; i++) {
+            profile.add(Measure.valueOf(1, MINUTE), Measure.valueOf(0.1 * (i % 10 + 1), KWH));
+        }
+
+        // start the profile so that the current time is in the middle of it
+        Date startTime = new Date(timeService.currentTimeMillis() - profileElements * 30000L);
+        controlSpace = new UncontrolledControlSpace(RESOURCE_ID, startTime, profile.build());
+    }
+
+    @Benchmark
+    public BidInfo createBid() {
+        return agent.createBid(controlSpace, marketBasis);
+    }
+
+    /** Exposes the bid construction of the agent to the benchmark */
+    static class BenchmarkUncontrolledAgent extends UncontrolledAgent {
+        BenchmarkUncontrolledAgent(ConfigurationService configuration) {
+            super(configuration);
+        }
+
+        @Override
+        protected BidInfo createBid(UncontrolledControlSpace controlSpace, MarketBasis marketBasis) {
+            return super.createBid(controlSpace, marketBasis);
+        }
+    }
+}
@@ -1,21 +1,36 @@
 $(window).load(function() {
-	w = new widget("update", 2000, function(data) {
+	// the height of the charts, which is the default height of the widget; their width follows the width of the page
+	var chartHeight = 125;
+
+	function draw(data) {
 		$(".error").hide();
 		$("#marketprice").text(data.marketPrice.toFixed(2).replace(".", ","));
 		for(var i in data.agents) {
 			var id = data.agents[i].id;
 			var div = $("#bid-"+i);
 			if(div.size() == 0) {
-				$("#bids").append('<div id="bid-'+i+'"><p></p><div style="width: 400px; height: 125px;"></div></div>');
+				$("#bids").append('<div id="bid-'+i+'"><p></p><div style="width: 100%; height: '+chartHeight+'px;"></div></div>');
 				var div = $("#bid-"+i);
 			}
 			div.find("p").text(id);
 			$.plot("#bid-"+i+" div", [data.agents[i].coordinates, [[data.marketPrice,-2000],[data.marketPrice,2000]]]);
 		}
-	});
-	
+		// the charts of the agents which are gone
+		$("#bids > div").slice(data.agents.length).remove();
+	}
+
+	w = new widget("update", 2000, draw);
+
+	// poll with the width of the charts, so the curves are simplified to the pixels which are drawn
+	w.update = function() {
+		w.call("updateForWidth", $("#bids").width(), function(data) {
+			draw(data);
+			setTimeout(w.update, 2000);
+		});
+	};
+
 	w.error = function(msg) {
 		$(".error").show();
 		$(".error").text(msg);
 	}
-});
\ No newline at end of file
+});
@@ -1,27 +1,86 @@
 $(window).load(function() {
-	w = new widget("update", 1000, function(data) {
+	// the version of the last update, which is sent with every poll so only the changed rows are returned
+	var version = 0;
+	// the type and the element of the row of every agent, by the id of the agent
+	var rows = {};
+
+	function numberRows() {
+		var ids = [];
+		for(id in rows){
+			ids.push(id);
+		}
+		ids.sort(function(a, b) {
+			if(rows[a].type != rows[b].type) {
+				return rows[a].type < rows[b].type ? -1 : 1;
+			}
+			return a < b ? -1 : a > b ? 1 : 0;
+		});
+
+		var counts = {};
+		for(var i = 0; i < ids.length; i++){
+			var row = rows[ids[i]];
+			counts[row.type] = (counts[row.type] || 0) + 1;
+			row.element.find("label").text(row.type + " " + counts[row.type]);
+			$("#agents").append(row.element);
+		}
+	}
+
+	function apply(data) {
 		$("#loading").detach();
 		$(".error").hide();
 		$("#marketprice").text(data.marketPrice);
 		$("#timestamp").text(data.timestamp);
-		
-		$("#agents").empty();
-		
+		$("#latency").text(data.priceToAllocationLatency);
+
+		var changed = false;
+		if(data.complete){
+			$("#agents").empty();
+			rows = {};
+			changed = true;
+		}
+
+		for(var i = 0; i < data.removed.length; i++){
+			var removed = rows[data.removed[i]];
+			if(removed){
+				removed.element.remove();
+				delete rows[data.removed[i]];
+				changed = true;
+			}
+		}
+
 		for(type in data.demands){
-			i = 1;
 			for(id in data.demands[type]){
-				$("#agents").append("<p><label>"+ type +" "+ i +"</label> <span>" + data.demands[type][id] + "</span></p>");
-				i++;
+				var row = rows[id];
+				if(!row){
+					row = rows[id] = { type: type, element: $("<p><label></label> <span></span></p>") };
+					changed = true;
+				}
+				row.element.attr("title", data.latencies[id] ? data.latencies[id] : "");
+				row.element.find("span").text(data.demands[type][id]);
 			}
 		}
-		
+
+		if(changed){
+			numberRows();
+		}
+		version = data.version;
 		$("p").show();
-	});
-	
+	}
+
+	w = new widget("update", 1000, apply);
+
+	// after the complete model, poll for the rows which changed since the version of the last update
+	w.update = function() {
+		w.call("updateSince", version, function(data) {
+			apply(data);
+			setTimeout(w.update, 1000);
+		});
+	};
+
 	w.error = function(msg) {
 		$("#loading").detach();
 		// $("p").hide();
 		$(".error").show();
 		$(".error").text(msg);
 	}
-});
\ No newline at end of file
+});
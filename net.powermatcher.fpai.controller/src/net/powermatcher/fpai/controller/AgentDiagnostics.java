@@ -0,0 +1,50 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.List;
+import java.util.Set;
+
+import net.powermatcher.fpai.agent.AgentEventLog;
+
+/**
+ * Service which exposes the event logs of the agents of a {@link PMController}, and switches the logging of a single
+ * agent at runtime. By default only a sample of the events of every agent is kept; full logging is switched on for the
+ * agents which are being investigated only.
+ *
+ * @author TNO
+ */
+public interface AgentDiagnostics {
+    /**
+     * @return The ids of the agents
+     */
+    Set<String> getAgentIds();
+
+    /**
+     * @param agentId
+     *            The id of the agent
+     * @return A copy of the recent events of the agent, from the oldest to the newest, or null if there is no such
+     *         agent
+     */
+    List<AgentEventLog.Event> getEvents(String agentId);
+
+    /**
+     * Switches full logging of an agent on or off, see {@link net.powermatcher.fpai.agent.FPAIAgent#setFullLogging}.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param fullLogging
+     *            Whether every event of the agent is recorded and written to the debug log
+     * @return Whether there is such an agent
+     */
+    boolean setFullLogging(String agentId, boolean fullLogging);
+
+    /**
+     * Sets the fraction of the events of an agent which are recorded.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param sampleRate
+     *            1 to record every event, n to record one in every n events, or 0 to record no events
+     * @return Whether there is such an agent
+     */
+    boolean setEventSampleRate(String agentId, int sampleRate);
+}
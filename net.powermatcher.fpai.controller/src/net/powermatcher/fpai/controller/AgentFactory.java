@@ -0,0 +1,18 @@
+package net.powermatcher.fpai.controller;
+
+import net.powermatcher.fpai.agent.FPAIAgent;
+
+import org.flexiblepower.rai.ControlSpace;
+
+/**
+ * Creates the agents for one type of control space, so that the {@link PMController} doesn't have to instantiate its
+ * agents through reflection.
+ *
+ * @author TNO
+ */
+public interface AgentFactory {
+    /**
+     * @return A new agent, which is not configured yet
+     */
+    FPAIAgent<? extends ControlSpace> createAgent();
+}
@@ -0,0 +1,186 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.FPAIAgent;
+
+import org.flexiblepower.rai.ControlSpace;
+
+/**
+ * Creates the agents of a {@link PMController}. An agent is created by the {@link AgentFactory} which is registered for
+ * the type of control space of its resource, and is configured with a small overlay of agent specific properties on
+ * top of the properties of the controller, which are shared by all agents instead of copied for every agent.
+ * <p>
+ * The agents of unregistered resources can be returned to the pool with {@link #release(Class, FPAIAgent)}. Up to the
+ * capacity of the pool, they are recycled and handed out again for the next resource with the same type of control
+ * space, so resources which come and go don't cause their agents to be created over and over again.
+ *
+ * @author TNO
+ */
+public class AgentPool {
+    /** The factories of the agents, by the type of control space they control */
+    private final Map<Class<? extends ControlSpace>, AgentFactory> factories;
+
+    /** The properties shared by all agents */
+    private volatile Map<String, Object> baseProperties;
+
+    /** The number of idle agents which is kept per type of control space */
+    private final int capacity;
+
+    /** The recycled agents which are waiting to be handed out again, by the type of control space they control */
+    private final ConcurrentMap<Class<? extends ControlSpace>, LinkedList<FPAIAgent<?>>> idleAgents =
+            new ConcurrentHashMap<Class<? extends ControlSpace>, LinkedList<FPAIAgent<?>>>();
+
+    /** The number of agents created by the factories and handed out again after they were recycled */
+    private final AtomicLong agentsCreated = new AtomicLong();
+    private final AtomicLong agentsReused = new AtomicLong();
+
+    /**
+     * @param factories
+     *            The factories of the agents, by the type of control space they control. The map is used as is, so
+     *            factories which are registered later are used as well
+     * @param baseProperties
+     *            The properties shared by all agents
+     * @param capacity
+     *            The number of idle agents which is kept per type of control space, 0 disables the recycling of agents
+     */
+    public AgentPool(Map<Class<? extends ControlSpace>, AgentFactory> factories,
+                     Map<String, Object> baseProperties,
+                     int capacity) {
+        this.factories = factories;
+        this.baseProperties = Collections.unmodifiableMap(new HashMap<String, Object>(baseProperties));
+        this.capacity = capacity;
+    }
+
+    /**
+     * Replaces the properties shared by the agents, e.g. because the configuration of the controller changed. Agents
+     * which are configured from now on use the new properties, agents which are already configured keep theirs.
+     *
+     * @param baseProperties
+     *            The properties shared by all agents
+     */
+    public void setBaseProperties(Map<String, Object> baseProperties) {
+        this.baseProperties = Collections.unmodifiableMap(new HashMap<String, Object>(baseProperties));
+    }
+
+    /**
+     * @return Whether agents can be created for the given type of control space
+     */
+    public boolean supports(Class<?> controlSpaceType) {
+        return factories.containsKey(controlSpaceType);
+    }
+
+    /**
+     * Creates (or recycles) and configures an agent for a resource with the given type of control space.
+     *
+     * @param controlSpaceType
+     *            The type of control space of the resource
+     * @param agentId
+     *            The id of the agent
+     * @param matcherId
+     *            The id of the concentrator the agent will be bound to
+     * @return The configured agent, or null if no factory is registered for the type of control space
+     */
+    public FPAIAgent<? extends ControlSpace> createAgent(Class<? extends ControlSpace> controlSpaceType,
+                                                         String agentId,
+                                                         String matcherId) {
+        FPAIAgent<? extends ControlSpace> agent = takeIdleAgent(controlSpaceType);
+        if (agent != null) {
+            agentsReused.incrementAndGet();
+        } else {
+            AgentFactory factory = factories.get(controlSpaceType);
+            if (factory == null) {
+                return null;
+            }
+            agent = factory.createAgent();
+            agentsCreated.incrementAndGet();
+        }
+
+        configure(agent, agentId, matcherId);
+        return agent;
+    }
+
+    /**
+     * Configures an agent with the properties shared by all agents and its agent specific properties. This is also used
+     * to reconfigure an existing agent, which must be unbound from its concentrator and scheduler while it is
+     * reconfigured.
+     *
+     * @param agent
+     *            The agent
+     * @param agentId
+     *            The id of the agent
+     * @param matcherId
+     *            The id of the concentrator the agent will be bound to
+     */
+    public void configure(FPAIAgent<?> agent, String agentId, String matcherId) {
+        String prefix = "agent" + ConfigurationService.SEPARATOR + agentId;
+        Map<String, Object> agentProperties = new HashMap<String, Object>();
+        agentProperties.put(prefix + ".class", agent.getClass().getName());
+        agentProperties.put(prefix + ".id", agentId);
+        agentProperties.put(prefix + ".matcher.id", matcherId);
+        Map<String, Object> properties = new OverlayProperties(baseProperties, agentProperties);
+        agent.setConfiguration(new PrefixedConfiguration(properties, prefix));
+    }
+
+    /**
+     * Returns the agent of an unregistered resource to the pool. The agent must be unbound from its resource, its
+     * concentrator and its scheduler and time service. It is recycled if the pool has room for it and the agent is
+     * {@link FPAIAgent#isIdle() idle}, and discarded otherwise: an agent of which work is still queued on the
+     * allocation executor would perform that work for the next resource.
+     *
+     * @param controlSpaceType
+     *            The type of control space the agent controlled
+     * @param agent
+     *            The agent
+     */
+    public void release(Class<? extends ControlSpace> controlSpaceType, FPAIAgent<?> agent) {
+        if (capacity <= 0 || !agent.isIdle()) {
+            return;
+        }
+
+        LinkedList<FPAIAgent<?>> idle = idleAgents.get(controlSpaceType);
+        if (idle == null) {
+            idleAgents.putIfAbsent(controlSpaceType, new LinkedList<FPAIAgent<?>>());
+            idle = idleAgents.get(controlSpaceType);
+        }
+
+        synchronized (idle) {
+            if (idle.size() < capacity) {
+                agent.recycle();
+                idle.addLast(agent);
+            }
+        }
+    }
+
+    private FPAIAgent<? extends ControlSpace> takeIdleAgent(Class<? extends ControlSpace> controlSpaceType) {
+        LinkedList<FPAIAgent<?>> idle = idleAgents.get(controlSpaceType);
+        if (idle == null) {
+            return null;
+        }
+        synchronized (idle) {
+            return idle.isEmpty() ? null : idle.removeFirst();
+        }
+    }
+
+    /**
+     * @return The number of agents created by the factories
+     */
+    public long getAgentsCreated() {
+        return agentsCreated.get();
+    }
+
+    /**
+     * @return The number of recycled agents which were handed out again
+     */
+    public long getAgentsReused() {
+        return agentsReused.get();
+    }
+}
@@ -0,0 +1,79 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Arrays;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+
+/**
+ * Service which exposes the sum of the last bids of the agents of a {@link PMController}, as it is before the
+ * concentrator aggregates and publishes it. The sum is maintained on every bid update of an agent, so reading it
+ * doesn't go over the bids of all agents.
+ *
+ * @author TNO
+ */
+public interface AggregateDemand {
+    /** A read-only copy of the aggregate demand at one moment */
+    final class Snapshot {
+        private final MarketBasis marketBasis;
+        private final double[] demand;
+        private final int agentCount;
+        private final long version;
+
+        Snapshot(MarketBasis marketBasis, double[] demand, int agentCount, long version) {
+            this.marketBasis = marketBasis;
+            this.demand = demand;
+            this.agentCount = agentCount;
+            this.version = version;
+        }
+
+        /**
+         * @return The market basis of the bids which are summed
+         */
+        public MarketBasis getMarketBasis() {
+            return marketBasis;
+        }
+
+        /**
+         * @param priceStep
+         *            The normalized price
+         * @return The aggregate demand in Watt at the given price
+         */
+        public double getDemandAt(int priceStep) {
+            return demand[priceStep];
+        }
+
+        /**
+         * @return A copy of the aggregate demand, with one element per price step of the market basis
+         */
+        public double[] getDemand() {
+            return Arrays.copyOf(demand, demand.length);
+        }
+
+        /**
+         * @return The aggregate demand as bid
+         */
+        public BidInfo toBidInfo() {
+            return new BidInfo(marketBasis, getDemand());
+        }
+
+        /**
+         * @return The number of agents of which the bid is included
+         */
+        public int getAgentCount() {
+            return agentCount;
+        }
+
+        /**
+         * @return The number of changes of the aggregate demand, which only increases
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * @return The aggregate demand of the agents, or null if no agent has published a bid yet
+     */
+    Snapshot getAggregateDemand();
+}
@@ -0,0 +1,154 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+
+/**
+ * Maintains the sum of the last bids of the agents, see {@link AggregateDemand}. Bound to the agents as log listener,
+ * a bid update subtracts the previous bid of the agent from the sum and adds the new bid, which costs one pass over the
+ * price steps instead of one pass per agent. The rounding errors of the subtractions are discarded by summing all bids
+ * again after RESUM_UPDATES_PER_AGENT (16) updates per agent, which spreads the cost of the full sum over the
+ * updates.
+ * <p>
+ * Like the {@link BatchingConcentrator}, the sum only includes the bids for the market basis of the most recent bid;
+ * bids for a previous market basis are left out until their agent sends a new bid.
+ * <p>
+ * Only the bids of the agents which are registered are summed. An agent is registered before it is bound to the
+ * listener, and unregistered when it is removed, so a bid which the agent logs while it is being unbound can't bring
+ * it back into the sum.
+ *
+ * @author TNO
+ */
+public final class AggregateDemandCurve implements LogListenerService {
+    /** the number of updates per agent after which all bids are summed again */
+    private static final int RESUM_UPDATES_PER_AGENT = 16;
+
+    /** the last bid of every agent, guarded by this */
+    private final Map<String, PiecewiseLinearBid> bids = new HashMap<String, PiecewiseLinearBid>();
+
+    /** the ids of the agents of which the bids are summed, guarded by this */
+    private final Set<String> registered = new HashSet<String>();
+
+    private MarketBasis marketBasis;
+    private double[] sum;
+    private int agentCount;
+    private long version;
+    private int updatesSinceResum;
+
+    /** the last snapshot, which is shared by the readers until the sum changes */
+    private AggregateDemand.Snapshot snapshot;
+
+    @Override
+    public void handleBidLogInfo(BidLogInfo bidLogInfo) {
+        update(bidLogInfo.getAgentId(), PiecewiseLinearBid.of(bidLogInfo.getBidInfo()));
+    }
+
+    @Override
+    public void handlePriceLogInfo(PriceLogInfo priceLogInfo) {
+        // the prices don't change the demand
+    }
+
+    /**
+     * Registers an agent, so its bids are summed until it is removed.
+     *
+     * @param agentId
+     *            The id of the agent
+     */
+    public synchronized void register(String agentId) {
+        registered.add(agentId);
+    }
+
+    /**
+     * Replaces the last bid of an agent in the sum. The bids of agents which are not registered are ignored.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param bid
+     *            The new bid of the agent
+     */
+    public synchronized void update(String agentId, PiecewiseLinearBid bid) {
+        if (!registered.contains(agentId)) {
+            return;
+        }
+        PiecewiseLinearBid previous = bids.put(agentId, bid);
+        if (!bid.getMarketBasis().equals(marketBasis)) {
+            marketBasis = bid.getMarketBasis();
+            resum();
+        } else if (++updatesSinceResum >= RESUM_UPDATES_PER_AGENT * bids.size()) {
+            resum();
+        } else {
+            if (previous != null && isIncluded(previous)) {
+                previous.subtractFrom(sum);
+                agentCount--;
+            }
+            bid.addTo(sum);
+            agentCount++;
+        }
+        changed();
+    }
+
+    /**
+     * Unregisters an agent which is unbound from the controller, and removes its bid from the sum.
+     *
+     * @param agentId
+     *            The id of the agent
+     */
+    public synchronized void remove(String agentId) {
+        registered.remove(agentId);
+        PiecewiseLinearBid previous = bids.remove(agentId);
+        if (previous != null && isIncluded(previous)) {
+            if (bids.isEmpty()) {
+                resum();
+            } else {
+                previous.subtractFrom(sum);
+                agentCount--;
+            }
+            changed();
+        }
+    }
+
+    /**
+     * @return The sum of the bids, or null if no agent has published a bid yet
+     */
+    public synchronized AggregateDemand.Snapshot getSnapshot() {
+        if (snapshot == null && marketBasis != null) {
+            snapshot = new AggregateDemand.Snapshot(marketBasis, Arrays.copyOf(sum, sum.length), agentCount, version);
+        }
+        return snapshot;
+    }
+
+    private boolean isIncluded(PiecewiseLinearBid bid) {
+        return bid.getMarketBasis().equals(marketBasis);
+    }
+
+    private void resum() {
+        int priceSteps = marketBasis.getPriceSteps();
+        if (sum == null || sum.length != priceSteps) {
+            sum = new double[priceSteps];
+        } else {
+            Arrays.fill(sum, 0);
+        }
+        agentCount = 0;
+        for (PiecewiseLinearBid bid : bids.values()) {
+            if (isIncluded(bid)) {
+                bid.addTo(sum);
+                agentCount++;
+            }
+        }
+        updatesSinceResum = 0;
+    }
+
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+}
@@ -0,0 +1,267 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.agent.concentrator.Concentrator;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+import net.powermatcher.fpai.agent.PriceArrivalClock;
+
+/**
+ * Concentrator which batches the bid updates of its agents. A bid update only replaces the last bid of the agent; the
+ * bids are aggregated once per window, in a single pass over the breakpoints of the bids, and the aggregated bid is
+ * published as a single update. This reduces the aggregation work and the uplink traffic from one step per bid update
+ * to one step per window.
+ * <p>
+ * With a window of 0 or less the bid updates are handled by the {@link Concentrator} itself.
+ * <p>
+ * Bid updates can be held with {@link #holdBidUpdates()}, e.g. while a batch of agents is being bound. Held bid updates
+ * only replace the last bid of the agent and are handled when the hold is released with {@link #releaseBidUpdates()},
+ * so the agents of the batch result in a single publication of the aggregated bid instead of one per agent.
+ * <p>
+ * The concentrator records when the price which it distributes to its agents arrived, so every agent measures the
+ * latency of its allocation from the arrival of its own price at its own concentrator.
+ *
+ * @author TNO
+ */
+public class BatchingConcentrator extends Concentrator implements PriceArrivalClock {
+    /** A price and the {@link System#nanoTime()} at which it arrived */
+    private static final class PriceArrival {
+        private final PriceInfo price;
+        private final long nanos;
+
+        PriceArrival(PriceInfo price, long nanos) {
+            this.price = price;
+            this.nanos = nanos;
+        }
+    }
+
+    /** The window in milliseconds in which bid updates are collected */
+    private final long window;
+
+    /** The last bid of every agent */
+    private final ConcurrentMap<String, BidInfo> latestBids = new ConcurrentHashMap<String, BidInfo>();
+
+    /** The number of holds on the bid updates, see {@link #holdBidUpdates()} */
+    private final AtomicInteger holds = new AtomicInteger();
+
+    /** The last bid of every agent which was received while the bid updates were held */
+    private final ConcurrentMap<String, BidInfo> heldBids = new ConcurrentHashMap<String, BidInfo>();
+
+    /** Whether a publication of the aggregated bid is scheduled */
+    private final AtomicBoolean publicationScheduled = new AtomicBoolean();
+
+    private final Runnable publicationTask = new Runnable() {
+        @Override
+        public void run() {
+            publishAggregatedBid();
+        }
+    };
+
+    /** The number of bid updates received and aggregated bids published */
+    private final AtomicLong bidUpdatesReceived = new AtomicLong();
+    private final AtomicLong aggregatedBidsPublished = new AtomicLong();
+
+    /** The last price which arrived, or null */
+    private volatile PriceArrival lastPriceArrival;
+
+    /** The buffer in which the demand of the bids is summed, only used while holding the lock of this concentrator */
+    private double[] aggregatedDemand = new double[0];
+
+    public BatchingConcentrator(ConfigurationService configuration, long window) {
+        super(configuration);
+        this.window = window;
+    }
+
+    /**
+     * @return The window in milliseconds in which bid updates are collected
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return The number of bid updates received from the agents
+     */
+    public long getBidUpdatesReceived() {
+        return bidUpdatesReceived.get();
+    }
+
+    /**
+     * @return The number of aggregated bids published
+     */
+    public long getAggregatedBidsPublished() {
+        return aggregatedBidsPublished.get();
+    }
+
+    /**
+     * Holds the bid updates of the agents until {@link #releaseBidUpdates()} is invoked. Holds can be nested, the bid
+     * updates are handled when all holds are released.
+     */
+    public void holdBidUpdates() {
+        holds.incrementAndGet();
+    }
+
+    /**
+     * Releases a hold on the bid updates. When the last hold is released, the held bid updates are handled and (if bid
+     * updates are batched) the aggregated bid is published immediately.
+     */
+    public void releaseBidUpdates() {
+        if (holds.decrementAndGet() == 0) {
+            handleHeldBids();
+        }
+    }
+
+    private void handleHeldBids() {
+        for (String agentId : heldBids.keySet()) {
+            BidInfo bid = heldBids.remove(agentId);
+            if (bid != null) {
+                if (window <= 0) {
+                    super.updateBidInfo(agentId, bid);
+                } else {
+                    latestBids.put(agentId, bid);
+                }
+            }
+        }
+
+        if (window > 0) {
+            publishAggregatedBid();
+        }
+    }
+
+    @Override
+    public void updateBidInfo(String agentId, BidInfo newBidInfo) {
+        if (holds.get() > 0) {
+            heldBids.put(agentId, newBidInfo);
+            if (holds.get() == 0) {
+                // the hold was released while the bid was stored
+                handleHeldBids();
+            }
+            return;
+        }
+
+        if (window <= 0) {
+            super.updateBidInfo(agentId, newBidInfo);
+            return;
+        }
+
+        bidUpdatesReceived.incrementAndGet();
+        latestBids.put(agentId, newBidInfo);
+        schedulePublication();
+    }
+
+    /**
+     * Forgets the last bid of the agent, e.g. because it was unbound. The aggregated bid without the bid of the agent
+     * is published at the end of the window.
+     *
+     * @param agentId
+     *            The id of the agent
+     */
+    public void removeAgent(String agentId) {
+        heldBids.remove(agentId);
+        if (latestBids.remove(agentId) != null && window > 0) {
+            schedulePublication();
+        }
+    }
+
+    /**
+     * Schedules the publication of the aggregated bid at the end of the window, unless it is already scheduled
+     */
+    private void schedulePublication() {
+        if (publicationScheduled.compareAndSet(false, true)) {
+            ScheduledExecutorService scheduler = getScheduler();
+            if (scheduler == null) {
+                publishAggregatedBid();
+            } else {
+                scheduler.schedule(publicationTask, window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    protected PriceInfo transformPrice(PriceInfo priceInfo) {
+        long nanos = System.nanoTime();
+        PriceInfo price = super.transformPrice(priceInfo);
+        lastPriceArrival = new PriceArrival(price, nanos);
+        return price;
+    }
+
+    /**
+     * @return The time at which the given price arrived, or 0 if another price arrived since and the time of the given
+     *         price is no longer known
+     */
+    @Override
+    public long getPriceArrivalNanos(PriceInfo price) {
+        PriceArrival arrival = lastPriceArrival;
+        if (arrival == null || price == null) {
+            return 0;
+        }
+        if (arrival.price != price
+            && (arrival.price.getCurrentPrice() != price.getCurrentPrice()
+                || !arrival.price.getMarketBasis().equals(price.getMarketBasis()))) {
+            return 0;
+        }
+        return arrival.nanos;
+    }
+
+    @Override
+    protected void doBidUpdate() {
+        if (window <= 0) {
+            super.doBidUpdate();
+        } else {
+            // periodically republish the aggregated bid, like the concentrator does
+            publishAggregatedBid();
+        }
+    }
+
+    /**
+     * Sums the last bids of all agents and publishes the result
+     */
+    private synchronized void publishAggregatedBid() {
+        // bid updates which are received from now on are published in the next window
+        publicationScheduled.set(false);
+
+        MarketBasis marketBasis = getCurrentMarketBasis();
+        if (marketBasis == null) {
+            return;
+        }
+
+        BidInfo aggregatedBid = transformAggregatedBid(aggregate(marketBasis));
+        aggregatedBidsPublished.incrementAndGet();
+        publishBidUpdate(aggregatedBid);
+    }
+
+    /**
+     * @return The sum of the last bids of all agents which are expressed in the given market basis
+     */
+    private BidInfo aggregate(MarketBasis marketBasis) {
+        int priceSteps = marketBasis.getPriceSteps();
+        if (aggregatedDemand.length != priceSteps) {
+            aggregatedDemand = new double[priceSteps];
+        } else {
+            Arrays.fill(aggregatedDemand, 0);
+        }
+
+        double[] sum = aggregatedDemand;
+        for (BidInfo bid : latestBids.values()) {
+            // bids for a previous market basis are ignored until the agent has sent a new bid
+            if (!marketBasis.equals(bid.getMarketBasis())) {
+                continue;
+            }
+
+            PiecewiseLinearBid.of(bid).addTo(sum);
+        }
+
+        return new BidInfo(marketBasis, Arrays.copyOf(sum, priceSteps));
+    }
+}
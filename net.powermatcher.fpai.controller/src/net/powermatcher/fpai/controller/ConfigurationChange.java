@@ -0,0 +1,137 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The difference between two configurations of a {@link PMController}, classified by the parts of the controller which
+ * have to be reconfigured to apply it. Properties which are not known to affect a single part affect the configuration
+ * of the agents and the concentrators, so that an unknown property never goes unapplied.
+ *
+ * @author TNO
+ */
+public final class ConfigurationChange {
+    /** A part of the controller which is reconfigured separately */
+    public enum Scope {
+        /** the widget is replaced */
+        WIDGET,
+        /** the uplink of the concentrator (the connection to the broker or the auctioneer) is recreated */
+        UPLINK,
+        /** the executor on which allocations are dispatched is replaced */
+        ALLOCATION_EXECUTOR,
+        /** the pool which creates and recycles the agents is replaced */
+        AGENT_POOL,
+        /** the configuration of the concentrators and agents is replaced, they are rescheduled but stay bound */
+        CONFIGURATION,
+        /**
+         * the concentrators (and their shards) and the uplink are recreated and the agents are bound to the new
+         * concentrators
+         */
+        CONCENTRATORS
+    }
+
+    private static final Map<String, Set<Scope>> SCOPES = new HashMap<String, Set<Scope>>();
+
+    static {
+        SCOPES.put("small.widget", EnumSet.of(Scope.WIDGET));
+        SCOPES.put("broker.uri", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("messaging.protocol", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("bid.topic.suffix", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("price.info.topic.suffix", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("auctioneer.id", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("uplink.keyframe.interval", EnumSet.of(Scope.UPLINK));
+        SCOPES.put("allocation.dispatch.threads", EnumSet.of(Scope.ALLOCATION_EXECUTOR));
+        SCOPES.put("agent.pool.size", EnumSet.of(Scope.AGENT_POOL));
+        SCOPES.put("update.interval", EnumSet.of(Scope.CONFIGURATION));
+        SCOPES.put("bid.batch.window", EnumSet.of(Scope.CONCENTRATORS));
+        SCOPES.put("concentrator.shards", EnumSet.of(Scope.CONCENTRATORS));
+        SCOPES.put("cluster.id", EnumSet.of(Scope.CONFIGURATION, Scope.UPLINK));
+        SCOPES.put("location.id", EnumSet.of(Scope.CONFIGURATION, Scope.UPLINK));
+
+        // the properties which are added by the framework or not used by the controller don't affect the controller
+        SCOPES.put("resourceIds", EnumSet.noneOf(Scope.class));
+        SCOPES.put("service.pid", EnumSet.noneOf(Scope.class));
+        SCOPES.put("service.factoryPid", EnumSet.noneOf(Scope.class));
+        SCOPES.put("component.id", EnumSet.noneOf(Scope.class));
+        SCOPES.put("component.name", EnumSet.noneOf(Scope.class));
+    }
+
+    private final Set<String> changedProperties;
+    private final Set<Scope> scopes;
+
+    private ConfigurationChange(Set<String> changedProperties, Set<Scope> scopes) {
+        this.changedProperties = changedProperties;
+        this.scopes = scopes;
+    }
+
+    /**
+     * Determines the difference between two configurations.
+     *
+     * @param oldProperties
+     *            The current configuration
+     * @param newProperties
+     *            The new configuration
+     * @return The change from the current to the new configuration
+     */
+    public static ConfigurationChange between(Map<String, ?> oldProperties, Map<String, ?> newProperties) {
+        Set<String> keys = new HashSet<String>(oldProperties.keySet());
+        keys.addAll(newProperties.keySet());
+
+        Set<String> changedProperties = new HashSet<String>();
+        Set<Scope> scopes = EnumSet.noneOf(Scope.class);
+        for (String key : keys) {
+            if (!valueEquals(oldProperties.get(key), newProperties.get(key))) {
+                changedProperties.add(key);
+                Set<Scope> affected = SCOPES.get(key);
+                scopes.addAll(affected == null ? EnumSet.of(Scope.CONFIGURATION, Scope.CONCENTRATORS) : affected);
+            }
+        }
+        return new ConfigurationChange(Collections.unmodifiableSet(changedProperties),
+                                       Collections.unmodifiableSet(scopes));
+    }
+
+    private static boolean valueEquals(Object value, Object other) {
+        if (value instanceof Object[] && other instanceof Object[]) {
+            return Arrays.equals((Object[]) value, (Object[]) other);
+        }
+        return value == null ? other == null : value.equals(other);
+    }
+
+    /**
+     * @return The names of the properties which changed
+     */
+    public Set<String> getChangedProperties() {
+        return changedProperties;
+    }
+
+    /**
+     * @return The parts of the controller which have to be reconfigured
+     */
+    public Set<Scope> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * @return Whether the given part of the controller has to be reconfigured
+     */
+    public boolean affects(Scope scope) {
+        return scopes.contains(scope);
+    }
+
+    /**
+     * @return Whether no property changed
+     */
+    public boolean isEmpty() {
+        return changedProperties.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationChange" + scopes + " of " + changedProperties;
+    }
+}
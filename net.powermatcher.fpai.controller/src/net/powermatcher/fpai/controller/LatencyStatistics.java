@@ -0,0 +1,43 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Set;
+
+import net.powermatcher.fpai.agent.LatencyHistogram;
+
+/**
+ * Service which exposes the latency distributions of the agents of a {@link PMController}: the time from the arrival
+ * of a price at the concentrator until an agent has delivered its allocation to its resource, and the time from the
+ * arrival of a control space until the agent has calculated its bid. All latencies are in nanoseconds.
+ *
+ * @author TNO
+ */
+public interface LatencyStatistics {
+    /**
+     * @return The ids of the agents for which latencies are recorded
+     */
+    Set<String> getAgentIds();
+
+    /**
+     * @param agentId
+     *            The id of the agent
+     * @return A snapshot of the price to allocation latencies of the agent, or null if there is no such agent
+     */
+    LatencyHistogram getPriceToAllocationLatency(String agentId);
+
+    /**
+     * @param agentId
+     *            The id of the agent
+     * @return A snapshot of the control space to bid latencies of the agent, or null if there is no such agent
+     */
+    LatencyHistogram getControlSpaceToBidLatency(String agentId);
+
+    /**
+     * @return A snapshot of the price to allocation latencies of all agents together
+     */
+    LatencyHistogram getPriceToAllocationLatency();
+
+    /**
+     * @return A snapshot of the control space to bid latencies of all agents together
+     */
+    LatencyHistogram getControlSpaceToBidLatency();
+}
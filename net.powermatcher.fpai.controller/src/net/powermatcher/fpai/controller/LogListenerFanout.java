@@ -0,0 +1,54 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the bid and price log infos of the concentrator and the agents to any number of listeners, such as the
+ * widget and a recorder. The fanout is bound to the concentrator and the agents once, so listeners come and go without
+ * rebinding every agent. A listener which fails doesn't affect the agent which logged or the other listeners.
+ *
+ * @author TNO
+ */
+final class LogListenerFanout implements LogListenerService {
+    private static final Logger logger = LoggerFactory.getLogger(LogListenerFanout.class);
+
+    private final List<LogListenerService> listeners = new CopyOnWriteArrayList<LogListenerService>();
+
+    void add(LogListenerService listener) {
+        listeners.add(listener);
+    }
+
+    void remove(LogListenerService listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void handleBidLogInfo(BidLogInfo bidLogInfo) {
+        for (LogListenerService listener : listeners) {
+            try {
+                listener.handleBidLogInfo(bidLogInfo);
+            } catch (RuntimeException e) {
+                logger.warn("Log listener " + listener + " failed to handle a bid", e);
+            }
+        }
+    }
+
+    @Override
+    public void handlePriceLogInfo(PriceLogInfo priceLogInfo) {
+        for (LogListenerService listener : listeners) {
+            try {
+                listener.handlePriceLogInfo(priceLogInfo);
+            } catch (RuntimeException e) {
+                logger.warn("Log listener " + listener + " failed to handle a price", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only view of a small map of properties on top of a (larger) map of base properties, where the overlay takes
+ * precedence. The base properties are shared instead of copied, so the base map must not be changed while the view is
+ * in use.
+ *
+ * @author TNO
+ */
+final class OverlayProperties extends AbstractMap<String, Object> {
+    private final Map<String, Object> base;
+    private final Map<String, Object> overlay;
+    private final int size;
+
+    OverlayProperties(Map<String, Object> base, Map<String, Object> overlay) {
+        this.base = base;
+        this.overlay = overlay;
+
+        int hidden = 0;
+        for (String key : overlay.keySet()) {
+            if (base.containsKey(key)) {
+                hidden++;
+            }
+        }
+        size = base.size() + overlay.size() - hidden;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return overlay.containsKey(key) ? overlay.get(key) : base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return overlay.containsKey(key) || base.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /** iterates over the entries of the overlay, followed by the entries of the base which aren't overlaid */
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private final Iterator<Map.Entry<String, Object>> overlayEntries = overlay.entrySet().iterator();
+        private final Iterator<Map.Entry<String, Object>> baseEntries = base.entrySet().iterator();
+        private Map.Entry<String, Object> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                if (overlayEntries.hasNext()) {
+                    next = overlayEntries.next();
+                } else {
+                    while (next == null && baseEntries.hasNext()) {
+                        Map.Entry<String, Object> entry = baseEntries.next();
+                        if (!overlay.containsKey(entry.getKey())) {
+                            next = entry;
+                        }
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Object> entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -1,38 +1,65 @@
 package net.powermatcher.fpai.controller;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.powermatcher.core.adapter.Adapter;
-import net.powermatcher.core.agent.concentrator.Concentrator;
 import net.powermatcher.core.agent.concentrator.framework.AbstractConcentrator;
 import net.powermatcher.core.agent.framework.Agent;
 import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
 import net.powermatcher.core.agent.framework.service.AgentService;
+import net.powermatcher.core.agent.framework.service.MatcherService;
 import net.powermatcher.core.agent.marketbasis.adapter.MarketBasisAdapter;
 import net.powermatcher.core.configurable.BaseConfiguration;
-import net.powermatcher.core.configurable.PrefixedConfiguration;
 import net.powermatcher.core.configurable.service.ConfigurationService;
 import net.powermatcher.core.messaging.mqttv3.Mqttv3Connection;
 import net.powermatcher.core.messaging.protocol.adapter.AgentProtocolAdapter;
 import net.powermatcher.core.messaging.protocol.adapter.MatcherProtocolAdapter;
-import net.powermatcher.core.messaging.protocol.adapter.config.ProtocolAdapterConfiguration;
+import net.powermatcher.fpai.agent.AgentEventLog;
 import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.LatencyHistogram;
+import net.powermatcher.fpai.agent.PriceArrivalClock;
 import net.powermatcher.fpai.agent.buffer.BufferAgent;
 import net.powermatcher.fpai.agent.storage.StorageAgent;
 import net.powermatcher.fpai.agent.timeshifter.TimeshifterAgent;
 import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.controller.ConfigurationChange.Scope;
 import net.powermatcher.fpai.controller.PMController.Config;
 import net.powermatcher.fpai.fullwidget.PMFullWidget;
+import net.powermatcher.fpai.uplink.BinaryAgentUplink;
+import net.powermatcher.fpai.uplink.BinaryProtocol;
+import net.powermatcher.fpai.uplink.ByteBufferPool;
+import net.powermatcher.fpai.uplink.MessagingProtocol;
+import net.powermatcher.fpai.uplink.PahoUplinkConnection;
+import net.powermatcher.fpai.uplink.UplinkConnection;
 
 import org.flexiblepower.control.ControllerManager;
 import org.flexiblepower.rai.BufferControlSpace;
@@ -57,8 +84,11 @@ import aQute.bnd.annotation.component.Reference;
 import aQute.bnd.annotation.metatype.Configurable;
 import aQute.bnd.annotation.metatype.Meta;
 
-@Component(immediate = true, designateFactory = Config.class, provide = { ControllerManager.class, PMController.class })
-public class PMController implements ControllerManager {
+@Component(immediate = true,
+           designateFactory = Config.class,
+           provide = { ControllerManager.class, PMController.class, LatencyStatistics.class, AgentDiagnostics.class,
+                      AggregateDemand.class })
+public class PMController implements ControllerManager, LatencyStatistics, AgentDiagnostics, AggregateDemand {
     interface Config {
         @Meta.AD(deflt = "pvpanel,dishwasher,refrigerator,battery", cardinality = Integer.MAX_VALUE)
         String[] resourceIds();
@@ -69,8 +99,13 @@ public class PMController implements ControllerManager {
         @Meta.AD(deflt = "ExampleLocation")
         String location_id();
 
+        /** the protocol of the uplink: one of the protocols of the PowerMatcher core, BINARY_v1 or BINARY_DELTA_v1 */
         @Meta.AD(deflt = "INTERNAL_v1")
-        ProtocolAdapterConfiguration.Protocol messaging_protocol();
+        MessagingProtocol messaging_protocol();
+
+        /** the number of bids sent as deltas after which a complete bid is sent, with protocol BINARY_DELTA_v1 */
+        @Meta.AD(deflt = "60")
+        int uplink_keyframe_interval();
 
         @Meta.AD(deflt = "UpdateBid")
         String bid_topic_suffix();
@@ -89,12 +124,46 @@ public class PMController implements ControllerManager {
 
         @Meta.AD(deflt = "true")
         boolean small_widget();
+
+        /** the number of threads which calculate the bids and allocations of the agents, 0 uses the calling threads */
+        @Meta.AD(deflt = "0")
+        int allocation_dispatch_threads();
+
+        /** the window in milliseconds in which bid updates of the agents are batched, 0 disables batching */
+        @Meta.AD(deflt = "0")
+        int bid_batch_window();
+
+        /** the number of sub-concentrators over which the agents are partitioned, 0 or 1 disables sharding */
+        @Meta.AD(deflt = "0")
+        int concentrator_shards();
+
+        /** the number of agents per type of resource which are recycled after their resource is unregistered */
+        @Meta.AD(deflt = "0")
+        int agent_pool_size();
+    }
+
+    /**
+     * A partition of the agents and the concentrator they are bound to. The registration and unregistration of the
+     * resources of a shard synchronize on the shard, so resources of different shards are (un)registered concurrently.
+     */
+    private static final class Shard {
+        private final AbstractConcentrator concentrator;
+
+        private Shard(AbstractConcentrator concentrator) {
+            this.concentrator = concentrator;
+        }
     }
 
     private static final Logger logger = LoggerFactory.getLogger(PMController.class);
 
-    /** the agent classes that can be used for specific types of resources */
-    private final Map<Class<? extends ControlSpace>, Class<? extends FPAIAgent<?>>> agentMap;
+    /** the number of resources per thread above which the agents of a batch of resources are created in parallel */
+    private static final int PARALLEL_CREATION_BATCH = 256;
+
+    /** the factories of the agents that can be used for specific types of resources */
+    private final ConcurrentMap<Class<? extends ControlSpace>, AgentFactory> agentFactories;
+
+    /** creates the agents, and recycles the agents of unregistered resources */
+    private AgentPool agentPool;
 
     /** the agents, mapped by the ControllableResource their attached to */
     private final ConcurrentMap<ControllableResource<?>, FPAIAgent<?>> agents;
@@ -108,42 +177,140 @@ public class PMController implements ControllerManager {
     /** The parsed configuration as a set of properties, used for the configuring of components */
     private Map<String, Object> properties;
 
+    /** The configuration as it was received, to determine what changed when the configuration is modified */
+    private Map<String, Object> rawProperties;
+
+    /** The id of the concentrator, which is kept when the configuration is modified */
+    private String concentratorId;
+
     /** The configuration for the concentrator as PrefixedConfiguration */
     private ConfigurationService concentratorConfiguration;
 
     /** the local concentrator, with which the agents are associated */
     private AbstractConcentrator concentrator;
 
+    /** the shards over which the agents are partitioned, without sharding this is a single shard of the concentrator */
+    private volatile Shard[] shards;
+
+    /**
+     * Held for reading while resources are (un)registered, and for writing while the controller is reconfigured or
+     * deactivated. Resources of different shards are still (un)registered concurrently, but never while the shards and
+     * their concentrators are being replaced.
+     */
+    private final ReadWriteLock reconfigurationLock = new ReentrantReadWriteLock();
+
     private ServiceRegistration<AgentService> serviceRegistration;
 
     private ServiceRegistration<Widget> widgetRegistration;
 
+    /** the size and number of the buffers in which the messages of the binary uplink are serialized */
+    private static final int UPLINK_BUFFER_SIZE = 4096;
+    private static final int UPLINK_BUFFERS = 8;
+
+    /** the executor on which the agents dispatch their allocations, or null if they do so on the price thread */
+    private ExecutorService allocationExecutor;
+
+    /** the executor on which the agents of a batch of resources are created, created when it is first needed */
+    private ExecutorService creationExecutor;
+
     public PMController() {
-        agentMap = new HashMap<Class<? extends ControlSpace>, Class<? extends FPAIAgent<?>>>();
-        agentMap.put(BufferControlSpace.class, BufferAgent.class);
-        agentMap.put(StorageControlSpace.class, StorageAgent.class);
-        agentMap.put(TimeShifterControlSpace.class, TimeshifterAgent.class);
-        agentMap.put(UncontrolledControlSpace.class, UncontrolledAgent.class);
+        agentFactories = new ConcurrentHashMap<Class<? extends ControlSpace>, AgentFactory>();
+        agentFactories.put(BufferControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new BufferAgent();
+            }
+        });
+        agentFactories.put(StorageControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new StorageAgent();
+            }
+        });
+        agentFactories.put(TimeShifterControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new TimeshifterAgent();
+            }
+        });
+        agentFactories.put(UncontrolledControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new UncontrolledAgent();
+            }
+        });
 
         agents = new ConcurrentHashMap<ControllableResource<?>, FPAIAgent<?>>();
 
+        agentLogListeners.add(aggregateDemand);
+        agentLogListeners.add(logListeners);
+
         agentId = new AtomicInteger();
     }
 
     @Activate
     public void init(BundleContext context, Map<String, Object> properties) throws Exception {
-        properties = new Hashtable<String, Object>(properties);
-        properties.put("id", "concentrator-" + UUID.randomUUID().toString());
+        applyProperties(properties);
+
+        agentPool = new AgentPool(agentFactories, this.properties, config.agent_pool_size());
+
+        createConcentrators();
+
+        allocationExecutor = createAllocationExecutor(config.allocation_dispatch_threads());
+
+        createUplink(context);
+
+        createWidget(context);
+    }
+
+    /**
+     * Parses the configuration and derives the properties which are used to configure the components. The id of the
+     * concentrator is kept when the configuration is replaced, so the agents and the uplink keep referring to the same
+     * concentrator.
+     */
+    private void applyProperties(Map<String, Object> properties) {
+        rawProperties = new HashMap<String, Object>(properties);
+
+        Map<String, Object> componentProperties = new Hashtable<String, Object>(properties);
+        componentProperties.put("id", concentratorId == null ? "concentrator-" + UUID.randomUUID().toString()
+                                                             : concentratorId);
+        concentratorId = (String) componentProperties.get("id");
 
-        config = Configurable.createConfigurable(Config.class, properties);
-        this.properties = properties;
-        this.properties.put(AgentConfiguration.AGENT_BID_LOG_LEVEL_PROPERTY, AgentConfiguration.FULL_LOGGING);
+        config = Configurable.createConfigurable(Config.class, componentProperties);
+        this.properties = componentProperties;
+    }
 
-        concentratorConfiguration = new BaseConfiguration(properties);
+    /** creates the concentrator and its shards, and binds the log listeners to the concentrator */
+    private void createConcentrators() {
+        concentratorConfiguration = createConcentratorConfiguration();
         concentrator = createConcentrator(concentratorConfiguration);
         concentrator.bind(executorService);
         concentrator.bind(pmTimeService);
+        shards = createShards(config.concentrator_shards());
+        concentrator.bind(logListeners);
+    }
+
+    private void destroyConcentrators() {
+        for (Shard shard : shards) {
+            if (shard.concentrator != concentrator) {
+                concentrator.unbind((AgentService) shard.concentrator);
+                shard.concentrator.unbind((MatcherService) concentrator);
+                shard.concentrator.unbind(executorService);
+                shard.concentrator.unbind(pmTimeService);
+            }
+        }
+
+        concentrator.unbind(executorService);
+        concentrator.unbind(pmTimeService);
+        concentrator.unbind(logListeners);
+        concentrator = null;
+    }
 
+    /**
+     * Connects the concentrator to its parent: through the service registry when no broker is configured, otherwise
+     * through the protocol adapters and a connection to the broker.
+     */
+    private void createUplink(BundleContext context) throws Exception {
         if (config.broker_uri() == null || config.broker_uri().isEmpty()) {
             Dictionary<String, Object> concentratorProperties = new Hashtable<String, Object>();
             concentratorProperties.put("auctioneer.id", "auctioneer1");
@@ -151,8 +318,22 @@ public class PMController implements ControllerManager {
         } else {
             createConcentratorUplink(concentrator);
         }
+    }
 
-        // Widget
+    private void destroyUplink() {
+        if (serviceRegistration != null) {
+            serviceRegistration.unregister();
+            serviceRegistration = null;
+        } else {
+            deactivateConcentratorUplink(concentrator);
+        }
+    }
+
+    /**
+     * registers the widget, and adds it to the log listeners of the concentrator and the agents, after it is told
+     * which agents exist
+     */
+    private void createWidget(BundleContext context) {
         if (config.small_widget()) {
             widget = new PMWidgetImpl(this);
             widgetRegistration = context.registerService(Widget.class, widget, null);
@@ -163,48 +344,324 @@ public class PMController implements ControllerManager {
             p.put("widget.name", "pmfullwidget");
             widgetRegistration = context.registerService(Widget.class, widget, p);
         }
-        concentrator.bind(widget);
+        for (FPAIAgent<?> agent : agents.values()) {
+            widget.register(agent.getId());
+        }
+        logListeners.add(widget);
+    }
 
+    private void destroyWidget() {
+        logListeners.remove(widget);
+        widgetRegistration.unregister();
+        widget = null;
     }
 
+    /**
+     * Creates the concentrator of the agents. The concentrator batches the bid updates of the agents when a
+     * bid_batch_window is configured, and records the arrival of every price, so that the agents can measure the
+     * latency from that moment until their allocation is delivered.
+     */
     protected AbstractConcentrator createConcentrator(ConfigurationService concentratorConfiguration) {
-        return new Concentrator(concentratorConfiguration);
+        return new BatchingConcentrator(concentratorConfiguration, config.bid_batch_window());
+    }
+
+    /**
+     * Creates the shards over which the agents are partitioned. With more than one shard, every shard has a
+     * sub-concentrator beneath the concentrator, which aggregates the bids of the agents of that shard. The shards
+     * aggregate independently of each other, so the bids of the agents are aggregated in parallel and the concentrator
+     * only aggregates one bid per shard.
+     *
+     * @param count
+     *            The number of shards
+     * @return The shards, or a single shard of the concentrator if count is 1 or less
+     */
+    private Shard[] createShards(int count) {
+        if (count <= 1) {
+            return new Shard[] { new Shard(concentrator) };
+        }
+
+        Shard[] shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            AbstractConcentrator subConcentrator = createShardConcentrator(createShardConfiguration(i));
+            subConcentrator.bind(executorService);
+            subConcentrator.bind(pmTimeService);
+            concentrator.bind((AgentService) subConcentrator);
+            subConcentrator.bind((MatcherService) concentrator);
+            shards[i] = new Shard(subConcentrator);
+        }
+        return shards;
+    }
+
+    /**
+     * @return The configuration of the concentrator, which logs its bids for the widget. The agents don't inherit the
+     *         log level; they hand their bids and prices to the log listeners themselves.
+     */
+    private ConfigurationService createConcentratorConfiguration() {
+        Map<String, Object> concentratorProperties = new HashMap<String, Object>(properties);
+        concentratorProperties.put(AgentConfiguration.AGENT_BID_LOG_LEVEL_PROPERTY, AgentConfiguration.FULL_LOGGING);
+        return new BaseConfiguration(concentratorProperties);
+    }
+
+    private ConfigurationService createShardConfiguration(int index) {
+        Map<String, Object> shardProperties = new HashMap<String, Object>(properties);
+        shardProperties.put("id", concentratorId + "-shard" + index);
+        shardProperties.put("matcher.id", concentratorId);
+        return new BaseConfiguration(shardProperties);
+    }
+
+    /**
+     * Creates the sub-concentrator of a shard, which batches the bid updates of its agents like the concentrator does.
+     */
+    protected AbstractConcentrator createShardConcentrator(ConfigurationService shardConfiguration) {
+        return new BatchingConcentrator(shardConfiguration, config.bid_batch_window());
+    }
+
+    /**
+     * @return The shard of the resource, determined by the hash of the id of the resource
+     */
+    private Shard getShard(ControllableResource<?> resource) {
+        Shard[] shards = this.shards;
+        return shards[getShardIndex(resource, shards.length)];
+    }
+
+    private static int getShardIndex(ControllableResource<?> resource, int shardCount) {
+        String resourceId = getResourceId(resource);
+        int hash = resourceId != null ? resourceId.hashCode() : resource.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /**
+     * Determines the id of a resource, so the shard of its agent is the same in every run and after the resource
+     * registers again. A ControllableResource doesn't declare an id, so it is taken from a public getResourceId()
+     * method if the resource has one. Resources without one are placed by their hash code.
+     *
+     * @return The id of the resource, or null if it has no public getResourceId() method
+     */
+    private static String getResourceId(ControllableResource<?> resource) {
+        try {
+            Method method = resource.getClass().getMethod("getResourceId");
+            Object resourceId = method.invoke(resource);
+            return resourceId instanceof String ? (String) resourceId : null;
+        } catch (Exception e) {
+            // no (accessible) id
+            return null;
+        }
     }
 
+    /**
+     * Creates the executor on which the agents calculate and deliver their allocations, so that a slow resource doesn't
+     * delay the delivery of prices to the other agents.
+     *
+     * @param threads
+     *            The number of threads of the executor
+     * @return The executor, or null if threads is 0 or less and allocations are dispatched on the price thread
+     */
+    protected ExecutorService createAllocationExecutor(int threads) {
+        if (threads <= 0) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threads, createThreadFactory("pm-allocation-dispatch-"));
+    }
+
+    /** creates daemon threads which are named with the given prefix and a sequence number */
+    private static ThreadFactory createThreadFactory(final String namePrefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Applies a new configuration. Only the parts of the controller which are affected by the changed properties are
+     * reconfigured (see {@link ConfigurationChange}); the agents stay bound to their resources, so their state, their
+     * caches and the allocations in progress survive the reconfiguration. Resources are not (un)registered while the
+     * configuration is applied.
+     */
     @Modified
     public void modified(BundleContext context, Map<String, Object> properties) throws Exception {
-        Properties newProperties = new Properties();
-        newProperties.putAll(properties);
-        if (!newProperties.equals(this.properties)) {
-            deactive();
+        reconfigurationLock.writeLock().lock();
+        try {
+            ConfigurationChange change = ConfigurationChange.between(rawProperties, properties);
+            if (change.isEmpty()) {
+                return;
+            }
+            logger.info("Applying {}", change);
+
+            applyProperties(properties);
+
+            if (change.affects(Scope.AGENT_POOL)) {
+                agentPool = new AgentPool(agentFactories, this.properties, config.agent_pool_size());
+            } else {
+                agentPool.setBaseProperties(this.properties);
+            }
+
+            if (change.affects(Scope.ALLOCATION_EXECUTOR)) {
+                replaceAllocationExecutor();
+            }
+
+            boolean uplink = change.affects(Scope.UPLINK) || change.affects(Scope.CONCENTRATORS);
+            if (uplink) {
+                destroyUplink();
+            }
+
+            if (change.affects(Scope.CONCENTRATORS)) {
+                Map<FPAIAgent<?>, BidInfo> lastBids = detachAgents();
+                destroyConcentrators();
+                createConcentrators();
+                attachAgents(lastBids);
+            } else if (change.affects(Scope.CONFIGURATION)) {
+                reconfigureConcentrators();
+                reconfigureAgents();
+            } else if (uplink) {
+                concentratorConfiguration = createConcentratorConfiguration();
+            }
 
-            init(context, properties);
+            if (uplink) {
+                createUplink(context);
+            }
 
-            for (FPAIAgent<?> agent : agents.values()) {
-                concentrator.bind(agent);
-                agent.bind(concentrator);
+            if (change.affects(Scope.WIDGET)) {
+                destroyWidget();
+                createWidget(context);
             }
+        } finally {
+            reconfigurationLock.writeLock().unlock();
         }
     }
 
     @Deactivate
     public void deactive() {
-        if (serviceRegistration != null) {
-            serviceRegistration.unregister();
-        } else {
-            deactivateConcentratorUplink(concentrator);
+        reconfigurationLock.writeLock().lock();
+        try {
+            destroyUplink();
+
+            detachAgents();
+
+            destroyWidget();
+
+            destroyConcentrators();
+
+            if (allocationExecutor != null) {
+                // allocations which are still queued are delivered before the threads stop
+                allocationExecutor.shutdown();
+                allocationExecutor = null;
+            }
+
+            synchronized (this) {
+                if (creationExecutor != null) {
+                    creationExecutor.shutdown();
+                    creationExecutor = null;
+                }
+            }
+        } finally {
+            reconfigurationLock.writeLock().unlock();
         }
+    }
 
-        for (FPAIAgent<?> agent : agents.values()) {
-            concentrator.unbind(agent);
-            agent.unbind(concentrator);
+    /**
+     * Unbinds the agents from the concentrators of their shards, they stay bound to their resources.
+     *
+     * @return The last bid of every agent before it was unbound
+     */
+    private Map<FPAIAgent<?>, BidInfo> detachAgents() {
+        Map<FPAIAgent<?>, BidInfo> lastBids = new IdentityHashMap<FPAIAgent<?>, BidInfo>();
+        for (Map.Entry<ControllableResource<?>, FPAIAgent<?>> entry : agents.entrySet()) {
+            Shard shard = getShard(entry.getKey());
+            synchronized (shard) {
+                FPAIAgent<?> agent = entry.getValue();
+                lastBids.put(agent, agent.getLastBid());
+                shard.concentrator.unbind(agent);
+                agent.unbind(shard.concentrator);
+            }
         }
+        return lastBids;
+    }
 
+    /**
+     * Binds the agents to the concentrators of their (new) shards. The last bid of every agent is handed to its
+     * concentrator while the bid updates are held, so the concentrators publish their aggregated bid once instead of
+     * once per agent, and don't have to wait for the next bid of the agents.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void attachAgents(Map<FPAIAgent<?>, BidInfo> lastBids) {
+        Shard[] shards = this.shards;
+        holdBidUpdates(shards);
+        try {
+            for (Map.Entry<ControllableResource<?>, FPAIAgent<?>> entry : agents.entrySet()) {
+                Shard shard = getShard(entry.getKey());
+                synchronized (shard) {
+                    FPAIAgent agent = entry.getValue();
+                    reconfigureAgent(agent, shard.concentrator.getId());
+                    bindToConcentrator(agent, shard.concentrator);
+
+                    BidInfo lastBid = lastBids.get(agent);
+                    if (lastBid != null) {
+                        shard.concentrator.updateBidInfo(agent.getId(), lastBid);
+                    }
+                }
+            }
+        } finally {
+            releaseBidUpdates(shards);
+        }
+    }
+
+    /** replaces the configuration of the concentrators, which are rescheduled with the new configuration */
+    private void reconfigureConcentrators() {
+        concentratorConfiguration = createConcentratorConfiguration();
         concentrator.unbind(executorService);
-        concentrator.unbind(pmTimeService);
-        concentrator.unbind(widget);
-        concentrator = null;
-        widgetRegistration.unregister();
+        concentrator.setConfiguration(concentratorConfiguration);
+        concentrator.bind(executorService);
+
+        Shard[] shards = this.shards;
+        for (int i = 0; i < shards.length; i++) {
+            AbstractConcentrator subConcentrator = shards[i].concentrator;
+            if (subConcentrator != concentrator) {
+                subConcentrator.unbind(executorService);
+                subConcentrator.setConfiguration(createShardConfiguration(i));
+                subConcentrator.bind(executorService);
+            }
+        }
+    }
+
+    /**
+     * Replaces the configuration of the agents. {@link AgentPool#configure} requires an agent to be unbound from its
+     * concentrator, so the agents are detached from their concentrators while they are reconfigured; they stay bound to
+     * their resources.
+     */
+    private void reconfigureAgents() {
+        attachAgents(detachAgents());
+    }
+
+    /**
+     * Configures the agent with the current properties, it is rescheduled with the new configuration. The agent must
+     * be unbound from its concentrator.
+     */
+    private void reconfigureAgent(FPAIAgent<?> agent, String matcherId) {
+        agent.unbind(executorService);
+        agentPool.configure(agent, agent.getId(), matcherId);
+        agent.bind(executorService);
+    }
+
+    /**
+     * Replaces the executor on which the agents dispatch their allocations. The allocations which are queued on the
+     * previous executor are still delivered before its threads stop.
+     */
+    private void replaceAllocationExecutor() {
+        ExecutorService previous = allocationExecutor;
+        allocationExecutor = createAllocationExecutor(config.allocation_dispatch_threads());
+        for (FPAIAgent<?> agent : agents.values()) {
+            agent.setAllocationExecutor(allocationExecutor);
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
     }
 
     /** executor service for periodic tasks performed by agents */
@@ -234,7 +691,27 @@ public class PMController implements ControllerManager {
         };
     }
 
-    private PMWidget widget;
+    private volatile PMWidget widget;
+
+    /** the widget and the log listener services, which receive the bids and prices of the concentrator and agents */
+    private final LogListenerFanout logListeners = new LogListenerFanout();
+
+    /** the sum of the bids of the agents, which is updated before the bids are passed on to the log listeners */
+    private final AggregateDemandCurve aggregateDemand = new AggregateDemandCurve();
+    private final LogListenerFanout agentLogListeners = new LogListenerFanout();
+
+    /**
+     * Adds a log listener service, such as a recorder, which receives the bids and prices of the concentrator and the
+     * agents from then on.
+     */
+    @Reference(dynamic = true, multiple = true, optional = true)
+    public void addLogListener(LogListenerService logListener) {
+        logListeners.add(logListener);
+    }
+
+    public void removeLogListener(LogListenerService logListener) {
+        logListeners.remove(logListener);
+    }
 
     // These represent the default uplink for the concentrator
     private MarketBasisAdapter marketBasisAdapter;
@@ -242,10 +719,20 @@ public class PMController implements ControllerManager {
     private MatcherProtocolAdapter matcherProtocolAdapter;
     private Mqttv3Connection mqttv3Connection;
 
+    // The binary uplink, which replaces the protocol adapters and the connection of the core
+    private UplinkConnection uplinkConnection;
+    private BinaryAgentUplink binaryUplink;
+    private final ByteBufferPool uplinkBuffers = new ByteBufferPool(UPLINK_BUFFER_SIZE, UPLINK_BUFFERS);
+
     protected void createConcentratorUplink(AbstractConcentrator concentrator) throws Exception {
         marketBasisAdapter = new MarketBasisAdapter(concentratorConfiguration);
         marketBasisAdapter.setAgentConnector(concentrator);
 
+        if (config.messaging_protocol().isBinary()) {
+            createBinaryUplink(concentrator);
+            return;
+        }
+
         agentProtocolAdapter = new AgentProtocolAdapter(concentratorConfiguration);
         agentProtocolAdapter.setAgentConnector(concentrator);
         agentProtocolAdapter.setParentMatcherId(config.auctioneer_id());
@@ -268,7 +755,66 @@ public class PMController implements ControllerManager {
         }
     }
 
+    /**
+     * Connects the concentrator to the auctioneer with the {@link BinaryProtocol}, which publishes the bids of the
+     * concentrator by their breakpoints in a few bytes instead of the demand at every price step. In the delta mode
+     * only the changes of the bids are published, with a complete bid every uplink_keyframe_interval bids.
+     */
+    private void createBinaryUplink(AbstractConcentrator concentrator) throws Exception {
+        marketBasisAdapter.bind(executorService);
+        marketBasisAdapter.bind(pmTimeService);
+        marketBasisAdapter.bind();
+
+        uplinkConnection = createUplinkConnection(config.broker_uri(), concentrator.getId());
+        binaryUplink = new BinaryAgentUplink(uplinkConnection,
+                                             uplinkBuffers,
+                                             config.cluster_id(),
+                                             config.auctioneer_id(),
+                                             config.bid_topic_suffix(),
+                                             config.price_info_topic_suffix(),
+                                             config.messaging_protocol().isDelta()
+                                                     ? Math.max(1, config.uplink_keyframe_interval())
+                                                     : 0);
+        binaryUplink.bind(concentrator);
+    }
+
+    /**
+     * Creates the connection of the binary uplink to the broker.
+     *
+     * @param brokerUri
+     *            The URI of the broker
+     * @param clientId
+     *            The id of the connection
+     * @return The connection
+     */
+    protected UplinkConnection createUplinkConnection(String brokerUri, String clientId) throws Exception {
+        return new PahoUplinkConnection(brokerUri, clientId);
+    }
+
+    /**
+     * @return The binary uplink of the concentrator, or null if the uplink uses a protocol of the PowerMatcher core
+     */
+    public BinaryAgentUplink getBinaryUplink() {
+        return binaryUplink;
+    }
+
     protected void deactivateConcentratorUplink(AbstractConcentrator concentrator) {
+        if (binaryUplink != null) {
+            binaryUplink.unbind();
+            binaryUplink = null;
+            try {
+                uplinkConnection.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the uplink connection: " + e.getMessage());
+            }
+            uplinkConnection = null;
+
+            marketBasisAdapter.unbind();
+            marketBasisAdapter.unbind(pmTimeService);
+            marketBasisAdapter.unbind(executorService);
+            return;
+        }
+
         for (Adapter a : new Adapter[] { mqttv3Connection,
                                         matcherProtocolAdapter,
                                         agentProtocolAdapter,
@@ -283,81 +829,316 @@ public class PMController implements ControllerManager {
         return agents.values();
     }
 
+    @Override
+    public Set<String> getAgentIds() {
+        Set<String> agentIds = new TreeSet<String>();
+        for (FPAIAgent<?> agent : agents.values()) {
+            agentIds.add(agent.getId());
+        }
+        return agentIds;
+    }
+
+    @Override
+    public LatencyHistogram getPriceToAllocationLatency(String agentId) {
+        FPAIAgent<?> agent = getAgent(agentId);
+        return agent == null ? null : agent.getPriceToAllocationLatency().copy();
+    }
+
+    @Override
+    public LatencyHistogram getControlSpaceToBidLatency(String agentId) {
+        FPAIAgent<?> agent = getAgent(agentId);
+        return agent == null ? null : agent.getControlSpaceToBidLatency().copy();
+    }
+
+    @Override
+    public LatencyHistogram getPriceToAllocationLatency() {
+        LatencyHistogram aggregate = new LatencyHistogram();
+        for (FPAIAgent<?> agent : agents.values()) {
+            aggregate.add(agent.getPriceToAllocationLatency());
+        }
+        return aggregate;
+    }
+
+    @Override
+    public LatencyHistogram getControlSpaceToBidLatency() {
+        LatencyHistogram aggregate = new LatencyHistogram();
+        for (FPAIAgent<?> agent : agents.values()) {
+            aggregate.add(agent.getControlSpaceToBidLatency());
+        }
+        return aggregate;
+    }
+
+    @Override
+    public List<AgentEventLog.Event> getEvents(String agentId) {
+        FPAIAgent<?> agent = getAgent(agentId);
+        return agent == null ? null : agent.getEventLog().getEvents();
+    }
+
+    @Override
+    public boolean setFullLogging(String agentId, boolean fullLogging) {
+        FPAIAgent<?> agent = getAgent(agentId);
+        if (agent != null) {
+            agent.setFullLogging(fullLogging);
+        }
+        return agent != null;
+    }
+
+    @Override
+    public boolean setEventSampleRate(String agentId, int sampleRate) {
+        FPAIAgent<?> agent = getAgent(agentId);
+        if (agent != null) {
+            agent.setEventSampleRate(sampleRate);
+        }
+        return agent != null;
+    }
+
+    @Override
+    public AggregateDemand.Snapshot getAggregateDemand() {
+        return aggregateDemand.getSnapshot();
+    }
+
+    private FPAIAgent<?> getAgent(String agentId) {
+        for (FPAIAgent<?> agent : agents.values()) {
+            if (agent.getId().equals(agentId)) {
+                return agent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers the factory of the agents for resources with the given type of control space, replacing the factory
+     * which was registered for that type before.
+     *
+     * @param controlSpaceType
+     *            The type of control space
+     * @param factory
+     *            The factory of the agents
+     */
+    public void registerAgentFactory(Class<? extends ControlSpace> controlSpaceType, AgentFactory factory) {
+        agentFactories.put(controlSpaceType, factory);
+    }
+
     /**
      * creates a PowerMatcher agent which is capable of controlling a resource of the type of the controllable resource
-     * (e.g. buffer, time shifter, ...)
+     * (e.g. buffer, time shifter, ...). Only the shard of the resource is locked, so resources of different shards are
+     * registered concurrently.
      * 
      * @see Controller#registerResource(ControllableResource)
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
     @Override
-    public synchronized void registerResource(ControllableResource<?> resource) {
-        logger.debug("Adding ControllableResource of type " + resource.getControlSpaceType());
+    public void registerResource(ControllableResource<?> resource) {
+        reconfigurationLock.readLock().lock();
+        try {
+            logger.debug("Adding ControllableResource of type " + resource.getControlSpaceType());
 
-        Class<? extends FPAIAgent<?>> agentClass = agentMap.get(resource.getControlSpaceType());
-        if (agentClass == null) {
-            logger.warn("No support for ControllableResource of type: ", resource.getControlSpaceType());
-            return;
-        }
+            if (!agentPool.supports(resource.getControlSpaceType())) {
+                logger.warn("No support for ControllableResource of type: ", resource.getControlSpaceType());
+                return;
+            }
 
-        String agentId = resource.getControlSpaceType().toString().toLowerCase() + this.agentId.incrementAndGet();
+            String agentId = createAgentId(resource);
 
-        // create the agent, and bind the agent to the ControllableResource
-        FPAIAgent agent = createAgent(agentId, agentClass);
-        agent.bind(resource); // also binds ControllableResource to agent
+            Shard shard = getShard(resource);
 
-        // bind the agent to the concentrator and vice versa
-        concentrator.bind(agent);
-        agent.bind(concentrator);
+            // create the agent, and bind the agent to the ControllableResource
+            FPAIAgent agent = createAgent(agentId, resource.getControlSpaceType(), shard.concentrator.getId());
+            synchronized (shard) {
+                agent.bind(resource); // also binds ControllableResource to agent
 
-        // remember the agent and ControllableResource association
-        agents.put(resource, agent);
+                // bind the agent to the concentrator of the shard and vice versa
+                bindToConcentrator(agent, shard.concentrator);
+
+                // remember the agent and ControllableResource association
+                agents.put(resource, agent);
+            }
 
-        logger.info("Agent bound to Concentrator and ControllableResource");
+            logger.info("Agent bound to Concentrator and ControllableResource");
+        } finally {
+            reconfigurationLock.readLock().unlock();
+        }
     }
 
     /**
-     * Creates an agent with the given id, as an instance of the class which name is given and is configured with the
-     * given properties (e.g. using default values from the properties).
+     * Registers a batch of resources, e.g. when a site with many resources starts. The agents of the resources are
+     * created in parallel and bound to the concentrators per shard. The bid updates of the concentrators are held until
+     * all agents of the batch are bound, so the batch results in a single publication of the aggregated bid instead of
+     * a bid update for every resource.
      * 
-     * @param agentId
-     *            The id of the agent.
-     * @param agentClass
-     *            The name of the agent's class.
-     * @param properties
-     *            The configuration from which to use the defaults.
-     * @return The configured agent.
+     * @param resources
+     *            The resources to register
      */
-    protected FPAIAgent<? extends ControlSpace>
-            createAgent(String agentId, Class<? extends FPAIAgent<? extends ControlSpace>> agentClass) {
-        Map<String, Object> agentProperties = new HashMap<String, Object>(properties);
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void registerResources(Collection<? extends ControllableResource<?>> resources) {
+        reconfigurationLock.readLock().lock();
+        try {
+            logger.debug("Adding {} ControllableResources", resources.size());
+
+            Shard[] shards = this.shards;
+            List<ControllableResource<?>> supported = new ArrayList<ControllableResource<?>>(resources.size());
+            for (ControllableResource<?> resource : resources) {
+                if (agentPool.supports(resource.getControlSpaceType())) {
+                    supported.add(resource);
+                } else {
+                    logger.warn("No support for ControllableResource of type: ", resource.getControlSpaceType());
+                }
+            }
 
-        String prefix = "agent" + ConfigurationService.SEPARATOR + agentId;
-        agentProperties.put(prefix + ".class", agentClass.getName());
-        agentProperties.put(prefix + ".id", agentId);
-        agentProperties.put(prefix + ".matcher.id", concentrator.getId());
-        agentProperties.put(prefix + ".agent.bid.log.level", "FULL_LOGGING");
-        agentProperties.put(prefix + ".agent.price.log.level", "FULL_LOGGING");
+            String[] agentIds = new String[supported.size()];
+            int[] shardIndices = new int[supported.size()];
+            String[] matcherIds = new String[supported.size()];
+            for (int i = 0; i < agentIds.length; i++) {
+                ControllableResource<?> resource = supported.get(i);
+                agentIds[i] = createAgentId(resource);
+                shardIndices[i] = getShardIndex(resource, shards.length);
+                matcherIds[i] = shards[shardIndices[i]].concentrator.getId();
+            }
+            FPAIAgent<?>[] newAgents = createAgents(supported, agentIds, matcherIds);
+
+            holdBidUpdates(shards);
+            try {
+                for (int s = 0; s < shards.length; s++) {
+                    Shard shard = shards[s];
+                    synchronized (shard) {
+                        for (int i = 0; i < newAgents.length; i++) {
+                            if (shardIndices[i] == s) {
+                                // bind the agent to its concentrator first, so its first bid is held by the concentrator
+                                FPAIAgent agent = newAgents[i];
+                                bindToConcentrator(agent, shard.concentrator);
+                                agent.bind(supported.get(i));
+                                agents.put(supported.get(i), agent);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                releaseBidUpdates(shards);
+            }
+
+            logger.info("{} agents bound to Concentrator and ControllableResources", newAgents.length);
+        } finally {
+            reconfigurationLock.readLock().unlock();
+        }
+    }
+
+    /** creates the agents for the resources, in parallel if there are enough resources */
+    private FPAIAgent<?>[] createAgents(final List<ControllableResource<?>> resources,
+                                        final String[] agentIds,
+                                        final String[] matcherIds) {
+        final FPAIAgent<?>[] newAgents = new FPAIAgent<?>[resources.size()];
+        final int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                                     resources.size() / PARALLEL_CREATION_BATCH);
+        if (threads <= 1) {
+            for (int i = 0; i < newAgents.length; i++) {
+                newAgents[i] = createAgent(agentIds[i], resources.get(i).getControlSpaceType(), matcherIds[i]);
+            }
+            return newAgents;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = first; i < newAgents.length; i += threads) {
+                        newAgents[i] = createAgent(agentIds[i], resources.get(i).getControlSpaceType(), matcherIds[i]);
+                    }
+                    return null;
+                }
+            });
+        }
 
         try {
-            FPAIAgent<? extends ControlSpace> agent = agentClass.newInstance();
+            for (Future<Void> future : getCreationExecutor().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while creating agents", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not create agents: " + e.getCause().getMessage(), e.getCause());
+        }
+        return newAgents;
+    }
+
+    /**
+     * @return The executor on which agents are created, with a thread per processor. The threads stop when no agents
+     *         were created for a minute, so the executor costs nothing between batches of resources.
+     */
+    private synchronized ExecutorService getCreationExecutor() {
+        if (creationExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                                                                 threads,
+                                                                 60,
+                                                                 TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue<Runnable>(),
+                                                                 createThreadFactory("pm-agent-creation-"));
+            executor.allowCoreThreadTimeOut(true);
+            creationExecutor = executor;
+        }
+        return creationExecutor;
+    }
 
-            agent.setConfiguration(new PrefixedConfiguration(agentProperties, prefix));
-            agent.bind(executorService);
-            agent.bind(pmTimeService);
-            agent.setFpaiTimeService(fpaiTimeService);
-            if (widget != null) {
-                agent.bind(widget);
+    private void holdBidUpdates(Shard[] shards) {
+        for (Shard shard : shards) {
+            if (shard.concentrator instanceof BatchingConcentrator) {
+                ((BatchingConcentrator) shard.concentrator).holdBidUpdates();
             }
+        }
+        if (shards[0].concentrator != concentrator && concentrator instanceof BatchingConcentrator) {
+            ((BatchingConcentrator) concentrator).holdBidUpdates();
+        }
+    }
 
-            return agent;
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Could not instantiate new agent: " + e.getMessage(), e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Could not instantiate new agent: " + e.getMessage(), e);
+    /** releases the holds of the sub-concentrators before the hold of the concentrator, which aggregates their bids */
+    private void releaseBidUpdates(Shard[] shards) {
+        for (Shard shard : shards) {
+            if (shard.concentrator instanceof BatchingConcentrator) {
+                ((BatchingConcentrator) shard.concentrator).releaseBidUpdates();
+            }
+        }
+        if (shards[0].concentrator != concentrator && concentrator instanceof BatchingConcentrator) {
+            ((BatchingConcentrator) concentrator).releaseBidUpdates();
         }
     }
 
+    private String createAgentId(ControllableResource<?> resource) {
+        return resource.getControlSpaceType().toString().toLowerCase() + agentId.incrementAndGet();
+    }
+
+    /**
+     * Creates an agent with the given id for the given type of control space, configured with the properties of this
+     * controller, and binds it to the scheduler, the time services and the log listeners.
+     * 
+     * @param agentId
+     *            The id of the agent.
+     * @param controlSpaceType
+     *            The type of control space of the resource the agent will control.
+     * @param matcherId
+     *            The id of the concentrator the agent will be bound to.
+     * @return The configured agent.
+     */
+    protected FPAIAgent<? extends ControlSpace>
+            createAgent(String agentId, Class<? extends ControlSpace> controlSpaceType, String matcherId) {
+        FPAIAgent<? extends ControlSpace> agent = agentPool.createAgent(controlSpaceType, agentId, matcherId);
+
+        agent.bind(executorService);
+        agent.bind(pmTimeService);
+        agent.setFpaiTimeService(fpaiTimeService);
+        agent.setAllocationExecutor(allocationExecutor);
+        aggregateDemand.register(agent.getId());
+        PMWidget currentWidget = widget;
+        if (currentWidget != null) {
+            currentWidget.register(agent.getId());
+        }
+        agent.bind(agentLogListeners);
+
+        return agent;
+    }
+
     /**
      * Destroys the agent associated to the ControllableResource which is unregistered
      * 
@@ -365,25 +1146,67 @@ public class PMController implements ControllerManager {
      */
     @Override
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    public synchronized void unregisterResource(ControllableResource<?> resource) {
-        logger.debug("Removing agent associated with ControllableResource of type " + resource.getControlSpaceType());
+    public void unregisterResource(ControllableResource<?> resource) {
+        reconfigurationLock.readLock().lock();
+        try {
+            logger.debug("Removing agent associated with ControllableResource of type " + resource.getControlSpaceType());
+
+            Shard shard = getShard(resource);
+            FPAIAgent agent;
+            synchronized (shard) {
+                // remove the agent from the list
+                agent = agents.remove(resource);
+                if (agent != null) {
+                    unbindAgent(agent, resource, shard.concentrator);
+                }
+            }
 
-        // remove the agent from the list
-        FPAIAgent agent = agents.remove(resource);
+            if (agent != null) {
+                logger.info("{} unbound from Concentrator and ControllableResource", agent.getClass().getSimpleName());
+                logger.debug("{} dispatched {} allocations ({} superseded), maximum latency {} ms",
+                             agent.getId(),
+                             agent.getAllocationsDispatched(),
+                             agent.getAllocationsSuperseded(),
+                             agent.getMaxAllocationLatencyNanos() / 1000000d);
 
-        if (agent != null) {
-            // unbind the agent from the ControllableResource
-            agent.unbind(resource); // also unbinds ControllableResource from Agent
+                agentPool.release(resource.getControlSpaceType(), agent);
+            }
+        } finally {
+            reconfigurationLock.readLock().unlock();
+        }
+    }
 
-            // unbind the agent from the concentrator and vice versa
-            concentrator.unbind(agent);
-            agent.unbind(concentrator);
+    /**
+     * Binds the agent to the concentrator and vice versa. The agent measures the latency of its allocations from the
+     * arrival of the price at this concentrator.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void bindToConcentrator(FPAIAgent agent, AbstractConcentrator concentrator) {
+        agent.setPriceArrivalClock(concentrator instanceof PriceArrivalClock ? (PriceArrivalClock) concentrator : null);
+        concentrator.bind(agent);
+        agent.bind(concentrator);
+    }
 
-            // unbind the executor service
-            agent.unbind(executorService);
-            agent.unbind(pmTimeService);
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void unbindAgent(FPAIAgent agent, ControllableResource resource, AbstractConcentrator parent) {
+        // unbind the agent from the ControllableResource
+        agent.unbind(resource); // also unbinds ControllableResource from Agent
+
+        // unbind the agent from the concentrator and vice versa
+        parent.unbind(agent);
+        agent.unbind(parent);
+        if (parent instanceof BatchingConcentrator) {
+            ((BatchingConcentrator) parent).removeAgent(agent.getId());
+        }
 
-            logger.info("{} unbound from Concentrator and ControllableResource", agent.getClass().getSimpleName());
+        // unbind the executor service
+        agent.unbind(executorService);
+        agent.unbind(pmTimeService);
+        agent.unbind(agentLogListeners);
+        aggregateDemand.remove(agent.getId());
+        PMWidget currentWidget = widget;
+        if (currentWidget != null) {
+            currentWidget.remove(agent.getId());
         }
     }
 }
@@ -5,4 +5,20 @@ import net.powermatcher.core.agent.framework.log.LogListenerService;
 import org.flexiblepower.ui.Widget;
 
 public interface PMWidget extends Widget, LogListenerService {
+    /**
+     * Tells the widget that an agent was created, before the agent logs its first bid.
+     *
+     * @param agentId
+     *            The id of the agent
+     */
+    void register(String agentId);
+
+    /**
+     * Tells the widget that an agent was removed, so a bid which the agent logs while it is being unbound doesn't
+     * bring it back.
+     *
+     * @param agentId
+     *            The id of the agent
+     */
+    void remove(String agentId);
 }
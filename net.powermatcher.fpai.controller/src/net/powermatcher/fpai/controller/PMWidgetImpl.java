@@ -1,31 +1,146 @@
 package net.powermatcher.fpai.controller;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.powermatcher.core.agent.framework.Agent;
 import net.powermatcher.core.agent.framework.log.BidLogInfo;
 import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
 
+/**
+ * The compact widget of the {@link PMController}, which shows the market price and the demand range of every agent.
+ * <p>
+ * The widget keeps a versioned model of its rows. A row is rendered once when the bid of its agent changes what is
+ * shown, and its latency once when the agent dispatched another allocation, instead of on every poll; the labels are
+ * derived once per agent class. Every change of the demand or the latency of a row increments the version of the
+ * model, so a client which passes the version of its last update with {@link #updateSince(long, Locale)} receives only
+ * the rows which changed since, and the agents which were removed. A poll still visits every agent, to notice new
+ * allocations and removed agents, but only renders what changed.
+ * <p>
+ * Only the bids of the agents which are registered are shown, so a bid which an agent logs while it is being unbound
+ * can't bring its row back after the removal was sent.
+ *
+ * @author TNO
+ */
 public class PMWidgetImpl implements PMWidget {
+    /** The rendered demand of an agent, of which the text is formatted when it is first asked for */
+    private static final class Row {
+        private final long version;
+        private final long firstCentiKiloWatt;
+        private final long lastCentiKiloWatt;
+        private volatile String demand;
+
+        Row(long version, long firstCentiKiloWatt, long lastCentiKiloWatt) {
+            this.version = version;
+            this.firstCentiKiloWatt = firstCentiKiloWatt;
+            this.lastCentiKiloWatt = lastCentiKiloWatt;
+        }
+
+        boolean shows(long first, long last) {
+            return first == firstCentiKiloWatt && last == lastCentiKiloWatt;
+        }
+
+        String getDemand() {
+            String text = demand;
+            if (text == null) {
+                if (firstCentiKiloWatt == lastCentiKiloWatt) {
+                    text = String.format("%.2f kW", firstCentiKiloWatt / 100d);
+                } else {
+                    text = String.format("%.2f - %.2f kW", lastCentiKiloWatt / 100d, firstCentiKiloWatt / 100d);
+                }
+                demand = text;
+            }
+            return text;
+        }
+    }
+
+    /** The rendered latency of an agent, which is rendered again when the agent dispatched another allocation */
+    private static final class Latency {
+        private final long version;
+        private final long allocations;
+        private final String text;
+
+        Latency(long version, long allocations, String text) {
+            this.version = version;
+            this.allocations = allocations;
+            this.text = text;
+        }
+    }
+
+    /** The number of removed agents which are remembered for the clients which haven't seen the removal yet */
+    private static final int MAX_REMOVALS = 1024;
+
     private final PMController controller;
 
-    private final Map<String, BidLogInfo> latestBids;
+    /** the version of the model, which is incremented on every change of the demand or latency of a row */
+    private final AtomicLong version = new AtomicLong();
+
+    private final ConcurrentMap<String, Row> rows = new ConcurrentHashMap<String, Row>();
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+
+    /** the ids of the agents of which the bids are shown */
+    private final ConcurrentMap<String, Boolean> registered = new ConcurrentHashMap<String, Boolean>();
+
+    /** the ids of the agents of which the rows were listed, other rows (e.g. of the concentrator) are not shown */
+    private final ConcurrentMap<String, Boolean> listed = new ConcurrentHashMap<String, Boolean>();
+
+    /** the version at which the row of an agent was removed, by the id of the agent */
+    private final ConcurrentMap<String, Long> removed = new ConcurrentHashMap<String, Long>();
+
+    /** the version before which the removals are forgotten, a client with an older version gets the complete model */
+    private volatile long horizon;
+
+    private final ConcurrentMap<Class<?>, String> labels = new ConcurrentHashMap<Class<?>, String>();
+    private final ConcurrentMap<Locale, DateFormat> dateFormats = new ConcurrentHashMap<Locale, DateFormat>();
+
     private volatile PriceLogInfo latestPrice;
 
     public PMWidgetImpl(PMController controller) {
         this.controller = controller;
-        latestBids = new ConcurrentHashMap<String, BidLogInfo>();
         latestPrice = null;
     }
 
+    @Override
+    public void register(String agentId) {
+        registered.put(agentId, Boolean.TRUE);
+    }
+
+    @Override
+    public void remove(String agentId) {
+        registered.remove(agentId);
+    }
+
     @Override
     public void handleBidLogInfo(BidLogInfo bidLogInfo) {
-        latestBids.put(bidLogInfo.getAgentId(), bidLogInfo);
+        String agentId = bidLogInfo.getAgentId();
+        if (!registered.containsKey(agentId)) {
+            return;
+        }
+
+        PiecewiseLinearBid demand = PiecewiseLinearBid.of(bidLogInfo.getBidInfo());
+        long first = Math.round(demand.getFirstDemand() / 10);
+        long last = Math.round(demand.getLastDemand() / 10);
+
+        Row row = rows.get(agentId);
+        if (row == null || !row.shows(first, last)) {
+            rows.put(agentId, new Row(version.incrementAndGet(), first, last));
+            if (!registered.containsKey(agentId)) {
+                // the agent was removed while its bid was rendered
+                rows.remove(agentId);
+            }
+        }
     }
 
     @Override
@@ -33,37 +148,107 @@ public class PMWidgetImpl implements PMWidget {
         latestPrice = priceLogInfo;
     }
 
+    /**
+     * @return The complete model of the widget
+     */
     public Update update(Locale locale) {
-        String price = latestPrice == null ? "no price yet" : String.format("%1.2f", latestPrice.getCurrentPrice());
-        String timestamp = latestPrice == null ? "" : DateFormat.getTimeInstance(DateFormat.LONG, locale)
-                                                                .format(latestPrice.getTimestamp());
-        Update update = new Update(price, timestamp);
+        return updateSince(0, locale);
+    }
 
-        for (Agent agent : controller.getAgentList()) {
-            BidLogInfo lastBid = latestBids.get(agent.getId());
-            String type = getAgentLabel(agent);
-            String demands = lastBid == null ? "no bid yet" : getDemands(lastBid);
-            update.addAgent(type, agent.getId(), demands);
+    /**
+     * @param since
+     *            The version of the last update of the client, or 0 for the complete model
+     * @return The rows which changed since the given version, and the agents which were removed since
+     */
+    public Update updateSince(long since, Locale locale) {
+        PriceLogInfo price = latestPrice;
+        Update update = new Update(price == null ? "no price yet" : String.format("%1.2f", price.getCurrentPrice()),
+                                   price == null ? "" : formatTime(price, locale),
+                                   controller.getPriceToAllocationLatency().toString(),
+                                   controller.getControlSpaceToBidLatency().toString());
+
+        List<Agent> agents = new ArrayList<Agent>(controller.getAgentList());
+        Set<String> agentIds = new HashSet<String>();
+        for (Agent agent : agents) {
+            agentIds.add(agent.getId());
         }
 
+        // forget the rows of the agents which are gone, and tell the clients which have shown them
+        for (String agentId : listed.keySet()) {
+            if (!agentIds.contains(agentId) && listed.remove(agentId) != null) {
+                rows.remove(agentId);
+                latencies.remove(agentId);
+                removed.put(agentId, version.incrementAndGet());
+            }
+        }
+        if (removed.size() > MAX_REMOVALS) {
+            horizon = version.get();
+            removed.clear();
+        }
+
+        if (since < horizon) {
+            since = 0;
+        }
+        update.setComplete(since == 0);
+
+        for (Agent agent : agents) {
+            String agentId = agent.getId();
+            Row row = rows.get(agentId);
+            Latency latency = agent instanceof FPAIAgent ? getLatency((FPAIAgent<?>) agent) : null;
+            if (row != null || latency != null) {
+                listed.put(agentId, Boolean.TRUE);
+            }
+            long rowVersion = Math.max(row == null ? 0 : row.version, latency == null ? 0 : latency.version);
+            if (since == 0 || rowVersion > since) {
+                update.addAgent(getAgentLabel(agent), agentId, row == null ? "no bid yet" : row.getDemand());
+                if (latency != null) {
+                    update.addLatency(agentId, latency.text);
+                }
+            }
+        }
+
+        if (since > 0) {
+            for (Entry<String, Long> removal : removed.entrySet()) {
+                if (removal.getValue() > since) {
+                    update.addRemoved(removal.getKey());
+                }
+            }
+        }
+
+        update.setVersion(version.get());
         return update;
     }
 
-    private String getDemands(BidLogInfo bid) {
-        double[] demand = bid.getBidInfo().getDemand();
-        double first = demand[0] / 1000;
-        double last = demand[demand.length - 1] / 1000;
+    private String formatTime(PriceLogInfo price, Locale locale) {
+        DateFormat format = dateFormats.get(locale);
+        if (format == null) {
+            format = DateFormat.getTimeInstance(DateFormat.LONG, locale);
+            dateFormats.put(locale, format);
+        }
+        synchronized (format) {
+            return format.format(price.getTimestamp());
+        }
+    }
 
-        if (Math.abs(first - last) < .0001) {
-            return String.format("%.2f kW", first);
-        } else {
-            return String.format("%.2f - %.2f kW", last, first);
+    private Latency getLatency(FPAIAgent<?> agent) {
+        long allocations = agent.getAllocationsDispatched();
+        Latency latency = latencies.get(agent.getId());
+        if (latency == null || latency.allocations != allocations) {
+            String text = agent.getPriceToAllocationLatency().toString();
+            latency = new Latency(version.incrementAndGet(), allocations, text);
+            latencies.put(agent.getId(), latency);
+            removed.remove(agent.getId());
         }
+        return latency;
     }
 
     private String getAgentLabel(Agent agent) {
-        String name = agent.getClass().getSimpleName();
-        return name.replaceAll("(.)(\\p{Upper})", "$1 $2");
+        String label = labels.get(agent.getClass());
+        if (label == null) {
+            label = agent.getClass().getSimpleName().replaceAll("(.)(\\p{Upper})", "$1 $2");
+            labels.put(agent.getClass(), label);
+        }
+        return label;
     }
 
     @Override
@@ -73,13 +258,29 @@ public class PMWidgetImpl implements PMWidget {
 
     public static class Update {
         private final SortedMap<String, SortedMap<String, String>> demands;
+        private final SortedMap<String, String> latencies;
         private final String marketPrice;
         private final String timestamp;
+        private final String priceToAllocationLatency;
+        private final String controlSpaceToBidLatency;
+        private final List<String> removed = new ArrayList<String>();
+        private long version;
+        private boolean complete;
 
         public Update(String marketPrice, String timestamp) {
+            this(marketPrice, timestamp, "", "");
+        }
+
+        public Update(String marketPrice,
+                      String timestamp,
+                      String priceToAllocationLatency,
+                      String controlSpaceToBidLatency) {
             this.marketPrice = marketPrice;
             this.timestamp = timestamp;
+            this.priceToAllocationLatency = priceToAllocationLatency;
+            this.controlSpaceToBidLatency = controlSpaceToBidLatency;
             demands = new TreeMap<String, SortedMap<String, String>>();
+            latencies = new TreeMap<String, String>();
         }
 
         public void addAgent(String type, String id, String demand) {
@@ -96,6 +297,62 @@ public class PMWidgetImpl implements PMWidget {
             return demands;
         }
 
+        public void addLatency(String id, String latency) {
+            latencies.put(id, latency);
+        }
+
+        /**
+         * @return The price to allocation latency of each agent, by agent id
+         */
+        public SortedMap<String, String> getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * @param id
+         *            The id of an agent which was removed since the version of the client
+         */
+        public void addRemoved(String id) {
+            removed.add(id);
+        }
+
+        /**
+         * @return The ids of the agents which were removed since the version of the client
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+
+        /**
+         * @return Whether the update holds all agents, so the client replaces its rows instead of merging them
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        /**
+         * @return The version of the model, which the client passes to get the next changes
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public String getPriceToAllocationLatency() {
+            return priceToAllocationLatency;
+        }
+
+        public String getControlSpaceToBidLatency() {
+            return controlSpaceToBidLatency;
+        }
+
         // public List<String> getAgentTypes() {
         // return agentTypes;
         // }
@@ -1,6 +1,8 @@
 package net.powermatcher.fpai.fullwidget;
 
 import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
 
 public class AgentInfo {
 
@@ -8,11 +10,100 @@ public class AgentInfo {
     public double[][] coordinates;
 
     public AgentInfo(String id, BidInfo bid) {
+        this(id, bid, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Describes the curve of a bid by its breakpoints. When the curve is drawn in fewer pixels than it has breakpoints,
+     * it is simplified with the Ramer-Douglas-Peucker algorithm: the breakpoints which deviate less than one pixel of
+     * demand from the simplified curve are dropped. A pixel of demand is taken as the demand range of the bid divided
+     * by the height of the chart; a chart which also shows other values has a larger range per pixel, so the curve is
+     * never simplified by more than a pixel.
+     *
+     * @param pixelWidth
+     *            The width in pixels in which the curve is drawn
+     * @param pixelHeight
+     *            The height in pixels in which the curve is drawn
+     */
+    public AgentInfo(String id, BidInfo bid, int pixelWidth, int pixelHeight) {
         this.id = id;
-        double[] demand = bid.getDemand();
-        coordinates = new double[demand.length][];
-        for (int i = 0; i < demand.length; i++) {
-            coordinates[i] = new double[] { bid.getMarketBasis().toPrice(i), demand[i] };
+
+        // the bid is linear between its breakpoints, so the breakpoints and the end points describe the whole curve
+        PiecewiseLinearBid curve = PiecewiseLinearBid.of(bid);
+        MarketBasis marketBasis = bid.getMarketBasis();
+        int lastPrice = marketBasis.getPriceSteps() - 1;
+        double[][] points = new double[curve.size() + 2][];
+        points[0] = new double[] { marketBasis.toPrice(0), curve.getDemandAt(0) };
+        for (int i = 0; i < curve.size(); i++) {
+            points[i + 1] = new double[] { marketBasis.toPrice(curve.getPrice(i)), curve.getDemand(i) };
+        }
+        points[curve.size() + 1] = new double[] { marketBasis.toPrice(lastPrice), curve.getDemandAt(lastPrice) };
+
+        if (points.length > pixelWidth) {
+            double demandRange = curve.getMaximumDemand() - curve.getMinimumDemand();
+            points = simplify(points, demandRange / Math.max(pixelHeight, 1));
+        }
+        coordinates = points;
+    }
+
+    /**
+     * Simplifies a curve with the Ramer-Douglas-Peucker algorithm, using the vertical distance of a point to the
+     * segment which replaces it.
+     *
+     * @param points
+     *            The points of the curve, in the order of their x coordinate
+     * @param tolerance
+     *            The maximum vertical distance of a dropped point to the simplified curve
+     * @return The points which are kept, including the first and the last point
+     */
+    static double[][] simplify(double[][] points, double tolerance) {
+        boolean[] keep = new boolean[points.length];
+        keep[0] = true;
+        keep[points.length - 1] = true;
+
+        // the segments which remain to be simplified, as pairs of indices
+        int[] stack = new int[2 * points.length];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = points.length - 1;
+        int kept = 2;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double[] a = points[first];
+            double[] b = points[last];
+            double slope = b[0] == a[0] ? 0 : (b[1] - a[1]) / (b[0] - a[0]);
+            int farthest = -1;
+            double maxDistance = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double distance = Math.abs(points[i][1] - (a[1] + slope * (points[i][0] - a[0])));
+                if (distance > maxDistance) {
+                    farthest = i;
+                    maxDistance = distance;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        if (kept == points.length) {
+            return points;
+        }
+        double[][] simplified = new double[kept][];
+        int index = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (keep[i]) {
+                simplified[index++] = points[i];
+            }
         }
+        return simplified;
     }
 }
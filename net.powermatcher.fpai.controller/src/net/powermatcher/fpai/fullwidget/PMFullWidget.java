@@ -1,9 +1,12 @@
 package net.powermatcher.fpai.fullwidget;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import net.powermatcher.core.agent.framework.data.BidInfo;
 import net.powermatcher.core.agent.framework.log.BidLogInfo;
 import net.powermatcher.core.agent.framework.log.LogListenerService;
 import net.powermatcher.core.agent.framework.log.PriceLogInfo;
@@ -13,17 +16,53 @@ import org.flexiblepower.ui.Widget;
 
 import aQute.bnd.annotation.component.Component;
 
+/**
+ * The full widget of the PowerMatcher, which draws the bid curve of every agent. The bids are logged from the threads
+ * of the agents, while the widget is polled from the thread of the web server; the curve of an agent is simplified to
+ * the size of the chart once per bid and size, not on every poll, so clients with different chart sizes don't evict
+ * each other's curves. The curves of an agent are dropped when the agent is removed.
+ *
+ * @author TNO
+ */
 @Component(properties = { "widget.type=full", "widget.name=pmfullwidget" }, provide = Widget.class)
 public class PMFullWidget implements PMWidget, LogListenerService {
+    /** The size in pixels of the chart of the widget, for clients which do not tell their size */
+    public static final int DEFAULT_PIXEL_WIDTH = 400;
+    public static final int DEFAULT_PIXEL_HEIGHT = 125;
 
-    private PriceLogInfo lastPrice;
-    private final Map<String, BidLogInfo> latestBids = new HashMap<String, BidLogInfo>();
+    /** The number of chart sizes for which the curve of a bid is kept */
+    private static final int MAX_SIZES = 8;
+
+    /** The curves of a bid, simplified to the sizes of the charts of the clients */
+    private static final class Curve {
+        private final BidInfo bid;
+        private final ConcurrentMap<Long, AgentInfo> infos = new ConcurrentHashMap<Long, AgentInfo>();
+
+        Curve(BidInfo bid) {
+            this.bid = bid;
+        }
+    }
+
+    private volatile PriceLogInfo lastPrice;
+    private final ConcurrentMap<String, BidLogInfo> latestBids = new ConcurrentHashMap<String, BidLogInfo>();
+    private final ConcurrentMap<String, Curve> curves = new ConcurrentHashMap<String, Curve>();
 
     @Override
     public String getTitle(Locale locale) {
         return "PowerMatcher";
     }
 
+    @Override
+    public void register(String agentId) {
+        // the widget draws the bid of every agent which logged one
+    }
+
+    @Override
+    public void remove(String agentId) {
+        latestBids.remove(agentId);
+        curves.remove(agentId);
+    }
+
     @Override
     public void handleBidLogInfo(BidLogInfo bidLogInfo) {
         latestBids.put(bidLogInfo.getAgentId(), bidLogInfo);
@@ -35,7 +74,56 @@ public class PMFullWidget implements PMWidget, LogListenerService {
     }
 
     public Update update() {
-        return new Update(lastPrice, latestBids);
+        return updateForSize(DEFAULT_PIXEL_WIDTH, DEFAULT_PIXEL_HEIGHT);
+    }
+
+    /**
+     * @param pixelWidth
+     *            The width in pixels of the chart of the client
+     * @return The market price and the bid curves, simplified to the given width and the default height
+     */
+    public Update updateForWidth(int pixelWidth) {
+        return updateForSize(pixelWidth, DEFAULT_PIXEL_HEIGHT);
     }
 
+    /**
+     * @param pixelWidth
+     *            The width in pixels of the chart of the client
+     * @param pixelHeight
+     *            The height in pixels of the chart of the client
+     * @return The market price and the bid curves, simplified to the given size
+     */
+    public Update updateForSize(int pixelWidth, int pixelHeight) {
+        int width = Math.max(pixelWidth, 2);
+        int height = Math.max(pixelHeight, 1);
+        List<AgentInfo> agents = new ArrayList<AgentInfo>(latestBids.size());
+        for (BidLogInfo bidLogInfo : latestBids.values()) {
+            agents.add(getCurve(bidLogInfo.getAgentId(), bidLogInfo.getBidInfo(), width, height));
+        }
+        PriceLogInfo price = lastPrice;
+        return new Update(price == null ? 0 : price.getCurrentPrice(), agents);
+    }
+
+    private AgentInfo getCurve(String agentId, BidInfo bid, int pixelWidth, int pixelHeight) {
+        Curve curve = curves.get(agentId);
+        if (curve == null || curve.bid != bid) {
+            curve = new Curve(bid);
+            curves.put(agentId, curve);
+            if (!latestBids.containsKey(agentId)) {
+                // the agent was removed while its curve was simplified
+                curves.remove(agentId);
+            }
+        }
+
+        Long size = Long.valueOf(((long) pixelWidth << 32) | pixelHeight);
+        AgentInfo info = curve.infos.get(size);
+        if (info == null) {
+            if (curve.infos.size() >= MAX_SIZES) {
+                curve.infos.clear();
+            }
+            info = new AgentInfo(agentId, bid, pixelWidth, pixelHeight);
+            curve.infos.put(size, info);
+        }
+        return info;
+    }
 }
@@ -0,0 +1,225 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.fpai.uplink.Topics;
+import net.powermatcher.fpai.uplink.UplinkConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publish/subscribe broker within the JVM, which stands in for an MQTT broker so that the binary uplink can be run
+ * and measured without a network or an external broker, e.g. to regression-test its throughput offline.
+ * <p>
+ * Like a broker, every published message is copied, and it is delivered to every subscription with a matching topic
+ * filter (including subscriptions of the publisher itself). The messages are delivered on a single dispatcher thread in
+ * the order in which they were published, so publishers are decoupled from the subscribers as they are with a real
+ * broker; a synchronous broker delivers the messages on the thread of the publisher instead. Every subscriber gets its
+ * own buffer, and the number of messages which wait for delivery shows whether the subscribers keep up.
+ *
+ * @author TNO
+ */
+public class InProcessBroker implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(InProcessBroker.class);
+
+    private static final class Subscription {
+        final Connection connection;
+        final String topicFilter;
+        final UplinkConnection.MessageHandler handler;
+
+        Subscription(Connection connection, String topicFilter, UplinkConnection.MessageHandler handler) {
+            this.connection = connection;
+            this.topicFilter = topicFilter;
+            this.handler = handler;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /** the thread which delivers the messages, or null if they are delivered on the thread of the publisher */
+    private final ExecutorService dispatcher;
+
+    private final AtomicLong messagesPublished = new AtomicLong();
+    private final AtomicLong bytesPublished = new AtomicLong();
+    private final AtomicLong messagesDelivered = new AtomicLong();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+
+    /**
+     * Creates a broker which delivers the messages on its own dispatcher thread.
+     */
+    public InProcessBroker() {
+        this(false);
+    }
+
+    /**
+     * @param synchronous
+     *            Whether the messages are delivered on the thread of the publisher, before the publication returns
+     */
+    public InProcessBroker(boolean synchronous) {
+        if (synchronous) {
+            dispatcher = null;
+        } else {
+            dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "InProcessBroker dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens a connection to the broker.
+     *
+     * @param clientId
+     *            The id of the client, used in log messages
+     * @return The connection, which cancels its subscriptions when it is closed
+     */
+    public UplinkConnection connect(String clientId) {
+        return new Connection(clientId);
+    }
+
+    private void publish(final String topic, ByteBuffer payload) throws IOException {
+        final byte[] message = new byte[payload.remaining()];
+        payload.duplicate().get(message);
+        messagesPublished.incrementAndGet();
+        bytesPublished.addAndGet(message.length);
+
+        if (dispatcher == null) {
+            deliver(topic, message);
+            return;
+        }
+
+        pendingMessages.incrementAndGet();
+        try {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pendingMessages.decrementAndGet();
+                    deliver(topic, message);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingMessages.decrementAndGet();
+            throw new IOException("The broker is closed");
+        }
+    }
+
+    private void deliver(String topic, byte[] message) {
+        for (Subscription subscription : subscriptions) {
+            if (Topics.matches(subscription.topicFilter, topic)) {
+                try {
+                    subscription.handler.handleMessage(topic, ByteBuffer.wrap(message));
+                    messagesDelivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.warn("Subscriber " + subscription.connection.clientId + " failed to handle a message on "
+                                + topic, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages which were published
+     */
+    public long getMessagesPublished() {
+        return messagesPublished.get();
+    }
+
+    /**
+     * @return The number of bytes of the messages which were published
+     */
+    public long getBytesPublished() {
+        return bytesPublished.get();
+    }
+
+    /**
+     * @return The number of messages which were delivered to subscribers, a message counts once per subscriber
+     */
+    public long getMessagesDelivered() {
+        return messagesDelivered.get();
+    }
+
+    /**
+     * @return The number of published messages which wait for delivery
+     */
+    public int getPendingMessages() {
+        return pendingMessages.get();
+    }
+
+    /**
+     * Stops the dispatcher, after the messages which were published have been delivered. Messages which are published
+     * afterwards are rejected.
+     */
+    @Override
+    public void close() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            try {
+                dispatcher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        subscriptions.clear();
+    }
+
+    private class Connection implements UplinkConnection {
+        private final String clientId;
+        private volatile boolean closed;
+
+        Connection(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public void publish(String topic, ByteBuffer payload) throws IOException {
+            checkOpen();
+            InProcessBroker.this.publish(topic, payload);
+        }
+
+        @Override
+        public void subscribe(String topicFilter, MessageHandler handler) throws IOException {
+            checkOpen();
+            subscriptions.add(new Subscription(this, topicFilter, handler));
+        }
+
+        @Override
+        public void unsubscribe(String topicFilter) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.connection == this && subscription.topicFilter.equals(topicFilter)) {
+                    subscriptions.remove(subscription);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.connection == this) {
+                    subscriptions.remove(subscription);
+                }
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("The connection of " + clientId + " is closed");
+            }
+        }
+    }
+}
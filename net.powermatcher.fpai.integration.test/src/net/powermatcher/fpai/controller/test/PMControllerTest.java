@@ -7,8 +7,10 @@ import static javax.measure.unit.SI.MILLI;
 import static javax.measure.unit.SI.SECOND;
 import static javax.measure.unit.SI.WATT;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -37,6 +39,7 @@ import net.powermatcher.fpai.test.MockResourceManager;
 
 import org.flexiblepower.rai.BufferControlSpace;
 import org.flexiblepower.rai.ControlSpace;
+import org.flexiblepower.rai.ControllableResource;
 import org.flexiblepower.rai.StorageControlSpace;
 import org.flexiblepower.rai.TimeShifterControlSpace;
 import org.flexiblepower.rai.UncontrolledControlSpace;
@@ -326,4 +329,97 @@ public class PMControllerTest extends TestCase {
             BidAnalyzer.assertFlatBidWithValue(bid, Measure.valueOf(3 - ix, KILO(WATT)));
         }
     }
+
+    public void testMultipleUncontrolledSharded() throws Exception {
+        controller.deactive();
+        Map<String, Object> shardedConfiguration = new HashMap<String, Object>(configuration);
+        shardedConfiguration.put("concentrator.shards", 4);
+        controller.init(bundleContext, shardedConfiguration);
+
+        MockResourceManager[] rms = new MockResourceManager[8];
+        for (int ix = 0; ix < rms.length; ix++) {
+            rms[ix] = createRM(UncontrolledControlSpace.class);
+            updateUncontrolledCS(rms[ix], Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH));
+        }
+        Assert.assertEquals(rms.length, controller.getAgentList().size());
+
+        // the bids reach the concentrator through the sub-concentrators of the shards
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(rms.length * 1000), Measure.valueOf(rms.length, KILO(WATT)));
+
+        for (MockResourceManager rm : rms) {
+            controller.unregisterResource(rm);
+        }
+        Assert.assertEquals(0, controller.getAgentList().size());
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(0), Measure.valueOf(0, WATT));
+    }
+
+    public void testBulkRegistration() throws Exception {
+        List<ControllableResource<?>> resources = new ArrayList<ControllableResource<?>>();
+        List<MockResourceManager> rms = new ArrayList<MockResourceManager>();
+        for (int ix = 0; ix < 4; ix++) {
+            String resourceId = UncontrolledControlSpace.class.getName() + "-" + UUID.randomUUID().toString();
+            MockResourceManager<UncontrolledControlSpace> resourceManager =
+                    MockResourceManager.create(resourceId, UncontrolledControlSpace.class);
+            resourceMangers.put(resourceManager, resourceId);
+            resources.add(resourceManager);
+            rms.add(resourceManager);
+        }
+
+        controller.registerResources(resources);
+        Assert.assertEquals(rms.size(), controller.getAgentList().size());
+
+        for (MockResourceManager rm : rms) {
+            updateUncontrolledCS(rm, Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH));
+        }
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(rms.size() * 1000), Measure.valueOf(rms.size(), KILO(WATT)));
+
+        for (MockResourceManager rm : rms) {
+            controller.unregisterResource(rm);
+        }
+        Assert.assertEquals(0, controller.getAgentList().size());
+    }
+
+    public void testReconfigurationKeepsAgents() throws Exception {
+        MockResourceManager[] rms = new MockResourceManager[4];
+        for (int ix = 0; ix < rms.length; ix++) {
+            rms[ix] = createRM(UncontrolledControlSpace.class);
+            updateUncontrolledCS(rms[ix], Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH));
+        }
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(rms.length * 1000), Measure.valueOf(rms.length, KILO(WATT)));
+        List<Object> agents = new ArrayList<Object>(controller.getAgentList());
+        String previousConcentratorId = concentratorId;
+
+        // repartition the agents, which recreates the concentrators but not the agents
+        Map<String, Object> shardedConfiguration = new HashMap<String, Object>(configuration);
+        shardedConfiguration.put("concentrator.shards", 2);
+        controller.modified(bundleContext, shardedConfiguration);
+
+        Assert.assertEquals(previousConcentratorId, concentratorId);
+        Assert.assertEquals(agents.size(), controller.getAgentList().size());
+        Assert.assertTrue(agents.containsAll(controller.getAgentList()));
+        // the last bids of the agents are aggregated without waiting for new control spaces
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(rms.length * 1000), Measure.valueOf(rms.length, KILO(WATT)));
+
+        // a change of the update interval only reconfigures the agents
+        shardedConfiguration.put("update.interval", 2);
+        controller.modified(bundleContext, shardedConfiguration);
+        Assert.assertTrue(agents.containsAll(controller.getAgentList()));
+
+        for (MockResourceManager rm : rms) {
+            controller.unregisterResource(rm);
+        }
+        BidAnalyzer.assertFlatBidWithValue(awaitFlatBid(0), Measure.valueOf(0, WATT));
+    }
+
+    /** waits for the aggregated bid to reach the given demand, which may take several bid updates */
+    private BidInfo awaitFlatBid(double demandWatt) {
+        BidInfo bid = null;
+        for (int attempt = 0; attempt < 5; attempt++) {
+            bid = mockMatcherService.getLastBid(concentratorId, WAIT_TIME);
+            if (bid != null && Math.abs(bid.getDemand()[0] - demandWatt) < 0.01) {
+                break;
+            }
+        }
+        return bid;
+    }
 }
@@ -0,0 +1,446 @@
+package net.powermatcher.fpai.controller.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.NonSI.KWH;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+
+import net.powermatcher.core.agent.framework.Agent;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.LatencyHistogram;
+import net.powermatcher.fpai.auctioneer.AuctioneerManager;
+import net.powermatcher.fpai.controller.PMController;
+import net.powermatcher.fpai.test.MockResourceManager;
+import net.powermatcher.fpai.uplink.BinaryAgentUplink;
+import net.powermatcher.fpai.uplink.BinaryMatcherUplink;
+import net.powermatcher.fpai.uplink.UplinkConnection;
+
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+import org.flexiblepower.time.TimeService;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Load generator for the binary uplink. A number of sites, each a {@link PMController} with synthetic uncontrolled
+ * resources, are connected over an {@link InProcessBroker} to an auctioneer of an {@link AuctioneerManager}, so the
+ * whole path from a control space update to a bid at the auctioneer and back to a price at the sites runs within the
+ * JVM. The resources are driven at a fixed rate of control space updates per step, and every step reports the sustained
+ * rates of the sites, the uplink and the broker, and the time from the publication of a bid until the next price
+ * arrives.
+ * <p>
+ * A ramp doubles the rate until a step saturates: the generator could not offer the rate, the agents did not publish
+ * the bids of the updates, or the broker could not deliver the messages. The rate of that step is the saturation
+ * point.
+ *
+ * @author TNO
+ */
+public class UplinkLoadGenerator {
+    private static final String AUCTIONEER_ID = "auctioneer1";
+
+    /** the fraction of the offered rate below which a step is saturated */
+    private static final double SATURATION_THRESHOLD = 0.9;
+
+    /** the number of undelivered messages above which the broker is saturated */
+    private static final int BROKER_BACKLOG_LIMIT = 1000;
+
+    /** the number of different energy profiles through which every resource cycles */
+    private static final int PROFILES = 10;
+
+    /** The measurements of a single step of the load */
+    public static final class Step {
+        private final int offeredRate;
+        private final double updateRate;
+        private final double bidRate;
+        private final double uplinkBidRate;
+        private final double uplinkByteRate;
+        private final LatencyHistogram bidToPriceLatency;
+        private final int brokerBacklog;
+
+        Step(int offeredRate,
+             double updateRate,
+             double bidRate,
+             double uplinkBidRate,
+             double uplinkByteRate,
+             LatencyHistogram bidToPriceLatency,
+             int brokerBacklog) {
+            this.offeredRate = offeredRate;
+            this.updateRate = updateRate;
+            this.bidRate = bidRate;
+            this.uplinkBidRate = uplinkBidRate;
+            this.uplinkByteRate = uplinkByteRate;
+            this.bidToPriceLatency = bidToPriceLatency;
+            this.brokerBacklog = brokerBacklog;
+        }
+
+        /**
+         * @return The offered number of control space updates per second
+         */
+        public int getOfferedRate() {
+            return offeredRate;
+        }
+
+        /**
+         * @return The number of control space updates per second which were sent to the agents
+         */
+        public double getUpdateRate() {
+            return updateRate;
+        }
+
+        /**
+         * @return The number of bids per second which were published by the agents
+         */
+        public double getBidRate() {
+            return bidRate;
+        }
+
+        /**
+         * @return The number of bids per second of the sites which were delivered to the auctioneer
+         */
+        public double getUplinkBidRate() {
+            return uplinkBidRate;
+        }
+
+        /**
+         * @return The number of bytes per second which were published on the broker
+         */
+        public double getUplinkByteRate() {
+            return uplinkByteRate;
+        }
+
+        /**
+         * @return The time from the publication of a bid by a site until the next price of the auctioneer arrived
+         */
+        public LatencyHistogram getBidToPriceLatency() {
+            return bidToPriceLatency;
+        }
+
+        /**
+         * @return The number of messages which the broker had not delivered at the end of the step
+         */
+        public int getBrokerBacklog() {
+            return brokerBacklog;
+        }
+
+        /**
+         * @return Whether the load of this step was more than the sites, the uplink or the broker could handle
+         */
+        public boolean isSaturated() {
+            return updateRate < offeredRate * SATURATION_THRESHOLD || bidRate < updateRate * SATURATION_THRESHOLD
+                   || brokerBacklog > BROKER_BACKLOG_LIMIT;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("offered %6d/s  updates %8.0f/s  bids %8.0f/s  uplink %6.0f bids/s %9.0f B/s"
+                                         + "  bid-to-price p50 %6.1f ms p99 %6.1f ms  backlog %5d%s",
+                                 offeredRate,
+                                 updateRate,
+                                 bidRate,
+                                 uplinkBidRate,
+                                 uplinkByteRate,
+                                 bidToPriceLatency.getValueAtPercentile(50) / 1e6,
+                                 bidToPriceLatency.getValueAtPercentile(99) / 1e6,
+                                 brokerBacklog,
+                                 isSaturated() ? "  SATURATED" : "");
+        }
+    }
+
+    /** The measurements of a ramp of steps */
+    public static final class Report {
+        private final List<Step> steps;
+
+        Report(List<Step> steps) {
+            this.steps = Collections.unmodifiableList(new ArrayList<Step>(steps));
+        }
+
+        /**
+         * @return The steps in the order in which they were run
+         */
+        public List<Step> getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return The first step which saturated, or null if the maximum rate was reached without saturation
+         */
+        public Step getSaturationStep() {
+            for (Step step : steps) {
+                if (step.isSaturated()) {
+                    return step;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The highest number of bids per second which the agents published in a step which didn't saturate
+         */
+        public double getSustainedBidRate() {
+            double sustained = 0;
+            for (Step step : steps) {
+                if (!step.isSaturated()) {
+                    sustained = Math.max(sustained, step.getBidRate());
+                }
+            }
+            return sustained;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Step step : steps) {
+                sb.append(step).append('\n');
+            }
+            Step saturation = getSaturationStep();
+            sb.append(String.format("sustained %.0f bids/s, ", getSustainedBidRate()));
+            sb.append(saturation == null ? "not saturated" : "saturated at " + saturation.getOfferedRate()
+                                                             + " updates/s");
+            return sb.toString();
+        }
+    }
+
+    private final Map<String, Object> configuration = new HashMap<String, Object>();
+    private final int sites;
+    private final int resourcesPerSite;
+
+    private final EnergyProfile[] profiles = new EnergyProfile[PROFILES];
+
+    private ScheduledThreadPoolExecutor executorService;
+    private TimeService timeService;
+    private InProcessBroker broker;
+    private AuctioneerManager auctioneerManager;
+    private BinaryMatcherUplink matcherUplink;
+    private final List<PMController> controllers = new ArrayList<PMController>();
+    private final List<MockResourceManager<UncontrolledControlSpace>> resources =
+            new ArrayList<MockResourceManager<UncontrolledControlSpace>>();
+    private int[] updateCounts;
+
+    /**
+     * @param messagingProtocol
+     *            The protocol of the uplink, BINARY_v1 or BINARY_DELTA_v1
+     * @param sites
+     *            The number of sites
+     * @param resourcesPerSite
+     *            The number of resources of every site
+     */
+    public UplinkLoadGenerator(String messagingProtocol, int sites, int resourcesPerSite) {
+        this.sites = sites;
+        this.resourcesPerSite = resourcesPerSite;
+
+        configuration.put("resourceIds", "loadgenerator");
+        configuration.put("cluster.id", "LoadCluster");
+        configuration.put("location.id", "LoadLocation");
+        configuration.put("messaging.protocol", messagingProtocol);
+        configuration.put("bid.topic.suffix", "UpdateBid");
+        configuration.put("price.info.topic.suffix", "UpdatePriceInfo");
+        configuration.put("broker.uri", "inprocess://loadgenerator");
+        configuration.put("update.interval", 1);
+        configuration.put("auctioneer.id", AUCTIONEER_ID);
+        configuration.put("small.widget", "true");
+        configuration.put("bid.batch.window", 10);
+        configuration.put("minimum.price", "0");
+        configuration.put("maximum.price", "0.99");
+        configuration.put("price.steps", "100");
+        configuration.put("significance", "2");
+
+        for (int i = 0; i < PROFILES; i++) {
+            profiles[i] = EnergyProfile.create().add(Measure.valueOf(1, HOUR), Measure.valueOf(0.1 * (i + 1), KWH))
+                                       .build();
+        }
+    }
+
+    /**
+     * @return The configuration of the sites and the auctioneer, which can be changed until the generator is started
+     */
+    public Map<String, Object> getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Starts the broker, the auctioneer and the sites, and registers the resources of the sites.
+     *
+     * @param context
+     *            The context with which the auctioneer and the controllers register their services
+     * @param timeService
+     *            The time service of the auctioneer and the controllers
+     */
+    public void start(BundleContext context, TimeService timeService) throws Exception {
+        this.timeService = timeService;
+        executorService = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        broker = new InProcessBroker();
+
+        // the auctioneer manager connects its auctioneer to the sites with the same protocol
+        auctioneerManager = new AuctioneerManager() {
+            @Override
+            protected UplinkConnection createUplinkConnection(String brokerUri, String clientId) {
+                return broker.connect(clientId);
+            }
+        };
+        auctioneerManager.setExecutorService(executorService);
+        auctioneerManager.setTimeService(timeService);
+        auctioneerManager.activate(context, configuration);
+        matcherUplink = auctioneerManager.getMatcherUplinks().get(0);
+
+        for (int site = 0; site < sites; site++) {
+            PMController controller = new PMController() {
+                @Override
+                protected UplinkConnection createUplinkConnection(String brokerUri, String clientId) {
+                    return broker.connect(clientId);
+                }
+            };
+            controller.setExecutorService(executorService);
+            controller.setTimeService(timeService);
+            controller.init(context, configuration);
+            controllers.add(controller);
+
+            List<MockResourceManager<UncontrolledControlSpace>> siteResources =
+                    new ArrayList<MockResourceManager<UncontrolledControlSpace>>();
+            for (int i = 0; i < resourcesPerSite; i++) {
+                siteResources.add(MockResourceManager.create("site" + site + "-resource" + i,
+                                                             UncontrolledControlSpace.class));
+            }
+            controller.registerResources(siteResources);
+            resources.addAll(siteResources);
+        }
+        updateCounts = new int[resources.size()];
+    }
+
+    /**
+     * Drives the resources at the given rate, round robin, and measures the result.
+     *
+     * @param offeredRate
+     *            The number of control space updates per second, over all resources
+     * @param durationMillis
+     *            The duration of the step in milliseconds
+     * @return The measurements of the step
+     */
+    public Step runStep(int offeredRate, long durationMillis) throws InterruptedException {
+        long bidsBefore = getBidsPublished();
+        long uplinkBidsBefore = matcherUplink.getBidsReceived();
+        long bytesBefore = broker.getBytesPublished();
+        for (PMController controller : controllers) {
+            controller.getBinaryUplink().resetBidToPriceLatency();
+        }
+
+        long start = System.nanoTime();
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long updates = 0;
+        long elapsed;
+        while ((elapsed = System.nanoTime() - start) < durationNanos) {
+            long due = offeredRate * elapsed / TimeUnit.SECONDS.toNanos(1);
+            if (updates >= due) {
+                Thread.sleep(1);
+                continue;
+            }
+            while (updates < due) {
+                updateResource((int) (updates % resources.size()));
+                updates++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        for (PMController controller : controllers) {
+            latency.add(controller.getBinaryUplink().getBidToPriceLatency());
+        }
+        return new Step(offeredRate,
+                        updates / seconds,
+                        (getBidsPublished() - bidsBefore) / seconds,
+                        (matcherUplink.getBidsReceived() - uplinkBidsBefore) / seconds,
+                        (broker.getBytesPublished() - bytesBefore) / seconds,
+                        latency,
+                        broker.getPendingMessages());
+    }
+
+    /**
+     * Runs steps with a doubling rate, until a step saturates or the maximum rate was run.
+     *
+     * @param initialRate
+     *            The number of control space updates per second of the first step
+     * @param maximumRate
+     *            The highest number of control space updates per second
+     * @param stepMillis
+     *            The duration of every step in milliseconds
+     * @return The measurements of the steps
+     */
+    public Report ramp(int initialRate, int maximumRate, long stepMillis) throws InterruptedException {
+        List<Step> steps = new ArrayList<Step>();
+        for (int rate = initialRate; rate <= maximumRate; rate *= 2) {
+            Step step = runStep(rate, stepMillis);
+            steps.add(step);
+            if (step.isSaturated()) {
+                break;
+            }
+        }
+        return new Report(steps);
+    }
+
+    private void updateResource(int index) {
+        MockResourceManager<UncontrolledControlSpace> resource = resources.get(index);
+        EnergyProfile profile = profiles[updateCounts[index]++ % PROFILES];
+        resource.updateControlSpace(new UncontrolledControlSpace(resource.getResourceId(),
+                                                                 new Date(timeService.getCurrentTimeMillis()),
+                                                                 profile));
+    }
+
+    private long getBidsPublished() {
+        long bids = 0;
+        for (PMController controller : controllers) {
+            for (Agent agent : controller.getAgentList()) {
+                bids += ((FPAIAgent<?>) agent).getBidUpdatesPublished();
+            }
+        }
+        return bids;
+    }
+
+    /**
+     * @return The uplinks of the sites
+     */
+    public List<BinaryAgentUplink> getSiteUplinks() {
+        List<BinaryAgentUplink> uplinks = new ArrayList<BinaryAgentUplink>();
+        for (PMController controller : controllers) {
+            uplinks.add(controller.getBinaryUplink());
+        }
+        return uplinks;
+    }
+
+    /**
+     * @return The uplink of the auctioneer
+     */
+    public BinaryMatcherUplink getMatcherUplink() {
+        return matcherUplink;
+    }
+
+    /**
+     * @return The broker
+     */
+    public InProcessBroker getBroker() {
+        return broker;
+    }
+
+    /**
+     * Stops the sites, the auctioneer and the broker.
+     */
+    public void stop() throws Exception {
+        for (PMController controller : controllers) {
+            controller.deactive();
+        }
+        controllers.clear();
+        resources.clear();
+
+        auctioneerManager.deactivate();
+        broker.close();
+
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
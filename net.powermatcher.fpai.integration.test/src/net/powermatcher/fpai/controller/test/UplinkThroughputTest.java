@@ -0,0 +1,116 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.controller.test.UplinkLoadGenerator.Report;
+import net.powermatcher.fpai.controller.test.UplinkLoadGenerator.Step;
+import net.powermatcher.fpai.uplink.BinaryAgentUplink;
+import net.powermatcher.fpai.uplink.BinaryProtocol;
+
+import org.flexiblepower.time.TimeService;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * End-to-end test of the binary uplink, which runs the {@link UplinkLoadGenerator} against an auctioneer over the
+ * in-process broker at a low, fixed rate, and checks that the bids reach the auctioneer and its prices reach the sites.
+ * <p>
+ * The throughput benchmark, which ramps the rate until the uplink saturates and logs the report of every ramp so
+ * regressions of the throughput can be spotted offline, depends on the machine and takes half a minute per protocol.
+ * It only runs with the system property {@value #BENCHMARK_PROPERTY} set to true.
+ */
+public class UplinkThroughputTest extends TestCase {
+    private static final Logger logger = LoggerFactory.getLogger(UplinkThroughputTest.class);
+
+    private static final String BENCHMARK_PROPERTY = "uplink.benchmark";
+
+    private static final int SITES = 4;
+    private static final int RESOURCES_PER_SITE = 100;
+    private static final int SMOKE_RATE = 200;
+    private static final long SMOKE_MILLIS = 1500;
+    private static final long STEP_MILLIS = 2000;
+
+    private BundleContext bundleContext;
+    private TimeService timeService;
+
+    @Override
+    public void setUp() {
+        bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
+        timeService = new TimeService() {
+            @Override
+            public long getCurrentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public Date getTime() {
+                return new Date();
+            }
+        };
+    }
+
+    public void testBinaryUplink() throws Exception {
+        runSmoke(BinaryProtocol.NAME);
+    }
+
+    public void testDeltaUplink() throws Exception {
+        runSmoke(BinaryProtocol.DELTA_NAME);
+    }
+
+    public void testBinaryUplinkThroughput() throws Exception {
+        if (Boolean.getBoolean(BENCHMARK_PROPERTY)) {
+            runRamp(BinaryProtocol.NAME);
+        }
+    }
+
+    public void testDeltaUplinkThroughput() throws Exception {
+        if (Boolean.getBoolean(BENCHMARK_PROPERTY)) {
+            runRamp(BinaryProtocol.DELTA_NAME);
+        }
+    }
+
+    private void runSmoke(String messagingProtocol) throws Exception {
+        UplinkLoadGenerator generator = new UplinkLoadGenerator(messagingProtocol, SITES, RESOURCES_PER_SITE);
+        generator.start(bundleContext, timeService);
+        try {
+            Step step = generator.runStep(SMOKE_RATE, SMOKE_MILLIS);
+            assertTrue(generator.getMatcherUplink().getBidsReceived() > 0);
+            assertTrue(generator.getMatcherUplink().getPricesPublished() > 0);
+            // the auctioneer publishes its price every update interval
+            assertTrue(step.getBidToPriceLatency().getCount() > 0);
+            assertSiteUplinks(generator);
+        } finally {
+            generator.stop();
+        }
+    }
+
+    private void runRamp(String messagingProtocol) throws Exception {
+        UplinkLoadGenerator generator = new UplinkLoadGenerator(messagingProtocol, SITES, RESOURCES_PER_SITE);
+        generator.start(bundleContext, timeService);
+        try {
+            Report report = generator.ramp(500, 64000, STEP_MILLIS);
+            logger.info("{} uplink, {} sites of {} resources:\n{}",
+                        new Object[] { messagingProtocol, SITES, RESOURCES_PER_SITE, report });
+
+            Step first = report.getSteps().get(0);
+            assertFalse("The lowest rate saturated the uplink: " + first, first.isSaturated());
+            assertTrue(first.getUplinkBidRate() > 0);
+            assertTrue(report.getSustainedBidRate() > 0);
+            assertSiteUplinks(generator);
+        } finally {
+            generator.stop();
+        }
+    }
+
+    private static void assertSiteUplinks(UplinkLoadGenerator generator) {
+        for (BinaryAgentUplink uplink : generator.getSiteUplinks()) {
+            assertEquals(0, uplink.getPublishFailures());
+            if (uplink.getDeltaEncoder() != null) {
+                assertTrue(uplink.getDeltaEncoder().getDeltasSent() > 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.powermatcher.fpai.recorder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single column of a recording: an append-only file which is written through a memory-mapped region. When a value
+ * doesn't fit in the current region, the next region is mapped at the end of the column, so appending never copies
+ * and never blocks on the disk; the operating system writes the pages back in the background.
+ *
+ * @author TNO
+ */
+final class ColumnFile implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int regionSize;
+
+    /** the mapped region in which the next value is written, or null if nothing is mapped yet */
+    private MappedByteBuffer region;
+
+    /** the regions which were written before the current region, and have not been written back to the disk since */
+    private final List<MappedByteBuffer> unforcedRegions = new ArrayList<MappedByteBuffer>();
+
+    /** the length of the column, which is the position of the next value */
+    private long position;
+
+    /**
+     * Opens the column for appending.
+     *
+     * @param path
+     *            The file of the column
+     * @param position
+     *            The committed length of the column; anything beyond it is overwritten
+     * @param regionSize
+     *            The number of bytes which are mapped at once
+     * @throws IOException
+     *             If the file can't be opened
+     */
+    ColumnFile(File path, long position, int regionSize) throws IOException {
+        this.regionSize = regionSize;
+        this.position = position;
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+    }
+
+    /**
+     * @return The length of the column
+     */
+    long position() {
+        return position;
+    }
+
+    private MappedByteBuffer reserve(int bytes) throws IOException {
+        if (region == null || region.remaining() < bytes) {
+            releaseRegion();
+            region = channel.map(MapMode.READ_WRITE, position, Math.max(regionSize, bytes));
+        }
+        position += bytes;
+        return region;
+    }
+
+    void putByte(byte value) throws IOException {
+        reserve(1).put(value);
+    }
+
+    void putInt(int value) throws IOException {
+        reserve(4).putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+        reserve(8).putLong(value);
+    }
+
+    void putDouble(double value) throws IOException {
+        reserve(8).putDouble(value);
+    }
+
+    void putBytes(byte[] value) throws IOException {
+        reserve(value.length).put(value);
+    }
+
+    private void releaseRegion() {
+        if (region != null) {
+            unforcedRegions.add(region);
+            region = null;
+        }
+    }
+
+    /**
+     * Moves the end of the column back, so the values after the position are overwritten by the next values. The
+     * next value is written in a new region.
+     *
+     * @param position
+     *            The new length of the column, which is not beyond its current length
+     */
+    void rewind(long position) {
+        releaseRegion();
+        this.position = position;
+    }
+
+    /**
+     * Writes every region which was written since the previous force back to the disk.
+     */
+    void force() {
+        for (MappedByteBuffer unforced : unforcedRegions) {
+            unforced.force();
+        }
+        unforcedRegions.clear();
+        if (region != null) {
+            region.force();
+        }
+    }
+
+    /**
+     * Closes the column, and truncates the file to its length, which removes the unused part of the last region.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        region = null;
+        try {
+            channel.truncate(position);
+        } catch (IOException e) {
+            // some platforms don't allow truncating a file which is still mapped; the tail is ignored on reading
+        }
+        file.close();
+    }
+}
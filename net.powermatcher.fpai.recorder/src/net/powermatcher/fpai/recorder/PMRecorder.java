@@ -0,0 +1,191 @@
+package net.powermatcher.fpai.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta.AD;
+import aQute.bnd.annotation.metatype.Meta.OCD;
+
+/**
+ * Records every bid and price which is logged to it in a {@link RecordingWriter}, so the bids and prices of all agents
+ * can be looked up and replayed afterwards with a {@link RecordingReader}.
+ * <p>
+ * Handling a log info only offers it to a bounded queue, so the latency of the agent which logs it doesn't depend on
+ * the disk. The queue is drained by the thread of the recorder, which commits the recording every commit interval and
+ * writes it back to the disk every force interval. When the queue is full, log infos are dropped and counted.
+ *
+ * @author TNO
+ */
+@Component(immediate = true, designate = PMRecorder.Config.class, provide = LogListenerService.class)
+public class PMRecorder implements LogListenerService {
+    private static final Logger logger = LoggerFactory.getLogger(PMRecorder.class);
+
+    @OCD
+    interface Config {
+        /** the directory of the recording; an existing recording is continued */
+        @AD(deflt = "recordings")
+        String recording_directory();
+
+        /** the number of bytes of a column which are mapped at once */
+        @AD(deflt = "4194304")
+        int region_size();
+
+        /** the number of log infos which may wait to be recorded */
+        @AD(deflt = "65536")
+        int queue_capacity();
+
+        /** the time in milliseconds after which recorded log infos are visible to readers */
+        @AD(deflt = "1000")
+        int commit_interval();
+
+        /** the time in milliseconds after which the recording is written back to the disk */
+        @AD(deflt = "10000")
+        int force_interval();
+    }
+
+    private BlockingQueue<Object> queue;
+    private RecordingWriter writer;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong eventsRecorded = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+
+    @Activate
+    public void activate(Map<String, Object> properties) throws IOException {
+        final Config config = Configurable.createConfigurable(Config.class, properties);
+        File directory = new File(config.recording_directory());
+        writer = new RecordingWriter(directory, config.region_size());
+        queue = new ArrayBlockingQueue<Object>(config.queue_capacity());
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                record(config.commit_interval(), config.force_interval());
+            }
+        }, "PMRecorder " + directory);
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Recording bids and prices in " + directory.getAbsolutePath() + " from event "
+                    + writer.getEventCount());
+    }
+
+    @Deactivate
+    public void deactivate() {
+        // the thread isn't interrupted, since that would close the channel of a column which is being mapped; it
+        // stops within a commit interval
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Could not close the recording", e);
+        }
+        logger.info("Recorded " + eventsRecorded.get() + " bids and prices, dropped " + eventsDropped.get());
+    }
+
+    @Override
+    public void handleBidLogInfo(BidLogInfo bidLogInfo) {
+        offer(bidLogInfo);
+    }
+
+    @Override
+    public void handlePriceLogInfo(PriceLogInfo priceLogInfo) {
+        offer(priceLogInfo);
+    }
+
+    private void offer(Object logInfo) {
+        BlockingQueue<Object> current = queue;
+        if (current == null || !current.offer(logInfo)) {
+            eventsDropped.incrementAndGet();
+        }
+    }
+
+    /** appends the queued log infos until the recorder is deactivated, and commits and forces periodically */
+    private void record(long commitInterval, long forceInterval) {
+        List<Object> batch = new ArrayList<Object>();
+        long lastCommit = System.currentTimeMillis();
+        long lastForce = lastCommit;
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(commitInterval, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            for (Object logInfo : batch) {
+                append(logInfo);
+            }
+            batch.clear();
+
+            long now = System.currentTimeMillis();
+            if (now - lastCommit >= commitInterval) {
+                writer.commit();
+                lastCommit = now;
+            }
+            if (now - lastForce >= forceInterval) {
+                writer.force();
+                lastForce = now;
+            }
+        }
+    }
+
+    private void append(Object logInfo) {
+        try {
+            if (logInfo instanceof BidLogInfo) {
+                writer.append((BidLogInfo) logInfo);
+            } else {
+                writer.append((PriceLogInfo) logInfo);
+            }
+            eventsRecorded.incrementAndGet();
+        } catch (IOException e) {
+            eventsDropped.incrementAndGet();
+            logger.warn("Could not record " + logInfo, e);
+        } catch (RuntimeException e) {
+            eventsDropped.incrementAndGet();
+            logger.warn("Could not record " + logInfo, e);
+        }
+    }
+
+    /**
+     * @return The number of bids and prices which were recorded
+     */
+    public long getEventsRecorded() {
+        return eventsRecorded.get();
+    }
+
+    /**
+     * @return The number of bids and prices which were dropped, because the queue was full or they couldn't be written
+     */
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+}
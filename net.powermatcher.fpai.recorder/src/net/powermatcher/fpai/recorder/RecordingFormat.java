@@ -0,0 +1,153 @@
+package net.powermatcher.fpai.recorder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+
+/**
+ * The layout of a recording. A recording is a directory with one file per column, which are all appended to by the
+ * {@link RecordingWriter}:
+ * <ul>
+ * <li><code>timestamp.col</code>, the time of every event in milliseconds (long)</li>
+ * <li><code>source.col</code>, the index of the agent of every event in the dictionary (int)</li>
+ * <li><code>type.col</code>, whether the event is a bid or a price (byte)</li>
+ * <li><code>offset.col</code>, the position of the values of every event in <code>data.col</code> (long)</li>
+ * <li><code>data.col</code>, the values of the events: the index of the market basis (int) followed by either the
+ * number of breakpoints of the bid (int) and its breakpoints (int normalized price, double demand), or the price
+ * (double)</li>
+ * <li><code>dictionary</code>, the agents and the market bases which are referred to by their index</li>
+ * <li><code>header</code>, the committed number of events and lengths of the data and the dictionary</li>
+ * </ul>
+ * Only the committed part of the columns is read, so a recording can be read while it is written, and a recording of
+ * a writer which stopped abruptly is consistent up to its last commit.
+ *
+ * @author TNO
+ */
+final class RecordingFormat {
+    static final String HEADER = "header";
+    static final String TIMESTAMPS = "timestamp.col";
+    static final String SOURCES = "source.col";
+    static final String TYPES = "type.col";
+    static final String OFFSETS = "offset.col";
+    static final String DATA = "data.col";
+    static final String DICTIONARY = "dictionary";
+
+    static final int MAGIC = 0x504d5243;
+    static final int VERSION = 1;
+
+    /** magic, version, event count, data length, dictionary length */
+    static final int HEADER_SIZE = 32;
+    static final int EVENT_COUNT_POSITION = 8;
+    static final int DATA_LENGTH_POSITION = 16;
+    static final int DICTIONARY_LENGTH_POSITION = 24;
+
+    static final byte BID = 1;
+    static final byte PRICE = 2;
+
+    static final byte SOURCE_ENTRY = 1;
+    static final byte MARKET_BASIS_ENTRY = 2;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RecordingFormat() {
+    }
+
+    /** An agent which is recorded, identified by its id, its cluster and the qualifier of its log info */
+    static final class Source {
+        final String agentId;
+        final String clusterId;
+        final String qualifier;
+
+        Source(String agentId, String clusterId, String qualifier) {
+            this.agentId = agentId;
+            this.clusterId = clusterId;
+            this.qualifier = qualifier;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Source)) {
+                return false;
+            }
+            Source other = (Source) obj;
+            return equal(agentId, other.agentId) && equal(clusterId, other.clusterId)
+                   && equal(qualifier, other.qualifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * hash(agentId) + hash(clusterId)) + hash(qualifier);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        private static int hash(String value) {
+            return value == null ? 0 : value.hashCode();
+        }
+    }
+
+    /**
+     * @return Whether both market bases describe the same market
+     */
+    static boolean sameMarketBasis(MarketBasis a, MarketBasis b) {
+        return a.getPriceSteps() == b.getPriceSteps() && a.getMinimumPrice() == b.getMinimumPrice()
+               && a.getMaximumPrice() == b.getMaximumPrice()
+               && a.getSignificance() == b.getSignificance()
+               && a.getMarketRef() == b.getMarketRef()
+               && a.getCommodity().equals(b.getCommodity())
+               && a.getCurrency().equals(b.getCurrency());
+    }
+
+    /**
+     * @return The string which is encoded as its length in bytes (-1 for null) followed by its UTF-8 bytes
+     */
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads the entries of a dictionary.
+     *
+     * @param buffer
+     *            The committed part of the dictionary
+     * @param sources
+     *            The list to which the agents are added in the order of their index
+     * @param marketBases
+     *            The list to which the market bases are added in the order of their index
+     */
+    static void readDictionary(ByteBuffer buffer, List<Source> sources, List<MarketBasis> marketBases) {
+        while (buffer.hasRemaining()) {
+            byte entry = buffer.get();
+            if (entry == SOURCE_ENTRY) {
+                sources.add(new Source(getString(buffer), getString(buffer), getString(buffer)));
+            } else if (entry == MARKET_BASIS_ENTRY) {
+                String commodity = getString(buffer);
+                String currency = getString(buffer);
+                int priceSteps = buffer.getInt();
+                double minimumPrice = buffer.getDouble();
+                double maximumPrice = buffer.getDouble();
+                int significance = buffer.getInt();
+                int marketRef = buffer.getInt();
+                marketBases.add(new MarketBasis(commodity,
+                                                currency,
+                                                priceSteps,
+                                                minimumPrice,
+                                                maximumPrice,
+                                                significance,
+                                                marketRef));
+            } else {
+                throw new IllegalStateException("Unknown dictionary entry " + entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.powermatcher.fpai.recorder;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.LogListenerService;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+import net.powermatcher.fpai.recorder.RecordingFormat.Source;
+
+/**
+ * Reads a recording which was written by a {@link RecordingWriter}, up to its last commit at the time it was opened.
+ * The reader indexes the bids and prices of every agent by their time, so the bid or price of an agent at any past
+ * time is found with a binary search and rebuilt from its breakpoints. The events of an agent are kept apart by their
+ * qualifier, since a matcher logs its aggregated bid and price under the same id as its own bid and price.
+ *
+ * @author TNO
+ */
+public class RecordingReader implements Closeable {
+    /** The bids or the prices of a single agent, in the order of their time */
+    private static final class Timeline {
+        private long[] timestamps = new long[16];
+        private long[] offsets = new long[16];
+        private int size;
+
+        void add(long timestamp, long offset) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+
+            // the events of an agent are nearly always appended in order; otherwise they are inserted in place
+            int index = size;
+            while (index > 0 && timestamps[index - 1] > timestamp) {
+                timestamps[index] = timestamps[index - 1];
+                offsets[index] = offsets[index - 1];
+                index--;
+            }
+            timestamps[index] = timestamp;
+            offsets[index] = offset;
+            size++;
+        }
+
+        /**
+         * @return The offset of the data of the last event at or before the timestamp, or -1 if there is none
+         */
+        long find(long timestamp) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] <= timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high < 0 ? -1 : offsets[high];
+        }
+    }
+
+    private final RandomAccessFile[] files;
+    private final FileChannel data;
+    private final long eventCount;
+
+    private final MappedByteBuffer timestamps;
+    private final MappedByteBuffer sources;
+    private final MappedByteBuffer types;
+    private final MappedByteBuffer offsets;
+
+    private final List<Source> sourceList = new ArrayList<Source>();
+    private final List<MarketBasis> marketBases = new ArrayList<MarketBasis>();
+
+    /** the timelines by agent id and qualifier */
+    private final Map<String, Map<String, Timeline>> bids = new HashMap<String, Map<String, Timeline>>();
+    private final Map<String, Map<String, Timeline>> prices = new HashMap<String, Map<String, Timeline>>();
+
+    /**
+     * Opens and indexes a recording.
+     *
+     * @param directory
+     *            The directory of the recording
+     * @throws IOException
+     *             If the directory holds no readable recording
+     */
+    public RecordingReader(File directory) throws IOException {
+        files = new RandomAccessFile[7];
+        try {
+            ByteBuffer header = map(directory, RecordingFormat.HEADER, 0, RecordingFormat.HEADER_SIZE);
+            if (header.getInt(0) != RecordingFormat.MAGIC || header.getInt(4) != RecordingFormat.VERSION) {
+                throw new IOException(directory + " does not hold a recording of a supported version");
+            }
+            eventCount = header.getLong(RecordingFormat.EVENT_COUNT_POSITION);
+            long dictionaryLength = header.getLong(RecordingFormat.DICTIONARY_LENGTH_POSITION);
+
+            RecordingFormat.readDictionary(map(directory, RecordingFormat.DICTIONARY, 1, dictionaryLength),
+                                           sourceList,
+                                           marketBases);
+            timestamps = map(directory, RecordingFormat.TIMESTAMPS, 2, eventCount * 8);
+            sources = map(directory, RecordingFormat.SOURCES, 3, eventCount * 4);
+            types = map(directory, RecordingFormat.TYPES, 4, eventCount);
+            offsets = map(directory, RecordingFormat.OFFSETS, 5, eventCount * 8);
+            files[6] = new RandomAccessFile(new File(directory, RecordingFormat.DATA), "r");
+            data = files[6].getChannel();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        for (int event = 0; event < eventCount; event++) {
+            Source source = sourceList.get(sources.getInt(event * 4));
+            Map<String, Map<String, Timeline>> agents = types.get(event) == RecordingFormat.BID ? bids : prices;
+            Map<String, Timeline> timelines = agents.get(source.agentId);
+            if (timelines == null) {
+                timelines = new HashMap<String, Timeline>();
+                agents.put(source.agentId, timelines);
+            }
+            Timeline timeline = timelines.get(source.qualifier);
+            if (timeline == null) {
+                timeline = new Timeline();
+                timelines.put(source.qualifier, timeline);
+            }
+            timeline.add(timestamps.getLong(event * 8), offsets.getLong(event * 8));
+        }
+    }
+
+    private MappedByteBuffer map(File directory, String name, int index, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("The column " + name + " is too large to be mapped");
+        }
+        files[index] = new RandomAccessFile(new File(directory, name), "r");
+        return files[index].getChannel().map(MapMode.READ_ONLY, 0, length);
+    }
+
+    /**
+     * @return The number of committed events in the recording
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return The ids of the agents of which bids or prices are recorded
+     */
+    public Set<String> getAgentIds() {
+        Set<String> agentIds = new TreeSet<String>(bids.keySet());
+        agentIds.addAll(prices.keySet());
+        return Collections.unmodifiableSet(agentIds);
+    }
+
+    private static Timeline getTimeline(Map<String, Map<String, Timeline>> agents, String agentId, String qualifier) {
+        Map<String, Timeline> timelines = agents.get(agentId);
+        return timelines == null ? null : timelines.get(qualifier);
+    }
+
+    /**
+     * Rebuilds the bid of an agent as it was at the given time.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param qualifier
+     *            The qualifier with which the bid was logged, e.g. agent or matcher
+     * @param timestamp
+     *            The time in milliseconds
+     * @return The last bid of the agent at or before the time, or null if the agent had no bid yet
+     * @throws IOException
+     *             If the bid can't be read
+     */
+    public BidInfo getBid(String agentId, String qualifier, long timestamp) throws IOException {
+        Timeline timeline = getTimeline(bids, agentId, qualifier);
+        long offset = timeline == null ? -1 : timeline.find(timestamp);
+        return offset < 0 ? null : readBid(offset);
+    }
+
+    /**
+     * Looks up the price of an agent as it was at the given time.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param qualifier
+     *            The qualifier with which the price was logged, e.g. agent or matcher
+     * @param timestamp
+     *            The time in milliseconds
+     * @return The last price of the agent at or before the time, or null if the agent had no price yet
+     * @throws IOException
+     *             If the price can't be read
+     */
+    public PriceInfo getPrice(String agentId, String qualifier, long timestamp) throws IOException {
+        Timeline timeline = getTimeline(prices, agentId, qualifier);
+        long offset = timeline == null ? -1 : timeline.find(timestamp);
+        return offset < 0 ? null : readPrice(offset);
+    }
+
+    /**
+     * Replays the events within a period, in the order in which they were recorded.
+     *
+     * @param from
+     *            The start of the period in milliseconds, inclusive
+     * @param to
+     *            The end of the period in milliseconds, inclusive
+     * @param listener
+     *            The listener which receives the bids and prices as log info
+     * @return The number of events which were replayed
+     * @throws IOException
+     *             If an event can't be read
+     */
+    public int replay(long from, long to, LogListenerService listener) throws IOException {
+        int replayed = 0;
+        for (int event = 0; event < eventCount; event++) {
+            long timestamp = timestamps.getLong(event * 8);
+            if (timestamp < from || timestamp > to) {
+                continue;
+            }
+
+            Source source = sourceList.get(sources.getInt(event * 4));
+            long offset = offsets.getLong(event * 8);
+            Date time = new Date(timestamp);
+            if (types.get(event) == RecordingFormat.BID) {
+                listener.handleBidLogInfo(new BidLogInfo(source.agentId,
+                                                         source.clusterId,
+                                                         source.qualifier,
+                                                         readBid(offset),
+                                                         time));
+            } else {
+                listener.handlePriceLogInfo(new PriceLogInfo(source.agentId,
+                                                             source.clusterId,
+                                                             source.qualifier,
+                                                             readPrice(offset),
+                                                             time));
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    private BidInfo readBid(long offset) throws IOException {
+        ByteBuffer head = read(offset, 8);
+        MarketBasis marketBasis = marketBases.get(head.getInt());
+        int size = head.getInt();
+        ByteBuffer breakpoints = read(offset + 8, size * 12);
+        PricePoint[] pricePoints = new PricePoint[size];
+        for (int i = 0; i < size; i++) {
+            pricePoints[i] = new PricePoint(breakpoints.getInt(), breakpoints.getDouble());
+        }
+        return new BidInfo(marketBasis, pricePoints);
+    }
+
+    private PriceInfo readPrice(long offset) throws IOException {
+        ByteBuffer values = read(offset, 12);
+        return new PriceInfo(marketBases.get(values.getInt()), values.getDouble());
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("The data of the recording ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RandomAccessFile file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package net.powermatcher.fpai.recorder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+import net.powermatcher.fpai.recorder.RecordingFormat.Source;
+
+/**
+ * Appends bids and prices to a recording (see {@link RecordingFormat}). The bids are stored as their breakpoints, so a
+ * bid takes a few dozen bytes instead of a demand value per price step. The appended events become visible to readers
+ * when they are committed; an existing recording is continued after its last commit. An event which can't be written
+ * completely is left out, and the columns are moved back to the end of the previous event.
+ * <p>
+ * The writer is not thread-safe; the {@link PMRecorder} appends from a single thread.
+ *
+ * @author TNO
+ */
+public class RecordingWriter implements Closeable {
+    private final RandomAccessFile headerFile;
+    private final MappedByteBuffer header;
+
+    private final ColumnFile timestamps;
+    private final ColumnFile sources;
+    private final ColumnFile types;
+    private final ColumnFile offsets;
+    private final ColumnFile data;
+    private final ColumnFile dictionary;
+
+    private final Map<Source, Integer> sourceIndex = new HashMap<Source, Integer>();
+    private final List<MarketBasis> marketBases = new ArrayList<MarketBasis>();
+
+    /** the market basis of the previous event and its index, which is nearly always the market basis of the next */
+    private MarketBasis lastMarketBasis;
+    private int lastMarketBasisIndex;
+
+    private long eventCount;
+
+    /**
+     * Opens a recording for appending, and creates it if the directory holds no recording.
+     *
+     * @param directory
+     *            The directory of the recording
+     * @param regionSize
+     *            The number of bytes of a column which are mapped at once
+     * @throws IOException
+     *             If the recording can't be opened
+     */
+    public RecordingWriter(File directory, int regionSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the recording directory " + directory);
+        }
+
+        headerFile = new RandomAccessFile(new File(directory, RecordingFormat.HEADER), "rw");
+        boolean existing = headerFile.length() >= RecordingFormat.HEADER_SIZE;
+        header = headerFile.getChannel().map(MapMode.READ_WRITE, 0, RecordingFormat.HEADER_SIZE);
+        long dataLength = 0;
+        long dictionaryLength = 0;
+        if (existing) {
+            if (header.getInt(0) != RecordingFormat.MAGIC || header.getInt(4) != RecordingFormat.VERSION) {
+                headerFile.close();
+                throw new IOException(directory + " does not hold a recording of a supported version");
+            }
+            eventCount = header.getLong(RecordingFormat.EVENT_COUNT_POSITION);
+            dataLength = header.getLong(RecordingFormat.DATA_LENGTH_POSITION);
+            dictionaryLength = header.getLong(RecordingFormat.DICTIONARY_LENGTH_POSITION);
+            loadDictionary(new File(directory, RecordingFormat.DICTIONARY), dictionaryLength);
+        }
+
+        timestamps = new ColumnFile(new File(directory, RecordingFormat.TIMESTAMPS), eventCount * 8, regionSize);
+        sources = new ColumnFile(new File(directory, RecordingFormat.SOURCES), eventCount * 4, regionSize);
+        types = new ColumnFile(new File(directory, RecordingFormat.TYPES), eventCount, regionSize);
+        offsets = new ColumnFile(new File(directory, RecordingFormat.OFFSETS), eventCount * 8, regionSize);
+        data = new ColumnFile(new File(directory, RecordingFormat.DATA), dataLength, regionSize);
+        dictionary = new ColumnFile(new File(directory, RecordingFormat.DICTIONARY), dictionaryLength, regionSize);
+        commit();
+    }
+
+    private void loadDictionary(File file, long length) throws IOException {
+        RandomAccessFile dictionaryFile = new RandomAccessFile(file, "r");
+        try {
+            List<Source> entries = new ArrayList<Source>();
+            RecordingFormat.readDictionary(dictionaryFile.getChannel().map(MapMode.READ_ONLY, 0, length),
+                                           entries,
+                                           marketBases);
+            for (int i = 0; i < entries.size(); i++) {
+                sourceIndex.put(entries.get(i), i);
+            }
+        } finally {
+            dictionaryFile.close();
+        }
+    }
+
+    /**
+     * Appends the bid of a bid log info.
+     */
+    public void append(BidLogInfo bidLogInfo) throws IOException {
+        appendBid(bidLogInfo.getTimestamp().getTime(),
+                  bidLogInfo.getAgentId(),
+                  bidLogInfo.getClusterId(),
+                  bidLogInfo.getQualifier(),
+                  bidLogInfo.getBidInfo());
+    }
+
+    /**
+     * Appends the price of a price log info.
+     */
+    public void append(PriceLogInfo priceLogInfo) throws IOException {
+        appendPrice(priceLogInfo.getTimestamp().getTime(),
+                    priceLogInfo.getAgentId(),
+                    priceLogInfo.getClusterId(),
+                    priceLogInfo.getQualifier(),
+                    priceLogInfo.getPriceInfo());
+    }
+
+    /**
+     * Appends a bid, as its breakpoints.
+     *
+     * @param timestamp
+     *            The time of the bid in milliseconds
+     * @param agentId
+     *            The id of the agent which sent or received the bid
+     * @param clusterId
+     *            The cluster of the agent
+     * @param qualifier
+     *            The qualifier of the log info of the bid
+     * @param bid
+     *            The bid
+     */
+    public void appendBid(long timestamp, String agentId, String clusterId, String qualifier, BidInfo bid)
+            throws IOException {
+        PiecewiseLinearBid breakpoints = PiecewiseLinearBid.of(bid);
+        int source = getSourceIndex(new Source(agentId, clusterId, qualifier));
+        int marketBasis = getMarketBasisIndex(bid.getMarketBasis());
+        long offset = data.position();
+        try {
+            data.putInt(marketBasis);
+            data.putInt(breakpoints.size());
+            for (int i = 0; i < breakpoints.size(); i++) {
+                data.putInt(breakpoints.getPrice(i));
+                data.putDouble(breakpoints.getDemand(i));
+            }
+            appendEvent(timestamp, source, RecordingFormat.BID, offset);
+        } catch (IOException e) {
+            data.rewind(offset);
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a price.
+     *
+     * @param timestamp
+     *            The time of the price in milliseconds
+     * @param agentId
+     *            The id of the agent which sent or received the price
+     * @param clusterId
+     *            The cluster of the agent
+     * @param qualifier
+     *            The qualifier of the log info of the price
+     * @param price
+     *            The price
+     */
+    public void appendPrice(long timestamp, String agentId, String clusterId, String qualifier, PriceInfo price)
+            throws IOException {
+        int source = getSourceIndex(new Source(agentId, clusterId, qualifier));
+        int marketBasis = getMarketBasisIndex(price.getMarketBasis());
+        long offset = data.position();
+        try {
+            data.putInt(marketBasis);
+            data.putDouble(price.getCurrentPrice());
+            appendEvent(timestamp, source, RecordingFormat.PRICE, offset);
+        } catch (IOException e) {
+            data.rewind(offset);
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the row of an event, after its data and dictionary entries are written. The event is only counted when
+     * its row is complete.
+     */
+    private void appendEvent(long timestamp, int source, byte type, long offset) throws IOException {
+        try {
+            timestamps.putLong(timestamp);
+            sources.putInt(source);
+            types.putByte(type);
+            offsets.putLong(offset);
+        } catch (IOException e) {
+            timestamps.rewind(eventCount * 8);
+            sources.rewind(eventCount * 4);
+            types.rewind(eventCount);
+            offsets.rewind(eventCount * 8);
+            throw e;
+        }
+        eventCount++;
+    }
+
+    private int getSourceIndex(Source source) throws IOException {
+        Integer index = sourceIndex.get(source);
+        if (index == null) {
+            long entry = dictionary.position();
+            try {
+                dictionary.putByte(RecordingFormat.SOURCE_ENTRY);
+                putString(source.agentId);
+                putString(source.clusterId);
+                putString(source.qualifier);
+            } catch (IOException e) {
+                dictionary.rewind(entry);
+                throw e;
+            }
+            index = sourceIndex.size();
+            sourceIndex.put(source, index);
+        }
+        return index;
+    }
+
+    private int getMarketBasisIndex(MarketBasis marketBasis) throws IOException {
+        if (marketBasis == lastMarketBasis) {
+            return lastMarketBasisIndex;
+        }
+
+        int index = 0;
+        while (index < marketBases.size() && !RecordingFormat.sameMarketBasis(marketBases.get(index), marketBasis)) {
+            index++;
+        }
+        if (index == marketBases.size()) {
+            long entry = dictionary.position();
+            try {
+                dictionary.putByte(RecordingFormat.MARKET_BASIS_ENTRY);
+                putString(marketBasis.getCommodity());
+                putString(marketBasis.getCurrency());
+                dictionary.putInt(marketBasis.getPriceSteps());
+                dictionary.putDouble(marketBasis.getMinimumPrice());
+                dictionary.putDouble(marketBasis.getMaximumPrice());
+                dictionary.putInt(marketBasis.getSignificance());
+                dictionary.putInt(marketBasis.getMarketRef());
+            } catch (IOException e) {
+                dictionary.rewind(entry);
+                throw e;
+            }
+            marketBases.add(marketBasis);
+        }
+        lastMarketBasis = marketBasis;
+        lastMarketBasisIndex = index;
+        return index;
+    }
+
+    private void putString(String value) throws IOException {
+        if (value == null) {
+            dictionary.putInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(RecordingFormat.UTF8);
+            dictionary.putInt(bytes.length);
+            dictionary.putBytes(bytes);
+        }
+    }
+
+    /**
+     * Makes the appended events visible to readers. The columns are written before the header, so a reader never sees
+     * an event of which the values are not written yet.
+     */
+    public void commit() {
+        header.putInt(0, RecordingFormat.MAGIC);
+        header.putInt(4, RecordingFormat.VERSION);
+        header.putLong(RecordingFormat.DATA_LENGTH_POSITION, data.position());
+        header.putLong(RecordingFormat.DICTIONARY_LENGTH_POSITION, dictionary.position());
+        header.putLong(RecordingFormat.EVENT_COUNT_POSITION, eventCount);
+    }
+
+    /**
+     * Writes the recording back to the disk, so the committed events survive a crash of the operating system. The
+     * events survive a crash of the process as soon as they are committed.
+     */
+    public void force() {
+        timestamps.force();
+        sources.force();
+        types.force();
+        offsets.force();
+        data.force();
+        dictionary.force();
+        header.force();
+    }
+
+    /**
+     * @return The number of events in the recording, committed or not
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Commits the appended events and closes the recording.
+     */
+    @Override
+    public void close() throws IOException {
+        commit();
+        timestamps.close();
+        sources.close();
+        types.close();
+        offsets.close();
+        data.close();
+        dictionary.close();
+        header.force();
+        headerFile.close();
+    }
+}
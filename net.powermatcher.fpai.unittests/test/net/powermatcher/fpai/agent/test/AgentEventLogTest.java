@@ -0,0 +1,94 @@
+package net.powermatcher.fpai.agent.test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.agent.AgentEventLog;
+import net.powermatcher.fpai.agent.AgentEventLog.Event;
+import net.powermatcher.fpai.agent.AgentEventLog.Kind;
+
+/** Unit test for {@link AgentEventLog}. */
+public class AgentEventLogTest extends TestCase {
+    /** a value which counts how often it is formatted */
+    private static class CountingValue {
+        int formatted;
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "value";
+        }
+    }
+
+    public void testSampling() {
+        AgentEventLog log = new AgentEventLog(100, 4);
+        int sampled = 0;
+        for (int i = 0; i < 40; i++) {
+            if (log.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(10, sampled);
+
+        log.setSampleRate(0);
+        assertFalse(log.sample());
+        log.setSampleRate(1);
+        assertTrue(log.sample());
+        assertTrue(log.sample());
+    }
+
+    public void testConcurrentSampling() throws InterruptedException {
+        final AgentEventLog log = new AgentEventLog(100, 4);
+        final AtomicInteger sampled = new AtomicInteger();
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        if (log.sample()) {
+                            sampled.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // no offered event is lost, so exactly one in every four is sampled
+        assertEquals(50000, sampled.get());
+    }
+
+    public void testRingBufferKeepsNewestEvents() {
+        AgentEventLog log = new AgentEventLog(4, 1);
+        for (int i = 0; i < 10; i++) {
+            log.record(i, Kind.BID_REUSED, null, null, 0, i);
+        }
+
+        List<Event> events = log.getEvents();
+        assertEquals(4, events.size());
+        assertEquals(6, events.get(0).getTime());
+        assertEquals(9, events.get(3).getTime());
+        assertEquals("Control space and time bucket (9) unchanged, reusing the bid", events.get(3).getMessage());
+        assertEquals(10, log.getRecorded());
+
+        log.clear();
+        assertTrue(log.getEvents().isEmpty());
+    }
+
+    public void testMessageIsFormattedWhenRead() {
+        AgentEventLog log = new AgentEventLog(4, 1);
+        CountingValue allocation = new CountingValue();
+        log.record(0, Kind.ALLOCATION, null, allocation, 12.5, 0);
+        log.record(1, Kind.MESSAGE, "Turning device ON for at least ", allocation, 0, 0);
+        assertEquals(0, allocation.formatted);
+
+        List<Event> events = log.getEvents();
+        assertEquals("Price update (12.5) triggered calculation of new allocation: value", events.get(0).getMessage());
+        assertEquals("Turning device ON for at least value", events.get(1).getMessage());
+        assertEquals(2, allocation.formatted);
+    }
+}
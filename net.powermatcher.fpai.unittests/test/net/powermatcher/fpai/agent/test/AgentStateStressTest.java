@@ -0,0 +1,206 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.NonSI.KWH;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.test.BidAnalyzer;
+import net.powermatcher.fpai.test.MockMatcherService;
+import net.powermatcher.fpai.test.MockResourceManager;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.Allocation;
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+
+/**
+ * Stress test for the lock-free state handling of {@link FPAIAgent}, in the style of jcstress: in every round a number
+ * of actor threads concurrently update the control space, trigger periodic bid updates and send prices, after which
+ * the outcome is checked. The bid and allocation calculations may never overlap, the bid for the last control space
+ * must be published last and every bid update request must be accounted for.
+ */
+public class AgentStateStressTest extends TestCase {
+    private static final String RESOURCE_ID = "appliance-id";
+    private static final String CFG_PREFIX = "agent.agent1";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+
+    private static final int ROUNDS = 20;
+    private static final int UPDATES_PER_ACTOR = 200;
+
+    /** detects overlapping invocations of the calculations and exposes the periodic bid update */
+    private static class TestAgent extends UncontrolledAgent {
+        private final AtomicInteger calculating = new AtomicInteger();
+        private final AtomicInteger overlaps = new AtomicInteger();
+
+        public TestAgent(ConfigurationService configuration) {
+            super(configuration);
+        }
+
+        @Override
+        public void doBidUpdate() {
+            super.doBidUpdate();
+        }
+
+        @Override
+        protected BidInfo createBid(UncontrolledControlSpace controlSpace, MarketBasis marketBasis) {
+            enter();
+            try {
+                return super.createBid(controlSpace, marketBasis);
+            } finally {
+                calculating.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected Allocation
+                createAllocation(BidInfo lastBid, PriceInfo newPriceInfo, UncontrolledControlSpace controlSpace) {
+            enter();
+            try {
+                return super.createAllocation(lastBid, newPriceInfo, controlSpace);
+            } finally {
+                calculating.decrementAndGet();
+            }
+        }
+
+        private void enter() {
+            if (calculating.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+            // give other threads the opportunity to interfere
+            Thread.yield();
+        }
+    }
+
+    private TestAgent agent;
+    private MockTimeService timeService;
+    private MockResourceManager<UncontrolledControlSpace> resourceManager;
+    private MockMatcherService parent;
+
+    private void setUpRound() {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", "agent1");
+        cfg.put(CFG_PREFIX + ".matcher.id", "concentrator1");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+
+        agent = new TestAgent(new PrefixedConfiguration(cfg, CFG_PREFIX));
+
+        timeService = new MockTimeService();
+        agent.setFpaiTimeService(timeService);
+        agent.bind(timeService);
+
+        resourceManager = MockResourceManager.create(RESOURCE_ID, UncontrolledControlSpace.class);
+        agent.bind(resourceManager);
+
+        parent = new MockMatcherService();
+        agent.bind(parent);
+
+        agent.updateMarketBasis(MARKET_BASIS);
+    }
+
+    private void tearDownRound() {
+        agent.unbind(resourceManager);
+        agent.unbind(timeService);
+        agent.unbind(parent);
+    }
+
+    public void testConcurrentUpdates() throws Throwable {
+        for (int round = 0; round < ROUNDS; round++) {
+            setUpRound();
+
+            // the control space actor sends increasing demands, the last one is 200 kW
+            Runnable controlSpaceActor = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= UPDATES_PER_ACTOR; i++) {
+                        sendControlSpace(i);
+                    }
+                }
+            };
+            Runnable periodicActor = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < UPDATES_PER_ACTOR; i++) {
+                        agent.doBidUpdate();
+                    }
+                }
+            };
+            Runnable priceActor = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < UPDATES_PER_ACTOR; i++) {
+                        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, i % 50));
+                    }
+                }
+            };
+            runConcurrently(controlSpaceActor, periodicActor, priceActor);
+
+            // arbiter
+            assertEquals("bid and allocation calculations overlapped", 0, agent.overlaps.get());
+            assertEquals(2 * UPDATES_PER_ACTOR, agent.getBidUpdatesReceived());
+            assertEquals(agent.getBidUpdatesReceived(),
+                         agent.getBidUpdatesPublished() + agent.getBidUpdatesCoalesced());
+            BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()),
+                                               Measure.valueOf(UPDATES_PER_ACTOR * 1000, WATT));
+
+            tearDownRound();
+        }
+    }
+
+    /** starts all actors at the same time and waits for them to finish, rethrowing the first failure */
+    private static void runConcurrently(Runnable... actors) throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Runnable actor : actors) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        actor.run();
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    /** sends a control space with a constant demand of the given number of kW */
+    private void sendControlSpace(double kiloWatt) {
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(kiloWatt, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+    }
+}
@@ -0,0 +1,177 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.NonSI.KWH;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.test.MockMatcherService;
+import net.powermatcher.fpai.test.MockResourceManager;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.Allocation;
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+
+/** Unit test for the dispatching of allocations on an executor by {@link FPAIAgent}. */
+public class AllocationDispatchTest extends TestCase {
+    private static final String RESOURCE_ID = "appliance-id";
+    private static final String CFG_PREFIX = "agent.agent1";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+
+    /** records the prices for which an allocation was calculated, and allocates the profile of the control space */
+    private static class TestAgent extends UncontrolledAgent {
+        private final List<Double> allocatedPrices = new ArrayList<Double>();
+        private boolean allocating = true;
+
+        public TestAgent(ConfigurationService configuration) {
+            super(configuration);
+        }
+
+        @Override
+        protected Allocation
+                createAllocation(BidInfo lastBid, PriceInfo newPriceInfo, UncontrolledControlSpace controlSpace) {
+            allocatedPrices.add(newPriceInfo.getCurrentPrice());
+            if (!allocating) {
+                return super.createAllocation(lastBid, newPriceInfo, controlSpace);
+            }
+            return new Allocation(controlSpace,
+                                  new Date(getTimeSource().currentTimeMillis()),
+                                  controlSpace.getEnergyProfile());
+        }
+    }
+
+    /** executes the submitted tasks when asked to */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        public void executePending() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private TestAgent agent;
+    private MockTimeService timeService;
+    private ManualExecutor executor;
+    private MockResourceManager<UncontrolledControlSpace> resourceManager;
+    private MockMatcherService parent;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", "agent1");
+        cfg.put(CFG_PREFIX + ".matcher.id", "concentrator1");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+
+        agent = new TestAgent(new PrefixedConfiguration(cfg, CFG_PREFIX));
+
+        timeService = new MockTimeService();
+        agent.setFpaiTimeService(timeService);
+        agent.bind(timeService);
+
+        executor = new ManualExecutor();
+        agent.setAllocationExecutor(executor);
+
+        resourceManager = MockResourceManager.create(RESOURCE_ID, UncontrolledControlSpace.class);
+        agent.bind(resourceManager);
+
+        parent = new MockMatcherService();
+        agent.bind(parent);
+
+        agent.updateMarketBasis(MARKET_BASIS);
+
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+        executor.executePending();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        agent.unbind(timeService);
+        agent.unbind(parent);
+    }
+
+    public void testAllocationIsDispatchedOnExecutor() {
+        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, 10));
+
+        // the price thread only queues the allocation
+        assertTrue(agent.allocatedPrices.isEmpty());
+        assertEquals(1, agent.getAllocationQueueDepth());
+
+        executor.executePending();
+        assertEquals(1, agent.allocatedPrices.size());
+        assertEquals(10d, agent.allocatedPrices.get(0));
+        assertEquals(0, agent.getAllocationQueueDepth());
+        assertEquals(1, agent.getAllocationsDispatched());
+        assertTrue(agent.getMaxAllocationLatencyNanos() >= agent.getLastAllocationLatencyNanos());
+        assertNotNull(resourceManager.getLastAllocation());
+    }
+
+    public void testBidIsCalculatedOnExecutor() {
+        assertEquals(1, agent.getBidUpdatesPublished());
+
+        // the thread which delivers the control space only queues the bid update
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(2, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+        assertEquals(1, agent.getBidUpdatesPublished());
+
+        executor.executePending();
+        assertEquals(2, agent.getBidUpdatesPublished());
+    }
+
+    public void testUndeliveredAllocationIsNotCounted() {
+        agent.allocating = false;
+        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, 10));
+        executor.executePending();
+
+        // the allocation was calculated, but nothing was delivered to the resource
+        assertEquals(1, agent.allocatedPrices.size());
+        assertEquals(0, agent.getAllocationQueueDepth());
+        assertEquals(0, agent.getAllocationsDispatched());
+        assertEquals(0, agent.getPriceToAllocationLatency().getCount());
+    }
+
+    public void testQueuedPricesAreSuperseded() {
+        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, 10));
+        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, 20));
+        agent.updatePriceInfo(new PriceInfo(MARKET_BASIS, 30));
+        assertEquals(3, agent.getAllocationQueueDepth());
+        // the work is handed to the executor once
+        assertEquals(1, executor.tasks.size());
+
+        // a single allocation is calculated, for the latest price
+        executor.executePending();
+        assertEquals(1, agent.allocatedPrices.size());
+        assertEquals(30d, agent.allocatedPrices.get(0));
+        assertEquals(0, agent.getAllocationQueueDepth());
+        assertEquals(1, agent.getAllocationsDispatched());
+        assertEquals(2, agent.getAllocationsSuperseded());
+    }
+}
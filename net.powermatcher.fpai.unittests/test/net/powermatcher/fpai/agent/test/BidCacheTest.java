@@ -0,0 +1,122 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.NonSI.KWH;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Properties;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.core.configurable.service.ConfigurationService;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.test.BidAnalyzer;
+import net.powermatcher.fpai.test.MockMatcherService;
+import net.powermatcher.fpai.test.MockResourceManager;
+import net.powermatcher.fpai.test.MockScheduledExecutor;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+
+/** Unit test for the memoization of bids by {@link FPAIAgent}. */
+public class BidCacheTest extends TestCase {
+    private static final String RESOURCE_ID = "appliance-id";
+    private static final String CFG_PREFIX = "agent.agent1";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+
+    /** exposes the periodic bid update */
+    private static class TestAgent extends UncontrolledAgent {
+        public TestAgent(ConfigurationService configuration) {
+            super(configuration);
+        }
+
+        @Override
+        public synchronized void doBidUpdate() {
+            super.doBidUpdate();
+        }
+    }
+
+    private TestAgent agent;
+    private MockTimeService timeService;
+    private MockScheduledExecutor executor;
+    private MockResourceManager<UncontrolledControlSpace> resourceManager;
+    private MockMatcherService parent;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", "agent1");
+        cfg.put(CFG_PREFIX + ".matcher.id", "concentrator1");
+        cfg.put(CFG_PREFIX + ".update.interval", "3600");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+
+        agent = new TestAgent(new PrefixedConfiguration(cfg, CFG_PREFIX));
+
+        timeService = new MockTimeService();
+        agent.setFpaiTimeService(timeService);
+        agent.bind(timeService);
+
+        executor = new MockScheduledExecutor(timeService);
+        agent.bind(executor);
+
+        resourceManager = MockResourceManager.create(RESOURCE_ID, UncontrolledControlSpace.class);
+        agent.bind(resourceManager);
+
+        parent = new MockMatcherService();
+        agent.bind(parent);
+
+        agent.updateMarketBasis(MARKET_BASIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        agent.unbind(executor);
+        agent.unbind(timeService);
+        agent.unbind(parent);
+    }
+
+    public void testBidIsReusedWithinProfileElement() {
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH))
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(2, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()), Measure.valueOf(1000, WATT));
+        long misses = agent.getBidCacheMisses();
+
+        // the same control space within the same profile element gives the same bid
+        timeService.stepInTime(60 * 1000);
+        agent.doBidUpdate();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()), Measure.valueOf(1000, WATT));
+        assertEquals(1, agent.getBidCacheHits());
+        assertEquals(misses, agent.getBidCacheMisses());
+
+        // the next profile element is another time bucket
+        timeService.stepInTime(60 * 60 * 1000);
+        agent.doBidUpdate();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()), Measure.valueOf(2000, WATT));
+        assertEquals(1, agent.getBidCacheHits());
+        assertEquals(misses + 1, agent.getBidCacheMisses());
+    }
+
+    public void testNewMarketBasisIsCacheMiss() {
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(1, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+        long misses = agent.getBidCacheMisses();
+
+        agent.updateMarketBasis(new MarketBasis("Electricity", "EUR", 200, 0, 50, 1, 0));
+        agent.doBidUpdate();
+        assertEquals(200, parent.getLastBid(agent.getId()).getMarketBasis().getPriceSteps());
+        assertEquals(0, agent.getBidCacheHits());
+        assertTrue(agent.getBidCacheMisses() > misses);
+    }
+}
@@ -0,0 +1,117 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.NonSI.KWH;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Properties;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.test.BidAnalyzer;
+import net.powermatcher.fpai.test.MockMatcherService;
+import net.powermatcher.fpai.test.MockResourceManager;
+import net.powermatcher.fpai.test.MockScheduledExecutor;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.UncontrolledControlSpace;
+import org.flexiblepower.rai.values.EnergyProfile;
+
+/** Unit test for the coalescing of bid updates by {@link FPAIAgent}. */
+public class BidCoalescingTest extends TestCase {
+    private static final String RESOURCE_ID = "appliance-id";
+    private static final String CFG_PREFIX = "agent.agent1";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+
+    private UncontrolledAgent agent;
+    private MockTimeService timeService;
+    private MockScheduledExecutor executor;
+    private MockResourceManager<UncontrolledControlSpace> resourceManager;
+    private MockMatcherService parent;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", "agent1");
+        cfg.put(CFG_PREFIX + ".matcher.id", "concentrator1");
+        cfg.put(CFG_PREFIX + ".update.interval", "3600");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + "." + FPAIAgent.BID_COALESCE_WINDOW_PROPERTY, "1000");
+        cfg.put(CFG_PREFIX + "." + FPAIAgent.BID_COALESCE_TOLERANCE_PROPERTY, "1");
+
+        agent = new UncontrolledAgent(new PrefixedConfiguration(cfg, CFG_PREFIX));
+
+        timeService = new MockTimeService();
+        agent.setFpaiTimeService(timeService);
+        agent.bind(timeService);
+
+        executor = new MockScheduledExecutor(timeService);
+        agent.bind(executor);
+
+        resourceManager = MockResourceManager.create(RESOURCE_ID, UncontrolledControlSpace.class);
+        agent.bind(resourceManager);
+
+        parent = new MockMatcherService();
+        agent.bind(parent);
+
+        agent.updateMarketBasis(MARKET_BASIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        agent.unbind(executor);
+        agent.unbind(timeService);
+        agent.unbind(parent);
+    }
+
+    public void testUpdatesWithinWindowAreCoalesced() {
+        // the first update is published immediately
+        sendControlSpace(1);
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()), Measure.valueOf(1000, WATT));
+        assertEquals(1, agent.getBidUpdatesPublished());
+
+        // the updates within the window are published as a single bid at the end of the window
+        sendControlSpace(2);
+        sendControlSpace(3);
+        sendControlSpace(4);
+        assertNull(parent.getLastBid(agent.getId()));
+        assertEquals(1, agent.getBidUpdatesPublished());
+
+        timeService.stepInTime(1000);
+        executor.executePending();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(agent.getId()), Measure.valueOf(4000, WATT));
+
+        assertEquals(4, agent.getBidUpdatesReceived());
+        assertEquals(2, agent.getBidUpdatesCoalesced());
+        assertEquals(2, agent.getBidUpdatesPublished());
+    }
+
+    public void testUnchangedBidIsSuppressed() {
+        sendControlSpace(1);
+        assertNotNull(parent.getLastBid(agent.getId()));
+
+        // after the window a bid which is equal within the tolerance is not published
+        timeService.stepInTime(1000);
+        sendControlSpace(1.0005);
+        assertNull(parent.getLastBid(agent.getId()));
+
+        assertEquals(2, agent.getBidUpdatesReceived());
+        assertEquals(1, agent.getBidUpdatesCoalesced());
+        assertEquals(1, agent.getBidUpdatesPublished());
+    }
+
+    /** sends a control space with a constant demand of the given number of kW */
+    private void sendControlSpace(double kiloWatt) {
+        EnergyProfile profile = EnergyProfile.create()
+                                             .add(Measure.valueOf(1, HOUR), Measure.valueOf(kiloWatt, KWH))
+                                             .build();
+        resourceManager.updateControlSpace(new UncontrolledControlSpace(RESOURCE_ID, timeService.getDate(), profile));
+    }
+}
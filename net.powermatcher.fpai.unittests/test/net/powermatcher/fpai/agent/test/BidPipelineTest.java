@@ -0,0 +1,94 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.SI.WATT;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.agent.BidPipeline;
+import net.powermatcher.fpai.test.BidAnalyzer;
+
+import org.flexiblepower.rai.values.ConstraintList;
+
+/** Unit test for {@link BidPipeline}. */
+public class BidPipelineTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 100, 1, 0);
+
+    private final BidPipeline pipeline = new BidPipeline();
+
+    /** a sloped bid from 1000W to -1000W between price steps 20 and 80 */
+    private final BidInfo slopedBid = new BidInfo(MARKET_BASIS, new PricePoint(20, 1000), new PricePoint(80, -1000));
+
+    public void testEmptyPipelineReturnsBid() {
+        assertSame(slopedBid, pipeline.reset().apply(slopedBid));
+    }
+
+    /** the expansion of price points by the pipeline must match the expansion by the bid itself */
+    public void testPricePointExpansion() {
+        BidInfo stepBid = new BidInfo(MARKET_BASIS, new PricePoint(40, 500), new PricePoint(40, 0));
+
+        BidAnalyzer.assertBidsEqual(slopedBid, pipeline.reset().clampMinimum(-Double.MAX_VALUE).apply(slopedBid));
+        BidAnalyzer.assertBidsEqual(stepBid, pipeline.reset().clampMinimum(-Double.MAX_VALUE).apply(stepBid));
+    }
+
+    public void testClamp() {
+        BidInfo bid = pipeline.reset().clampMinimum(-500).clampMaximum(250).apply(slopedBid);
+
+        double[] original = slopedBid.getDemand();
+        double[] demand = bid.getDemand();
+        assertEquals(original.length, demand.length);
+        for (int i = 0; i < demand.length; i++) {
+            assertEquals(Math.min(250, Math.max(-500, original[i])), demand[i], 0.0001);
+        }
+    }
+
+    public void testRoundToConstraints() {
+        ConstraintList<Power> pcl = ConstraintList.create(WATT).addSingle(-1000).addRange(200, 600).build();
+
+        double[] demand = pipeline.reset().roundToConstraints(pcl, false).apply(slopedBid).getDemand();
+        double[] original = slopedBid.getDemand();
+        for (int i = 0; i < demand.length; i++) {
+            if (original[i] >= 200 && original[i] <= 600) {
+                assertEquals(original[i], demand[i], 0.0001);
+            } else {
+                assertTrue(demand[i] == -1000 || demand[i] == 200 || demand[i] == 600);
+            }
+        }
+
+        // with zero included, values around 0 should be rounded to 0 instead of 200
+        demand = pipeline.reset().roundToConstraints(pcl, true).apply(slopedBid).getDemand();
+        for (int i = 0; i < demand.length; i++) {
+            if (Math.abs(original[i]) < 100) {
+                assertEquals(0d, demand[i]);
+            }
+        }
+    }
+
+    /** the stages are applied in the order in which they are added */
+    public void testStageOrder() {
+        ConstraintList<Power> pcl = ConstraintList.create(WATT).addSingle(0).addSingle(1000).build();
+
+        BidAnalyzer.assertDemandAtLeast(pipeline.reset().roundToConstraints(pcl, false).clampMinimum(300).apply(slopedBid),
+                                        Measure.valueOf(300, WATT));
+        BidAnalyzer.assertDemandAtMost(pipeline.reset().clampMaximum(300).roundToConstraints(pcl, false).apply(slopedBid),
+                                       Measure.valueOf(0, WATT));
+    }
+
+    public void testBuffer() {
+        double[] buffer = pipeline.reset().clampMaximum(10).getBuffer(MARKET_BASIS);
+        assertTrue(buffer.length >= MARKET_BASIS.getPriceSteps());
+        for (int i = 0; i < MARKET_BASIS.getPriceSteps(); i++) {
+            buffer[i] = i;
+        }
+
+        BidInfo bid = pipeline.applyToBuffer(MARKET_BASIS);
+        double[] demand = bid.getDemand();
+        assertEquals(MARKET_BASIS.getPriceSteps(), demand.length);
+        assertEquals(0d, demand[0]);
+        assertEquals(10d, demand[demand.length - 1]);
+    }
+}
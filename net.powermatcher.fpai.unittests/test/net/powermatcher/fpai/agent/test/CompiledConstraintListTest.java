@@ -0,0 +1,111 @@
+package net.powermatcher.fpai.agent.test;
+
+import static javax.measure.unit.SI.WATT;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.agent.CompiledConstraintList;
+import net.powermatcher.fpai.agent.ConstraintListUtil;
+
+import org.flexiblepower.rai.values.ConstraintList;
+
+/** Unit test for {@link CompiledConstraintList}. */
+public class CompiledConstraintListTest extends TestCase {
+    /** constraints which are deliberately not sorted and partly overlapping */
+    private final ConstraintList<Power> pcl = ConstraintList.create(WATT)
+                                                            .addRange(500, 800)
+                                                            .addSingle(-1000)
+                                                            .addRange(100, 200)
+                                                            .addRange(700, 900)
+                                                            .build();
+
+    private final CompiledConstraintList compiled = CompiledConstraintList.compile(pcl);
+
+    public void testMinimumMaximum() {
+        assertEquals(-1000d, compiled.getMinimum());
+        assertEquals(900d, compiled.getMaximum());
+        assertFalse(compiled.isEmpty());
+    }
+
+    public void testContains() {
+        assertTrue(compiled.contains(-1000));
+        assertTrue(compiled.contains(150));
+        assertTrue(compiled.contains(850));
+        assertFalse(compiled.contains(0));
+        assertFalse(compiled.contains(300));
+        assertFalse(compiled.contains(1000));
+    }
+
+    public void testClosest() {
+        assertEquals(-1000d, compiled.closest(-2000));
+        assertEquals(100d, compiled.closest(0));
+        assertEquals(150d, compiled.closest(150));
+        assertEquals(200d, compiled.closest(300));
+        assertEquals(500d, compiled.closest(400));
+        assertEquals(900d, compiled.closest(5000));
+
+        // equally close to 200 and 500, the constraint which comes first in the list wins
+        assertEquals(500d, compiled.closest(350));
+
+        assertEquals(0d, compiled.closest(10, true));
+        assertEquals(100d, compiled.closest(90, true));
+    }
+
+    /** the closest value must match the (linear) lookup of ConstraintListUtil */
+    public void testClosestMatchesConstraintListUtil() {
+        for (int watt = -1500; watt <= 1500; watt += 5) {
+            assertClosestMatches(pcl, compiled, watt);
+        }
+    }
+
+    /** the ties are broken like the linear lookup, in favour of the constraint which comes first in the list */
+    public void testClosestTieBreak() {
+        ConstraintList<Power> lowFirst = ConstraintList.create(WATT).addSingle(100).addSingle(300).build();
+        ConstraintList<Power> highFirst = ConstraintList.create(WATT).addSingle(300).addSingle(100).build();
+        assertEquals(100d, CompiledConstraintList.compile(lowFirst).closest(200));
+        assertEquals(300d, CompiledConstraintList.compile(highFirst).closest(200));
+
+        // the bound of a merged constraint keeps the first position of the constraints which share it
+        ConstraintList<Power> merged = ConstraintList.create(WATT)
+                                                     .addRange(400, 500)
+                                                     .addSingle(300)
+                                                     .addRange(-100, 100)
+                                                     .addRange(0, 100)
+                                                     .build();
+        CompiledConstraintList compiledMerged = CompiledConstraintList.compile(merged);
+        assertEquals(300d, compiledMerged.closest(200));
+        assertEquals(400d, compiledMerged.closest(350));
+        for (int watt = -200; watt <= 600; watt += 25) {
+            assertClosestMatches(merged, compiledMerged, watt);
+        }
+    }
+
+    private static void assertClosestMatches(ConstraintList<Power> pcl, CompiledConstraintList compiled, int watt) {
+        double expected = ConstraintListUtil.getClosestPower(pcl, Measure.valueOf(watt, WATT)).doubleValue(WATT);
+        assertEquals("closest to " + watt, expected, compiled.closest(watt), 0.0001);
+    }
+
+    public void testFloorCeil() {
+        assertEquals(150d, compiled.floor(150));
+        assertEquals(200d, compiled.floor(300));
+        assertEquals(-1000d, compiled.floor(0));
+        assertTrue(Double.isNaN(compiled.floor(-1001)));
+
+        assertEquals(150d, compiled.ceil(150));
+        assertEquals(500d, compiled.ceil(300));
+        assertEquals(100d, compiled.ceil(0));
+        assertTrue(Double.isNaN(compiled.ceil(901)));
+    }
+
+    public void testCompileReusesPrevious() {
+        assertSame(compiled, CompiledConstraintList.compile(pcl, compiled));
+        assertTrue(compiled.isCompiledFrom(pcl));
+
+        ConstraintList<Power> other = ConstraintList.create(WATT).addSingle(0).build();
+        CompiledConstraintList otherCompiled = CompiledConstraintList.compile(other, compiled);
+        assertNotSame(compiled, otherCompiled);
+        assertEquals(0d, otherCompiled.closest(1234));
+    }
+}
@@ -0,0 +1,69 @@
+package net.powermatcher.fpai.agent.test;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.agent.LatencyHistogram;
+
+/** Unit test for {@link LatencyHistogram}. */
+public class LatencyHistogramTest extends TestCase {
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.getCount());
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(50, histogram.getValueAtPercentile(99));
+        assertEquals(50, histogram.getMax());
+    }
+
+    public void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 microseconds
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertWithinPrecision(500000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(990000, histogram.getValueAtPercentile(99));
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testValuesAboveHighestTrackableValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+        assertEquals(2, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    public void testAdd() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(20);
+        second.record(30);
+
+        LatencyHistogram aggregate = first.copy();
+        aggregate.add(second);
+        assertEquals(3, aggregate.getCount());
+        assertEquals(30, aggregate.getMax());
+        assertEquals(20, aggregate.getValueAtPercentile(50));
+
+        // the copy is independent of the original
+        assertEquals(1, first.getCount());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 32);
+    }
+}
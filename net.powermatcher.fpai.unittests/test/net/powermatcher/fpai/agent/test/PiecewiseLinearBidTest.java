@@ -0,0 +1,112 @@
+package net.powermatcher.fpai.agent.test;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.agent.BidUtil;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+
+/** Unit test for {@link PiecewiseLinearBid}. */
+public class PiecewiseLinearBidTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 100, 1, 0);
+
+    /** a sloped bid from 1000W to -1000W between price steps 20 and 80 */
+    private final BidInfo slopedBid = new BidInfo(MARKET_BASIS, new PricePoint(20, 1000), new PricePoint(80, -1000));
+
+    /** a step from 500W to 0W at price step 40 */
+    private final BidInfo stepBid = new BidInfo(MARKET_BASIS, new PricePoint(40, 500), new PricePoint(40, 0));
+
+    /** the demand at every price must match the expansion by the bid itself */
+    public void testDemandAt() {
+        assertDemandEquals(slopedBid.getDemand(), PiecewiseLinearBid.of(slopedBid));
+        assertDemandEquals(stepBid.getDemand(), PiecewiseLinearBid.of(stepBid));
+    }
+
+    public void testToDemandArray() {
+        assertArrayEquals(slopedBid.getDemand(), PiecewiseLinearBid.of(slopedBid).toDemandArray());
+        assertArrayEquals(stepBid.getDemand(), PiecewiseLinearBid.of(stepBid).toDemandArray());
+    }
+
+    public void testCompressDenseBid() {
+        PiecewiseLinearBid sloped = PiecewiseLinearBid.of(new BidInfo(MARKET_BASIS, slopedBid.getDemand()));
+        assertEquals(4, sloped.size());
+        assertDemandEquals(slopedBid.getDemand(), sloped);
+
+        PiecewiseLinearBid step = PiecewiseLinearBid.of(new BidInfo(MARKET_BASIS, stepBid.getDemand()));
+        assertEquals(4, step.size());
+        assertDemandEquals(stepBid.getDemand(), step);
+
+        PiecewiseLinearBid flat = PiecewiseLinearBid.of(new BidInfo(MARKET_BASIS, new double[100]));
+        assertEquals(1, flat.size());
+        assertEquals(0d, flat.getDemandAt(50));
+    }
+
+    public void testFirstAndLastDemand() {
+        PiecewiseLinearBid bid = PiecewiseLinearBid.of(slopedBid);
+        assertEquals(1000d, bid.getFirstDemand());
+        assertEquals(-1000d, bid.getLastDemand());
+        assertEquals(1000d, bid.getMaximumDemand());
+        assertEquals(-1000d, bid.getMinimumDemand());
+    }
+
+    public void testAddTo() {
+        double[] sum = new double[100];
+        PiecewiseLinearBid.of(slopedBid).addTo(sum);
+        PiecewiseLinearBid.of(stepBid).addTo(sum);
+
+        double[] sloped = slopedBid.getDemand();
+        double[] step = stepBid.getDemand();
+        for (int i = 0; i < sum.length; i++) {
+            assertEquals(sloped[i] + step[i], sum[i], 0.0001);
+        }
+    }
+
+    public void testSubtractFrom() {
+        double[] sum = new double[100];
+        PiecewiseLinearBid.of(slopedBid).addTo(sum);
+        PiecewiseLinearBid.of(stepBid).addTo(sum);
+        PiecewiseLinearBid.of(slopedBid).subtractFrom(sum);
+
+        double[] step = stepBid.getDemand();
+        for (int i = 0; i < sum.length; i++) {
+            assertEquals(step[i], sum[i], 0.0001);
+        }
+    }
+
+    public void testRoundTrip() {
+        BidInfo bid = PiecewiseLinearBid.of(stepBid).toBidInfo();
+        assertArrayEquals(stepBid.getDemand(), bid.getDemand());
+    }
+
+    public void testIsEqual() {
+        BidInfo denseSloped = new BidInfo(MARKET_BASIS, slopedBid.getDemand());
+        assertTrue(BidUtil.isEqual(slopedBid, denseSloped, 0.0001));
+
+        // differs only at a single price step next to a breakpoint
+        double[] demand = slopedBid.getDemand();
+        demand[21] += 1;
+        assertFalse(BidUtil.isEqual(slopedBid, new BidInfo(MARKET_BASIS, demand), 0.5));
+        assertTrue(BidUtil.isEqual(slopedBid, new BidInfo(MARKET_BASIS, demand), 1.5));
+
+        assertFalse(BidUtil.isEqual(slopedBid, stepBid, 0.0001));
+        assertFalse(BidUtil.isEqual(slopedBid,
+                                    new BidInfo(new MarketBasis("Electricity", "EUR", 50, 0, 100, 1, 0),
+                                                new PricePoint(20, 1000),
+                                                new PricePoint(80, -1000)),
+                                    0.0001));
+    }
+
+    private static void assertDemandEquals(double[] expected, PiecewiseLinearBid bid) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("demand at price step " + i, expected[i], bid.getDemandAt(i), 0.0001);
+        }
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 0.0001);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.powermatcher.fpai.auctioneer.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.auctioneer.AgentRoutingIndex;
+
+/** Unit test for {@link AgentRoutingIndex}. */
+public class AgentRoutingIndexTest extends TestCase {
+    private AgentRoutingIndex<String, String> index;
+
+    @Override
+    protected void setUp() throws Exception {
+        index = new AgentRoutingIndex<String, String>();
+    }
+
+    public void testBufferedUntilActivated() {
+        assertNull(index.add("agent1", "cluster1"));
+        assertNull(index.add("agent2", "cluster1"));
+        assertNull(index.add("agent3", "cluster2"));
+        assertEquals(3, index.getPendingCount());
+
+        assertEquals(Arrays.asList("agent1", "agent2"), index.activate("cluster1", "auctioneer1"));
+        assertEquals(1, index.getPendingCount());
+        assertEquals("auctioneer1", index.add("agent4", "cluster1"));
+        assertEquals(Collections.singletonList("agent3"), index.activate("cluster2", "auctioneer2"));
+        assertEquals(0, index.getPendingCount());
+        assertEquals(4, index.size());
+    }
+
+    public void testRouteByAgentId() {
+        index.activate("cluster1", "auctioneer1");
+        index.activate("cluster2", "auctioneer2");
+
+        assertEquals("auctioneer2", index.add("agent1", "cluster2"));
+        assertEquals("auctioneer1", index.add("agent2", "cluster1"));
+        assertNull(index.add("agent3", "cluster3"));
+        assertEquals(1, index.getPendingCount());
+    }
+
+    public void testRemove() {
+        index.activate("cluster1", "auctioneer1");
+        index.add("agent1", "cluster1");
+        index.add("agent2", "cluster2");
+
+        assertEquals("auctioneer1", index.remove("agent1"));
+        // a buffered agent was never bound
+        assertNull(index.remove("agent2"));
+        assertEquals(0, index.getPendingCount());
+        assertNull(index.remove("agent1"));
+        assertTrue(index.activate("cluster2", "auctioneer2").isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    public void testRouteOfRemovedAgent() {
+        index.add("agent1", "cluster1");
+        index.add("agent2", "cluster1");
+        assertNull(index.getRoute("agent1"));
+
+        assertEquals(Arrays.asList("agent1", "agent2"), index.activate("cluster1", "auctioneer1"));
+        // removed after the batch was taken, so it must not be bound
+        assertEquals("auctioneer1", index.remove("agent2"));
+        assertEquals("auctioneer1", index.getRoute("agent1"));
+        assertNull(index.getRoute("agent2"));
+
+        index.add("agent1", "cluster2");
+        assertNull(index.getRoute("agent1"));
+    }
+
+    public void testDeactivateBuffersAgents() {
+        index.activate("cluster1", "auctioneer1");
+        index.add("agent1", "cluster1");
+        index.add("agent2", "cluster2");
+
+        assertEquals(Collections.singletonList("auctioneer1"), index.deactivateAll());
+        assertEquals(2, index.getPendingCount());
+        assertNull(index.getAuctioneer("cluster1"));
+        assertNull(index.remove("agent2"));
+        assertEquals(Collections.singletonList("agent1"), index.activate("cluster1", "auctioneer3"));
+    }
+}
@@ -0,0 +1,163 @@
+package net.powermatcher.fpai.auctioneer.test;
+
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.log.PriceLogInfo;
+import net.powermatcher.fpai.auctioneer.AuctioneerPricePublisher;
+import net.powermatcher.fpai.auctioneer.AuctioneerPricePublisher.Price;
+
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ObservationConsumer;
+import org.flexiblepower.observation.ObservationProvider;
+import org.flexiblepower.time.TimeService;
+
+/** Unit test for {@link AuctioneerPricePublisher}. */
+public class AuctioneerPricePublisherTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 99, 1, 0);
+    private static final long INTERVAL = 20;
+    private static final long TIMEOUT = 1000;
+
+    private static final TimeService TIME_SERVICE = new TimeService() {
+        @Override
+        public long getCurrentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public Date getTime() {
+            return new Date();
+        }
+    };
+
+    /** Records the prices it receives, with the time at which they arrived */
+    private static class PriceConsumer implements ObservationConsumer<Price> {
+        final BlockingQueue<Double> prices = new LinkedBlockingQueue<Double>();
+        final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+        @Override
+        public void consume(ObservationProvider<? extends Price> source, Observation<? extends Price> observation) {
+            arrivals.add(System.nanoTime());
+            prices.add(observation.getValue().getPrice());
+        }
+
+        double take() throws InterruptedException {
+            Double price = prices.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No price was delivered", price);
+            return price;
+        }
+
+        void assertNothingDelivered() throws InterruptedException {
+            assertNull(prices.poll(5 * INTERVAL, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private AuctioneerPricePublisher publisher;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (publisher != null) {
+            publisher.close();
+        }
+    }
+
+    /** waits until the publisher counted the deliveries, which it does after the consumer returned */
+    private void assertDelivered(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (publisher.getObservationsDelivered() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, publisher.getObservationsDelivered());
+    }
+
+    private static PriceLogInfo priceLog(double price) {
+        return new PriceLogInfo("auctioneer1",
+                                "cluster1",
+                                "auctioneer",
+                                new PriceInfo(MARKET_BASIS, price),
+                                new Date());
+    }
+
+    public void testEqualPriceIsNotPublished() throws Exception {
+        publisher = new AuctioneerPricePublisher(null, TIME_SERVICE, "auctioneer", 0);
+        PriceConsumer consumer = new PriceConsumer();
+        publisher.subscribe(consumer);
+
+        publisher.handlePriceLogInfo(priceLog(10));
+        assertEquals(10.0, consumer.take());
+        publisher.handlePriceLogInfo(priceLog(10));
+        consumer.assertNothingDelivered();
+        publisher.handlePriceLogInfo(priceLog(20));
+        assertEquals(20.0, consumer.take());
+
+        assertEquals(3, publisher.getPricesReceived());
+        assertDelivered(2);
+    }
+
+    public void testRateLimitPerConsumer() throws Exception {
+        publisher = new AuctioneerPricePublisher(null, TIME_SERVICE, "auctioneer", INTERVAL);
+        PriceConsumer first = new PriceConsumer();
+        publisher.subscribe(first);
+
+        publisher.handlePriceLogInfo(priceLog(1));
+        assertEquals(1.0, first.take());
+        long firstArrival = first.arrivals.take();
+
+        // the prices within the interval are coalesced into the latest one
+        publisher.handlePriceLogInfo(priceLog(2));
+        publisher.handlePriceLogInfo(priceLog(3));
+        publisher.handlePriceLogInfo(priceLog(4));
+        assertEquals(4.0, first.take());
+        assertTrue(first.arrivals.take() - firstArrival >= TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+        first.assertNothingDelivered();
+
+        // the interval of one consumer doesn't delay another
+        publisher.handlePriceLogInfo(priceLog(5));
+        PriceConsumer second = new PriceConsumer();
+        publisher.subscribe(second);
+        assertEquals(5.0, second.take());
+        assertEquals(5.0, first.take());
+    }
+
+    public void testNewSubscriberReceivesCurrentPrice() throws Exception {
+        publisher = new AuctioneerPricePublisher(null, TIME_SERVICE, "auctioneer", TimeUnit.MINUTES.toMillis(1));
+        publisher.handlePriceLogInfo(priceLog(7));
+
+        PriceConsumer consumer = new PriceConsumer();
+        publisher.subscribe(consumer);
+        assertEquals(7.0, consumer.take());
+
+        PriceConsumer late = new PriceConsumer();
+        publisher.subscribe(late);
+        assertEquals(7.0, late.take());
+    }
+
+    public void testFailingConsumerIsIsolated() throws Exception {
+        publisher = new AuctioneerPricePublisher(null, TIME_SERVICE, "auctioneer", 0);
+        PriceConsumer failing = new PriceConsumer() {
+            @Override
+            public void consume(ObservationProvider<? extends Price> source,
+                                Observation<? extends Price> observation) {
+                super.consume(source, observation);
+                throw new IllegalStateException("consumer failure");
+            }
+        };
+        PriceConsumer consumer = new PriceConsumer();
+        publisher.subscribe(failing);
+        publisher.subscribe(consumer);
+
+        publisher.handlePriceLogInfo(priceLog(1));
+        assertEquals(1.0, consumer.take());
+        assertEquals(1.0, failing.take());
+        publisher.handlePriceLogInfo(priceLog(2));
+        assertEquals(2.0, consumer.take());
+        assertEquals(2.0, failing.take());
+
+        assertDelivered(2);
+    }
+}
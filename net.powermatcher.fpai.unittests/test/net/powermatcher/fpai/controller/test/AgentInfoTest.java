@@ -0,0 +1,74 @@
+package net.powermatcher.fpai.controller.test;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.fullwidget.AgentInfo;
+
+/** Unit test for {@link AgentInfo}. */
+public class AgentInfoTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 100, 1, 0);
+
+    /** a sloped bid from 1000W to -1000W with a ripple of 1W, which has a breakpoint at every price */
+    private final BidInfo rippledBid;
+
+    public AgentInfoTest() {
+        double[] demand = new double[100];
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = 1000 - 2000d * i / (demand.length - 1) + (i % 2 == 0 ? 1 : -1);
+        }
+        rippledBid = new BidInfo(MARKET_BASIS, demand);
+    }
+
+    public void testBreakpointsWhenWideEnough() {
+        BidInfo bid = new BidInfo(MARKET_BASIS, new PricePoint(20, 1000), new PricePoint(80, -1000));
+        AgentInfo info = new AgentInfo("agent", bid, 400, 125);
+        assertEquals(4, info.coordinates.length);
+        assertPoint(0, 1000, info.coordinates[0]);
+        assertPoint(20, 1000, info.coordinates[1]);
+        assertPoint(80, -1000, info.coordinates[2]);
+        assertPoint(99, -1000, info.coordinates[3]);
+    }
+
+    public void testSimplifiedToWidth() {
+        AgentInfo full = new AgentInfo("agent", rippledBid);
+        AgentInfo narrow = new AgentInfo("agent", rippledBid, 10, 10);
+        assertTrue(full.coordinates.length >= 100);
+        assertTrue(narrow.coordinates.length <= 10);
+
+        // the end points are kept, and no point of the bid is more than a pixel of demand away from the curve
+        assertPoint(0, rippledBid.getDemand()[0], narrow.coordinates[0]);
+        assertPoint(99, rippledBid.getDemand()[99], narrow.coordinates[narrow.coordinates.length - 1]);
+        for (double[] point : full.coordinates) {
+            assertEquals(point[1], interpolate(narrow.coordinates, point[0]), 2000d / 10);
+        }
+    }
+
+    public void testToleranceFollowsHeight() {
+        AgentInfo low = new AgentInfo("agent", rippledBid, 10, 10);
+        AgentInfo high = new AgentInfo("agent", rippledBid, 10, 10000);
+        assertTrue(high.coordinates.length > low.coordinates.length);
+
+        AgentInfo full = new AgentInfo("agent", rippledBid);
+        for (double[] point : full.coordinates) {
+            assertEquals(point[1], interpolate(high.coordinates, point[0]), 2002d / 10000);
+        }
+    }
+
+    private static double interpolate(double[][] points, double x) {
+        for (int i = 1; i < points.length; i++) {
+            if (x <= points[i][0]) {
+                double[] a = points[i - 1];
+                double[] b = points[i];
+                return b[0] == a[0] ? b[1] : a[1] + (b[1] - a[1]) * (x - a[0]) / (b[0] - a[0]);
+            }
+        }
+        return points[points.length - 1][1];
+    }
+
+    private static void assertPoint(int priceStep, double demand, double[] point) {
+        assertEquals(MARKET_BASIS.toPrice(priceStep), point[0], 1e-9);
+        assertEquals(demand, point[1], 1e-9);
+    }
+}
@@ -0,0 +1,126 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.fpai.agent.AgentEventLog;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.controller.AgentFactory;
+import net.powermatcher.fpai.controller.AgentPool;
+import net.powermatcher.fpai.test.MockTimeService;
+
+import org.flexiblepower.rai.ControlSpace;
+import org.flexiblepower.rai.StorageControlSpace;
+import org.flexiblepower.rai.UncontrolledControlSpace;
+
+/** Unit test for {@link AgentPool}. */
+public class AgentPoolTest extends TestCase {
+    private final Map<Class<? extends ControlSpace>, AgentFactory> factories =
+            new HashMap<Class<? extends ControlSpace>, AgentFactory>();
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+
+    @Override
+    protected void setUp() throws Exception {
+        factories.put(UncontrolledControlSpace.class, new AgentFactory() {
+            @Override
+            public FPAIAgent<? extends ControlSpace> createAgent() {
+                return new UncontrolledAgent();
+            }
+        });
+
+        // a controller configuration of a realistic size
+        properties.put("id", "concentrator1");
+        properties.put("cluster.id", "ExampleCluster");
+        properties.put("broker.uri", "tcp://localhost:1883");
+        for (int i = 0; i < 200; i++) {
+            properties.put("setting" + i, "value" + i);
+        }
+    }
+
+    public void testCreateAgent() {
+        AgentPool pool = new AgentPool(factories, properties, 0);
+        assertTrue(pool.supports(UncontrolledControlSpace.class));
+        assertFalse(pool.supports(StorageControlSpace.class));
+
+        FPAIAgent<?> agent = pool.createAgent(UncontrolledControlSpace.class, "agent1", "concentrator1");
+        assertTrue(agent instanceof UncontrolledAgent);
+        assertEquals("agent1", agent.getId());
+        assertEquals("concentrator1", agent.getMatcherId());
+        assertEquals(1, pool.getAgentsCreated());
+
+        assertNull(pool.createAgent(StorageControlSpace.class, "agent2", "concentrator1"));
+    }
+
+    public void testRecycle() {
+        AgentPool pool = new AgentPool(factories, properties, 2);
+        FPAIAgent<?> agent1 = pool.createAgent(UncontrolledControlSpace.class, "agent1", "concentrator1");
+        FPAIAgent<?> agent2 = pool.createAgent(UncontrolledControlSpace.class, "agent2", "concentrator1");
+        FPAIAgent<?> agent3 = pool.createAgent(UncontrolledControlSpace.class, "agent3", "concentrator1");
+        assertEquals(3, pool.getAgentsCreated());
+
+        // only two agents fit in the pool
+        pool.release(UncontrolledControlSpace.class, agent1);
+        pool.release(UncontrolledControlSpace.class, agent2);
+        pool.release(UncontrolledControlSpace.class, agent3);
+
+        FPAIAgent<?> recycled = pool.createAgent(UncontrolledControlSpace.class, "agent4", "concentrator1");
+        assertSame(agent1, recycled);
+        assertEquals("agent4", recycled.getId());
+        assertSame(agent2, pool.createAgent(UncontrolledControlSpace.class, "agent5", "concentrator1"));
+        assertNotSame(agent3, pool.createAgent(UncontrolledControlSpace.class, "agent6", "concentrator1"));
+        assertEquals(4, pool.getAgentsCreated());
+        assertEquals(2, pool.getAgentsReused());
+    }
+
+    public void testRecycledAgentIsReset() {
+        AgentPool pool = new AgentPool(factories, properties, 1);
+        FPAIAgent<?> agent = pool.createAgent(UncontrolledControlSpace.class, "agent1", "concentrator1");
+        agent.setFullLogging(true);
+        agent.getEventLog().record(0, AgentEventLog.Kind.BID_UNCHANGED, null, null, 0, 0);
+
+        pool.release(UncontrolledControlSpace.class, agent);
+        FPAIAgent<?> recycled = pool.createAgent(UncontrolledControlSpace.class, "agent2", "concentrator2");
+        assertSame(agent, recycled);
+        assertEquals(1, pool.getAgentsReused());
+
+        // the recycled agent is configured for its new resource and remembers nothing of its previous one
+        assertEquals("agent2", recycled.getId());
+        assertEquals("concentrator2", recycled.getMatcherId());
+        assertFalse(recycled.isFullLogging());
+        assertEquals(0, recycled.getEventLog().getRecorded());
+        assertEquals(0, recycled.getBidUpdatesReceived());
+        assertEquals(0, recycled.getAllocationsDispatched());
+    }
+
+    public void testAgentWithQueuedWorkIsDiscarded() {
+        AgentPool pool = new AgentPool(factories, properties, 1);
+        FPAIAgent<?> agent = pool.createAgent(UncontrolledControlSpace.class, "agent1", "concentrator1");
+        agent.bind(new MockTimeService());
+
+        // an executor which doesn't run the work of the agent yet
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        agent.setAllocationExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        agent.updatePriceInfo(new PriceInfo(new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0), 10));
+        assertEquals(1, queued.size());
+        assertFalse(agent.isIdle());
+
+        pool.release(UncontrolledControlSpace.class, agent);
+        assertNotSame(agent, pool.createAgent(UncontrolledControlSpace.class, "agent2", "concentrator1"));
+        assertEquals(0, pool.getAgentsReused());
+
+        queued.get(0).run();
+        assertTrue(agent.isIdle());
+    }
+}
@@ -0,0 +1,154 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+import net.powermatcher.fpai.controller.AggregateDemand;
+import net.powermatcher.fpai.controller.AggregateDemandCurve;
+
+/** Unit test for {@link AggregateDemandCurve}. */
+public class AggregateDemandCurveTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+    private static final MarketBasis NEXT_MARKET_BASIS = new MarketBasis("Electricity", "EUR", 50, 0, 50, 1, 0);
+    private static final double DELTA = 1e-6;
+
+    private final Random random = new Random(1);
+    private AggregateDemandCurve curve;
+
+    /** the last bid of every registered agent, from which the expected sum is computed */
+    private Map<String, PiecewiseLinearBid> bids;
+
+    @Override
+    protected void setUp() throws Exception {
+        curve = new AggregateDemandCurve();
+        bids = new LinkedHashMap<String, PiecewiseLinearBid>();
+    }
+
+    private PiecewiseLinearBid randomBid(MarketBasis marketBasis) {
+        int lastStep = marketBasis.getPriceSteps() - 1;
+        int middle = 1 + random.nextInt(lastStep - 1);
+        double maximum = 1000 + random.nextInt(100000) / 10.0;
+        double minimum = -random.nextInt(100000) / 10.0;
+        return PiecewiseLinearBid.of(new BidInfo(marketBasis,
+                                                 new PricePoint(0, maximum),
+                                                 new PricePoint(middle, (maximum + minimum) / 2),
+                                                 new PricePoint(lastStep, minimum)));
+    }
+
+    private void update(String agentId, MarketBasis marketBasis) {
+        PiecewiseLinearBid bid = randomBid(marketBasis);
+        bids.put(agentId, bid);
+        curve.update(agentId, bid);
+    }
+
+    /** compares the incremental sum with the sum of the bids for the given market basis, summed from scratch */
+    private void assertSum(MarketBasis marketBasis) {
+        double[] expected = new double[marketBasis.getPriceSteps()];
+        int agentCount = 0;
+        for (PiecewiseLinearBid bid : bids.values()) {
+            if (bid.getMarketBasis().equals(marketBasis)) {
+                bid.addTo(expected);
+                agentCount++;
+            }
+        }
+
+        AggregateDemand.Snapshot snapshot = curve.getSnapshot();
+        assertEquals(marketBasis, snapshot.getMarketBasis());
+        assertEquals(agentCount, snapshot.getAgentCount());
+        double[] demand = snapshot.getDemand();
+        assertEquals(expected.length, demand.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("price step " + i, expected[i], demand[i], DELTA);
+        }
+    }
+
+    public void testIncrementalSumEqualsResum() {
+        for (int i = 0; i < 10; i++) {
+            curve.register("agent" + i);
+        }
+        // enough updates to pass the resum after 16 updates per agent a few times
+        for (int update = 0; update < 1000; update++) {
+            update("agent" + random.nextInt(10), MARKET_BASIS);
+            assertSum(MARKET_BASIS);
+        }
+    }
+
+    public void testMarketBasisSwitch() {
+        for (int i = 0; i < 5; i++) {
+            curve.register("agent" + i);
+            update("agent" + i, MARKET_BASIS);
+        }
+        assertSum(MARKET_BASIS);
+
+        // the bids for the previous market basis are left out until their agent sends a new bid
+        update("agent0", NEXT_MARKET_BASIS);
+        assertSum(NEXT_MARKET_BASIS);
+        assertEquals(1, curve.getSnapshot().getAgentCount());
+        update("agent1", NEXT_MARKET_BASIS);
+        update("agent0", NEXT_MARKET_BASIS);
+        assertSum(NEXT_MARKET_BASIS);
+        assertEquals(2, curve.getSnapshot().getAgentCount());
+
+        // removing an agent which is left out doesn't change the sum
+        long version = curve.getSnapshot().getVersion();
+        curve.remove("agent4");
+        bids.remove("agent4");
+        assertEquals(version, curve.getSnapshot().getVersion());
+        assertSum(NEXT_MARKET_BASIS);
+    }
+
+    public void testRemoval() {
+        for (int i = 0; i < 3; i++) {
+            curve.register("agent" + i);
+            update("agent" + i, MARKET_BASIS);
+        }
+        curve.remove("agent1");
+        bids.remove("agent1");
+        assertSum(MARKET_BASIS);
+
+        update("agent0", MARKET_BASIS);
+        assertSum(MARKET_BASIS);
+
+        curve.remove("agent0");
+        bids.remove("agent0");
+        curve.remove("agent2");
+        bids.remove("agent2");
+        assertSum(MARKET_BASIS);
+    }
+
+    public void testBidAfterRemovalIsIgnored() {
+        curve.register("agent1");
+        curve.register("agent2");
+        update("agent1", MARKET_BASIS);
+        update("agent2", MARKET_BASIS);
+
+        // a bid which is logged while the agent is unbound
+        curve.remove("agent2");
+        bids.remove("agent2");
+        long version = curve.getSnapshot().getVersion();
+        curve.update("agent2", randomBid(MARKET_BASIS));
+        assertEquals(version, curve.getSnapshot().getVersion());
+        assertSum(MARKET_BASIS);
+
+        // an agent which is created again is summed again
+        curve.register("agent2");
+        update("agent2", MARKET_BASIS);
+        assertSum(MARKET_BASIS);
+    }
+
+    public void testUnregisteredAgentIsIgnored() {
+        curve.update("agent1", randomBid(MARKET_BASIS));
+        assertNull(curve.getSnapshot());
+
+        curve.register("agent2");
+        update("agent2", MARKET_BASIS);
+        curve.update("agent1", randomBid(NEXT_MARKET_BASIS));
+        assertSum(MARKET_BASIS);
+    }
+}
@@ -0,0 +1,152 @@
+package net.powermatcher.fpai.controller.test;
+
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Properties;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.config.AgentConfiguration;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.core.agent.framework.service.MatcherService;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.fpai.controller.BatchingConcentrator;
+import net.powermatcher.fpai.test.BidAnalyzer;
+import net.powermatcher.fpai.test.MockMatcherService;
+import net.powermatcher.fpai.test.MockScheduledExecutor;
+import net.powermatcher.fpai.test.MockTimeService;
+
+/** Unit test for {@link BatchingConcentrator}. */
+public class BatchingConcentratorTest extends TestCase {
+    private static final String CFG_PREFIX = "concentrator.concentrator1";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+    private static final long WINDOW = 100;
+
+    private BatchingConcentrator concentrator;
+    private MockTimeService timeService;
+    private MockScheduledExecutor executor;
+    private MockMatcherService parent;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties cfg = new Properties();
+        cfg.put(CFG_PREFIX + ".id", "concentrator1");
+        cfg.put(CFG_PREFIX + ".matcher.id", "auctioneer1");
+        cfg.put(CFG_PREFIX + ".update.interval", "3600");
+        cfg.put(CFG_PREFIX + ".agent.bid.log.level", AgentConfiguration.NO_LOGGING);
+        cfg.put(CFG_PREFIX + ".agent.price.log.level", AgentConfiguration.NO_LOGGING);
+
+        concentrator = new BatchingConcentrator(new PrefixedConfiguration(cfg, CFG_PREFIX), WINDOW);
+
+        timeService = new MockTimeService();
+        concentrator.bind(timeService);
+
+        executor = new MockScheduledExecutor(timeService);
+        concentrator.bind(executor);
+
+        parent = new MockMatcherService();
+        concentrator.bind((MatcherService) parent);
+
+        concentrator.updateMarketBasis(MARKET_BASIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        concentrator.unbind(executor);
+        concentrator.unbind(timeService);
+        concentrator.unbind((MatcherService) parent);
+    }
+
+    public void testUpdatesWithinWindowAreAggregatedOnce() {
+        concentrator.updateBidInfo("agent1", flatBid(1000));
+        concentrator.updateBidInfo("agent2", flatBid(500));
+        concentrator.updateBidInfo("agent1", flatBid(2000));
+        assertNull(parent.getLastBid(concentrator.getId()));
+
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+
+        // only the last bid of every agent is aggregated
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(2500, WATT));
+        assertEquals(3, concentrator.getBidUpdatesReceived());
+        assertEquals(1, concentrator.getAggregatedBidsPublished());
+    }
+
+    public void testRemovedAgentIsNotAggregated() {
+        concentrator.updateBidInfo("agent1", flatBid(1000));
+        concentrator.updateBidInfo("agent2", flatBid(500));
+        concentrator.removeAgent("agent2");
+
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(1000, WATT));
+    }
+
+    public void testRemovalIsPublished() {
+        concentrator.updateBidInfo("agent1", flatBid(1000));
+        concentrator.updateBidInfo("agent2", flatBid(500));
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(1500, WATT));
+
+        // the parent learns that the demand of the agent is gone without waiting for the bid of another agent
+        concentrator.removeAgent("agent2");
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(1000, WATT));
+        assertEquals(2, concentrator.getAggregatedBidsPublished());
+    }
+
+    public void testBidsForOtherMarketBasisAreIgnored() {
+        MarketBasis other = new MarketBasis("Electricity", "EUR", 50, 0, 50, 1, 0);
+        concentrator.updateBidInfo("agent1", flatBid(1000));
+        concentrator.updateBidInfo("agent2", new BidInfo(other, new PricePoint(0, 500)));
+
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(1000, WATT));
+    }
+
+    public void testHeldUpdatesArePublishedOnRelease() {
+        concentrator.holdBidUpdates();
+        concentrator.holdBidUpdates();
+        concentrator.updateBidInfo("agent1", flatBid(1000));
+        concentrator.updateBidInfo("agent2", flatBid(500));
+
+        // nothing is published while the updates are held, not even at the end of the window
+        timeService.stepInTime(WINDOW);
+        executor.executePending();
+        assertNull(parent.getLastBid(concentrator.getId()));
+
+        concentrator.releaseBidUpdates();
+        assertNull(parent.getLastBid(concentrator.getId()));
+
+        // releasing the last hold publishes the aggregated bid immediately
+        concentrator.releaseBidUpdates();
+        BidAnalyzer.assertFlatBidWithValue(parent.getLastBid(concentrator.getId()), Measure.valueOf(1500, WATT));
+        assertEquals(1, concentrator.getAggregatedBidsPublished());
+    }
+
+    public void testPriceArrivalIsRecordedPerPrice() {
+        assertEquals(0, concentrator.getPriceArrivalNanos(new PriceInfo(MARKET_BASIS, 10)));
+
+        long before = System.nanoTime();
+        concentrator.updatePriceInfo(new PriceInfo(MARKET_BASIS, 10));
+        long arrival = concentrator.getPriceArrivalNanos(new PriceInfo(MARKET_BASIS, 10));
+        assertTrue(arrival - before >= 0);
+        assertTrue(System.nanoTime() - arrival >= 0);
+
+        // the arrival of another price isn't attributed to this one
+        assertEquals(0, concentrator.getPriceArrivalNanos(new PriceInfo(MARKET_BASIS, 20)));
+    }
+
+    private static BidInfo flatBid(double demandWatt) {
+        return new BidInfo(MARKET_BASIS, new PricePoint(0, demandWatt));
+    }
+}
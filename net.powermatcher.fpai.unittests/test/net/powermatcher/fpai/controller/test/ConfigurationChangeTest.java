@@ -0,0 +1,72 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.controller.ConfigurationChange;
+import net.powermatcher.fpai.controller.ConfigurationChange.Scope;
+
+/** Unit test for {@link ConfigurationChange}. */
+public class ConfigurationChangeTest extends TestCase {
+    private final Map<String, Object> current = new HashMap<String, Object>();
+
+    @Override
+    protected void setUp() throws Exception {
+        current.put("cluster.id", "ExampleCluster");
+        current.put("broker.uri", "tcp://localhost:1883");
+        current.put("update.interval", 1);
+        current.put("small.widget", true);
+        current.put("resourceIds", new String[] { "pvpanel", "battery" });
+        current.put("service.pid", "net.powermatcher.fpai.controller.PMController.1");
+    }
+
+    public void testNoChange() {
+        Map<String, Object> properties = new HashMap<String, Object>(current);
+        properties.put("resourceIds", new String[] { "pvpanel", "battery" });
+        assertTrue(ConfigurationChange.between(current, properties).isEmpty());
+    }
+
+    public void testWidget() {
+        ConfigurationChange change = ConfigurationChange.between(current, with("small.widget", false));
+        assertEquals(1, change.getChangedProperties().size());
+        assertEquals(1, change.getScopes().size());
+        assertTrue(change.affects(Scope.WIDGET));
+    }
+
+    public void testUpdateInterval() {
+        ConfigurationChange change = ConfigurationChange.between(current, with("update.interval", 5));
+        assertTrue(change.affects(Scope.CONFIGURATION));
+        assertFalse(change.affects(Scope.CONCENTRATORS));
+        assertFalse(change.affects(Scope.UPLINK));
+    }
+
+    public void testBrokerUri() {
+        ConfigurationChange change = ConfigurationChange.between(current, with("broker.uri", "tcp://broker:1883"));
+        assertTrue(change.affects(Scope.UPLINK));
+        assertFalse(change.affects(Scope.CONFIGURATION));
+        assertFalse(change.affects(Scope.CONCENTRATORS));
+    }
+
+    public void testAddedAndRemovedProperties() {
+        Map<String, Object> properties = with("concentrator.shards", 4);
+        properties.remove("service.pid");
+        ConfigurationChange change = ConfigurationChange.between(current, properties);
+        assertTrue(change.getChangedProperties().contains("concentrator.shards"));
+        assertTrue(change.getChangedProperties().contains("service.pid"));
+        assertEquals(1, change.getScopes().size());
+        assertTrue(change.affects(Scope.CONCENTRATORS));
+    }
+
+    public void testUnknownPropertyIsApplied() {
+        ConfigurationChange change = ConfigurationChange.between(current, with("market.price.steps", "100"));
+        assertTrue(change.affects(Scope.CONFIGURATION));
+        assertTrue(change.affects(Scope.CONCENTRATORS));
+    }
+
+    private Map<String, Object> with(String key, Object value) {
+        Map<String, Object> properties = new HashMap<String, Object>(current);
+        properties.put(key, value);
+        return properties;
+    }
+}
@@ -0,0 +1,212 @@
+package net.powermatcher.fpai.controller.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.core.agent.framework.log.BidLogInfo;
+import net.powermatcher.core.configurable.PrefixedConfiguration;
+import net.powermatcher.fpai.agent.FPAIAgent;
+import net.powermatcher.fpai.agent.uncontrolled.UncontrolledAgent;
+import net.powermatcher.fpai.controller.PMController;
+import net.powermatcher.fpai.controller.PMWidgetImpl;
+import net.powermatcher.fpai.controller.PMWidgetImpl.Update;
+
+/** Unit test for {@link PMWidgetImpl}. */
+public class PMWidgetImplTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 100, 0, 50, 1, 0);
+
+    /** an agent of which the number of dispatched allocations is set by the test */
+    private static class TestAgent extends UncontrolledAgent {
+        long allocations;
+
+        TestAgent(String id) {
+            super(new PrefixedConfiguration(configuration(id), "agent." + id));
+        }
+
+        private static Properties configuration(String id) {
+            Properties cfg = new Properties();
+            cfg.put("agent." + id + ".id", id);
+            return cfg;
+        }
+
+        @Override
+        public long getAllocationsDispatched() {
+            return allocations;
+        }
+    }
+
+    /** a controller which only lists the agents of the test */
+    private static class TestController extends PMController {
+        final List<FPAIAgent<?>> agents = new ArrayList<FPAIAgent<?>>();
+
+        @Override
+        public Collection<? extends FPAIAgent<?>> getAgentList() {
+            return agents;
+        }
+    }
+
+    private TestController controller;
+    private PMWidgetImpl widget;
+
+    @Override
+    protected void setUp() throws Exception {
+        controller = new TestController();
+        widget = new PMWidgetImpl(controller);
+    }
+
+    private TestAgent addAgent(String id) {
+        TestAgent agent = new TestAgent(id);
+        controller.agents.add(agent);
+        widget.register(id);
+        return agent;
+    }
+
+    private void removeAgent(TestAgent agent) {
+        controller.agents.remove(agent);
+        widget.remove(agent.getId());
+    }
+
+    private void logBid(String agentId, double demand) {
+        BidInfo bid = new BidInfo(MARKET_BASIS, new PricePoint(0, demand), new PricePoint(99, demand));
+        widget.handleBidLogInfo(new BidLogInfo(agentId, "cluster", "agent", bid, new Date()));
+    }
+
+    /** @return the demand as the widget shows it, in the default locale */
+    private static String kW(double demand) {
+        return String.format("%.2f kW", demand);
+    }
+
+    /** @return the demand of the rows in the update, by agent id */
+    private static SortedMap<String, String> rows(Update update) {
+        SortedMap<String, String> rows = new TreeMap<String, String>();
+        for (SortedMap<String, String> demands : update.getDemands().values()) {
+            rows.putAll(demands);
+        }
+        return rows;
+    }
+
+    public void testOnlyChangedRowsAreSent() {
+        addAgent("agent1");
+        addAgent("agent2");
+        logBid("agent1", 1000);
+        logBid("agent2", 2000);
+
+        Update full = widget.update(Locale.ENGLISH);
+        assertTrue(full.isComplete());
+        assertEquals(kW(1), rows(full).get("agent1"));
+        assertEquals(kW(2), rows(full).get("agent2"));
+
+        Update unchanged = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertFalse(unchanged.isComplete());
+        assertTrue(rows(unchanged).isEmpty());
+        assertEquals(full.getVersion(), unchanged.getVersion());
+
+        // a bid which shows the same demand doesn't change the row
+        logBid("agent2", 2001);
+        logBid("agent1", 1500);
+        Update delta = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertEquals(1, rows(delta).size());
+        assertEquals(kW(1.5), rows(delta).get("agent1"));
+        assertTrue(delta.getVersion() > full.getVersion());
+    }
+
+    public void testLatencyChangeIsSent() {
+        TestAgent agent1 = addAgent("agent1");
+        addAgent("agent2");
+        logBid("agent1", 1000);
+        logBid("agent2", 2000);
+        Update full = widget.update(Locale.ENGLISH);
+        assertEquals(2, full.getLatencies().size());
+
+        agent1.allocations++;
+        Update delta = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertEquals(1, rows(delta).size());
+        assertEquals(kW(1), rows(delta).get("agent1"));
+        assertEquals(1, delta.getLatencies().size());
+        assertTrue(delta.getLatencies().containsKey("agent1"));
+
+        assertTrue(rows(widget.updateSince(delta.getVersion(), Locale.ENGLISH)).isEmpty());
+    }
+
+    public void testRemovedAgentIsSent() {
+        addAgent("agent1");
+        TestAgent agent2 = addAgent("agent2");
+        logBid("agent1", 1000);
+        logBid("agent2", 2000);
+        Update full = widget.update(Locale.ENGLISH);
+
+        removeAgent(agent2);
+        Update delta = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertFalse(delta.isComplete());
+        assertEquals(1, delta.getRemoved().size());
+        assertEquals("agent2", delta.getRemoved().get(0));
+        assertTrue(rows(delta).isEmpty());
+
+        // a client which has seen the removal isn't told again, a new client never sees the agent
+        assertTrue(widget.updateSince(delta.getVersion(), Locale.ENGLISH).getRemoved().isEmpty());
+        Update next = widget.update(Locale.ENGLISH);
+        assertEquals(1, rows(next).size());
+        assertTrue(next.getRemoved().isEmpty());
+    }
+
+    public void testBidAfterRemovalIsIgnored() {
+        addAgent("agent1");
+        TestAgent agent2 = addAgent("agent2");
+        logBid("agent1", 1000);
+        logBid("agent2", 2000);
+        Update full = widget.update(Locale.ENGLISH);
+
+        removeAgent(agent2);
+        Update delta = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertEquals(1, delta.getRemoved().size());
+
+        // a bid which the agent logs while it is being unbound doesn't cancel the removal or bring the row back
+        logBid("agent2", 3000);
+        Update late = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertEquals(1, late.getRemoved().size());
+        assertEquals("agent2", late.getRemoved().get(0));
+        assertTrue(rows(late).isEmpty());
+        assertEquals(1, rows(widget.update(Locale.ENGLISH)).size());
+    }
+
+    public void testUnregisteredAgentIsIgnored() {
+        addAgent("agent1");
+        logBid("agent1", 1000);
+        logBid("concentrator", 5000);
+        Update full = widget.update(Locale.ENGLISH);
+        assertEquals(1, rows(full).size());
+        assertEquals(full.getVersion(), widget.updateSince(full.getVersion(), Locale.ENGLISH).getVersion());
+    }
+
+    public void testCompleteUpdateWhenRemovalsAreForgotten() {
+        List<TestAgent> removed = new ArrayList<TestAgent>();
+        addAgent("agent");
+        for (int i = 0; i < 1100; i++) {
+            removed.add(addAgent("removed" + i));
+        }
+        Update full = widget.update(Locale.ENGLISH);
+        assertEquals(1101, rows(full).size());
+
+        // too many removals to remember, so the client gets the complete model instead of the removals
+        controller.agents.removeAll(removed);
+        Update update = widget.updateSince(full.getVersion(), Locale.ENGLISH);
+        assertTrue(update.isComplete());
+        assertTrue(update.getRemoved().isEmpty());
+        assertEquals(1, rows(update).size());
+        assertEquals("no bid yet", rows(update).get("agent"));
+
+        Update delta = widget.updateSince(update.getVersion(), Locale.ENGLISH);
+        assertFalse(delta.isComplete());
+        assertTrue(rows(delta).isEmpty());
+    }
+}
@@ -0,0 +1,156 @@
+package net.powermatcher.fpai.recorder.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.recorder.RecordingReader;
+import net.powermatcher.fpai.recorder.RecordingWriter;
+
+/** Unit test for {@link RecordingWriter} and {@link RecordingReader}. */
+public class RecordingTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 100, 0, 99, 1, 0);
+
+    /** a region size which forces the columns to be remapped while the test appends */
+    private static final int REGION_SIZE = 64;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("recording", "");
+        assertTrue(directory.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static BidInfo stepBid(double demand, int step) {
+        return new BidInfo(MARKET_BASIS, new PricePoint(0, demand), new PricePoint(step, demand),
+                           new PricePoint(step, 0), new PricePoint(99, 0));
+    }
+
+    private static void assertDemand(BidInfo expected, BidInfo actual) {
+        double[] expectedDemand = expected.getDemand();
+        double[] actualDemand = actual.getDemand();
+        assertEquals(expectedDemand.length, actualDemand.length);
+        for (int i = 0; i < expectedDemand.length; i++) {
+            assertEquals(expectedDemand[i], actualDemand[i], 1e-9);
+        }
+    }
+
+    public void testBidAtPastTimestamp() throws IOException {
+        RecordingWriter writer = new RecordingWriter(directory, REGION_SIZE);
+        for (int i = 0; i < 20; i++) {
+            writer.appendBid(1000 + i * 10, "agent1", "cluster", "agent", stepBid(i, 10 + i));
+            writer.appendBid(1000 + i * 10, "agent2", "cluster", "agent", stepBid(-i, 50));
+        }
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(directory);
+        try {
+            assertEquals(40, reader.getEventCount());
+            assertEquals(2, reader.getAgentIds().size());
+            assertNull(reader.getBid("agent1", "agent", 999));
+            assertNull(reader.getBid("agent3", "agent", 2000));
+            assertDemand(stepBid(0, 10), reader.getBid("agent1", "agent", 1000));
+            assertDemand(stepBid(7, 17), reader.getBid("agent1", "agent", 1079));
+            assertDemand(stepBid(19, 29), reader.getBid("agent1", "agent", 5000));
+            assertDemand(stepBid(-12, 50), reader.getBid("agent2", "agent", 1120));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testPriceAtPastTimestamp() throws IOException {
+        RecordingWriter writer = new RecordingWriter(directory, REGION_SIZE);
+        writer.appendPrice(1000, "agent1", "cluster", "agent", new PriceInfo(MARKET_BASIS, 10));
+        writer.appendPrice(2000, "agent1", "cluster", "agent", new PriceInfo(MARKET_BASIS, 20));
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(directory);
+        try {
+            assertNull(reader.getPrice("agent1", "agent", 999));
+            assertEquals(10, reader.getPrice("agent1", "agent", 1999).getCurrentPrice(), 0);
+            assertEquals(20, reader.getPrice("agent1", "agent", 2000).getCurrentPrice(), 0);
+            assertEquals(99, reader.getPrice("agent1", "agent", 2000).getMarketBasis().getMaximumPrice(), 0);
+            assertNull(reader.getBid("agent1", "agent", 2000));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testQualifiersOfAnAgentAreKeptApart() throws IOException {
+        RecordingWriter writer = new RecordingWriter(directory, REGION_SIZE);
+        writer.appendBid(1000, "concentrator1", "cluster", "agent", stepBid(1, 10));
+        writer.appendBid(1000, "concentrator1", "cluster", "matcher", stepBid(2, 20));
+        writer.appendPrice(1500, "concentrator1", "cluster", "matcher", new PriceInfo(MARKET_BASIS, 30));
+        writer.appendBid(2000, "concentrator1", "cluster", "matcher", stepBid(3, 30));
+        writer.appendPrice(2000, "concentrator1", "cluster", "agent", new PriceInfo(MARKET_BASIS, 40));
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(directory);
+        try {
+            assertEquals(1, reader.getAgentIds().size());
+            assertDemand(stepBid(1, 10), reader.getBid("concentrator1", "agent", 2000));
+            assertDemand(stepBid(2, 20), reader.getBid("concentrator1", "matcher", 1500));
+            assertDemand(stepBid(3, 30), reader.getBid("concentrator1", "matcher", 2000));
+            assertNull(reader.getPrice("concentrator1", "agent", 1500));
+            assertEquals(30, reader.getPrice("concentrator1", "matcher", 2000).getCurrentPrice(), 0);
+            assertEquals(40, reader.getPrice("concentrator1", "agent", 2000).getCurrentPrice(), 0);
+            assertNull(reader.getBid("concentrator1", "auctioneer", 2000));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testOnlyCommittedEventsAreRead() throws IOException {
+        RecordingWriter writer = new RecordingWriter(directory, REGION_SIZE);
+        writer.appendBid(1000, "agent1", "cluster", "agent", stepBid(1, 10));
+        writer.commit();
+        writer.appendBid(2000, "agent1", "cluster", "agent", stepBid(2, 20));
+
+        RecordingReader reader = new RecordingReader(directory);
+        try {
+            assertEquals(1, reader.getEventCount());
+            assertDemand(stepBid(1, 10), reader.getBid("agent1", "agent", 2000));
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    public void testReopenContinuesRecording() throws IOException {
+        RecordingWriter writer = new RecordingWriter(directory, REGION_SIZE);
+        writer.appendBid(1000, "agent1", "cluster", "agent", stepBid(1, 10));
+        writer.close();
+
+        writer = new RecordingWriter(directory, REGION_SIZE);
+        assertEquals(1, writer.getEventCount());
+        writer.appendBid(2000, "agent1", "cluster", "agent", stepBid(2, 20));
+        writer.appendBid(2000, "agent2", "cluster", "agent", stepBid(3, 30));
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(directory);
+        try {
+            assertEquals(3, reader.getEventCount());
+            assertDemand(stepBid(1, 10), reader.getBid("agent1", "agent", 1500));
+            assertDemand(stepBid(2, 20), reader.getBid("agent1", "agent", 2000));
+            assertDemand(stepBid(3, 30), reader.getBid("agent2", "agent", 2000));
+        } finally {
+            reader.close();
+        }
+    }
+}
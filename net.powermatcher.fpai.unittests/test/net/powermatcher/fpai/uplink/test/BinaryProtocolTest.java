@@ -0,0 +1,122 @@
+package net.powermatcher.fpai.uplink.test;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.uplink.BinaryProtocol;
+import net.powermatcher.fpai.uplink.ByteBufferPool;
+import net.powermatcher.fpai.uplink.Topics;
+
+/** Unit test for {@link BinaryProtocol}. */
+public class BinaryProtocolTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 1000, 0, 0.99, 2, 0);
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool(4096, 4);
+
+    public void testBidRoundTrip() {
+        BidInfo bid = new BidInfo(MARKET_BASIS,
+                                  new PricePoint(200, 1500.25),
+                                  new PricePoint(200, 800),
+                                  new PricePoint(800, -1200.5));
+        BidInfo decoded = roundTrip(bid);
+
+        double[] expected = bid.getDemand();
+        double[] actual = decoded.getDemand();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("demand at price step " + i, expected[i], actual[i], BinaryProtocol.WATT_RESOLUTION);
+        }
+    }
+
+    public void testDenseBidIsCompact() {
+        // a 1000 step bid which is linear between two breakpoints, as an aggregated bid would be
+        double[] demand = new double[MARKET_BASIS.getPriceSteps()];
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = i < 300 ? 2500 : i > 700 ? -2500 : 2500 - (i - 300) * 12.5;
+        }
+        ByteBuffer message = BinaryProtocol.encodeBid(new BidInfo(MARKET_BASIS, demand), bufferPool);
+        try {
+            // the demand as text alone takes several kilobytes
+            assertTrue("message of " + message.remaining() + " bytes", message.remaining() < 100);
+            BidInfo decoded = BinaryProtocol.decodeBid(message, null);
+            for (int i = 0; i < demand.length; i++) {
+                assertEquals(demand[i], decoded.getDemand()[i], BinaryProtocol.WATT_RESOLUTION);
+            }
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    public void testPriceRoundTrip() {
+        ByteBuffer message = BinaryProtocol.encodePrice(new PriceInfo(MARKET_BASIS, 0.42), bufferPool);
+        try {
+            PriceInfo decoded = BinaryProtocol.decodePrice(message, MARKET_BASIS);
+            assertEquals(0.42, decoded.getCurrentPrice());
+            // the known market basis is reused
+            assertSame(MARKET_BASIS, decoded.getMarketBasis());
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    public void testMarketBasisIsDecoded() {
+        BidInfo decoded = roundTrip(new BidInfo(MARKET_BASIS, new PricePoint(0, 100)));
+        MarketBasis marketBasis = decoded.getMarketBasis();
+        assertEquals("Electricity", marketBasis.getCommodity());
+        assertEquals("EUR", marketBasis.getCurrency());
+        assertEquals(1000, marketBasis.getPriceSteps());
+        assertEquals(0.99, marketBasis.getMaximumPrice());
+        assertEquals(2, marketBasis.getSignificance());
+    }
+
+    public void testInvalidMessage() {
+        ByteBuffer message = BinaryProtocol.encodeBid(new BidInfo(MARKET_BASIS, new PricePoint(0, 100)), bufferPool);
+        try {
+            message.limit(message.limit() - 1);
+            BinaryProtocol.decodeBid(message, null);
+            fail("truncated message was decoded");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            bufferPool.release(message);
+        }
+
+        try {
+            BinaryProtocol.decodePrice(ByteBuffer.wrap(new byte[] { BinaryProtocol.VERSION,
+                                                                    BinaryProtocol.BID_MESSAGE }), null);
+            fail("bid message was decoded as price");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBuffersAreReused() {
+        BidInfo bid = new BidInfo(MARKET_BASIS, new PricePoint(0, 100));
+        for (int i = 0; i < 100; i++) {
+            bufferPool.release(BinaryProtocol.encodeBid(bid, bufferPool));
+        }
+        assertEquals(1, bufferPool.getBuffersAllocated());
+    }
+
+    public void testTopics() {
+        String topic = Topics.bidTopic("cluster", "concentrator1", "UpdateBid");
+        assertTrue(Topics.matches(Topics.bidTopicFilter("cluster", "UpdateBid"), topic));
+        assertFalse(Topics.matches(Topics.bidTopicFilter("other", "UpdateBid"), topic));
+        assertFalse(Topics.matches(Topics.priceTopic("cluster", "concentrator1", "UpdatePriceInfo"), topic));
+        assertTrue(Topics.matches("PowerMatcher/#", topic));
+        assertEquals("concentrator1", Topics.getSenderId(topic));
+    }
+
+    private BidInfo roundTrip(BidInfo bid) {
+        ByteBuffer message = BinaryProtocol.encodeBid(bid, bufferPool);
+        try {
+            return BinaryProtocol.decodeBid(message, null);
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+}
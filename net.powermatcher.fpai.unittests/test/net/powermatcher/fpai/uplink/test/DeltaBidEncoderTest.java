@@ -0,0 +1,121 @@
+package net.powermatcher.fpai.uplink.test;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.uplink.BinaryProtocol;
+import net.powermatcher.fpai.uplink.ByteBufferPool;
+import net.powermatcher.fpai.uplink.DeltaBidDecoder;
+import net.powermatcher.fpai.uplink.DeltaBidEncoder;
+
+/** Unit test for {@link DeltaBidEncoder} and {@link DeltaBidDecoder}. */
+public class DeltaBidEncoderTest extends TestCase {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("Electricity", "EUR", 1000, 0, 0.99, 2, 0);
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool(4096, 4);
+    private final DeltaBidEncoder encoder = new DeltaBidEncoder(10);
+    private final DeltaBidDecoder decoder = new DeltaBidDecoder();
+
+    public void testKeyframeThenDeltas() {
+        assertEquals(BinaryProtocol.KEYFRAME_MESSAGE, send(aggregatedBid(400, 600, 0)));
+        for (int step = 1; step < 5; step++) {
+            // one agent moves: a step in the middle of the curve changes
+            BidInfo bid = aggregatedBid(400, 600, step * 100);
+            ByteBuffer message = encoder.encode(bid, bufferPool);
+            try {
+                assertEquals(BinaryProtocol.DELTA_MESSAGE, BinaryProtocol.getMessageType(message));
+                assertTrue("delta of " + message.remaining() + " bytes", message.remaining() < 40);
+                assertDemandEquals(bid, decoder.decode(message));
+            } finally {
+                bufferPool.release(message);
+            }
+        }
+        assertEquals(1, encoder.getKeyframesSent());
+        assertEquals(4, encoder.getDeltasSent());
+    }
+
+    public void testUnchangedBidIsEmptyDelta() {
+        send(aggregatedBid(400, 600, 0));
+        ByteBuffer message = encoder.encode(aggregatedBid(400, 600, 0), bufferPool);
+        try {
+            assertTrue(message.remaining() <= 4);
+            assertDemandEquals(aggregatedBid(400, 600, 0), decoder.decode(message));
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    public void testKeyframeInterval() {
+        send(aggregatedBid(400, 600, 0));
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(BinaryProtocol.DELTA_MESSAGE, send(aggregatedBid(400, 600, i)));
+        }
+        assertEquals(BinaryProtocol.KEYFRAME_MESSAGE, send(aggregatedBid(400, 600, 11)));
+    }
+
+    public void testLostDelta() {
+        send(aggregatedBid(400, 600, 0));
+
+        // the second delta is lost
+        bufferPool.release(encoder.encode(aggregatedBid(400, 600, 100), bufferPool));
+        ByteBuffer message = encoder.encode(aggregatedBid(400, 600, 200), bufferPool);
+        try {
+            assertNull(decoder.decode(message));
+        } finally {
+            bufferPool.release(message);
+        }
+        assertTrue(decoder.isAwaitingKeyframe());
+        assertEquals(1, decoder.getGapsDetected());
+        assertTrue(decoder.takeKeyframeRequest());
+        assertFalse(decoder.takeKeyframeRequest());
+
+        // the receiver requests a keyframe, with which it recovers
+        encoder.requestKeyframe();
+        assertEquals(BinaryProtocol.KEYFRAME_MESSAGE, send(aggregatedBid(400, 600, 300)));
+        assertFalse(decoder.isAwaitingKeyframe());
+        assertEquals(BinaryProtocol.DELTA_MESSAGE, send(aggregatedBid(400, 600, 400)));
+    }
+
+    public void testMarketBasisChange() {
+        send(aggregatedBid(400, 600, 0));
+        MarketBasis other = new MarketBasis("Electricity", "EUR", 100, 0, 0.99, 2, 1);
+        assertEquals(BinaryProtocol.KEYFRAME_MESSAGE, send(new BidInfo(other, new PricePoint(50, 100))));
+    }
+
+    /** sends the bid to the decoder, and checks that it decodes the same bid */
+    private byte send(BidInfo bid) {
+        ByteBuffer message = encoder.encode(bid, bufferPool);
+        try {
+            byte type = BinaryProtocol.getMessageType(message);
+            assertDemandEquals(bid, decoder.decode(message));
+            return type;
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    /**
+     * @return A bid which decreases linearly from 3000W to -3000W between the given price steps, with an extra step of
+     *         the given demand at price step 500
+     */
+    private static BidInfo aggregatedBid(int from, int to, double step) {
+        return new BidInfo(MARKET_BASIS,
+                           new PricePoint(from, 3000 + step),
+                           new PricePoint(500, step),
+                           new PricePoint(500, 0),
+                           new PricePoint(to, -3000));
+    }
+
+    private static void assertDemandEquals(BidInfo expected, BidInfo actual) {
+        assertNotNull(actual);
+        double[] expectedDemand = expected.getDemand();
+        double[] actualDemand = actual.getDemand();
+        assertEquals(expectedDemand.length, actualDemand.length);
+        for (int i = 0; i < expectedDemand.length; i++) {
+            assertEquals("demand at price step " + i, expectedDemand[i], actualDemand[i], 0.01);
+        }
+    }
+}
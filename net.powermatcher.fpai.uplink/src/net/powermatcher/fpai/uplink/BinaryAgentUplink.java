@@ -0,0 +1,212 @@
+package net.powermatcher.fpai.uplink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.agent.framework.Agent;
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.service.MatcherService;
+import net.powermatcher.fpai.agent.LatencyHistogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects a local agent (typically the concentrator of the controller) to a remote matcher with the
+ * {@link BinaryProtocol}. The bids of the agent are published on its bid topic, and the prices which the matcher
+ * publishes on its price topic are delivered to the agent. With a keyframe interval the bids are published as
+ * keyframes and deltas (see {@link DeltaBidEncoder}), and the requests of the matcher for a keyframe are honoured.
+ *
+ * @author TNO
+ */
+public class BinaryAgentUplink implements MatcherService, UplinkConnection.MessageHandler {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryAgentUplink.class);
+
+    private final UplinkConnection connection;
+    private final ByteBufferPool bufferPool;
+    private final String clusterId;
+    private final String bidTopicSuffix;
+    private final String priceTopic;
+
+    /** the encoder of the bids as keyframes and deltas, or null if every bid is published completely */
+    private final DeltaBidEncoder deltaEncoder;
+
+    /** the agent which is connected to the matcher */
+    private volatile Agent agent;
+
+    /** the id and the topic of the bids of the agent */
+    private volatile String agentId;
+    private volatile String bidTopic;
+
+    /** the market basis of the last price, which is reused as long as the market basis doesn't change */
+    private volatile MarketBasis marketBasis;
+
+    private final AtomicLong bidsPublished = new AtomicLong();
+    private final AtomicLong bytesPublished = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+
+    /** the time in nanoseconds at which the first bid since the last price was published, or 0 */
+    private final AtomicLong unansweredBidNanos = new AtomicLong();
+
+    /** the time from the publication of a bid until the arrival of the next price */
+    private final LatencyHistogram bidToPriceLatency = new LatencyHistogram();
+
+    /**
+     * @param connection
+     *            The connection over which the messages are exchanged
+     * @param bufferPool
+     *            The pool of the buffers in which the bids are serialized
+     * @param clusterId
+     *            The id of the cluster of the agent and the matcher
+     * @param matcherId
+     *            The id of the remote matcher
+     * @param bidTopicSuffix
+     *            The suffix of the topics of the bids
+     * @param priceInfoTopicSuffix
+     *            The suffix of the topics of the prices
+     * @param keyframeInterval
+     *            The number of deltas after which a keyframe is published, or 0 to publish every bid completely
+     */
+    public BinaryAgentUplink(UplinkConnection connection,
+                             ByteBufferPool bufferPool,
+                             String clusterId,
+                             String matcherId,
+                             String bidTopicSuffix,
+                             String priceInfoTopicSuffix,
+                             int keyframeInterval) {
+        deltaEncoder = keyframeInterval > 0 ? new DeltaBidEncoder(keyframeInterval) : null;
+        this.connection = connection;
+        this.bufferPool = bufferPool;
+        this.clusterId = clusterId;
+        this.bidTopicSuffix = bidTopicSuffix;
+        priceTopic = Topics.priceTopic(clusterId, matcherId, priceInfoTopicSuffix);
+    }
+
+    /**
+     * Connects the agent to the remote matcher.
+     *
+     * @param agent
+     *            The agent
+     * @throws IOException
+     *             If the prices of the matcher could not be subscribed to
+     */
+    public void bind(Agent agent) throws IOException {
+        this.agent = agent;
+        agentId = agent.getId();
+        bidTopic = Topics.bidTopic(clusterId, agentId, bidTopicSuffix);
+        connection.subscribe(priceTopic, this);
+        agent.bind((MatcherService) this);
+    }
+
+    /**
+     * Disconnects the agent from the remote matcher.
+     */
+    public void unbind() {
+        Agent agent = this.agent;
+        if (agent == null) {
+            return;
+        }
+        agent.unbind((MatcherService) this);
+        try {
+            connection.unsubscribe(priceTopic);
+        } catch (IOException e) {
+            logger.warn("Could not unsubscribe from " + priceTopic, e);
+        }
+        this.agent = null;
+    }
+
+    @Override
+    public void updateBidInfo(String agentId, BidInfo newBidInfo) {
+        String topic = agentId.equals(this.agentId) ? bidTopic : Topics.bidTopic(clusterId, agentId, bidTopicSuffix);
+
+        ByteBuffer message = deltaEncoder == null ? BinaryProtocol.encodeBid(newBidInfo, bufferPool)
+                                                  : deltaEncoder.encode(newBidInfo, bufferPool);
+        try {
+            int size = message.remaining();
+            unansweredBidNanos.compareAndSet(0, System.nanoTime());
+            connection.publish(topic, message);
+            bidsPublished.incrementAndGet();
+            bytesPublished.addAndGet(size);
+        } catch (IOException e) {
+            publishFailures.incrementAndGet();
+            logger.warn("Could not publish bid of " + agentId + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    @Override
+    public void handleMessage(String topic, ByteBuffer payload) {
+        Agent agent = this.agent;
+        if (agent == null) {
+            return;
+        }
+
+        PriceInfo priceInfo;
+        try {
+            if (BinaryProtocol.getMessageType(payload) == BinaryProtocol.RESYNC_MESSAGE) {
+                if (deltaEncoder != null && BinaryProtocol.decodeResync(payload).equals(agentId)) {
+                    deltaEncoder.requestKeyframe();
+                }
+                return;
+            }
+            priceInfo = BinaryProtocol.decodePrice(payload, marketBasis);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring invalid price message on " + topic + ": " + e.getMessage());
+            return;
+        }
+        long bidNanos = unansweredBidNanos.getAndSet(0);
+        if (bidNanos != 0) {
+            bidToPriceLatency.record(System.nanoTime() - bidNanos);
+        }
+
+        marketBasis = priceInfo.getMarketBasis();
+        agent.updatePriceInfo(priceInfo);
+    }
+
+    /**
+     * @return The number of bids which were published
+     */
+    public long getBidsPublished() {
+        return bidsPublished.get();
+    }
+
+    /**
+     * @return The number of bytes of the bids which were published
+     */
+    public long getBytesPublished() {
+        return bytesPublished.get();
+    }
+
+    /**
+     * @return The time from the publication of a bid until the arrival of the next price of the matcher, which
+     *         includes the time the matcher waits before it publishes a price
+     */
+    public LatencyHistogram getBidToPriceLatency() {
+        return bidToPriceLatency.copy();
+    }
+
+    /**
+     * Clears the recorded bid to price latencies, e.g. at the start of a measurement.
+     */
+    public void resetBidToPriceLatency() {
+        bidToPriceLatency.reset();
+    }
+
+    /**
+     * @return The encoder of the bids as keyframes and deltas, or null if every bid is published completely
+     */
+    public DeltaBidEncoder getDeltaEncoder() {
+        return deltaEncoder;
+    }
+
+    /**
+     * @return The number of bids which could not be published
+     */
+    public long getPublishFailures() {
+        return publishFailures.get();
+    }
+}
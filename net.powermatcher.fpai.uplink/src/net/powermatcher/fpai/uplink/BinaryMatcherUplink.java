@@ -0,0 +1,188 @@
+package net.powermatcher.fpai.uplink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.service.AgentConnectorService;
+import net.powermatcher.core.agent.framework.service.AgentService;
+import net.powermatcher.core.agent.framework.service.MatcherService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects a local matcher (an auctioneer or a concentrator) to the remote agents of its cluster with the
+ * {@link BinaryProtocol}; the counterpart of the {@link BinaryAgentUplink}. The bids which the agents publish are
+ * delivered to the matcher, and the prices of the matcher are published on its price topic. Bids which are sent as
+ * keyframes and deltas are decoded per agent (see {@link DeltaBidDecoder}); when a delta of an agent was lost, the
+ * agent is asked for a keyframe on the price topic.
+ * <p>
+ * The uplink is bound to the matcher like a local agent: the matcher publishes its prices to the uplink as an
+ * {@link AgentService}, and binds itself to the uplink as an {@link AgentConnectorService}, e.g. when the uplink is
+ * registered with the auctioneer manager.
+ *
+ * @author TNO
+ */
+public class BinaryMatcherUplink implements AgentService, AgentConnectorService, UplinkConnection.MessageHandler {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryMatcherUplink.class);
+
+    private final UplinkConnection connection;
+    private final ByteBufferPool bufferPool;
+    private final String id;
+    private final String bidTopicFilter;
+    private final String priceTopic;
+
+    /** the matcher which is connected to the agents */
+    private volatile MatcherService matcher;
+
+    /** the decoders of the bids of the agents, which keep the last bid of every agent */
+    private final ConcurrentMap<String, DeltaBidDecoder> decoders = new ConcurrentHashMap<String, DeltaBidDecoder>();
+
+    private final AtomicLong bidsReceived = new AtomicLong();
+    private final AtomicLong pricesPublished = new AtomicLong();
+
+    /**
+     * @param connection
+     *            The connection over which the messages are exchanged
+     * @param bufferPool
+     *            The pool of the buffers in which the prices are serialized
+     * @param clusterId
+     *            The id of the cluster of the agents and the matcher
+     * @param matcherId
+     *            The id of the matcher, which determines the topic of its prices
+     * @param bidTopicSuffix
+     *            The suffix of the topics of the bids
+     * @param priceInfoTopicSuffix
+     *            The suffix of the topics of the prices
+     */
+    public BinaryMatcherUplink(UplinkConnection connection,
+                               ByteBufferPool bufferPool,
+                               String clusterId,
+                               String matcherId,
+                               String bidTopicSuffix,
+                               String priceInfoTopicSuffix) {
+        this.connection = connection;
+        this.bufferPool = bufferPool;
+        id = "uplink-" + clusterId + "-" + matcherId;
+        bidTopicFilter = Topics.bidTopicFilter(clusterId, bidTopicSuffix);
+        priceTopic = Topics.priceTopic(clusterId, matcherId, priceInfoTopicSuffix);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Delivers the bids of the remote agents to the matcher. The matcher should publish its prices to this uplink.
+     *
+     * @param matcher
+     *            The matcher
+     * @throws IOException
+     *             If the bids of the agents could not be subscribed to
+     */
+    @Override
+    public void bind(MatcherService matcher) throws IOException {
+        this.matcher = matcher;
+        connection.subscribe(bidTopicFilter, this);
+    }
+
+    /**
+     * Stops delivering the bids of the remote agents to the matcher.
+     *
+     * @param matcher
+     *            The matcher which was bound
+     */
+    @Override
+    public void unbind(MatcherService matcher) {
+        if (this.matcher != matcher) {
+            return;
+        }
+        try {
+            connection.unsubscribe(bidTopicFilter);
+        } catch (IOException e) {
+            logger.warn("Could not unsubscribe from " + bidTopicFilter, e);
+        }
+        decoders.clear();
+        this.matcher = null;
+    }
+
+    @Override
+    public void handleMessage(String topic, ByteBuffer payload) {
+        MatcherService matcher = this.matcher;
+        String agentId = Topics.getSenderId(topic);
+        if (matcher == null || agentId == null) {
+            return;
+        }
+
+        DeltaBidDecoder decoder = decoders.get(agentId);
+        if (decoder == null) {
+            decoders.putIfAbsent(agentId, new DeltaBidDecoder());
+            decoder = decoders.get(agentId);
+        }
+
+        BidInfo bid;
+        try {
+            bid = decoder.decode(payload);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring invalid bid message on " + topic + ": " + e.getMessage());
+            return;
+        }
+
+        if (bid != null) {
+            bidsReceived.incrementAndGet();
+            matcher.updateBidInfo(agentId, bid);
+        } else if (decoder.takeKeyframeRequest()) {
+            requestKeyframe(agentId);
+        }
+    }
+
+    private void requestKeyframe(String agentId) {
+        ByteBuffer message = BinaryProtocol.encodeResync(agentId, bufferPool);
+        try {
+            connection.publish(priceTopic, message);
+        } catch (IOException e) {
+            logger.warn("Could not request a keyframe of " + agentId + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    @Override
+    public void updatePriceInfo(PriceInfo newPriceInfo) {
+        ByteBuffer message = BinaryProtocol.encodePrice(newPriceInfo, bufferPool);
+        try {
+            connection.publish(priceTopic, message);
+            pricesPublished.incrementAndGet();
+        } catch (IOException e) {
+            logger.warn("Could not publish price on " + priceTopic + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(message);
+        }
+    }
+
+    @Override
+    public void updateMarketBasis(MarketBasis newMarketBasis) {
+        // the market basis is part of every message
+    }
+
+    /**
+     * @return The number of bids of the remote agents which were delivered to the matcher
+     */
+    public long getBidsReceived() {
+        return bidsReceived.get();
+    }
+
+    /**
+     * @return The number of prices of the matcher which were published
+     */
+    public long getPricesPublished() {
+        return pricesPublished.get();
+    }
+}
@@ -0,0 +1,425 @@
+package net.powermatcher.fpai.uplink;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.core.agent.framework.data.PriceInfo;
+import net.powermatcher.core.agent.framework.data.PricePoint;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+
+/**
+ * Compact binary encoding of the bids and prices which are exchanged over the uplink (protocol {@value #NAME}).
+ * <p>
+ * A bid is encoded by its breakpoints (see {@link PiecewiseLinearBid}) instead of its demand per price step. The
+ * prices of the breakpoints are delta encoded, and their demand is quantized to {@link #WATT_RESOLUTION} and delta
+ * encoded as well. All integers are written as variable length integers (7 bits per byte), so a typical bid of a few
+ * breakpoints takes a few bytes next to the market basis, independent of the number of price steps.
+ * <p>
+ * Every message starts with the version of the protocol and the type of the message:
+ *
+ * <pre>
+ * bid         = version:byte type:byte marketBasis breakpoints
+ * price       = version:byte type:byte marketBasis price:double
+ * keyframe    = version:byte type:byte sequence:varlong marketBasis breakpoints
+ * delta       = version:byte type:byte sequence:varlong ranges:varint range*
+ * resync      = version:byte type:byte agentId:string
+ *
+ * marketBasis = commodity:string currency:string priceSteps:varint significance:varint marketRef:varint
+ *               minimumPrice:double maximumPrice:double
+ * breakpoints = count:varint (priceDelta:varint demandDelta:zigzag-varlong)*
+ * range       = startDelta:varint length:varint points:varint (offsetDelta:varint demandDelta:zigzag-varlong)*
+ * string      = length:varint utf8-bytes
+ * </pre>
+ * <p>
+ * In the delta mode ({@value #DELTA_NAME}) the bids are sent as a keyframe followed by deltas, see
+ * {@link DeltaBidEncoder} and {@link DeltaBidDecoder}.
+ *
+ * @author TNO
+ */
+public final class BinaryProtocol {
+    /** The name of the protocol, as configured in the messaging protocol of the controller */
+    public static final String NAME = "BINARY_v1";
+
+    /** The name of the protocol in which bids are sent as deltas */
+    public static final String DELTA_NAME = "BINARY_DELTA_v1";
+
+    /** The version of the protocol */
+    public static final byte VERSION = 1;
+
+    /** The types of message */
+    public static final byte BID_MESSAGE = 1;
+    public static final byte PRICE_MESSAGE = 2;
+    public static final byte KEYFRAME_MESSAGE = 3;
+    public static final byte DELTA_MESSAGE = 4;
+    public static final byte RESYNC_MESSAGE = 5;
+
+    /** The resolution in Watt to which the demand is quantized */
+    public static final double WATT_RESOLUTION = 0.01;
+
+    static final int MAX_VARINT_SIZE = 5;
+    static final int MAX_VARLONG_SIZE = 10;
+    static final int HEADER_SIZE = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Encodes a bid into a buffer of the pool.
+     *
+     * @param bid
+     *            The bid
+     * @param bufferPool
+     *            The pool of the buffer
+     * @return The buffer with the message between its position and limit, which must be released to the pool
+     */
+    public static ByteBuffer encodeBid(BidInfo bid, ByteBufferPool bufferPool) {
+        PiecewiseLinearBid breakpoints = PiecewiseLinearBid.of(bid);
+        byte[] marketBasis = encodeMarketBasis(breakpoints.getMarketBasis());
+
+        ByteBuffer buffer = bufferPool.acquire(HEADER_SIZE + marketBasis.length
+                                               + getBreakpointsSize(breakpoints.size()));
+        buffer.put(VERSION).put(BID_MESSAGE);
+        buffer.put(marketBasis);
+        putBreakpoints(buffer, Breakpoints.of(breakpoints));
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a price into a buffer of the pool.
+     *
+     * @param priceInfo
+     *            The price
+     * @param bufferPool
+     *            The pool of the buffer
+     * @return The buffer with the message between its position and limit, which must be released to the pool
+     */
+    public static ByteBuffer encodePrice(PriceInfo priceInfo, ByteBufferPool bufferPool) {
+        byte[] marketBasis = encodeMarketBasis(priceInfo.getMarketBasis());
+
+        ByteBuffer buffer = bufferPool.acquire(HEADER_SIZE + marketBasis.length + 8);
+        buffer.put(VERSION).put(PRICE_MESSAGE);
+        buffer.put(marketBasis);
+        buffer.putDouble(priceInfo.getCurrentPrice());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a bid.
+     *
+     * @param buffer
+     *            The message, between the position and the limit of the buffer
+     * @param knownMarketBasis
+     *            The market basis of the previous message (may be null), which is used instead of a new instance when
+     *            the message has the same market basis
+     * @return The bid, described by its breakpoints
+     * @throws IllegalArgumentException
+     *             If the message is not a valid bid message
+     */
+    public static BidInfo decodeBid(ByteBuffer buffer, MarketBasis knownMarketBasis) {
+        try {
+            readHeader(buffer, BID_MESSAGE);
+            MarketBasis marketBasis = getMarketBasis(buffer, knownMarketBasis);
+            Breakpoints breakpoints = getBreakpoints(buffer, marketBasis);
+            return breakpoints.toBidInfo(marketBasis);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated bid message", e);
+        }
+    }
+
+    /**
+     * Decodes a price.
+     *
+     * @param buffer
+     *            The message, between the position and the limit of the buffer
+     * @param knownMarketBasis
+     *            The market basis of the previous message (may be null), which is used instead of a new instance when
+     *            the message has the same market basis
+     * @return The price
+     * @throws IllegalArgumentException
+     *             If the message is not a valid price message
+     */
+    public static PriceInfo decodePrice(ByteBuffer buffer, MarketBasis knownMarketBasis) {
+        try {
+            readHeader(buffer, PRICE_MESSAGE);
+            MarketBasis marketBasis = getMarketBasis(buffer, knownMarketBasis);
+            return new PriceInfo(marketBasis, buffer.getDouble());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated price message", e);
+        }
+    }
+
+    /**
+     * Encodes a request to the agent to send its next bid as a keyframe, because a delta of the agent was lost.
+     *
+     * @param agentId
+     *            The id of the agent
+     * @param bufferPool
+     *            The pool of the buffer
+     * @return The buffer with the message between its position and limit, which must be released to the pool
+     */
+    public static ByteBuffer encodeResync(String agentId, ByteBufferPool bufferPool) {
+        byte[] id = agentId.getBytes(UTF8);
+        ByteBuffer buffer = bufferPool.acquire(HEADER_SIZE + MAX_VARINT_SIZE + id.length);
+        buffer.put(VERSION).put(RESYNC_MESSAGE);
+        putVarint(buffer, id.length);
+        buffer.put(id);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a request to send a keyframe.
+     *
+     * @param buffer
+     *            The message, between the position and the limit of the buffer
+     * @return The id of the agent which has to send a keyframe
+     * @throws IllegalArgumentException
+     *             If the message is not a valid resync message
+     */
+    public static String decodeResync(ByteBuffer buffer) {
+        try {
+            readHeader(buffer, RESYNC_MESSAGE);
+            return getString(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated resync message", e);
+        }
+    }
+
+    /**
+     * @return The type of the message, without consuming it
+     * @throws IllegalArgumentException
+     *             If the buffer doesn't contain a message of this version of the protocol
+     */
+    public static byte getMessageType(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated message");
+        }
+        byte version = buffer.get(buffer.position());
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version " + version);
+        }
+        return buffer.get(buffer.position() + 1);
+    }
+
+    /** The quantized breakpoints of a bid */
+    static final class Breakpoints {
+        final int[] prices;
+        final long[] demands;
+
+        Breakpoints(int[] prices, long[] demands) {
+            this.prices = prices;
+            this.demands = demands;
+        }
+
+        static Breakpoints of(PiecewiseLinearBid bid) {
+            int[] prices = new int[bid.size()];
+            long[] demands = new long[bid.size()];
+            for (int i = 0; i < prices.length; i++) {
+                prices[i] = bid.getPrice(i);
+                demands[i] = quantize(bid.getDemand(i));
+            }
+            return new Breakpoints(prices, demands);
+        }
+
+        BidInfo toBidInfo(MarketBasis marketBasis) {
+            PricePoint[] pricePoints = new PricePoint[prices.length];
+            for (int i = 0; i < prices.length; i++) {
+                pricePoints[i] = new PricePoint(prices[i], demands[i] * WATT_RESOLUTION);
+            }
+            return new BidInfo(marketBasis, pricePoints);
+        }
+
+        /**
+         * Expands the breakpoints to the quantized demand at every price step, in the same way on the sending and the
+         * receiving side, so both have exactly the same reference for the deltas.
+         */
+        void expand(long[] demand) {
+            if (prices.length == 0) {
+                Arrays.fill(demand, 0);
+                return;
+            }
+
+            int index = 0;
+            for (; index < Math.min(prices[0], demand.length); index++) {
+                demand[index] = demands[0];
+            }
+            for (int b = 0; b < prices.length - 1; b++) {
+                int from = prices[b];
+                int to = Math.min(prices[b + 1], demand.length);
+                for (; index < to; index++) {
+                    demand[index] = interpolate(demands[b], demands[b + 1], index - from, prices[b + 1] - from);
+                }
+            }
+            for (; index < demand.length; index++) {
+                demand[index] = demands[demands.length - 1];
+            }
+        }
+    }
+
+    static long interpolate(long fromDemand, long toDemand, int offset, int length) {
+        return fromDemand + Math.round((double) (toDemand - fromDemand) * offset / length);
+    }
+
+    static int getBreakpointsSize(int count) {
+        return MAX_VARINT_SIZE + count * (MAX_VARINT_SIZE + MAX_VARLONG_SIZE);
+    }
+
+    static void putBreakpoints(ByteBuffer buffer, Breakpoints breakpoints) {
+        putVarint(buffer, breakpoints.prices.length);
+        int previousPrice = 0;
+        long previousDemand = 0;
+        for (int i = 0; i < breakpoints.prices.length; i++) {
+            putVarint(buffer, breakpoints.prices[i] - previousPrice);
+            putVarlong(buffer, zigzag(breakpoints.demands[i] - previousDemand));
+            previousPrice = breakpoints.prices[i];
+            previousDemand = breakpoints.demands[i];
+        }
+    }
+
+    static Breakpoints getBreakpoints(ByteBuffer buffer, MarketBasis marketBasis) {
+        int size = getVarint(buffer);
+        if (size < 0 || size > marketBasis.getPriceSteps() * 2) {
+            throw new IllegalArgumentException("Invalid number of breakpoints: " + size);
+        }
+        int[] prices = new int[size];
+        long[] demands = new long[size];
+        int price = 0;
+        long demand = 0;
+        for (int i = 0; i < size; i++) {
+            price += getVarint(buffer);
+            demand += unzigzag(getVarlong(buffer));
+            if (price < 0 || price >= marketBasis.getPriceSteps()) {
+                throw new IllegalArgumentException("Invalid price of breakpoint: " + price);
+            }
+            prices[i] = price;
+            demands[i] = demand;
+        }
+        return new Breakpoints(prices, demands);
+    }
+
+    static void readHeader(ByteBuffer buffer, byte expectedType) {
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version " + version);
+        }
+        byte type = buffer.get();
+        if (type != expectedType) {
+            throw new IllegalArgumentException("Unexpected message type " + type);
+        }
+    }
+
+    /**
+     * @return The encoded market basis, which can be cached as long as the market basis doesn't change
+     */
+    static byte[] encodeMarketBasis(MarketBasis marketBasis) {
+        byte[] commodity = marketBasis.getCommodity().getBytes(UTF8);
+        byte[] currency = marketBasis.getCurrency().getBytes(UTF8);
+        ByteBuffer buffer = ByteBuffer.allocate(5 * MAX_VARINT_SIZE + commodity.length + currency.length + 16);
+        putVarint(buffer, commodity.length);
+        buffer.put(commodity);
+        putVarint(buffer, currency.length);
+        buffer.put(currency);
+        putVarint(buffer, marketBasis.getPriceSteps());
+        putVarint(buffer, marketBasis.getSignificance());
+        putVarint(buffer, marketBasis.getMarketRef());
+        buffer.putDouble(marketBasis.getMinimumPrice());
+        buffer.putDouble(marketBasis.getMaximumPrice());
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    static MarketBasis getMarketBasis(ByteBuffer buffer, MarketBasis knownMarketBasis) {
+        String commodity = getString(buffer);
+        String currency = getString(buffer);
+        int priceSteps = getVarint(buffer);
+        int significance = getVarint(buffer);
+        int marketRef = getVarint(buffer);
+        double minimumPrice = buffer.getDouble();
+        double maximumPrice = buffer.getDouble();
+
+        if (knownMarketBasis != null && knownMarketBasis.getPriceSteps() == priceSteps
+            && knownMarketBasis.getSignificance() == significance
+            && knownMarketBasis.getMarketRef() == marketRef
+            && knownMarketBasis.getMinimumPrice() == minimumPrice
+            && knownMarketBasis.getMaximumPrice() == maximumPrice
+            && knownMarketBasis.getCommodity().equals(commodity)
+            && knownMarketBasis.getCurrency().equals(currency)) {
+            return knownMarketBasis;
+        }
+        if (priceSteps <= 0) {
+            throw new IllegalArgumentException("Invalid number of price steps: " + priceSteps);
+        }
+        return new MarketBasis(commodity, currency, priceSteps, minimumPrice, maximumPrice, significance, marketRef);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static long quantize(double demand) {
+        return Math.round(demand / WATT_RESOLUTION);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long getVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varlong");
+    }
+}
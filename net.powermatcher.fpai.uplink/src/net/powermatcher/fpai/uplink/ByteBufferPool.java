@@ -0,0 +1,87 @@
+package net.powermatcher.fpai.uplink;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of a fixed size, in which the messages of the uplink are serialized. Direct
+ * buffers are expensive to allocate, so they are reused instead of allocated for every message. Buffers which are
+ * larger than the size of the pool are allocated when they are needed and are not pooled.
+ *
+ * @author TNO
+ */
+public class ByteBufferPool {
+    /** The size of the buffers in the pool */
+    private final int bufferSize;
+
+    /** The maximum number of idle buffers which is kept */
+    private final int capacity;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger idleBuffers = new AtomicInteger();
+
+    /** The number of buffers which were allocated */
+    private final AtomicInteger buffersAllocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize
+     *            The size of the buffers in the pool
+     * @param capacity
+     *            The maximum number of idle buffers which is kept
+     */
+    public ByteBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool is empty.
+     *
+     * @param minimumSize
+     *            The number of bytes the buffer must be able to hold
+     * @return A cleared buffer of at least the minimum size, which must be returned with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int minimumSize) {
+        if (minimumSize > bufferSize) {
+            buffersAllocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(minimumSize);
+        }
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffersAllocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it is released.
+     *
+     * @param buffer
+     *            A buffer which was acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+        if (idleBuffers.incrementAndGet() <= capacity) {
+            buffers.offer(buffer);
+        } else {
+            idleBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of buffers which were allocated, which stays constant once the pool is warmed up
+     */
+    public int getBuffersAllocated() {
+        return buffersAllocated.get();
+    }
+}
@@ -0,0 +1,163 @@
+package net.powermatcher.fpai.uplink;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+import net.powermatcher.fpai.uplink.BinaryProtocol.Breakpoints;
+
+/**
+ * Decodes the bids of a single agent which are sent by a {@link DeltaBidEncoder}, or as plain bid messages of the
+ * {@link BinaryProtocol}. A delta is applied to the demand of the previous bid; when a message was lost (a gap in the
+ * sequence numbers) the deltas are ignored until the next keyframe arrives.
+ *
+ * @author TNO
+ */
+public class DeltaBidDecoder {
+    /** The sequence number of the last message which was applied */
+    private long sequence;
+
+    /** The market basis and the quantized demand of the last bid, or null while waiting for a keyframe */
+    private MarketBasis marketBasis;
+    private long[] reference;
+
+    /** The number of gaps in the sequence numbers which were detected */
+    private long gapsDetected;
+
+    /** Whether a keyframe was requested since the decoder started waiting for a keyframe */
+    private boolean keyframeRequested;
+
+    /**
+     * Decodes the next message of the agent.
+     *
+     * @param buffer
+     *            The message, between the position and the limit of the buffer
+     * @return The bid, or null if the message is a delta which can't be applied because a message was lost
+     * @throws IllegalArgumentException
+     *             If the message is not a valid bid, keyframe or delta message
+     */
+    public synchronized BidInfo decode(ByteBuffer buffer) {
+        byte type = BinaryProtocol.getMessageType(buffer);
+        if (type == BinaryProtocol.BID_MESSAGE) {
+            BidInfo bid = BinaryProtocol.decodeBid(buffer, marketBasis);
+            marketBasis = bid.getMarketBasis();
+            return bid;
+        }
+
+        try {
+            BinaryProtocol.readHeader(buffer, type);
+            long messageSequence = BinaryProtocol.getVarlong(buffer);
+            if (type == BinaryProtocol.KEYFRAME_MESSAGE) {
+                return decodeKeyframe(buffer, messageSequence);
+            } else if (type == BinaryProtocol.DELTA_MESSAGE) {
+                return decodeDelta(buffer, messageSequence);
+            } else {
+                throw new IllegalArgumentException("Unexpected message type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            reference = null;
+            throw new IllegalArgumentException("Truncated bid message", e);
+        } catch (IllegalArgumentException e) {
+            // the reference may be partially updated
+            reference = null;
+            throw e;
+        }
+    }
+
+    private BidInfo decodeKeyframe(ByteBuffer buffer, long messageSequence) {
+        MarketBasis newMarketBasis = BinaryProtocol.getMarketBasis(buffer, marketBasis);
+        Breakpoints breakpoints = BinaryProtocol.getBreakpoints(buffer, newMarketBasis);
+
+        if (reference == null || reference.length != newMarketBasis.getPriceSteps()) {
+            reference = new long[newMarketBasis.getPriceSteps()];
+        }
+        breakpoints.expand(reference);
+        marketBasis = newMarketBasis;
+        sequence = messageSequence;
+        keyframeRequested = false;
+        return breakpoints.toBidInfo(newMarketBasis);
+    }
+
+    private BidInfo decodeDelta(ByteBuffer buffer, long messageSequence) {
+        if (reference == null) {
+            return null;
+        }
+        if (messageSequence != sequence + 1) {
+            gapsDetected++;
+            reference = null;
+            return null;
+        }
+
+        int rangeCount = BinaryProtocol.getVarint(buffer);
+        int previousLast = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int first = previousLast + BinaryProtocol.getVarint(buffer);
+            int last = first + BinaryProtocol.getVarint(buffer);
+            if (first < 0 || last >= reference.length || last < first) {
+                throw new IllegalArgumentException("Invalid range " + first + "-" + last);
+            }
+
+            int pointCount = BinaryProtocol.getVarint(buffer);
+            int previousIndex = first;
+            long previousDemand = reference[first];
+            for (int p = 0; p < pointCount; p++) {
+                int index = previousIndex + BinaryProtocol.getVarint(buffer);
+                long demand = previousDemand + BinaryProtocol.unzigzag(BinaryProtocol.getVarlong(buffer));
+                if (index > last) {
+                    throw new IllegalArgumentException("Breakpoint " + index + " outside range " + first + "-" + last);
+                }
+                for (int i = previousIndex + 1; i < index; i++) {
+                    reference[i] = BinaryProtocol.interpolate(previousDemand,
+                                                              demand,
+                                                              i - previousIndex,
+                                                              index - previousIndex);
+                }
+                reference[index] = demand;
+                previousIndex = index;
+                previousDemand = demand;
+            }
+            previousLast = last;
+        }
+        sequence = messageSequence;
+
+        return toBidInfo();
+    }
+
+    private BidInfo toBidInfo() {
+        double[] demand = new double[reference.length];
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = reference[i] * BinaryProtocol.WATT_RESOLUTION;
+        }
+        return PiecewiseLinearBid.fromDemand(marketBasis, demand, demand.length).toBidInfo();
+    }
+
+    /**
+     * Determines whether the sender should be asked for a keyframe, which is the case once after a delta was ignored
+     * while waiting for a keyframe.
+     *
+     * @return Whether a keyframe should be requested
+     */
+    public synchronized boolean takeKeyframeRequest() {
+        if (reference != null || keyframeRequested) {
+            return false;
+        }
+        keyframeRequested = true;
+        return true;
+    }
+
+    /**
+     * @return Whether deltas are ignored until the next keyframe arrives
+     */
+    public synchronized boolean isAwaitingKeyframe() {
+        return reference == null;
+    }
+
+    /**
+     * @return The number of gaps in the sequence numbers which were detected
+     */
+    public synchronized long getGapsDetected() {
+        return gapsDetected;
+    }
+}
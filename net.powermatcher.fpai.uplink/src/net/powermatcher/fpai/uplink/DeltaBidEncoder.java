@@ -0,0 +1,229 @@
+package net.powermatcher.fpai.uplink;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.core.agent.framework.data.BidInfo;
+import net.powermatcher.core.agent.framework.data.MarketBasis;
+import net.powermatcher.fpai.agent.PiecewiseLinearBid;
+import net.powermatcher.fpai.uplink.BinaryProtocol.Breakpoints;
+
+/**
+ * Encodes the successive bids of a single agent as keyframes and deltas of the {@link BinaryProtocol}.
+ * <p>
+ * A keyframe contains the complete bid. A delta only contains the ranges of price steps in which the (quantized)
+ * demand differs from the previous bid, each described by the breakpoints of the demand within the range, so the size
+ * of a delta scales with the change of the bid instead of the number of price steps. Every message has a sequence
+ * number, with which the receiver detects lost messages; the receiver then ignores deltas until the next keyframe.
+ * Keyframes are sent for the first bid, when the market basis changes, when a delta would not be smaller than a
+ * keyframe, every keyframe interval, and when the receiver requests one with {@link #requestKeyframe()}.
+ * <p>
+ * The encoder keeps the quantized demand of the previous bid, as the receiver reconstructs it, as the reference of the
+ * next delta.
+ *
+ * @author TNO
+ */
+public class DeltaBidEncoder {
+    /** The number of messages after which a keyframe is sent */
+    private final int keyframeInterval;
+
+    /** The sequence number of the previous message */
+    private long sequence;
+
+    /** The number of deltas since the last keyframe */
+    private int deltasSinceKeyframe;
+
+    /** The market basis of the previous bid, and its encoding */
+    private MarketBasis marketBasis;
+    private byte[] encodedMarketBasis;
+
+    /** The quantized demand of the previous bid, and the buffer for the demand of the next bid */
+    private long[] reference;
+    private long[] demand;
+
+    /** The ranges which changed, as pairs of the first and last price step, and the breakpoints within the ranges */
+    private int[] ranges = new int[8];
+    private int[] points = new int[16];
+
+    private volatile boolean keyframeRequested;
+
+    private final AtomicLong keyframesSent = new AtomicLong();
+    private final AtomicLong deltasSent = new AtomicLong();
+
+    /**
+     * @param keyframeInterval
+     *            The number of deltas after which a keyframe is sent
+     */
+    public DeltaBidEncoder(int keyframeInterval) {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Requests that the next bid is sent as a keyframe, e.g. because the receiver lost a delta.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Encodes the next bid of the agent into a buffer of the pool.
+     *
+     * @param bid
+     *            The bid
+     * @param bufferPool
+     *            The pool of the buffer
+     * @return The buffer with the keyframe or delta between its position and limit, which must be released to the pool
+     */
+    public synchronized ByteBuffer encode(BidInfo bid, ByteBufferPool bufferPool) {
+        PiecewiseLinearBid breakpoints = PiecewiseLinearBid.of(bid);
+        Breakpoints quantized = Breakpoints.of(breakpoints);
+        MarketBasis newMarketBasis = breakpoints.getMarketBasis();
+
+        boolean keyframe = keyframeRequested || reference == null || deltasSinceKeyframe >= keyframeInterval
+                           || !newMarketBasis.equals(marketBasis);
+        if (!newMarketBasis.equals(marketBasis)) {
+            marketBasis = newMarketBasis;
+            encodedMarketBasis = BinaryProtocol.encodeMarketBasis(newMarketBasis);
+            reference = null;
+            demand = new long[newMarketBasis.getPriceSteps()];
+        }
+        quantized.expand(demand);
+
+        int pointCount = 0;
+        int rangeCount = 0;
+        if (!keyframe) {
+            rangeCount = findChangedRanges();
+            pointCount = findRangeBreakpoints(rangeCount);
+            // a delta with more points than the bid has breakpoints is larger than a keyframe
+            keyframe = pointCount > quantized.prices.length + 1;
+        }
+
+        sequence++;
+        ByteBuffer buffer;
+        if (keyframe) {
+            buffer = bufferPool.acquire(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_VARLONG_SIZE
+                                        + encodedMarketBasis.length
+                                        + BinaryProtocol.getBreakpointsSize(quantized.prices.length));
+            buffer.put(BinaryProtocol.VERSION).put(BinaryProtocol.KEYFRAME_MESSAGE);
+            BinaryProtocol.putVarlong(buffer, sequence);
+            buffer.put(encodedMarketBasis);
+            BinaryProtocol.putBreakpoints(buffer, quantized);
+
+            keyframeRequested = false;
+            deltasSinceKeyframe = 0;
+            keyframesSent.incrementAndGet();
+        } else {
+            buffer = bufferPool.acquire(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_VARLONG_SIZE
+                                        + BinaryProtocol.MAX_VARINT_SIZE
+                                        + rangeCount * 3 * BinaryProtocol.MAX_VARINT_SIZE
+                                        + pointCount * (BinaryProtocol.MAX_VARINT_SIZE
+                                                        + BinaryProtocol.MAX_VARLONG_SIZE));
+            buffer.put(BinaryProtocol.VERSION).put(BinaryProtocol.DELTA_MESSAGE);
+            BinaryProtocol.putVarlong(buffer, sequence);
+            putRanges(buffer, rangeCount, pointCount);
+
+            deltasSinceKeyframe++;
+            deltasSent.incrementAndGet();
+        }
+        buffer.flip();
+
+        // the demand of this bid is the reference of the next delta
+        long[] previous = reference == null ? new long[demand.length] : reference;
+        reference = demand;
+        demand = previous;
+
+        return buffer;
+    }
+
+    /** finds the ranges of price steps in which the demand differs from the reference */
+    private int findChangedRanges() {
+        int rangeCount = 0;
+        int index = 0;
+        while (index < demand.length) {
+            if (demand[index] == reference[index]) {
+                index++;
+                continue;
+            }
+            int first = index;
+            while (index < demand.length && demand[index] != reference[index]) {
+                index++;
+            }
+            if (rangeCount * 2 + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[rangeCount * 2] = first;
+            ranges[rangeCount * 2 + 1] = index - 1;
+            rangeCount++;
+        }
+        return rangeCount;
+    }
+
+    /**
+     * finds the breakpoints of the demand within the ranges: the first and last price step of every range and the
+     * price steps at which the slope of the demand changes
+     *
+     * @return The number of breakpoints of all ranges
+     */
+    private int findRangeBreakpoints(int rangeCount) {
+        int pointCount = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int first = ranges[r * 2];
+            int last = ranges[r * 2 + 1];
+            for (int i = first; i <= last; i++) {
+                if (i == first || i == last || demand[i] - demand[i - 1] != demand[i + 1] - demand[i]) {
+                    if (pointCount == points.length) {
+                        points = Arrays.copyOf(points, points.length * 2);
+                    }
+                    points[pointCount++] = i;
+                }
+            }
+        }
+        return pointCount;
+    }
+
+    private void putRanges(ByteBuffer buffer, int rangeCount, int pointCount) {
+        BinaryProtocol.putVarint(buffer, rangeCount);
+        int point = 0;
+        int previousLast = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int first = ranges[r * 2];
+            int last = ranges[r * 2 + 1];
+            BinaryProtocol.putVarint(buffer, first - previousLast);
+            BinaryProtocol.putVarint(buffer, last - first);
+
+            int firstPoint = point;
+            while (point < pointCount && points[point] <= last) {
+                point++;
+            }
+            BinaryProtocol.putVarint(buffer, point - firstPoint);
+            int previousIndex = first;
+            long previousDemand = reference[first];
+            for (int p = firstPoint; p < point; p++) {
+                int index = points[p];
+                BinaryProtocol.putVarint(buffer, index - previousIndex);
+                BinaryProtocol.putVarlong(buffer, BinaryProtocol.zigzag(demand[index] - previousDemand));
+                previousIndex = index;
+                previousDemand = demand[index];
+            }
+            previousLast = last;
+        }
+    }
+
+    /**
+     * @return The number of keyframes which were encoded
+     */
+    public long getKeyframesSent() {
+        return keyframesSent.get();
+    }
+
+    /**
+     * @return The number of deltas which were encoded
+     */
+    public long getDeltasSent() {
+        return deltasSent.get();
+    }
+}
@@ -0,0 +1,36 @@
+package net.powermatcher.fpai.uplink;
+
+/**
+ * The protocols with which a controller or an auctioneer exchanges bids and prices with the rest of its cluster, as
+ * configured in their messaging_protocol. The protocols of the PowerMatcher core are handled by its protocol adapters,
+ * the binary protocols by the uplinks of this package.
+ *
+ * @author TNO
+ */
+public enum MessagingProtocol {
+    /** The internal protocol of the PowerMatcher core */
+    INTERNAL_v1,
+
+    /** The HAN protocol of the PowerMatcher core */
+    HAN_rev6,
+
+    /** The {@link BinaryProtocol}, in which every bid is sent completely */
+    BINARY_v1,
+
+    /** The {@link BinaryProtocol}, in which the bids are sent as keyframes and deltas */
+    BINARY_DELTA_v1;
+
+    /**
+     * @return Whether the bids and prices are exchanged with the {@link BinaryProtocol}
+     */
+    public boolean isBinary() {
+        return this == BINARY_v1 || this == BINARY_DELTA_v1;
+    }
+
+    /**
+     * @return Whether the bids are sent as keyframes and deltas, see {@link DeltaBidEncoder}
+     */
+    public boolean isDelta() {
+        return this == BINARY_DELTA_v1;
+    }
+}
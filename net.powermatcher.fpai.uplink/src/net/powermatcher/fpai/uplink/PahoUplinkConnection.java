@@ -0,0 +1,120 @@
+package net.powermatcher.fpai.uplink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link UplinkConnection} to an MQTT broker. Bids and prices supersede each other, so they are published with QoS 0
+ * and without persistence.
+ *
+ * @author TNO
+ */
+public class PahoUplinkConnection implements UplinkConnection, MqttCallback {
+    private static final Logger logger = LoggerFactory.getLogger(PahoUplinkConnection.class);
+
+    private static final int QOS = 0;
+
+    private final MqttClient client;
+
+    /** the handlers of the subscriptions, by topic filter */
+    private final ConcurrentMap<String, MessageHandler> handlers = new ConcurrentHashMap<String, MessageHandler>();
+
+    /**
+     * Connects to the broker.
+     *
+     * @param brokerUri
+     *            The URI of the broker
+     * @param clientId
+     *            The id of the connection
+     * @throws IOException
+     *             If the connection could not be established
+     */
+    public PahoUplinkConnection(String brokerUri, String clientId) throws IOException {
+        try {
+            client = new MqttClient(brokerUri, clientId, new MemoryPersistence());
+            client.setCallback(this);
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            client.connect(options);
+        } catch (MqttException e) {
+            throw new IOException("Could not connect to " + brokerUri + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void publish(String topic, ByteBuffer payload) throws IOException {
+        // the client only accepts arrays, which is the single copy of the message
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        try {
+            client.publish(topic, bytes, QOS, false);
+        } catch (MqttException e) {
+            throw new IOException("Could not publish on " + topic + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void subscribe(String topicFilter, MessageHandler handler) throws IOException {
+        handlers.put(topicFilter, handler);
+        try {
+            client.subscribe(topicFilter, QOS);
+        } catch (MqttException e) {
+            handlers.remove(topicFilter);
+            throw new IOException("Could not subscribe to " + topicFilter + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topicFilter) throws IOException {
+        handlers.remove(topicFilter);
+        try {
+            client.unsubscribe(topicFilter);
+        } catch (MqttException e) {
+            throw new IOException("Could not unsubscribe from " + topicFilter + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        } catch (MqttException e) {
+            throw new IOException("Could not disconnect: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+        for (Map.Entry<String, MessageHandler> entry : handlers.entrySet()) {
+            if (Topics.matches(entry.getKey(), topic)) {
+                entry.getValue().handleMessage(topic, payload.duplicate());
+            }
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        logger.warn("Connection to the broker lost: " + cause.getMessage());
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}
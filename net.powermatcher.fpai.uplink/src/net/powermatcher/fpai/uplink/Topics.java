@@ -0,0 +1,78 @@
+package net.powermatcher.fpai.uplink;
+
+/**
+ * The topics of the binary uplink. Bids are published on <code>PowerMatcher/&lt;cluster&gt;/&lt;agent&gt;/&lt;bid
+ * suffix&gt;</code> and prices on <code>PowerMatcher/&lt;cluster&gt;/&lt;matcher&gt;/&lt;price suffix&gt;</code>.
+ *
+ * @author TNO
+ */
+public final class Topics {
+    private static final String ROOT = "PowerMatcher";
+    private static final char SEPARATOR = '/';
+
+    private Topics() {
+    }
+
+    /**
+     * @return The topic on which the agent publishes its bids
+     */
+    public static String bidTopic(String clusterId, String agentId, String bidTopicSuffix) {
+        return ROOT + SEPARATOR + clusterId + SEPARATOR + agentId + SEPARATOR + bidTopicSuffix;
+    }
+
+    /**
+     * @return The topic filter which matches the bids of all agents of the cluster
+     */
+    public static String bidTopicFilter(String clusterId, String bidTopicSuffix) {
+        return bidTopic(clusterId, "+", bidTopicSuffix);
+    }
+
+    /**
+     * @return The topic on which the matcher publishes its prices
+     */
+    public static String priceTopic(String clusterId, String matcherId, String priceInfoTopicSuffix) {
+        return ROOT + SEPARATOR + clusterId + SEPARATOR + matcherId + SEPARATOR + priceInfoTopicSuffix;
+    }
+
+    /**
+     * @return The id of the agent or matcher which published on the topic, or null if the topic is not a topic of
+     *         the uplink
+     */
+    public static String getSenderId(String topic) {
+        int end = topic.lastIndexOf(SEPARATOR);
+        int start = end <= 0 ? -1 : topic.lastIndexOf(SEPARATOR, end - 1);
+        return start < 0 ? null : topic.substring(start + 1, end);
+    }
+
+    /**
+     * Determines whether a topic matches a topic filter with MQTT wildcards.
+     *
+     * @param topicFilter
+     *            The topic filter, which may contain <code>+</code> and <code>#</code> wildcards
+     * @param topic
+     *            The topic
+     * @return Whether the topic matches the filter
+     */
+    public static boolean matches(String topicFilter, String topic) {
+        int f = 0;
+        int t = 0;
+        while (f < topicFilter.length()) {
+            char c = topicFilter.charAt(f);
+            if (c == '#') {
+                return true;
+            } else if (c == '+') {
+                while (t < topic.length() && topic.charAt(t) != SEPARATOR) {
+                    t++;
+                }
+                f++;
+            } else {
+                if (t >= topic.length() || topic.charAt(t) != c) {
+                    return false;
+                }
+                f++;
+                t++;
+            }
+        }
+        return t == topic.length();
+    }
+}
@@ -0,0 +1,60 @@
+package net.powermatcher.fpai.uplink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Publish/subscribe connection over which the binary uplink exchanges its messages, e.g. with an MQTT broker. Topic
+ * filters may contain the MQTT wildcards <code>+</code> (a single level) and <code>#</code> (all remaining levels).
+ *
+ * @author TNO
+ */
+public interface UplinkConnection extends Closeable {
+    /** Receives the messages of a subscription */
+    interface MessageHandler {
+        /**
+         * @param topic
+         *            The topic on which the message was published
+         * @param payload
+         *            The message, between the position and the limit of the buffer. The buffer is only valid during
+         *            the invocation
+         */
+        void handleMessage(String topic, ByteBuffer payload);
+    }
+
+    /**
+     * Publishes a message. The payload is copied or sent before this method returns, so the buffer can be reused
+     * afterwards.
+     *
+     * @param topic
+     *            The topic to publish on
+     * @param payload
+     *            The message, between the position and the limit of the buffer
+     * @throws IOException
+     *             If the message could not be published
+     */
+    void publish(String topic, ByteBuffer payload) throws IOException;
+
+    /**
+     * Subscribes to the messages which are published on topics that match the filter.
+     *
+     * @param topicFilter
+     *            The topic filter
+     * @param handler
+     *            The handler of the messages
+     * @throws IOException
+     *             If the subscription failed
+     */
+    void subscribe(String topicFilter, MessageHandler handler) throws IOException;
+
+    /**
+     * Cancels a subscription.
+     *
+     * @param topicFilter
+     *            The topic filter which was subscribed to
+     * @throws IOException
+     *             If the subscription could not be cancelled
+     */
+    void unsubscribe(String topicFilter) throws IOException;
+}